@@ -0,0 +1,91 @@
+package no.ntnu.acp142.chatapp;
+
+import java.io.IOException;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Carries the broadcasts nodes find each other with when dynamic multicast is
+ * used, see Networking.listenBroadcast. Each broadcast is the node ID of its
+ * sender, and goes to all nodes listening on the channel.
+ * UdpBroadcastChannel sends them to the broadcast group, LoopbackNetwork to
+ * the nodes connected to it.
+ * 
+ * @author Thomas Martin Schmid
+ */
+public interface BroadcastChannel {
+
+    /**
+     * Opens channels, with the broadcast settings in use. Called when
+     * Networking is initialized, and again on every restart.
+     */
+    interface Factory {
+        /**
+         * Opens a channel.
+         * 
+         * @param config
+         *            holding the broadcast group and port to use
+         * @return The open channel.
+         * @throws IOException
+         *             If the channel cannot be opened.
+         */
+        BroadcastChannel open(ChatConfiguration config) throws IOException;
+    }
+
+    /**
+     * Sends a broadcast to all nodes listening on the channel.
+     * 
+     * @param data
+     *            to send
+     * @throws IOException
+     *             If it cannot be sent.
+     */
+    void send(byte[] data) throws IOException;
+
+    /**
+     * Waits for the next broadcast.
+     * 
+     * @param buffer
+     *            to receive it into
+     * @return The number of bytes received.
+     * @throws IOException
+     *             If the channel is closed, or nothing could be received.
+     */
+    int receive(byte[] buffer) throws IOException;
+
+    /**
+     * Closes the channel. A thread waiting in receive is woken up.
+     */
+    void close();
+}
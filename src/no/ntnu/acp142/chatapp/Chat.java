@@ -64,6 +64,10 @@ public class Chat extends AbstractListModel<Message> {
      * Reference to our own subscriber object.
      */
     private Subscriber         self;
+    /**
+     * Full text index over messageList.
+     */
+    private final MessageIndex index;
 
     /**
      * Creates a new chat
@@ -78,6 +82,7 @@ public class Chat extends AbstractListModel<Message> {
         this.messageList = new ArrayList<Message>();
         this.self = self;
         this.capacity = 100;
+        this.index = new MessageIndex();
     }
 
     /**
@@ -112,16 +117,47 @@ public class Chat extends AbstractListModel<Message> {
 
     /**
      * Adds a message to the message list, removing the oldest messages while
-     * capacity is exceeded.
+     * capacity is exceeded. The search index is updated to match.
      * 
      * @param message
      *            to add
      */
-    public void addMessage(Message message) {
+    public synchronized void addMessage(Message message) {
         while (this.messageList.size() >= this.capacity) {
-            this.messageList.remove(0);
+            this.index.removeOldest(searchableContent(this.messageList.remove(0)));
         }
         this.messageList.add(message);
+        this.index.add(searchableContent(message));
+    }
+
+    /**
+     * Searches the messages in this chat for any of the words in the query.
+     * See MessageIndex.search for how hits are ranked.
+     * 
+     * @param query
+     *            words to search for
+     * @param limit
+     *            maximum number of hits
+     * @return The matching messages, best first.
+     */
+    public synchronized ArrayList<Message> search(String query, int limit) {
+        int[] offsets = this.index.search(query, limit);
+        ArrayList<Message> hits = new ArrayList<Message>(offsets.length);
+        for (int offset : offsets) {
+            hits.add(this.messageList.get(offset - this.index.getFirstOffset()));
+        }
+        return hits;
+    }
+
+    /**
+     * Gets the content of a message to index. Messages from the local pseudo
+     * senders (status, help and search output, node ID 0 or below) are not
+     * searchable.
+     * 
+     * @return The content, or null if the message should not be searchable.
+     */
+    private static String searchableContent(Message message) {
+        return message.getSender().getNodeId() > 0 ? message.getContent() : null;
     }
 
     @Override
@@ -7,6 +7,8 @@ import java.awt.GridBagLayout;
 import java.awt.Insets;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 
 import javax.swing.JButton;
 import javax.swing.JLabel;
@@ -55,6 +57,8 @@ import javax.swing.JTextField;
  */
 public class ChatConfigPanel extends JPanel implements PropertyChangeListener {
 
+    private final ChatConfigurationModel chatConfigModel;
+
     private JPanel             chatConfigurationPanel;
 
     private GridBagConstraints c;
@@ -84,8 +88,11 @@ public class ChatConfigPanel extends JPanel implements PropertyChangeListener {
      * 
      * @param mainView
      *            instance to use for listeners
+     * @param chatConfigModel
+     *            holding the settings to show and change
      **/
-    public ChatConfigPanel(MainView mainView) {
+    public ChatConfigPanel(MainView mainView, ChatConfigurationModel chatConfigModel) {
+        this.chatConfigModel = chatConfigModel;
 
         // INITIALIZE
         chatConfigurationPanel = new JPanel(new GridBagLayout());
@@ -221,17 +228,17 @@ public class ChatConfigPanel extends JPanel implements PropertyChangeListener {
     }
 
     /**
-     * setModelChatConfiguration method sets the default configuration model to
-     * chatConfigView by getting all the data from the class
-     * ChatConfigurationModel.
+     * setModelChatConfiguration method sets the configuration model to
+     * chatConfigView by getting all the data from the ChatConfigurationModel
+     * given.
      */
     public void setModelChatConfiguration() {
-        broadcastGroup.setText(ChatConfigurationModel.getBroadcastGroup().getHostAddress());
-        broadcastPort.setText(Short.toString(ChatConfigurationModel.getBroadcastPort()));
-        maximumWaitForResponseOnDelayedSend.setText(Long.toString(ChatConfigurationModel
+        broadcastGroup.setText(chatConfigModel.getConfiguration().getBroadcastGroup().getHostAddress());
+        broadcastPort.setText(Short.toString(chatConfigModel.getConfiguration().getBroadcastPort()));
+        maximumWaitForResponseOnDelayedSend.setText(Long.toString(chatConfigModel.getConfiguration()
                 .getMaximumWaitForResponseOnDelayedSend()));
-        defaultTimeToLive.setText(Long.toString(ChatConfigurationModel.getDefaultTimeToLive()));
-        waitForInUseResponse.setText(Long.toString(ChatConfigurationModel.getWaitForInUseResponse()));
+        defaultTimeToLive.setText(Long.toString(chatConfigModel.getConfiguration().getDefaultTimeToLive()));
+        waitForInUseResponse.setText(Long.toString(chatConfigModel.getConfiguration().getWaitForInUseResponse()));
 
     }
 
@@ -247,15 +254,36 @@ public class ChatConfigPanel extends JPanel implements PropertyChangeListener {
 
     /**
      * applyChangesConfiguration adds all changes to the ConfigurationModel when
-     * Apply button is clicked.
+     * Apply button is clicked. The changes are applied as one update, so the
+     * networking threads never see only some of them. If a field does not
+     * parse, nothing is changed.
      */
     public void applyChangesChatConfiguration() {
-        ChatConfigurationModel.setBroadcastGroup(broadcastGroup.getText());
-        ChatConfigurationModel.setBroadcastPort(Short.parseShort(broadcastPort.getText()));
-        ChatConfigurationModel.setMaximumWaitForResponseOnDelayedSend(Long
-                .parseLong(maximumWaitForResponseOnDelayedSend.getText()));
-        ChatConfigurationModel.setDefaultTimeToLive(Long.parseLong(defaultTimeToLive.getText()));
-        ChatConfigurationModel.setWaitForInUseResponse(Long.parseLong(waitForInUseResponse.getText()));
+        final String group = broadcastGroup.getText();
+        final short port = Short.parseShort(broadcastPort.getText());
+        final long maximumWait = Long.parseLong(maximumWaitForResponseOnDelayedSend.getText());
+        final long timeToLive = Long.parseLong(defaultTimeToLive.getText());
+        final long inUseWait = Long.parseLong(waitForInUseResponse.getText());
+        boolean isGroupValid;
+        try {
+            InetAddress.getByName(group);
+            isGroupValid = true;
+        } catch (UnknownHostException e) {
+            ChatLog.warning("ChatConfigPanel.applyChangesChatConfiguration()",
+                    "Unknown broadcast group, old group maintained.", "group", group);
+            isGroupValid = false;
+        }
+        final boolean setGroup = isGroupValid;
+        chatConfigModel.updateConfiguration(new ChatConfigurationModel.Update() {
+            @Override
+            public void apply(ChatConfiguration.Editor editor) {
+                if ( setGroup ) {
+                    editor.setBroadcastGroup(group);
+                }
+                editor.setBroadcastPort(port).setMaximumWaitForResponseOnDelayedSend(maximumWait)
+                        .setDefaultTimeToLive(timeToLive).setWaitForInUseResponse(inUseWait);
+            }
+        });
     }
 
     /**
@@ -269,20 +297,20 @@ public class ChatConfigPanel extends JPanel implements PropertyChangeListener {
     public void propertyChange(PropertyChangeEvent evt) {
         String name = evt.getPropertyName();
         if ( name.equals(ChatConfigurationModel.BROADCAST_GROUP_PROPERTY) ) {
-            broadcastGroup.setText(ChatConfigurationModel.getBroadcastGroup().toString());
+            broadcastGroup.setText(chatConfigModel.getConfiguration().getBroadcastGroup().getHostAddress());
         }
         if ( name.equals(ChatConfigurationModel.BROADCAST_PORT_PROPERTY) ) {
-            broadcastPort.setText(Short.toString(ChatConfigurationModel.getBroadcastPort()));
+            broadcastPort.setText(Short.toString(chatConfigModel.getConfiguration().getBroadcastPort()));
         }
         if ( name.equals(ChatConfigurationModel.MAXIMUM_WAIT_FOR_RESPONSE_ON_DELAYED_SEND_PROPERTY) ) {
-            maximumWaitForResponseOnDelayedSend.setText(Long.toString(ChatConfigurationModel
+            maximumWaitForResponseOnDelayedSend.setText(Long.toString(chatConfigModel.getConfiguration()
                     .getMaximumWaitForResponseOnDelayedSend()));
         }
         if ( name.equals(ChatConfigurationModel.DEFAULT_TIME_TO_LIVE_PROPERTY) ) {
-            defaultTimeToLive.setText(Long.toString(ChatConfigurationModel.getDefaultTimeToLive()));
+            defaultTimeToLive.setText(Long.toString(chatConfigModel.getConfiguration().getDefaultTimeToLive()));
         }
         if ( name.equals(ChatConfigurationModel.WAIT_FOR_IN_USE_RESPONSE_PROPERTY) ) {
-            waitForInUseResponse.setText(Long.toString(ChatConfigurationModel.getWaitForInUseResponse()));
+            waitForInUseResponse.setText(Long.toString(chatConfigModel.getConfiguration().getWaitForInUseResponse()));
         }
     }
 
@@ -0,0 +1,811 @@
+package no.ntnu.acp142.chatapp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * An immutable snapshot of the pmulchat specific configuration. The current
+ * snapshot is published by ChatConfigurationModel through a single volatile
+ * reference, and replaced as a whole whenever a setting changes. Code that
+ * reads several settings to handle one message should get the snapshot once,
+ * with ChatConfigurationModel.getConfiguration(), and read them all from it.
+ * The settings are then consistent with each other, and a change made on
+ * another thread is seen from the next message on.<br>
+ * New snapshots are made with an Editor, see ChatConfigurationModel.update.
+ * 
+ * @author Thomas Martin Schmid
+ */
+public final class ChatConfiguration {
+
+    /**
+     * Maximum length of message history for the active chat
+     */
+    private final int     maximumMessagesToKeepForActiveChat;
+    /**
+     * Maximum length of message history for the inactive chats
+     */
+    private final int     maximumMessagesToKeepForInactiveChat;
+    /**
+     * Multicast group to used to share lists of the users in coordinationGroup.
+     */
+    private final String  broadcastGroup;
+    /**
+     * Port to listen to broadcastGroup on.
+     */
+    private final short   broadcastPort;
+    /**
+     * When we wait for responses before sending (see
+     * Networking.delayedConditionalSend), we wait a random amount of time, from
+     * 0 to this amount of milliseconds.
+     */
+    private final long    maximumWaitForResponseOnDelayedSend;
+    /**
+     * When set to true, topics can be dynamically created and deleted. If set
+     * to false, the topics are set up on application startup from a table and
+     * are immutable.
+     */
+    private final boolean useDynamicTopics;
+    /**
+     * Whether to use dynamic multicast groups in libjpmul transmissions.
+     */
+    private final boolean useDynamicMulticast;
+    /**
+     * Whether to use persistant groups with dynamic multicast.
+     */
+    private final boolean usePersistantGroups;
+    /**
+     * Default time to live of ACP142 messages
+     */
+    private final long    defaultTimeToLive;
+    /**
+     * Time to wait for a response before deleting a topic.
+     */
+    private final long    waitForInUseResponse;
+    /**
+     * Seconds between each time the networking metrics are logged. 0
+     * disables the dump.
+     */
+    private final long    statsDumpInterval;
+    /**
+     * Whether chat messages sent in quick succession to the same topic are
+     * packed together into SEND_MESSAGE_BATCH messages. See MessageBatcher.
+     */
+    private final boolean useMessageBatching;
+    /**
+     * Maximum size in bytes of the message contents in a single batch. A batch
+     * is sent as soon as the next message would not fit.
+     */
+    private final int     messageBatchMaxSize;
+    /**
+     * Milliseconds a batch is held open for more messages after the first
+     * message is added to it.
+     */
+    private final long    messageBatchLinger;
+    /**
+     * Seconds between the HEARTBEAT messages sent to all known nodes when
+     * dynamic multicast is in use. Nodes that stop sending them are removed
+     * from the destination and subscriber lists. 0 or less turns heartbeats and
+     * the removal off.
+     */
+    private final long    heartbeatInterval;
+    /**
+     * Suspicion level (phi) above which a node that has stopped sending
+     * heartbeats is taken to be dead. See FailureDetector.
+     */
+    private final double  failureDetectorThreshold;
+    /**
+     * Maximum number of bytes of our own chat messages that may be waiting to
+     * be sent to a single topic. Messages written while a topic is at its
+     * budget are refused. See SendBudget.
+     */
+    private final int     sendQueueByteBudget;
+    /**
+     * Path of the file the warm restart snapshot is written to and loaded from.
+     * Empty disables snapshots.
+     */
+    private final String  stateSnapshotFile;
+    /**
+     * Seconds between warm restart snapshots, besides the one written on
+     * shutdown. 0 or less only writes on shutdown.
+     */
+    private final long    stateSnapshotInterval;
+    /**
+     * Whether chat messages and topic lists are compressed when all their
+     * receivers decode compressed messages and it makes them smaller. See
+     * PayloadCodec.
+     */
+    private final boolean usePayloadCompression;
+    /**
+     * Directory received files are saved to. Partial files of suspended
+     * transfers are kept here as well.
+     */
+    private final String  fileTransferDirectory;
+    /**
+     * Largest file in bytes accepted from others. Offers of larger files are
+     * ignored, and so are all offers if this is 0 or less.
+     */
+    private final long    maximumFileTransferSize;
+    /**
+     * Path of the file every message received from and sent to libjpmul is
+     * appended to. Empty disables capturing. See TrafficCapture.
+     */
+    private final String  trafficCaptureFile;
+
+    /**
+     * Creates a snapshot holding the default settings.
+     */
+    public ChatConfiguration() {
+        this(new Editor());
+    }
+
+    /**
+     * Creates a snapshot of the settings of the given editor.
+     */
+    private ChatConfiguration(Editor editor) {
+        this.maximumMessagesToKeepForActiveChat = editor.maximumMessagesToKeepForActiveChat;
+        this.maximumMessagesToKeepForInactiveChat = editor.maximumMessagesToKeepForInactiveChat;
+        this.broadcastGroup = editor.broadcastGroup;
+        this.broadcastPort = editor.broadcastPort;
+        this.maximumWaitForResponseOnDelayedSend = editor.maximumWaitForResponseOnDelayedSend;
+        this.useDynamicTopics = editor.useDynamicTopics;
+        this.useDynamicMulticast = editor.useDynamicMulticast;
+        this.usePersistantGroups = editor.usePersistantGroups;
+        this.defaultTimeToLive = editor.defaultTimeToLive;
+        this.waitForInUseResponse = editor.waitForInUseResponse;
+        this.statsDumpInterval = editor.statsDumpInterval;
+        this.useMessageBatching = editor.useMessageBatching;
+        this.messageBatchMaxSize = editor.messageBatchMaxSize;
+        this.messageBatchLinger = editor.messageBatchLinger;
+        this.heartbeatInterval = editor.heartbeatInterval;
+        this.failureDetectorThreshold = editor.failureDetectorThreshold;
+        this.sendQueueByteBudget = editor.sendQueueByteBudget;
+        this.stateSnapshotFile = editor.stateSnapshotFile;
+        this.stateSnapshotInterval = editor.stateSnapshotInterval;
+        this.usePayloadCompression = editor.usePayloadCompression;
+        this.fileTransferDirectory = editor.fileTransferDirectory;
+        this.maximumFileTransferSize = editor.maximumFileTransferSize;
+        this.trafficCaptureFile = editor.trafficCaptureFile;
+    }
+
+    /**
+     * Gets an editor holding the settings of this snapshot, to make a new
+     * snapshot from.
+     * 
+     * @return A new editor.
+     */
+    public Editor edit() {
+        return new Editor(this);
+    }
+
+    // -------------------------- GETTERS --------------------------------------
+
+    /**
+     * Gets the maximum message count to keep in the Chat object of the
+     * currently active chat.
+     * 
+     * @return maximum length of chat history.
+     */
+    public int getMaximumMessagesToKeepForActiveChat() {
+        return this.maximumMessagesToKeepForActiveChat;
+    }
+
+    /**
+     * Gets the maximum message count to keep in the Chat object of the
+     * currently inactive chats.
+     * 
+     * @return maximum length of chat history.
+     */
+    public int getMaximumMessagesToKeepForInactiveChat() {
+        return this.maximumMessagesToKeepForInactiveChat;
+    }
+
+    /**
+     * Gets the multicast group used to coordinate IDs of nodes listening to
+     * coordinationGroup
+     * 
+     * @return Address of multicast group
+     */
+    public InetAddress getBroadcastGroup() {
+        try {
+            return InetAddress.getByName(this.broadcastGroup);
+        } catch (UnknownHostException e) {
+            // Since we test for exceptions when setting the field, this can
+            // only happen for the default group
+            ChatLog.error("ChatConfiguration.getBroadcastGroup()", "Unknown broadcast group, returning null.", e,
+                    "group", this.broadcastGroup);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the port used by broadcast group.
+     * 
+     * @return Port to broadcast to.
+     */
+    public short getBroadcastPort() {
+        return this.broadcastPort;
+    }
+
+    /**
+     * Gets the maximum time to wait for a response in delayedConditionalSend.
+     * 
+     * @return Maximum time to wait.
+     */
+    public long getMaximumWaitForResponseOnDelayedSend() {
+        return this.maximumWaitForResponseOnDelayedSend;
+    }
+
+    /**
+     * If true, topics are mutable to the extent of creation and deletion. If
+     * false, all topics must be defined on load, and be set in
+     * DefaultTopicList. This setting is hardcoded.
+     * 
+     * @return true if topics are mutable.
+     */
+    public boolean useDynamicTopics() {
+        return this.useDynamicTopics;
+    }
+
+    /**
+     * Determines whether to use dynamic multicast groups when transmitting over
+     * ACP142.
+     * 
+     * @return true if we should use dynamic groups.
+     */
+    public boolean useDynamicMulticast() {
+        return this.useDynamicMulticast;
+    }
+
+    /**
+     * Determines whether to use persistant multicast groups with dynamic
+     * multicast when transmitting over ACP142.
+     * 
+     * @return true if we should use persistant groups.
+     */
+    public boolean usePersistantGroups() {
+        return this.usePersistantGroups;
+    }
+
+    /**
+     * Gets the default time to live for ACP142 messages.
+     * 
+     * @return default expiry time.
+     */
+    public long getDefaultTimeToLive() {
+        return this.defaultTimeToLive;
+    }
+
+    /**
+     * Gets the time to wait for a response when querying the deletion of a
+     * topic.
+     * 
+     * @return time to wait.
+     */
+    public long getWaitForInUseResponse() {
+        return this.waitForInUseResponse;
+    }
+
+    /**
+     * Gets the number of seconds between each dump of the networking metrics
+     * to the log.
+     * 
+     * @return interval in seconds, 0 if disabled.
+     */
+    public long getStatsDumpInterval() {
+        return this.statsDumpInterval;
+    }
+
+    /**
+     * Determines whether outgoing chat messages are batched.
+     * 
+     * @return true if messages are batched.
+     */
+    public boolean useMessageBatching() {
+        return this.useMessageBatching;
+    }
+
+    /**
+     * Gets the maximum size of the message contents of a single batch.
+     * 
+     * @return maximum size in bytes.
+     */
+    public int getMessageBatchMaxSize() {
+        return this.messageBatchMaxSize;
+    }
+
+    /**
+     * Gets the time a batch is held open after its first message.
+     * 
+     * @return time in milliseconds.
+     */
+    public long getMessageBatchLinger() {
+        return this.messageBatchLinger;
+    }
+
+    /**
+     * Gets the time between heartbeats.
+     * 
+     * @return time in seconds, 0 or less if heartbeats are off.
+     */
+    public long getHeartbeatInterval() {
+        return this.heartbeatInterval;
+    }
+
+    /**
+     * Gets the suspicion level above which a node is taken to be dead.
+     * 
+     * @return threshold for phi.
+     */
+    public double getFailureDetectorThreshold() {
+        return this.failureDetectorThreshold;
+    }
+
+    /**
+     * Gets the maximum number of bytes of chat messages that may be waiting to
+     * be sent to a single topic.
+     * 
+     * @return budget in bytes.
+     */
+    public int getSendQueueByteBudget() {
+        return this.sendQueueByteBudget;
+    }
+
+    /**
+     * Gets the path of the warm restart snapshot file, see StateSnapshot.
+     * 
+     * @return Path of snapshot file, empty if snapshots are disabled.
+     */
+    public String getStateSnapshotFile() {
+        return this.stateSnapshotFile;
+    }
+
+    /**
+     * Gets the number of seconds between warm restart snapshots.
+     * 
+     * @return Seconds between snapshots, 0 or less if only written on shutdown.
+     */
+    public long getStateSnapshotInterval() {
+        return this.stateSnapshotInterval;
+    }
+
+    /**
+     * Gets whether outgoing chat messages and topic lists may be compressed.
+     * 
+     * @return true if messages may be compressed.
+     */
+    public boolean usePayloadCompression() {
+        return this.usePayloadCompression;
+    }
+
+    /**
+     * Gets the directory received files are saved to, see FileTransfers.
+     * 
+     * @return Path of download directory.
+     */
+    public String getFileTransferDirectory() {
+        return this.fileTransferDirectory;
+    }
+
+    /**
+     * Gets the size of the largest file accepted from others.
+     * 
+     * @return Maximum file size in bytes, 0 or less if no files are accepted.
+     */
+    public long getMaximumFileTransferSize() {
+        return this.maximumFileTransferSize;
+    }
+
+    /**
+     * Gets the path of the traffic capture file, see TrafficCapture.
+     * 
+     * @return Path of capture file, empty if capturing is disabled.
+     */
+    public String getTrafficCaptureFile() {
+        return this.trafficCaptureFile;
+    }
+
+    /**
+     * Mutable copy of a ChatConfiguration, used to make a new snapshot with
+     * some settings changed. Setters return the editor, so changes can be
+     * chained.
+     */
+    public static final class Editor {
+        private int     maximumMessagesToKeepForActiveChat = 500;
+        private int     maximumMessagesToKeepForInactiveChat = 100;
+        private String  broadcastGroup = "239.1.1.117";
+        private short   broadcastPort = 27812;
+        private long    maximumWaitForResponseOnDelayedSend = 1000;
+        private boolean useDynamicTopics = true;
+        private boolean useDynamicMulticast = true;
+        private boolean usePersistantGroups = false;
+        private long    defaultTimeToLive = 60;
+        private long    waitForInUseResponse = 20;
+        private long    statsDumpInterval = 0;
+        private boolean useMessageBatching = false;
+        private int     messageBatchMaxSize = 1024;
+        private long    messageBatchLinger = 50;
+        private long    heartbeatInterval = 10;
+        private double  failureDetectorThreshold = 8.0;
+        private int     sendQueueByteBudget = 65536;
+        private String  stateSnapshotFile = "";
+        private long    stateSnapshotInterval = 60;
+        private boolean usePayloadCompression = true;
+        private String  fileTransferDirectory = "downloads";
+        private long    maximumFileTransferSize = 104857600;
+        private String  trafficCaptureFile = "";
+
+        /**
+         * Creates an editor holding the default settings.
+         */
+        Editor() {
+        }
+
+        /**
+         * Creates an editor holding the settings of the given snapshot.
+         */
+        private Editor(ChatConfiguration configuration) {
+            this.maximumMessagesToKeepForActiveChat = configuration.maximumMessagesToKeepForActiveChat;
+            this.maximumMessagesToKeepForInactiveChat = configuration.maximumMessagesToKeepForInactiveChat;
+            this.broadcastGroup = configuration.broadcastGroup;
+            this.broadcastPort = configuration.broadcastPort;
+            this.maximumWaitForResponseOnDelayedSend = configuration.maximumWaitForResponseOnDelayedSend;
+            this.useDynamicTopics = configuration.useDynamicTopics;
+            this.useDynamicMulticast = configuration.useDynamicMulticast;
+            this.usePersistantGroups = configuration.usePersistantGroups;
+            this.defaultTimeToLive = configuration.defaultTimeToLive;
+            this.waitForInUseResponse = configuration.waitForInUseResponse;
+            this.statsDumpInterval = configuration.statsDumpInterval;
+            this.useMessageBatching = configuration.useMessageBatching;
+            this.messageBatchMaxSize = configuration.messageBatchMaxSize;
+            this.messageBatchLinger = configuration.messageBatchLinger;
+            this.heartbeatInterval = configuration.heartbeatInterval;
+            this.failureDetectorThreshold = configuration.failureDetectorThreshold;
+            this.sendQueueByteBudget = configuration.sendQueueByteBudget;
+            this.stateSnapshotFile = configuration.stateSnapshotFile;
+            this.stateSnapshotInterval = configuration.stateSnapshotInterval;
+            this.usePayloadCompression = configuration.usePayloadCompression;
+            this.fileTransferDirectory = configuration.fileTransferDirectory;
+            this.maximumFileTransferSize = configuration.maximumFileTransferSize;
+            this.trafficCaptureFile = configuration.trafficCaptureFile;
+        }
+
+        /**
+         * Sets the maximum message count to keep in the Chat object of the
+         * currently inactive chats.
+         * 
+         * @param maximumMessagesToKeepForActiveChat
+         *            maximum length of chat history.
+         * @return This editor.
+         */
+        public Editor setMaximumMessagesToKeepForActiveChat(int maximumMessagesToKeepForActiveChat) {
+            this.maximumMessagesToKeepForActiveChat = maximumMessagesToKeepForActiveChat;
+            return this;
+        }
+
+        /**
+         * Sets the maximum message count to keep in the Chat object of the
+         * currently inactive chats.
+         * 
+         * @param maximumMessagesToKeepForInactiveChat
+         *            maximum length of chat history.
+         * @return This editor.
+         */
+        public Editor setMaximumMessagesToKeepForInactiveChat(int maximumMessagesToKeepForInactiveChat) {
+            this.maximumMessagesToKeepForInactiveChat = maximumMessagesToKeepForInactiveChat;
+            return this;
+        }
+
+        /**
+         * Sets the multicast group used to coordinate IDs of nodes listening to
+         * coordinationGroup. The address is not tested, see
+         * ChatConfigurationModel.setBroadcastGroup.
+         * 
+         * @param hostname
+         *            of address of multicast group
+         * @return This editor.
+         */
+        public Editor setBroadcastGroup(String hostname) {
+            this.broadcastGroup = hostname;
+            return this;
+        }
+
+        /**
+         * Sets the port used by broadcast group.
+         * 
+         * @param broadcastPort
+         *            to use.
+         * @return This editor.
+         */
+        public Editor setBroadcastPort(short broadcastPort) {
+            this.broadcastPort = broadcastPort;
+            return this;
+        }
+
+        /**
+         * Sets the maximum time to wait for a response in
+         * delayedConditionalSend.
+         * 
+         * @param wait
+         *            Maximum time to wait in milliseconds.
+         * @return This editor.
+         */
+        public Editor setMaximumWaitForResponseOnDelayedSend(long wait) {
+            this.maximumWaitForResponseOnDelayedSend = wait;
+            return this;
+        }
+
+        /**
+         * Sets whether to use dynamic topics or not. This should be set on
+         * startup and not be changed afterwards! Dynamic topics mean we allow
+         * the users to create and delete topics. Any topic set in the topic
+         * list file are not deletable.
+         * 
+         * @param useDynamic
+         *            true if we are to use dynamic topics.
+         * @return This editor.
+         */
+        public Editor setUseDynamicTopics(boolean useDynamic) {
+            this.useDynamicTopics = useDynamic;
+            return this;
+        }
+
+        /**
+         * Sets whether to use dynamic multicast groups when transmitting over
+         * libjpmul.
+         * 
+         * @param useDynamic
+         *            true if we are to use dynamic groups.
+         * @return This editor.
+         */
+        public Editor setUseDynamicMulticast(boolean useDynamic) {
+            this.useDynamicMulticast = useDynamic;
+            return this;
+        }
+
+        /**
+         * Determines whether to use persistant multicast groups with dynamic
+         * multicast when transmitting over ACP142.
+         * 
+         * @param usePersistant
+         *            true if we should use persistant groups.
+         * @return This editor.
+         */
+        public Editor setUsePersistantGroups(boolean usePersistant) {
+            this.usePersistantGroups = usePersistant;
+            return this;
+        }
+
+        /**
+         * Sets the default time to live for ACP142 messages.
+         * 
+         * @param time
+         *            before expiry.
+         * @return This editor.
+         */
+        public Editor setDefaultTimeToLive(long time) {
+            this.defaultTimeToLive = time;
+            return this;
+        }
+
+        /**
+         * Sets the time to wait for a response when querying the deletion of a
+         * topic, before deleting it.
+         * 
+         * @param wait
+         *            Time to wait.
+         * @return This editor.
+         */
+        public Editor setWaitForInUseResponse(long wait) {
+            this.waitForInUseResponse = wait;
+            return this;
+        }
+
+        /**
+         * Sets the number of seconds between each dump of the networking
+         * metrics to the log. Takes effect when Networking is initialized.
+         * 
+         * @param interval
+         *            in seconds, 0 to disable.
+         * @return This editor.
+         */
+        public Editor setStatsDumpInterval(long interval) {
+            this.statsDumpInterval = interval;
+            return this;
+        }
+
+        /**
+         * Sets whether outgoing chat messages are batched. Nodes that do not
+         * know SEND_MESSAGE_BATCH ignore batches, so this should only be turned
+         * on when all nodes support it.
+         * 
+         * @param useBatching
+         *            true to batch messages.
+         * @return This editor.
+         */
+        public Editor setUseMessageBatching(boolean useBatching) {
+            this.useMessageBatching = useBatching;
+            return this;
+        }
+
+        /**
+         * Sets the maximum size of the message contents of a single batch.
+         * 
+         * @param size
+         *            in bytes.
+         * @return This editor.
+         */
+        public Editor setMessageBatchMaxSize(int size) {
+            this.messageBatchMaxSize = size;
+            return this;
+        }
+
+        /**
+         * Sets the time a batch is held open after its first message.
+         * 
+         * @param linger
+         *            time in milliseconds.
+         * @return This editor.
+         */
+        public Editor setMessageBatchLinger(long linger) {
+            this.messageBatchLinger = linger;
+            return this;
+        }
+
+        /**
+         * Sets the time between heartbeats. All nodes should use the same
+         * interval.
+         * 
+         * @param interval
+         *            time in seconds, 0 or less to turn heartbeats off.
+         * @return This editor.
+         */
+        public Editor setHeartbeatInterval(long interval) {
+            this.heartbeatInterval = interval;
+            return this;
+        }
+
+        /**
+         * Sets the suspicion level above which a node is taken to be dead.
+         * Higher values make mistakes less likely, but dead nodes are found
+         * later.
+         * 
+         * @param threshold
+         *            for phi.
+         * @return This editor.
+         */
+        public Editor setFailureDetectorThreshold(double threshold) {
+            this.failureDetectorThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of bytes of chat messages that may be waiting
+         * to be sent to a single topic.
+         * 
+         * @param budget
+         *            in bytes.
+         * @return This editor.
+         */
+        public Editor setSendQueueByteBudget(int budget) {
+            this.sendQueueByteBudget = budget;
+            return this;
+        }
+
+        /**
+         * Sets the path of the warm restart snapshot file.
+         * 
+         * @param path
+         *            of snapshot file. Empty disables snapshots.
+         * @return This editor.
+         */
+        public Editor setStateSnapshotFile(String path) {
+            this.stateSnapshotFile = path;
+            return this;
+        }
+
+        /**
+         * Sets the number of seconds between warm restart snapshots.
+         * 
+         * @param interval
+         *            in seconds. 0 or less only writes on shutdown.
+         * @return This editor.
+         */
+        public Editor setStateSnapshotInterval(long interval) {
+            this.stateSnapshotInterval = interval;
+            return this;
+        }
+
+        /**
+         * Sets whether outgoing chat messages and topic lists may be
+         * compressed. Messages are still only compressed towards nodes that
+         * have advertised that they decode them.
+         * 
+         * @param useCompression
+         *            true to allow compression.
+         * @return This editor.
+         */
+        public Editor setUsePayloadCompression(boolean useCompression) {
+            this.usePayloadCompression = useCompression;
+            return this;
+        }
+
+        /**
+         * Sets the directory received files are saved to.
+         * 
+         * @param path
+         *            of download directory. Created if it does not exist.
+         * @return This editor.
+         */
+        public Editor setFileTransferDirectory(String path) {
+            this.fileTransferDirectory = path;
+            return this;
+        }
+
+        /**
+         * Sets the size of the largest file accepted from others.
+         * 
+         * @param maximumSize
+         *            in bytes. 0 or less accepts no files.
+         * @return This editor.
+         */
+        public Editor setMaximumFileTransferSize(long maximumSize) {
+            this.maximumFileTransferSize = maximumSize;
+            return this;
+        }
+
+        /**
+         * Sets the path of the traffic capture file. Only read when
+         * Networking is initialized.
+         * 
+         * @param path
+         *            of capture file. Empty disables capturing.
+         * @return This editor.
+         */
+        public Editor setTrafficCaptureFile(String path) {
+            this.trafficCaptureFile = path;
+            return this;
+        }
+
+        /**
+         * Makes a snapshot of the settings of this editor.
+         * 
+         * @return The new snapshot.
+         */
+        public ChatConfiguration build() {
+            return new ChatConfiguration(this);
+        }
+    }
+}
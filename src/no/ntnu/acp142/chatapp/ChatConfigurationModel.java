@@ -40,14 +40,30 @@ import java.net.UnknownHostException;
 
 /**
  * The ChatConfigurationModel class is responsible for the pmulchat- specific
- * configuration parameters.
+ * configuration parameters. The settings are read through getConfiguration.
+ * The static setters, used while parsing the command line, change the default
+ * model, which holds the settings of the application. Models made with the
+ * public constructor hold settings of their own.
  * 
  * @author Luka Cetusic, Thomas Martin Schmid
  * 
  */
 public class ChatConfigurationModel {
 
-	private static PropertyChangeSupport propertyChangeSupport;
+	/**
+	 * The model behind the static setters, holding the settings of the
+	 * application. See getDefault.
+	 */
+	private static final ChatConfigurationModel DEFAULT = new ChatConfigurationModel(
+			new ChatConfiguration());
+
+	private final PropertyChangeSupport propertyChangeSupport;
+	/**
+	 * The current settings. Replaced as a whole on every change, so readers
+	 * always see a consistent set of settings, and see changes made on other
+	 * threads.
+	 */
+	private volatile ChatConfiguration configuration;
 
 	public static final String BROADCAST_GROUP_PROPERTY = "BroadcastGroup";
 	public static final String BROADCAST_PORT_PROPERTY = "BroadcastPort";
@@ -56,12 +72,41 @@ public class ChatConfigurationModel {
 	public static final String USE_PERSISTANT_MULTICAST_PROPERTY = "UsePersistantMulticast";
 	public static final String DEFAULT_TIME_TO_LIVE_PROPERTY = "DefaultTimeToLive";
 	public static final String WAIT_FOR_IN_USE_RESPONSE_PROPERTY = "WaitForInUseResponse";
+	public static final String STATS_DUMP_INTERVAL_PROPERTY = "StatsDumpInterval";
+	public static final String USE_MESSAGE_BATCHING_PROPERTY = "UseMessageBatching";
+	public static final String MESSAGE_BATCH_MAX_SIZE_PROPERTY = "MessageBatchMaxSize";
+	public static final String MESSAGE_BATCH_LINGER_PROPERTY = "MessageBatchLinger";
+	public static final String HEARTBEAT_INTERVAL_PROPERTY = "HeartbeatInterval";
+	public static final String FAILURE_DETECTOR_THRESHOLD_PROPERTY = "FailureDetectorThreshold";
+	public static final String SEND_QUEUE_BYTE_BUDGET_PROPERTY = "SendQueueByteBudget";
+	public static final String STATE_SNAPSHOT_FILE_PROPERTY = "StateSnapshotFile";
+	public static final String STATE_SNAPSHOT_INTERVAL_PROPERTY = "StateSnapshotInterval";
+	public static final String USE_PAYLOAD_COMPRESSION_PROPERTY = "UsePayloadCompression";
+	public static final String FILE_TRANSFER_DIRECTORY_PROPERTY = "FileTransferDirectory";
+	public static final String MAXIMUM_FILE_TRANSFER_SIZE_PROPERTY = "MaximumFileTransferSize";
+	public static final String TRAFFIC_CAPTURE_FILE_PROPERTY = "TrafficCaptureFile";
 
 	/**
-	 * Constructor that initializes propertyChangeSupport
+	 * Creates a model of its own, starting out with the given settings. It is
+	 * not changed by the static setters, so several nodes with settings of
+	 * their own may run in one process, see VirtualNodes.
+	 * 
+	 * @param configuration
+	 *            to start out with
 	 */
-	public ChatConfigurationModel() {
-		propertyChangeSupport = new PropertyChangeSupport(this);
+	public ChatConfigurationModel(ChatConfiguration configuration) {
+		this.propertyChangeSupport = new PropertyChangeSupport(this);
+		this.configuration = configuration;
+	}
+
+	/**
+	 * Gets the model of the settings of the application, which the static
+	 * setters change.
+	 * 
+	 * @return The default model.
+	 */
+	public static ChatConfigurationModel getDefault() {
+		return DEFAULT;
 	}
 
 	/**
@@ -79,155 +124,60 @@ public class ChatConfigurationModel {
 	// -----------------------------------
 
 	/**
-	 * Maximum length of message history for the active chat
-	 */
-	private static int maximumMessagesToKeepForActiveChat = 500;
-	/**
-	 * Maximum length of message history for the active chat
-	 */
-	private static int maximumMessagesToKeepForInactiveChat = 100;
-	/**
-	 * Multicast group to used to share lists of the users in coordinationGroup.
-	 */
-	private static String broadcastGroup = "239.1.1.117";
-	/**
-	 * Port to listen to broadcastGroup on.
-	 */
-	private static short broadcastPort = 27812;
-	/**
-	 * When we wait for responses before sending (see
-	 * Networking.delayedConditionalSend), we wait a random amount of time, from
-	 * 0 to this amount of milliseconds.
-	 */
-	private static long maximumWaitForResponseOnDelayedSend = 1000;
-	/**
-	 * When set to true, topics can be dynamically created and deleted. If set
-	 * to false, the topics are set up on application startup from a table and
-	 * are immutable.
-	 */
-	private static boolean useDynamicTopics = true;
-	/**
-	 * Whether to use dynamic multicast groups in libjpmul transmissions.
-	 */
-	private static boolean useDynamicMulticast = true;
-	/**
-	 * Whether to use persistant groups with dynamic multicast.
-	 */
-	private static boolean usePersistantGroups = false;
-	/**
-	 * Default time to live of ACP142 messages
-	 */
-	private static long defaultTimeToLive = 60;
-	/**
-	 * Time to wait for a response before deleting a topic.
-	 */
-	private static long waitForInUseResponse = 20;
-
-	// -------------------------- GETTERS --------------------------------------
-	/**
-	 * Gets the multicast group used to coordinate IDs of nodes listening to
-	 * coordinationGroup
-	 * 
-	 * @return Address of multicast group
+	 * A change of several settings at once, see update.
 	 */
-	public static InetAddress getBroadcastGroup() {
-		try {
-			return InetAddress.getByName(broadcastGroup);
-		} catch (UnknownHostException e) {
-			// Since we test for exceptions when setting the field, this can
-			// only happen for the default group
-			System.out
-					.println("Error in ConfigurationModel.getBroadcastGroup(): Unknown host attempted gotten. Returning null!");
-			return null;
-		}
-	}
-
-	/**
-	 * Gets the port used by broadcast group.
-	 * 
-	 * @return Port to broadcast to.
-	 */
-	public static short getBroadcastPort() {
-		return broadcastPort;
-	}
-
-	/**
-	 * If true, topics are mutable to the extent of creation and deletion. If
-	 * false, all topics must be defined on load, and be set in
-	 * DefaultTopicList. This setting is hardcoded.
-	 * 
-	 * @return true if topics are mutable.
-	 */
-	public static boolean useDynamicTopics() {
-		return useDynamicTopics;
-	}
-
-	/**
-	 * Determines whether to use dynamic multicast groups when transmitting over
-	 * ACP142.
-	 * 
-	 * @return true if we should use dynamic groups.
-	 */
-	public static boolean useDynamicMulticast() {
-		return useDynamicMulticast;
-	}
-
-	/**
-	 * Determines whether to use persistant multicast groups with dynamic
-	 * multicast when transmitting over ACP142.
-	 * 
-	 * @return true if we should use persistant groups.
-	 */
-	public static boolean usePersistantGroups() {
-		return usePersistantGroups;
-	}
-
-	/**
-	 * Gets the default time to live for ACP142 messages.
-	 * 
-	 * @return default expiry time.
-	 */
-	public static long getDefaultTimeToLive() {
-		return defaultTimeToLive;
+	public interface Update {
+		/**
+		 * Makes the changes.
+		 * 
+		 * @param editor
+		 *            holding the current settings, to change
+		 */
+		void apply(ChatConfiguration.Editor editor);
 	}
 
 	/**
-	 * Gets the time to wait for a response when querying the deletion of a
-	 * topic.
+	 * Gets the current settings of this model. Code that reads several
+	 * settings to do one thing, e.g. handle one received message, should get
+	 * the settings once and read them all from the snapshot returned.
 	 * 
-	 * @return time to wait.
+	 * @return The current, immutable settings.
 	 */
-	public static long getWaitForInUseResponse() {
-		return waitForInUseResponse;
+	public ChatConfiguration getConfiguration() {
+		return this.configuration;
 	}
 
 	/**
-	 * Gets the maximum time to wait for a response in delayedConditionalSend.
+	 * Changes several settings at once. The changes are made to an editor
+	 * holding the current settings, and published as one new snapshot, so no
+	 * reader sees only some of them. Updates and setters are serialized, so
+	 * none is lost. A property change is fired for each setting changed that
+	 * has a property name.
 	 * 
-	 * @return Maximum time to wait.
+	 * @param update
+	 *            making the changes to the default model
 	 */
-	public static long getMaximumWaitForResponseOnDelayedSend() {
-		return maximumWaitForResponseOnDelayedSend;
+	public static void update(Update update) {
+		DEFAULT.updateConfiguration(update);
 	}
 
 	/**
-	 * Gets the maximum message count to keep in the Chat object of the
-	 * currently active chat.
+	 * Changes several settings of this model at once, see update.
 	 * 
-	 * @return maximum length of chat history.
-	 */
-	public static int getMaximumMessagesToKeepForActiveChat() {
-		return maximumMessagesToKeepForActiveChat;
-	}
-
-	/**
-	 * Gets the maximum message count to keep in the Chat object of the
-	 * currently inactive chats.
-	 * 
-	 * @return maximum length of chat history.
-	 */
-	public static int getMaximumMessagesToKeepForInactiveChat() {
-		return maximumMessagesToKeepForInactiveChat;
+	 * @param update
+	 *            making the changes
+	 */
+	public void updateConfiguration(Update update) {
+		ChatConfiguration oldConfiguration;
+		ChatConfiguration newConfiguration;
+		synchronized (this) {
+			oldConfiguration = this.configuration;
+			ChatConfiguration.Editor editor = oldConfiguration.edit();
+			update.apply(editor);
+			newConfiguration = editor.build();
+			this.configuration = newConfiguration;
+		}
+		fireChanges(oldConfiguration, newConfiguration);
 	}
 
 	// -------------------------- SETTERS ---------------------------------
@@ -238,9 +188,12 @@ public class ChatConfigurationModel {
 	 * @param maximumMessagesToKeepForActiveChat
 	 *            maximum length of chat history.
 	 */
-	public static void setMaximumMessagesToKeepForActiveChat(
-			int maximumMessagesToKeepForActiveChat) {
-		ChatConfigurationModel.maximumMessagesToKeepForActiveChat = maximumMessagesToKeepForActiveChat;
+	public static void setMaximumMessagesToKeepForActiveChat(final int maximumMessagesToKeepForActiveChat) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setMaximumMessagesToKeepForActiveChat(maximumMessagesToKeepForActiveChat);
+			}
+		});
 	}
 
 	/**
@@ -250,9 +203,12 @@ public class ChatConfigurationModel {
 	 * @param maximumMessagesToKeepForInactiveChat
 	 *            maximum length of chat history.
 	 */
-	public static void setMaximumMessagesToKeepForInactiveChat(
-			int maximumMessagesToKeepForInactiveChat) {
-		ChatConfigurationModel.maximumMessagesToKeepForInactiveChat = maximumMessagesToKeepForInactiveChat;
+	public static void setMaximumMessagesToKeepForInactiveChat(final int maximumMessagesToKeepForInactiveChat) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setMaximumMessagesToKeepForInactiveChat(maximumMessagesToKeepForInactiveChat);
+			}
+		});
 	}
 
 	/**
@@ -263,15 +219,19 @@ public class ChatConfigurationModel {
 	 * @param hostname
 	 *            of address of multicast group
 	 */
-	public static void setBroadcastGroup(String hostname) {
+	public static void setBroadcastGroup(final String hostname) {
 		try {
 			InetAddress.getByName(hostname);
-			broadcastGroup = hostname;
 		} catch (UnknownHostException e) {
-			System.out
-					.println("Error in ConfigurationModel.setBroadcastGroup(): Unknown host'"
-							+ hostname + "', old hostname maintained.");
+			ChatLog.warning("ChatConfigurationModel.setBroadcastGroup()",
+					"Unknown host, old broadcast group kept.", "host", hostname);
+			return;
 		}
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setBroadcastGroup(hostname);
+			}
+		});
 	}
 
 	/**
@@ -280,11 +240,12 @@ public class ChatConfigurationModel {
 	 * @param broadcastPort
 	 *            to use.
 	 */
-	public static void setBroadcastPort(short broadcastPort) {
-		String oldValue = Short.toString(getBroadcastPort());
-		ChatConfigurationModel.broadcastPort = broadcastPort;
-		propertyChangeSupport.firePropertyChange(BROADCAST_PORT_PROPERTY,
-				oldValue, broadcastPort);
+	public static void setBroadcastPort(final short broadcastPort) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setBroadcastPort(broadcastPort);
+			}
+		});
 	}
 
 	/**
@@ -294,11 +255,12 @@ public class ChatConfigurationModel {
 	 * @param useDynamic
 	 *            true if we are to use dynamic groups.
 	 */
-	public static void setUseDynamicMulticast(boolean useDynamic) {
-		String oldValue = Boolean.toString(useDynamicMulticast());
-		useDynamicMulticast = useDynamic;
-		propertyChangeSupport.firePropertyChange(
-				USE_DYNAMIC_MULTICAST_PROPERTY, oldValue, useDynamic);
+	public static void setUseDynamicMulticast(final boolean useDynamic) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setUseDynamicMulticast(useDynamic);
+			}
+		});
 	}
 
 	/**
@@ -308,11 +270,12 @@ public class ChatConfigurationModel {
 	 * @param usePersistant
 	 *            true if we should use persistant groups.
 	 */
-	public static void setUsePersistantGroups(boolean usePersistant) {
-		String oldValue = Boolean.toString(usePersistantGroups());
-		usePersistantGroups = usePersistant;
-		propertyChangeSupport.firePropertyChange(
-				USE_PERSISTANT_MULTICAST_PROPERTY, oldValue, usePersistant);
+	public static void setUsePersistantGroups(final boolean usePersistant) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setUsePersistantGroups(usePersistant);
+			}
+		});
 	}
 
 	/**
@@ -324,11 +287,12 @@ public class ChatConfigurationModel {
 	 * @param useDynamic
 	 *            true if we are to use dynamic topics.
 	 */
-	public static void setUseDynamicTopics(boolean useDynamic) {
-		String oldValue = Boolean.toString(useDynamicTopics());
-		useDynamicTopics = useDynamic;
-		propertyChangeSupport.firePropertyChange(
-				USE_DYNAMIC_MULTICAST_PROPERTY, oldValue, useDynamic);
+	public static void setUseDynamicTopics(final boolean useDynamic) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setUseDynamicTopics(useDynamic);
+			}
+		});
 	}
 
 	/**
@@ -337,11 +301,12 @@ public class ChatConfigurationModel {
 	 * @param time
 	 *            before expiry.
 	 */
-	public static void setDefaultTimeToLive(long time) {
-		String oldValue = Long.toString(getDefaultTimeToLive());
-		defaultTimeToLive = time;
-		propertyChangeSupport.firePropertyChange(DEFAULT_TIME_TO_LIVE_PROPERTY,
-				oldValue, time);
+	public static void setDefaultTimeToLive(final long time) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setDefaultTimeToLive(time);
+			}
+		});
 	}
 
 	/**
@@ -351,11 +316,12 @@ public class ChatConfigurationModel {
 	 * @param wait
 	 *            Time to wait.
 	 */
-	public static void setWaitForInUseResponse(long wait) {
-		String oldValue = Long.toString(getWaitForInUseResponse());
-		waitForInUseResponse = wait;
-		propertyChangeSupport.firePropertyChange(
-				WAIT_FOR_IN_USE_RESPONSE_PROPERTY, oldValue, wait);
+	public static void setWaitForInUseResponse(final long wait) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setWaitForInUseResponse(wait);
+			}
+		});
 	}
 
 	/**
@@ -365,12 +331,259 @@ public class ChatConfigurationModel {
 	 *            Maximum time to wait in milliseconds.
 	 */
 
-	public static void setMaximumWaitForResponseOnDelayedSend(long wait) {
-		String oldValue = Long
-				.toString(getMaximumWaitForResponseOnDelayedSend());
-		maximumWaitForResponseOnDelayedSend = wait;
-		propertyChangeSupport.firePropertyChange(
-				MAXIMUM_WAIT_FOR_RESPONSE_ON_DELAYED_SEND_PROPERTY, oldValue,
-				wait);
+	public static void setMaximumWaitForResponseOnDelayedSend(final long wait) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setMaximumWaitForResponseOnDelayedSend(wait);
+			}
+		});
+	}
+
+	/**
+	 * Sets the number of seconds between each dump of the networking metrics
+	 * to the log. Takes effect when Networking is initialized.
+	 * 
+	 * @param interval
+	 *            in seconds, 0 to disable.
+	 */
+	public static void setStatsDumpInterval(final long interval) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setStatsDumpInterval(interval);
+			}
+		});
+	}
+
+	/**
+	 * Sets whether outgoing chat messages are batched. Nodes that do not know
+	 * SEND_MESSAGE_BATCH ignore batches, so this should only be turned on when
+	 * all nodes support it.
+	 * 
+	 * @param useBatching
+	 *            true to batch messages.
+	 */
+	public static void setUseMessageBatching(final boolean useBatching) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setUseMessageBatching(useBatching);
+			}
+		});
+	}
+
+	/**
+	 * Sets the maximum size of the message contents of a single batch.
+	 * 
+	 * @param size
+	 *            in bytes.
+	 */
+	public static void setMessageBatchMaxSize(final int size) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setMessageBatchMaxSize(size);
+			}
+		});
+	}
+
+	/**
+	 * Sets the time a batch is held open after its first message.
+	 * 
+	 * @param linger
+	 *            time in milliseconds.
+	 */
+	public static void setMessageBatchLinger(final long linger) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setMessageBatchLinger(linger);
+			}
+		});
+	}
+
+	/**
+	 * Sets the time between heartbeats. All nodes should use the same interval.
+	 * 
+	 * @param interval
+	 *            time in seconds, 0 or less to turn heartbeats off.
+	 */
+	public static void setHeartbeatInterval(final long interval) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setHeartbeatInterval(interval);
+			}
+		});
+	}
+
+	/**
+	 * Sets the suspicion level above which a node is taken to be dead. Higher
+	 * values make mistakes less likely, but dead nodes are found later.
+	 * 
+	 * @param threshold
+	 *            for phi.
+	 */
+	public static void setFailureDetectorThreshold(final double threshold) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setFailureDetectorThreshold(threshold);
+			}
+		});
+	}
+
+	/**
+	 * Sets the maximum number of bytes of chat messages that may be waiting to
+	 * be sent to a single topic.
+	 * 
+	 * @param budget
+	 *            in bytes.
+	 */
+	public static void setSendQueueByteBudget(final int budget) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setSendQueueByteBudget(budget);
+			}
+		});
+	}
+
+	/**
+	 * Sets the path of the warm restart snapshot file.
+	 * 
+	 * @param path
+	 *            of snapshot file. Empty disables snapshots.
+	 */
+	public static void setStateSnapshotFile(final String path) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setStateSnapshotFile(path);
+			}
+		});
+	}
+
+	/**
+	 * Sets the number of seconds between warm restart snapshots.
+	 * 
+	 * @param interval
+	 *            in seconds. 0 or less only writes on shutdown.
+	 */
+	public static void setStateSnapshotInterval(final long interval) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setStateSnapshotInterval(interval);
+			}
+		});
+	}
+
+	/**
+	 * Sets whether outgoing chat messages and topic lists may be compressed.
+	 * Messages are still only compressed towards nodes that have advertised
+	 * that they decode them.
+	 * 
+	 * @param useCompression
+	 *            true to allow compression.
+	 */
+	public static void setUsePayloadCompression(final boolean useCompression) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setUsePayloadCompression(useCompression);
+			}
+		});
+	}
+
+	/**
+	 * Sets the directory received files are saved to.
+	 * 
+	 * @param path
+	 *            of download directory. Created if it does not exist.
+	 */
+	public static void setFileTransferDirectory(final String path) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setFileTransferDirectory(path);
+			}
+		});
+	}
+
+	/**
+	 * Sets the size of the largest file accepted from others.
+	 * 
+	 * @param maximumSize
+	 *            in bytes. 0 or less accepts no files.
+	 */
+	public static void setMaximumFileTransferSize(final long maximumSize) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setMaximumFileTransferSize(maximumSize);
+			}
+		});
+	}
+
+	/**
+	 * Sets the path of the traffic capture file. Only read when Networking is
+	 * initialized.
+	 * 
+	 * @param path
+	 *            of capture file. Empty disables capturing.
+	 */
+	public static void setTrafficCaptureFile(final String path) {
+		update(new Update() {
+			public void apply(ChatConfiguration.Editor editor) {
+				editor.setTrafficCaptureFile(path);
+			}
+		});
+	}
+
+	/**
+	 * Fires a property change for each setting with a property name that
+	 * differs between the two snapshots. As with the setters, old values are
+	 * given as strings.
+	 */
+	private void fireChanges(ChatConfiguration oldConfiguration,
+			ChatConfiguration newConfiguration) {
+		fireChange(BROADCAST_GROUP_PROPERTY, oldConfiguration.getBroadcastGroup(),
+				newConfiguration.getBroadcastGroup());
+		fireChange(BROADCAST_PORT_PROPERTY, oldConfiguration.getBroadcastPort(),
+				newConfiguration.getBroadcastPort());
+		fireChange(MAXIMUM_WAIT_FOR_RESPONSE_ON_DELAYED_SEND_PROPERTY, oldConfiguration.getMaximumWaitForResponseOnDelayedSend(),
+				newConfiguration.getMaximumWaitForResponseOnDelayedSend());
+		fireChange(USE_DYNAMIC_MULTICAST_PROPERTY, oldConfiguration.useDynamicMulticast(),
+				newConfiguration.useDynamicMulticast());
+		fireChange(USE_PERSISTANT_MULTICAST_PROPERTY, oldConfiguration.usePersistantGroups(),
+				newConfiguration.usePersistantGroups());
+		fireChange(DEFAULT_TIME_TO_LIVE_PROPERTY, oldConfiguration.getDefaultTimeToLive(),
+				newConfiguration.getDefaultTimeToLive());
+		fireChange(WAIT_FOR_IN_USE_RESPONSE_PROPERTY, oldConfiguration.getWaitForInUseResponse(),
+				newConfiguration.getWaitForInUseResponse());
+		fireChange(STATS_DUMP_INTERVAL_PROPERTY, oldConfiguration.getStatsDumpInterval(),
+				newConfiguration.getStatsDumpInterval());
+		fireChange(USE_MESSAGE_BATCHING_PROPERTY, oldConfiguration.useMessageBatching(),
+				newConfiguration.useMessageBatching());
+		fireChange(MESSAGE_BATCH_MAX_SIZE_PROPERTY, oldConfiguration.getMessageBatchMaxSize(),
+				newConfiguration.getMessageBatchMaxSize());
+		fireChange(MESSAGE_BATCH_LINGER_PROPERTY, oldConfiguration.getMessageBatchLinger(),
+				newConfiguration.getMessageBatchLinger());
+		fireChange(HEARTBEAT_INTERVAL_PROPERTY, oldConfiguration.getHeartbeatInterval(),
+				newConfiguration.getHeartbeatInterval());
+		fireChange(FAILURE_DETECTOR_THRESHOLD_PROPERTY, oldConfiguration.getFailureDetectorThreshold(),
+				newConfiguration.getFailureDetectorThreshold());
+		fireChange(SEND_QUEUE_BYTE_BUDGET_PROPERTY, oldConfiguration.getSendQueueByteBudget(),
+				newConfiguration.getSendQueueByteBudget());
+		fireChange(STATE_SNAPSHOT_FILE_PROPERTY, oldConfiguration.getStateSnapshotFile(),
+				newConfiguration.getStateSnapshotFile());
+		fireChange(STATE_SNAPSHOT_INTERVAL_PROPERTY, oldConfiguration.getStateSnapshotInterval(),
+				newConfiguration.getStateSnapshotInterval());
+		fireChange(USE_PAYLOAD_COMPRESSION_PROPERTY, oldConfiguration.usePayloadCompression(),
+				newConfiguration.usePayloadCompression());
+		fireChange(FILE_TRANSFER_DIRECTORY_PROPERTY, oldConfiguration.getFileTransferDirectory(),
+				newConfiguration.getFileTransferDirectory());
+		fireChange(MAXIMUM_FILE_TRANSFER_SIZE_PROPERTY, oldConfiguration.getMaximumFileTransferSize(),
+				newConfiguration.getMaximumFileTransferSize());
+		fireChange(TRAFFIC_CAPTURE_FILE_PROPERTY, oldConfiguration.getTrafficCaptureFile(),
+				newConfiguration.getTrafficCaptureFile());
+	}
+
+	private void fireChange(String property, Object oldValue,
+			Object newValue) {
+		if (oldValue != null
+				&& !oldValue.equals(newValue)) {
+			propertyChangeSupport.firePropertyChange(property,
+					oldValue.toString(), newValue);
+		}
 	}
 }
@@ -0,0 +1,165 @@
+package no.ntnu.acp142.chatapp;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Java Flight Recorder events following a chat message from libjpmul, through
+ * decoding, dispatch and on to the chat area, and from the send call back to
+ * libjpmul. They show up under "pmulchat" in any standard recording, e.g. one
+ * started with -XX:StartFlightRecording, and cost next to nothing when no
+ * recording is running.<br>
+ * Usage follows the usual JFR pattern: create the event, call begin() before
+ * the work and end() after it, then fill in the fields and commit() only if
+ * shouldCommit() returns true, so nothing is computed for disabled events.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class ChatEvents {
+
+    private ChatEvents() {
+    }
+
+    /**
+     * Fields shared by all events describing a single chat message.
+     */
+    @Category("pmulchat")
+    @StackTrace(false)
+    abstract static class MessageEvent extends Event {
+        @Label("Type")
+        String type;
+        @Label("Topic")
+        String topic;
+        @Label("Size")
+        @DataAmount
+        int    size;
+        @Label("Node ID")
+        @Description("Sending node for received messages, this node for sent ones")
+        long   nodeId;
+
+        /**
+         * Fills in the fields from the given message.
+         * 
+         * @param message
+         *            the event is about
+         * @param size
+         *            of the message on the wire in bytes
+         * @param node
+         *            ID of the node, as an unsigned int
+         */
+        void describe(ChatMessage message, int size, int node) {
+            this.type = message.getType().name();
+            this.topic = message.getTopic() == null ? null : message.getTopic().getName();
+            this.size = size;
+            this.nodeId = node & 0xffffffffL;
+        }
+    }
+
+    /**
+     * Unpacking of a message received from libjpmul.
+     */
+    @Name("no.ntnu.acp142.chatapp.Decode")
+    @Label("Decode")
+    static final class Decode extends MessageEvent {
+    }
+
+    /**
+     * Handling of a decoded message in Networking.listenLibjpmul, including
+     * updates to the chat and topic models.
+     */
+    @Name("no.ntnu.acp142.chatapp.Dispatch")
+    @Label("Dispatch")
+    static final class Dispatch extends MessageEvent {
+    }
+
+    /**
+     * Queueing of a packed message in SendQueue.
+     */
+    @Name("no.ntnu.acp142.chatapp.SendEnqueue")
+    @Label("Send Enqueue")
+    static final class SendEnqueue extends MessageEvent {
+        @Label("Destinations")
+        int destinations;
+    }
+
+    /**
+     * A call to libjpmul's send, from start to return.
+     */
+    @Name("no.ntnu.acp142.chatapp.SendComplete")
+    @Label("Send Complete")
+    static final class SendComplete extends MessageEvent {
+        @Label("Destinations")
+        int destinations;
+    }
+
+    /**
+     * Time from the first broadcast asking for node IDs until a NODE_LIST is
+     * received.
+     */
+    @Name("no.ntnu.acp142.chatapp.Discovery")
+    @Label("Discovery Round Trip")
+    @Category("pmulchat")
+    @StackTrace(false)
+    static final class Discovery extends Event {
+        @Label("Node ID")
+        long nodeId;
+        @Label("Queries Sent")
+        int  queries;
+        @Label("Nodes Received")
+        int  nodes;
+    }
+
+    /**
+     * Update of the chat area after a message was added or the chat changed.
+     */
+    @Name("no.ntnu.acp142.chatapp.ChatAreaUpdate")
+    @Label("Chat Area Update")
+    @Category("pmulchat")
+    @StackTrace(false)
+    static final class ChatAreaUpdate extends Event {
+        @Label("Topic")
+        String  topic;
+        @Label("Messages")
+        int     messages;
+        @Label("On Event Dispatch Thread")
+        boolean onEventDispatchThread;
+    }
+}
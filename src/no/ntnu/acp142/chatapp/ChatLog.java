@@ -0,0 +1,366 @@
+package no.ntnu.acp142.chatapp;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Diagnostics output of pmulchat. Logging never blocks the caller: entries are
+ * put in a bounded queue and written to standard error by a single daemon
+ * thread, and entries that do not fit in the queue are counted and dropped.<br>
+ * Each call site (source and text) may log at most RATE_LIMIT_BURST entries
+ * per RATE_LIMIT_WINDOW milliseconds; the rest are counted and the count is
+ * reported with the next entry let through. A flood of malformed packets thus
+ * costs the receiving thread a map lookup per packet and nothing more.<br>
+ * The text of an entry should be constant, with the parts that vary given as
+ * fields, that is, alternating names and values. They are written as
+ * name=value after the text.
+ * 
+ * @author Thomas Martin Schmid
+ */
+public final class ChatLog {
+
+    /**
+     * Severity of a log entry.
+     */
+    public enum Level {
+        DEBUG, INFO, WARNING, ERROR
+    }
+
+    /**
+     * Maximum number of entries waiting to be written.
+     */
+    static final int                                    QUEUE_CAPACITY    = 4096;
+    /**
+     * Length of a rate limiting window in milliseconds.
+     */
+    static final long                                   RATE_LIMIT_WINDOW = 1000;
+    /**
+     * Maximum number of entries per call site within a window.
+     */
+    static final int                                    RATE_LIMIT_BURST  = 10;
+
+    /**
+     * Entries waiting to be written.
+     */
+    private static final BlockingQueue<Entry>           queue             = new ArrayBlockingQueue<Entry>(
+                                                                                  QUEUE_CAPACITY);
+    /**
+     * Rate limiter of each call site, keyed on source and text.
+     */
+    private static final ConcurrentMap<String, Limiter> limiters          = new ConcurrentHashMap<String, Limiter>();
+    /**
+     * Number of entries dropped because the queue was full, since the last
+     * entry written.
+     */
+    private static final AtomicLong                     dropped           = new AtomicLong();
+    /**
+     * Entries below this level are ignored.
+     */
+    private static volatile Level                       level             = Level.INFO;
+    /**
+     * Where entries are written.
+     */
+    private static volatile PrintStream                 out               = System.err;
+
+    static {
+        Thread writer = new Thread("ChatLog writer") {
+            public void run() {
+                write();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        // Give the writer a moment to empty the queue when the JVM exits.
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                flush(500);
+            }
+        });
+    }
+
+    private ChatLog() {
+    }
+
+    // ------------------------- LOGGING --------------------------------------
+
+    /**
+     * Logs an entry at level DEBUG.
+     * 
+     * @param source
+     *            class and method logging, e.g. "Networking.listenLibjpmul()"
+     * @param text
+     *            constant description of what happened
+     * @param fields
+     *            alternating field names and values
+     */
+    public static void debug(String source, String text, Object... fields) {
+        log(Level.DEBUG, source, text, null, fields);
+    }
+
+    /**
+     * Logs an entry at level INFO.
+     * 
+     * @param source
+     *            class and method logging
+     * @param text
+     *            constant description of what happened
+     * @param fields
+     *            alternating field names and values
+     */
+    public static void info(String source, String text, Object... fields) {
+        log(Level.INFO, source, text, null, fields);
+    }
+
+    /**
+     * Logs an entry at level WARNING.
+     * 
+     * @param source
+     *            class and method logging
+     * @param text
+     *            constant description of what happened
+     * @param fields
+     *            alternating field names and values
+     */
+    public static void warning(String source, String text, Object... fields) {
+        log(Level.WARNING, source, text, null, fields);
+    }
+
+    /**
+     * Logs an entry at level ERROR, with the stack trace of the given
+     * exception.
+     * 
+     * @param source
+     *            class and method logging
+     * @param text
+     *            constant description of what happened
+     * @param throwable
+     *            cause, or null
+     * @param fields
+     *            alternating field names and values
+     */
+    public static void error(String source, String text, Throwable throwable, Object... fields) {
+        log(Level.ERROR, source, text, throwable, fields);
+    }
+
+    /**
+     * Logs an entry. Returns immediately whether or not the entry is written.
+     * 
+     * @param entryLevel
+     *            severity of the entry
+     * @param source
+     *            class and method logging
+     * @param text
+     *            constant description of what happened
+     * @param throwable
+     *            cause, or null
+     * @param fields
+     *            alternating field names and values
+     */
+    public static void log(Level entryLevel, String source, String text, Throwable throwable, Object... fields) {
+        if ( entryLevel.compareTo(level) < 0 ) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        String key = source + text;
+        Limiter limiter = limiters.get(key);
+        if ( limiter == null ) {
+            Limiter created = new Limiter();
+            limiter = limiters.putIfAbsent(key, created);
+            if ( limiter == null ) {
+                limiter = created;
+            }
+        }
+        int suppressed = limiter.acquire(now);
+        if ( suppressed < 0 ) {
+            return;
+        }
+        if ( !queue.offer(new Entry(entryLevel, now, source, text, throwable, fields, suppressed)) ) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    // ------------------------- SETTINGS -------------------------------------
+
+    /**
+     * Sets the lowest level that is logged.
+     * 
+     * @param newLevel
+     *            lowest level to log
+     */
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * Gets the lowest level that is logged.
+     * 
+     * @return The lowest level logged.
+     */
+    public static Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Sets the stream entries are written to. Standard error by default, so
+     * the log does not mix with the output of HeadlessChat.
+     * 
+     * @param stream
+     *            to write to
+     */
+    public static void setOutput(PrintStream stream) {
+        out = stream;
+    }
+
+    /**
+     * Waits until all queued entries have been taken by the writer, or the
+     * timeout passes.
+     * 
+     * @param timeoutMillis
+     *            maximum time to wait
+     */
+    public static void flush(long timeoutMillis) {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (!queue.isEmpty() && System.currentTimeMillis() < end) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // ------------------------- WRITER ---------------------------------------
+
+    /**
+     * Body of the writer thread. Takes entries off the queue and writes them,
+     * forever.
+     */
+    private static void write() {
+        SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            Entry entry;
+            try {
+                entry = queue.poll(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            long lost = dropped.getAndSet(0);
+            PrintStream stream = out;
+            if ( lost > 0 ) {
+                stream.println(timeFormat.format(new Date()) + " WARNING ChatLog: Queue full, entries dropped. count="
+                        + lost);
+            }
+            if ( entry == null ) {
+                continue;
+            }
+            sb.setLength(0);
+            sb.append(timeFormat.format(new Date(entry.time))).append(' ');
+            sb.append(entry.level.name()).append(' ');
+            sb.append(entry.source).append(": ").append(entry.text);
+            Object[] fields = entry.fields;
+            for (int i = 0; i + 1 < fields.length; i += 2) {
+                sb.append(' ').append(fields[i]).append('=').append(fields[i + 1]);
+            }
+            if ( entry.suppressed > 0 ) {
+                sb.append(" (").append(entry.suppressed).append(" similar suppressed)");
+            }
+            stream.println(sb.toString());
+            if ( entry.throwable != null ) {
+                entry.throwable.printStackTrace(stream);
+            }
+        }
+    }
+
+    /**
+     * A log entry waiting to be written.
+     */
+    private static final class Entry {
+        private final Level     level;
+        private final long      time;
+        private final String    source;
+        private final String    text;
+        private final Throwable throwable;
+        private final Object[]  fields;
+        private final int       suppressed;
+
+        private Entry(Level level, long time, String source, String text, Throwable throwable, Object[] fields,
+                int suppressed) {
+            this.level = level;
+            this.time = time;
+            this.source = source;
+            this.text = text;
+            this.throwable = throwable;
+            this.fields = fields;
+            this.suppressed = suppressed;
+        }
+    }
+
+    /**
+     * Fixed window rate limiter of a single call site.
+     */
+    private static final class Limiter {
+        private final AtomicLong    windowStart = new AtomicLong();
+        private final AtomicInteger count       = new AtomicInteger();
+        private final AtomicInteger suppressed  = new AtomicInteger();
+
+        /**
+         * Takes a slot in the current window.
+         * 
+         * @return -1 if the entry should be suppressed, otherwise the number
+         *         of entries suppressed since the last one let through.
+         */
+        private int acquire(long now) {
+            long start = this.windowStart.get();
+            if ( now - start >= RATE_LIMIT_WINDOW && this.windowStart.compareAndSet(start, now) ) {
+                this.count.set(0);
+            }
+            if ( this.count.incrementAndGet() > RATE_LIMIT_BURST ) {
+                this.suppressed.incrementAndGet();
+                return -1;
+            }
+            return this.suppressed.getAndSet(0);
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package no.ntnu.acp142.chatapp;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.zip.DataFormatException;
 
 /*
  * Copyright (c) 2013, Thomas Martin Schmid
@@ -53,6 +56,37 @@ public class ChatMessage {
     static final byte             ADDRESS_TYPE_IPV6        = 1;
     static final int              INET_ADDRESS_LENGTH_IPV4 = 4;
     static final int              INET_ADDRESS_LENGTH_IPV6 = 16;
+    /**
+     * Version of the extension trailing SEND_MESSAGE and SEND_MESSAGE_BATCH
+     * messages. Version 1 holds the sequence number. Later versions may add
+     * fields after it, so a parser reads the fields it knows and ignores the
+     * rest.
+     */
+    static final byte             EXTENSION_VERSION        = 1;
+    /**
+     * Size of the version 1 extension: version and sequence number.
+     */
+    static final int              EXTENSION_LENGTH         = 5;
+    /**
+     * Maximum number of messages in a SEND_MESSAGE_BATCH or HISTORY_RESPONSE,
+     * and of ranges in a HISTORY_REQUEST.
+     */
+    static final int              MAXIMUM_BATCH_COUNT      = 255;
+    /**
+     * Maximum number of distinct topic names and usernames kept interned.
+     */
+    static final int              INTERNED_NAMES_CAPACITY  = 1024;
+    /**
+     * Size of the FILE_CHUNK header: type, ID of sender, transfer ID and chunk
+     * index.
+     */
+    static final int              FILE_CHUNK_HEADER_LENGTH = 13;
+
+    /**
+     * Canonical topic names and usernames, looked up directly from the
+     * received bytes so repeated names are neither decoded nor allocated.
+     */
+    private static final NameInternTable NAMES = new NameInternTable(INTERNED_NAMES_CAPACITY);
 
     // --------------
     // Shared fields
@@ -89,9 +123,26 @@ public class ChatMessage {
      */
     private String                message;
     /**
-     * Message sender ID in case of SEND_MESSAGE & NODE_LEAVE
+     * Message contents in case of SEND_MESSAGE_BATCH & HISTORY_RESPONSE
+     */
+    private ArrayList<String>     messages;
+    /**
+     * Ranges of missing sequence numbers in case of HISTORY_REQUEST, or of
+     * missing chunks in case of FILE_CHUNK_REQUEST
+     */
+    private ArrayList<SequenceRange> ranges;
+    /**
+     * Message sender ID in case of SEND_MESSAGE, SEND_MESSAGE_BATCH,
+     * HISTORY_REQUEST, HISTORY_RESPONSE & NODE_LEAVE. ID of the node sending
+     * the file in case of FILE_OFFER, FILE_CHUNK & FILE_CHUNK_REQUEST
      */
     private long                  senderId;
+    /**
+     * Sequence number of the message in case of SEND_MESSAGE, or of the first
+     * message in case of SEND_MESSAGE_BATCH & HISTORY_RESPONSE, as an
+     * unsigned int. -1 if the sender did not include one.
+     */
+    private long                  sequenceNumber;
     /**
      * Message sender username, used in case of JOIN_TOPIC created locally
      */
@@ -100,6 +151,46 @@ public class ChatMessage {
      * List of node IDs.
      */
     private ArrayList<Integer>    nodeIds;
+    /**
+     * Root hash of the topic catalog in case of TOPIC_DIGEST
+     */
+    private int                   digestRoot;
+    /**
+     * Bucket hashes of the topic catalog in case of TOPIC_DIGEST
+     */
+    private int[]                 digestBuckets;
+    /**
+     * Capabilities of the sender in case of HEARTBEAT, see
+     * PayloadCodec.CAPABILITY_COMPRESSION. 0 if the sender included none.
+     */
+    private int                   capabilities;
+    /**
+     * Transfer ID, chosen by the sender, in case of FILE_OFFER, FILE_CHUNK &
+     * FILE_CHUNK_REQUEST
+     */
+    private int                   transferId;
+    /**
+     * File name in case of FILE_OFFER
+     */
+    private String                fileName;
+    /**
+     * File size in bytes in case of FILE_OFFER
+     */
+    private long                  fileSize;
+    /**
+     * Size of every chunk but the last in case of FILE_OFFER
+     */
+    private int                   chunkSize;
+    /**
+     * Index of the chunk, as an unsigned int, in case of FILE_CHUNK
+     */
+    private long                  chunkIndex;
+    /**
+     * The whole packed FILE_CHUNK message. The chunk is read into it straight
+     * from the file when sending, and written from it straight to the file
+     * when receiving, so it is never copied.
+     */
+    private byte[]                chunkOctets;
 
     // -------------
     // Other fields
@@ -122,19 +213,32 @@ public class ChatMessage {
         topic = null;
         subscribers = null;
         message = null;
+        messages = null;
+        ranges = null;
         senderId = 0;
+        sequenceNumber = -1;
         senderUserName = null;
         nodeIds = null;
         // Set time received
         this.timeReceived = (double) System.currentTimeMillis() / 1000.0;
         // Check that octets is not null or empty
         if ( octets == null || octets.length < 1 ) {
-            System.out.println("ChatMessage.ChatMessage(): Attempted to parse message with no octets.");
+            ChatLog.warning("ChatMessage.ChatMessage()", "Attempted to parse message with no octets.");
             return;
         }
+        // Undo compression, if any
+        if ( (octets[0] & PayloadCodec.COMPRESSED) != 0 ) {
+            try {
+                octets = PayloadCodec.decompress(octets);
+            } catch (DataFormatException e) {
+                ChatLog.warning("ChatMessage.ChatMessage()", "Could not decompress message.", "reason",
+                        e.getMessage());
+                return;
+            }
+        }
         // Check that type is valid
-        if ( (octets[0] & 0xff) > ChatMessageType.values().length ) {
-            System.out.println("ChatMessage.ChatMessage(): ChatMessageType invalid '" + (octets[0] & 0xff) + "'.");
+        if ( (octets[0] & 0xff) >= ChatMessageType.values().length ) {
+            ChatLog.warning("ChatMessage.ChatMessage()", "ChatMessageType invalid.", "type", octets[0] & 0xff);
             return;
         }
         // Fetch type
@@ -145,6 +249,12 @@ public class ChatMessage {
             case GET_TOPICS:
                 // No data.
                 break;
+            case HEARTBEAT:
+                // Older nodes send no capabilities.
+                if ( octets.length > 1 ) {
+                    this.capabilities = octets[1] & 0xff;
+                }
+                break;
             case NEW_TOPIC:
             case DELETE_TOPIC_QUERY:
             case DELETE_TOPIC_SUCCESS:
@@ -158,12 +268,9 @@ public class ChatMessage {
                 // Grab topic
                 this.accumulatedOffset = 1;
                 this.topic = extractTopic(octets);
-                int end = (octets[this.accumulatedOffset++] & 0xff) + this.accumulatedOffset;
-                byte[] bytes = new byte[end - this.accumulatedOffset];
-                for (int i = this.accumulatedOffset; i < end; ++i) {
-                    bytes[i - this.accumulatedOffset] = octets[i];
-                }
-                this.senderUserName = new String(bytes, "UTF-8");
+                int nameLength = (octets[this.accumulatedOffset++] & 0xff);
+                checkBounds(octets, this.accumulatedOffset, nameLength);
+                this.senderUserName = NAMES.internString(octets, this.accumulatedOffset, nameLength);
 
                 break;
             case TOPIC_LIST:
@@ -204,6 +311,45 @@ public class ChatMessage {
                     bytes2[i - this.accumulatedOffset] = octets[i];
                 }
                 this.message = new String(bytes2, "UTF-8");
+                this.accumulatedOffset += length;
+                extractExtension(octets);
+                break;
+            case SEND_MESSAGE_BATCH:
+            case HISTORY_RESPONSE:
+                // Grab ID of sender
+                this.senderId = 0x0000000FFFFFFFFL & (long) ByteBuffer.wrap(octets).getInt(1);
+                // Grab topic
+                this.accumulatedOffset = 5;
+                this.topic = extractTopic(octets);
+                // Grab messages
+                int numberOfMessages = (octets[this.accumulatedOffset++] & 0xff);
+                this.messages = new ArrayList<String>(numberOfMessages);
+                for (int i = 0; i < numberOfMessages; ++i) {
+                    int messageLength = (octets[this.accumulatedOffset++] & 0xff) << 8
+                            | (octets[this.accumulatedOffset++] & 0xff);
+                    checkBounds(octets, this.accumulatedOffset, messageLength);
+                    this.messages.add(new String(octets, this.accumulatedOffset, messageLength, "UTF-8"));
+                    this.accumulatedOffset += messageLength;
+                }
+                extractExtension(octets);
+                break;
+            case HISTORY_REQUEST:
+                // Grab ID of the sender whose messages are missing
+                this.senderId = 0x0000000FFFFFFFFL & (long) ByteBuffer.wrap(octets).getInt(1);
+                // Grab topic
+                this.accumulatedOffset = 5;
+                this.topic = extractTopic(octets);
+                // Grab ranges
+                int numberOfRanges = (octets[this.accumulatedOffset++] & 0xff);
+                this.ranges = new ArrayList<SequenceRange>(numberOfRanges);
+                for (int i = 0; i < numberOfRanges; ++i) {
+                    checkBounds(octets, this.accumulatedOffset, 6);
+                    long first = 0x0000000FFFFFFFFL & (long) ByteBuffer.wrap(octets).getInt(this.accumulatedOffset);
+                    int rangeLength = (octets[this.accumulatedOffset + 4] & 0xff) << 8
+                            | (octets[this.accumulatedOffset + 5] & 0xff);
+                    this.ranges.add(new SequenceRange(first, rangeLength));
+                    this.accumulatedOffset += 6;
+                }
                 break;
             case NODE_LIST:
                 // Grab the amount of IDs
@@ -219,23 +365,92 @@ public class ChatMessage {
                 // Grab ID of sender
                 this.senderId = 0x0000000FFFFFFFFL & (long) ByteBuffer.wrap(octets).getInt(1);
                 break;
+            case FILE_OFFER:
+                // Grab ID of sender and transfer ID
+                this.senderId = 0x0000000FFFFFFFFL & (long) ByteBuffer.wrap(octets).getInt(1);
+                this.transferId = ByteBuffer.wrap(octets).getInt(5);
+                // Grab topic
+                this.accumulatedOffset = 9;
+                this.topic = extractTopic(octets);
+                // Grab file size, chunk size and name
+                checkBounds(octets, this.accumulatedOffset, 11);
+                this.fileSize = ByteBuffer.wrap(octets).getLong(this.accumulatedOffset);
+                this.chunkSize = (octets[this.accumulatedOffset + 8] & 0xff) << 8
+                        | (octets[this.accumulatedOffset + 9] & 0xff);
+                int fileNameLength = octets[this.accumulatedOffset + 10] & 0xff;
+                this.accumulatedOffset += 11;
+                checkBounds(octets, this.accumulatedOffset, fileNameLength);
+                this.fileName = new String(octets, this.accumulatedOffset, fileNameLength, "UTF-8");
+                break;
+            case FILE_CHUNK:
+                // Grab ID of sender, transfer ID and chunk index. The rest is
+                // the chunk.
+                checkBounds(octets, 0, FILE_CHUNK_HEADER_LENGTH);
+                this.senderId = 0x0000000FFFFFFFFL & (long) ByteBuffer.wrap(octets).getInt(1);
+                this.transferId = ByteBuffer.wrap(octets).getInt(5);
+                this.chunkIndex = 0x0000000FFFFFFFFL & (long) ByteBuffer.wrap(octets).getInt(9);
+                this.chunkOctets = octets;
+                break;
+            case FILE_CHUNK_REQUEST:
+                // Grab ID of the sender of the file and transfer ID
+                this.senderId = 0x0000000FFFFFFFFL & (long) ByteBuffer.wrap(octets).getInt(1);
+                this.transferId = ByteBuffer.wrap(octets).getInt(5);
+                // Grab ranges
+                int numberOfChunkRanges = (octets[9] & 0xff);
+                this.ranges = new ArrayList<SequenceRange>(numberOfChunkRanges);
+                this.accumulatedOffset = 10;
+                for (int i = 0; i < numberOfChunkRanges; ++i) {
+                    checkBounds(octets, this.accumulatedOffset, 6);
+                    long first = 0x0000000FFFFFFFFL & (long) ByteBuffer.wrap(octets).getInt(this.accumulatedOffset);
+                    int rangeLength = (octets[this.accumulatedOffset + 4] & 0xff) << 8
+                            | (octets[this.accumulatedOffset + 5] & 0xff);
+                    this.ranges.add(new SequenceRange(first, rangeLength));
+                    this.accumulatedOffset += 6;
+                }
+                break;
+            case TOPIC_DIGEST:
+                // Grab root hash
+                this.digestRoot = ByteBuffer.wrap(octets).getInt(1);
+                // Grab bucket hashes
+                int numberOfBuckets = (octets[5] & 0xff);
+                checkBounds(octets, 6, 4 * numberOfBuckets);
+                this.digestBuckets = new int[numberOfBuckets];
+                for (int i = 0; i < numberOfBuckets; ++i) {
+                    this.digestBuckets[i] = ByteBuffer.wrap(octets).getInt(6 + 4 * i);
+                }
+                break;
             default:
-                System.out.println("ChatMessage.ChatMessage(): Could not parse message of type '" + this.type
-                        + "', unknown type.");
+                ChatLog.warning("ChatMessage.ChatMessage()", "Could not parse message, unknown type.", "type",
+                        this.type);
                 break;
             }
         } catch (IndexOutOfBoundsException e) { // If the message is too short,
                                                 // catch the exception here.
-            System.out.println("ChatMessage.ChatMessage(): Could not parse message of type '" + this.type
-                    + "', index out of bounds.");
+            ChatLog.warning("ChatMessage.ChatMessage()", "Could not parse message, index out of bounds.", "type",
+                    this.type, "length", octets.length);
             this.type = ChatMessageType.INVALID; // Invalidate the message
         } catch (UnsupportedEncodingException e) {
-            System.out.println("ChatMessage.ChatMessage(): UTF-8 not supported.");
-            e.printStackTrace();
+            ChatLog.error("ChatMessage.ChatMessage()", "UTF-8 not supported.", e);
             this.type = ChatMessageType.INVALID; // Invalidate the message
         }
     }
 
+    /**
+     * Creates a byte array and populates it with the data to be sent,
+     * compressed if allowed and worth it. See PayloadCodec.
+     * 
+     * @param mayCompress
+     *            true if all receivers decode compressed messages.
+     * @return The byte array of the message data.
+     */
+    public byte[] getRawMessage(boolean mayCompress) {
+        byte[] octets = getRawMessage();
+        if ( mayCompress && octets != null && PayloadCodec.isCompressible(this.type) ) {
+            return PayloadCodec.compress(octets);
+        }
+        return octets;
+    }
+
     /**
      * Creates a byte array and populates it with the data to be sent.
      * 
@@ -252,14 +467,19 @@ public class ChatMessage {
                 octets = new byte[1];
                 octets[0] = type;
                 break;
+            case HEARTBEAT:
+                octets = new byte[2];
+                octets[0] = type;
+                octets[1] = (byte) this.capabilities;
+                break;
             case NEW_TOPIC:
             case DELETE_TOPIC_QUERY:
             case DELETE_TOPIC_SUCCESS:
             case LEAVE_TOPIC:
             case TOPIC_IN_USE:
                 if ( this.topic == null ) {
-                    System.out
-                            .println("ChatMessage.getRawMessage(): Tried packing a incomplete message. Type: " + type);
+                    ChatLog.warning("ChatMessage.getRawMessage()", "Tried packing an incomplete message.", "type",
+                            type);
                     return null;
                 }
                 size = 1 // Message type
@@ -272,8 +492,8 @@ public class ChatMessage {
                 break;
             case JOIN_TOPIC:
                 if ( this.topic == null ) {
-                    System.out
-                            .println("ChatMessage.getRawMessage(): Tried packing a incomplete message. Type: " + type);
+                    ChatLog.warning("ChatMessage.getRawMessage()", "Tried packing an incomplete message.", "type",
+                            type);
                     return null;
                 }
                 size = 1 // Message type
@@ -293,8 +513,8 @@ public class ChatMessage {
                 break;
             case TOPIC_LIST:
                 if ( this.topics == null ) {
-                    System.out
-                            .println("ChatMessage.getRawMessage(): Tried packing a incomplete message. Type: " + type);
+                    ChatLog.warning("ChatMessage.getRawMessage()", "Tried packing an incomplete message.", "type",
+                            type);
                     return null;
                 }
                 // Calculate size
@@ -314,8 +534,8 @@ public class ChatMessage {
                 break;
             case SUBSCRIBER_LIST:
                 if ( this.subscribers == null || this.topic == null ) {
-                    System.out
-                            .println("ChatMessage.getRawMessage(): Tried packing a incomplete message. Type: " + type);
+                    ChatLog.warning("ChatMessage.getRawMessage()", "Tried packing an incomplete message.", "type",
+                            type);
                     return null;
                 }
                 // Calculate size
@@ -339,11 +559,15 @@ public class ChatMessage {
                 break;
             case SEND_MESSAGE:
                 if ( this.message == null ) {
-                    System.out
-                            .println("ChatMessage.getRawMessage(): Tried packing a incomplete message. Type: " + type);
+                    ChatLog.warning("ChatMessage.getRawMessage()", "Tried packing an incomplete message.", "type",
+                            type);
                     return null;
                 }
-                size = 8 + this.topic.getName().getBytes("UTF-8").length + this.message.getBytes("UTF-8").length;
+                byte[] messageBytes = this.message.getBytes("UTF-8");
+                size = 8 + this.topic.getName().getBytes("UTF-8").length + messageBytes.length;
+                if ( this.sequenceNumber >= 0 ) {
+                    size += EXTENSION_LENGTH;
+                }
                 octets = new byte[size];
                 octets[0] = type;
                 // Put ID of sender
@@ -355,11 +579,83 @@ public class ChatMessage {
                 this.accumulatedOffset = 5;
                 packTopic(octets, this.topic);
                 // Put message length
-                octets[this.accumulatedOffset++] = (byte) ((this.message.getBytes("UTF-8").length >> 8) & 0xff);
-                octets[this.accumulatedOffset++] = (byte) (this.message.getBytes("UTF-8").length & 0xff);
+                octets[this.accumulatedOffset++] = (byte) ((messageBytes.length >> 8) & 0xff);
+                octets[this.accumulatedOffset++] = (byte) (messageBytes.length & 0xff);
                 // Put message content
-                for (int i = this.accumulatedOffset, j = 0; i < size; ++i, ++j) {
-                    octets[i] = this.message.getBytes("UTF-8")[j];
+                System.arraycopy(messageBytes, 0, octets, this.accumulatedOffset, messageBytes.length);
+                this.accumulatedOffset += messageBytes.length;
+                packExtension(octets);
+                break;
+            case SEND_MESSAGE_BATCH:
+            case HISTORY_RESPONSE:
+                if ( this.messages == null || this.topic == null ) {
+                    ChatLog.warning("ChatMessage.getRawMessage()", "Tried packing an incomplete message.", "type",
+                            type);
+                    return null;
+                }
+                byte[] topicName = this.topic.getName().getBytes("UTF-8");
+                byte[][] contents = new byte[this.messages.size()][];
+                size = 1 // Message type
+                        + 4 // ID of sender
+                        + 1 + topicName.length // Topic
+                        + 1; // Number of messages
+                for (int i = 0; i < contents.length; ++i) {
+                    contents[i] = this.messages.get(i).getBytes("UTF-8");
+                    size += 2 + contents[i].length;
+                }
+                if ( this.sequenceNumber >= 0 ) {
+                    size += EXTENSION_LENGTH;
+                }
+                octets = new byte[size];
+                octets[0] = type;
+                // Put ID of sender
+                octets[1] = (byte) ((this.senderId >> 24) & 0xff);
+                octets[2] = (byte) ((this.senderId >> 16) & 0xff);
+                octets[3] = (byte) ((this.senderId >> 8) & 0xff);
+                octets[4] = (byte) (this.senderId & 0xff);
+                // Put the topic we are sending to
+                this.accumulatedOffset = 5;
+                packTopic(octets, this.topic);
+                // Put the messages, each prefixed with its length
+                octets[this.accumulatedOffset++] = (byte) contents.length;
+                for (byte[] content : contents) {
+                    octets[this.accumulatedOffset++] = (byte) ((content.length >> 8) & 0xff);
+                    octets[this.accumulatedOffset++] = (byte) (content.length & 0xff);
+                    System.arraycopy(content, 0, octets, this.accumulatedOffset, content.length);
+                    this.accumulatedOffset += content.length;
+                }
+                packExtension(octets);
+                break;
+            case HISTORY_REQUEST:
+                if ( this.ranges == null || this.topic == null ) {
+                    ChatLog.warning("ChatMessage.getRawMessage()", "Tried packing an incomplete message.", "type",
+                            type);
+                    return null;
+                }
+                size = 1 // Message type
+                        + 4 // ID of sender
+                        + 1 + this.topic.getName().getBytes("UTF-8").length // Topic
+                        + 1 // Number of ranges
+                        + 6 * this.ranges.size(); // First and length of each
+                octets = new byte[size];
+                octets[0] = type;
+                // Put ID of sender
+                octets[1] = (byte) ((this.senderId >> 24) & 0xff);
+                octets[2] = (byte) ((this.senderId >> 16) & 0xff);
+                octets[3] = (byte) ((this.senderId >> 8) & 0xff);
+                octets[4] = (byte) (this.senderId & 0xff);
+                // Put the topic
+                this.accumulatedOffset = 5;
+                packTopic(octets, this.topic);
+                // Put the ranges
+                octets[this.accumulatedOffset++] = (byte) this.ranges.size();
+                for (SequenceRange range : this.ranges) {
+                    octets[this.accumulatedOffset++] = (byte) ((range.getFirst() >> 24) & 0xff);
+                    octets[this.accumulatedOffset++] = (byte) ((range.getFirst() >> 16) & 0xff);
+                    octets[this.accumulatedOffset++] = (byte) ((range.getFirst() >> 8) & 0xff);
+                    octets[this.accumulatedOffset++] = (byte) (range.getFirst() & 0xff);
+                    octets[this.accumulatedOffset++] = (byte) ((range.getCount() >> 8) & 0xff);
+                    octets[this.accumulatedOffset++] = (byte) (range.getCount() & 0xff);
                 }
                 break;
             case NODE_LIST:
@@ -384,11 +680,85 @@ public class ChatMessage {
                 octets[3] = (byte) ((this.senderId >> 8) & 0xff);
                 octets[4] = (byte) (this.senderId & 0xff);
                 break;
+            case TOPIC_DIGEST:
+                if ( this.digestBuckets == null ) {
+                    ChatLog.warning("ChatMessage.getRawMessage()", "Tried packing an incomplete message.", "type",
+                            type);
+                    return null;
+                }
+                size = 1 // Message type
+                        + 4 // Root hash
+                        + 1 // Number of buckets
+                        + 4 * this.digestBuckets.length; // Bucket hashes
+                octets = new byte[size];
+                octets[0] = type;
+                ByteBuffer.wrap(octets).putInt(1, this.digestRoot);
+                octets[5] = (byte) this.digestBuckets.length;
+                for (int i = 0; i < this.digestBuckets.length; ++i) {
+                    ByteBuffer.wrap(octets).putInt(6 + 4 * i, this.digestBuckets[i]);
+                }
+                break;
+            case FILE_OFFER:
+                if ( this.topic == null || this.fileName == null ) {
+                    ChatLog.warning("ChatMessage.getRawMessage()", "Tried packing an incomplete message.", "type",
+                            type);
+                    return null;
+                }
+                byte[] fileNameBytes = this.fileName.getBytes("UTF-8");
+                size = 1 // Message type
+                        + 4 // ID of sender
+                        + 4 // Transfer ID
+                        + 1 + this.topic.getName().getBytes("UTF-8").length // Topic
+                        + 8 // File size
+                        + 2 // Chunk size
+                        + 1 + fileNameBytes.length; // File name
+                octets = new byte[size];
+                octets[0] = type;
+                ByteBuffer.wrap(octets).putInt(1, (int) this.senderId);
+                ByteBuffer.wrap(octets).putInt(5, this.transferId);
+                // Put the topic
+                this.accumulatedOffset = 9;
+                packTopic(octets, this.topic);
+                // Put file size, chunk size and name
+                ByteBuffer.wrap(octets).putLong(this.accumulatedOffset, this.fileSize);
+                this.accumulatedOffset += 8;
+                octets[this.accumulatedOffset++] = (byte) ((this.chunkSize >> 8) & 0xff);
+                octets[this.accumulatedOffset++] = (byte) (this.chunkSize & 0xff);
+                octets[this.accumulatedOffset++] = (byte) fileNameBytes.length;
+                System.arraycopy(fileNameBytes, 0, octets, this.accumulatedOffset, fileNameBytes.length);
+                break;
+            case FILE_CHUNK:
+                // Packed when created.
+                return this.chunkOctets;
+            case FILE_CHUNK_REQUEST:
+                if ( this.ranges == null ) {
+                    ChatLog.warning("ChatMessage.getRawMessage()", "Tried packing an incomplete message.", "type",
+                            type);
+                    return null;
+                }
+                size = 1 // Message type
+                        + 4 // ID of the sender of the file
+                        + 4 // Transfer ID
+                        + 1 // Number of ranges
+                        + 6 * this.ranges.size(); // First and length of each
+                octets = new byte[size];
+                octets[0] = type;
+                ByteBuffer.wrap(octets).putInt(1, (int) this.senderId);
+                ByteBuffer.wrap(octets).putInt(5, this.transferId);
+                octets[9] = (byte) this.ranges.size();
+                this.accumulatedOffset = 10;
+                for (SequenceRange range : this.ranges) {
+                    ByteBuffer.wrap(octets).putInt(this.accumulatedOffset, (int) range.getFirst());
+                    octets[this.accumulatedOffset + 4] = (byte) ((range.getCount() >> 8) & 0xff);
+                    octets[this.accumulatedOffset + 5] = (byte) (range.getCount() & 0xff);
+                    this.accumulatedOffset += 6;
+                }
+                break;
             case INVALID:
                 return null;
             }
         } catch (UnsupportedEncodingException e) {
-            System.out.println("ChatMessage.getRawBytes(): UTF-8 not supported.");
+            ChatLog.error("ChatMessage.getRawBytes()", "UTF-8 not supported.", e);
             octets = new byte[1];
             octets[0] = (byte) ChatMessageType.INVALID.ordinal();
         }
@@ -457,8 +827,36 @@ public class ChatMessage {
     }
 
     /**
-     * Used in SEND_MESSAGE messages, this gets the senderID of the subscriber
-     * that sent this message.
+     * Used in HISTORY_REQUEST messages, this gets the ranges of sequence
+     * numbers asked for.
+     * 
+     * @return List of ranges
+     */
+    public ArrayList<SequenceRange> getRanges() {
+        return this.ranges;
+    }
+
+    /**
+     * Used in SEND_MESSAGE, SEND_MESSAGE_BATCH and HISTORY_RESPONSE messages,
+     * this gets all message contents that were sent, in the order they were
+     * written.
+     * 
+     * @return List of message contents
+     */
+    public ArrayList<String> getMessages() {
+        if ( this.messages == null ) {
+            this.messages = new ArrayList<String>();
+            if ( this.message != null ) {
+                this.messages.add(this.message);
+            }
+        }
+        return this.messages;
+    }
+
+    /**
+     * Used in SEND_MESSAGE, SEND_MESSAGE_BATCH and HISTORY_RESPONSE messages,
+     * this gets the senderID of the subscriber that wrote this message. In
+     * HISTORY_REQUEST messages it is the sender whose messages are missing.
      * 
      * @return Message sender's ID
      */
@@ -466,6 +864,103 @@ public class ChatMessage {
         return this.senderId;
     }
 
+    /**
+     * Used in SEND_MESSAGE messages, this gets the sequence number of the
+     * message. In SEND_MESSAGE_BATCH and HISTORY_RESPONSE messages it is the
+     * sequence number of the first message, and the following messages have
+     * the following numbers.
+     * 
+     * @return Sequence number as an unsigned int, or -1 if the sender did not
+     *         include one.
+     */
+    public long getSequenceNumber() {
+        return this.sequenceNumber;
+    }
+
+    /**
+     * Used in TOPIC_DIGEST messages, this gets the root hash of the sender's
+     * topic catalog.
+     * 
+     * @return Root hash, see TopicDigest
+     */
+    public int getDigestRoot() {
+        return this.digestRoot;
+    }
+
+    /**
+     * Used in TOPIC_DIGEST messages, this gets the bucket hashes of the
+     * sender's topic catalog.
+     * 
+     * @return Hash of each bucket, see TopicDigest
+     */
+    public int[] getDigestBuckets() {
+        return this.digestBuckets;
+    }
+
+    /**
+     * Gets the transfer ID of a FILE_OFFER, FILE_CHUNK or FILE_CHUNK_REQUEST.
+     * 
+     * @return Transfer ID
+     */
+    public int getTransferId() {
+        return this.transferId;
+    }
+
+    /**
+     * Gets the file name of a FILE_OFFER.
+     * 
+     * @return Name of file, without any path
+     */
+    public String getFileName() {
+        return this.fileName;
+    }
+
+    /**
+     * Gets the file size of a FILE_OFFER.
+     * 
+     * @return Size of file in bytes
+     */
+    public long getFileSize() {
+        return this.fileSize;
+    }
+
+    /**
+     * Gets the chunk size of a FILE_OFFER.
+     * 
+     * @return Size of every chunk but the last, in bytes
+     */
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    /**
+     * Gets the index of the chunk in a FILE_CHUNK.
+     * 
+     * @return Chunk index
+     */
+    public long getChunkIndex() {
+        return this.chunkIndex;
+    }
+
+    /**
+     * Gets the packed FILE_CHUNK message. The chunk itself starts at
+     * FILE_CHUNK_HEADER_LENGTH and runs to the end of the array.
+     * 
+     * @return The packed message, not a copy
+     */
+    public byte[] getChunkOctets() {
+        return this.chunkOctets;
+    }
+
+    /**
+     * Gets the capabilities of the sender of a HEARTBEAT.
+     * 
+     * @return Capability bits, see PayloadCodec.CAPABILITY_COMPRESSION.
+     */
+    public int getCapabilities() {
+        return this.capabilities;
+    }
+
     /**
      * Used in JOIN_TOPIC messages, this gets the sender's username.
      * 
@@ -488,6 +983,56 @@ public class ChatMessage {
     // Private methods
     // ----------------
 
+    /**
+     * Extracts the extension trailing SEND_MESSAGE and SEND_MESSAGE_BATCH
+     * messages, starting at accumulatedOffset. Messages from senders without
+     * the extension simply end before it. The extension is packed as follows:
+     * <br>
+     * <table border=1>
+     * <tr>
+     * <td>size(B):</td>
+     * <td>1</td>
+     * <td>4</td>
+     * <td>...</td>
+     * </tr>
+     * <tr>
+     * <td>content:</td>
+     * <td>version</td>
+     * <td>sequence number</td>
+     * <td>fields of later versions</td>
+     * </tr>
+     * </table>
+     * 
+     * @param octets
+     *            array to extract from
+     */
+    private void extractExtension(byte[] octets) {
+        if ( octets.length - this.accumulatedOffset < EXTENSION_LENGTH || octets[this.accumulatedOffset] < 1 ) {
+            return;
+        }
+        this.sequenceNumber = 0x0000000FFFFFFFFL & (long) ByteBuffer.wrap(octets).getInt(this.accumulatedOffset + 1);
+        this.accumulatedOffset += EXTENSION_LENGTH;
+    }
+
+    /**
+     * Packs the extension trailing SEND_MESSAGE and SEND_MESSAGE_BATCH messages
+     * at accumulatedOffset, if there is a sequence number to send. See
+     * extractExtension for the format.
+     * 
+     * @param octets
+     *            array to pack into
+     */
+    private void packExtension(byte[] octets) {
+        if ( this.sequenceNumber < 0 ) {
+            return;
+        }
+        octets[this.accumulatedOffset++] = EXTENSION_VERSION;
+        octets[this.accumulatedOffset++] = (byte) ((this.sequenceNumber >> 24) & 0xff);
+        octets[this.accumulatedOffset++] = (byte) ((this.sequenceNumber >> 16) & 0xff);
+        octets[this.accumulatedOffset++] = (byte) ((this.sequenceNumber >> 8) & 0xff);
+        octets[this.accumulatedOffset++] = (byte) (this.sequenceNumber & 0xff);
+    }
+
     /**
      * Extracts a topic from the given byte array starting from
      * accumulatedOffset. Each topic is packed as follows: <br>
@@ -515,12 +1060,13 @@ public class ChatMessage {
      */
     private Topic extractTopic(byte[] octets) throws UnsupportedEncodingException {
         // Grab name
-        int end = (octets[this.accumulatedOffset++] & 0xff) + this.accumulatedOffset;
-        byte[] bytes = new byte[end - this.accumulatedOffset];
-        for (int i = 0; this.accumulatedOffset < end; ++this.accumulatedOffset, ++i) {
-            bytes[i] = octets[this.accumulatedOffset];
-        }
-        return new Topic(new String(bytes, "UTF-8"));
+        int length = (octets[this.accumulatedOffset++] & 0xff);
+        checkBounds(octets, this.accumulatedOffset, length);
+        // Only the name is shared. The Topic is new, so that subscribers added
+        // to it do not show up in topics decoded later.
+        Topic topic = new Topic(NAMES.internString(octets, this.accumulatedOffset, length));
+        this.accumulatedOffset += length;
+        return topic;
     }
 
     /**
@@ -554,13 +1100,29 @@ public class ChatMessage {
         long id = 0x0000000FFFFFFFFL & (long) ByteBuffer.wrap(octets).getInt(this.accumulatedOffset);
         this.accumulatedOffset += 4;
         // Grab name
-        int end = (octets[this.accumulatedOffset++] & 0xff) + this.accumulatedOffset;
-        byte[] bytes = new byte[end - this.accumulatedOffset];
-        for (int i = 0; this.accumulatedOffset < end; ++this.accumulatedOffset, ++i) {
-            bytes[i] = octets[this.accumulatedOffset];
+        int length = (octets[this.accumulatedOffset++] & 0xff);
+        checkBounds(octets, this.accumulatedOffset, length);
+        String name = NAMES.internString(octets, this.accumulatedOffset, length);
+        this.accumulatedOffset += length - 1;
+        return new Subscriber(id, name);
+    }
+
+    /**
+     * Makes sure the given range lies within octets. The old copying decoder
+     * failed on truncated names by running off the array, so this keeps the
+     * same IndexOutOfBoundsException for the constructor to catch.
+     * 
+     * @param octets
+     *            array that is read from
+     * @param offset
+     *            of the first byte in the range
+     * @param length
+     *            of the range
+     */
+    private static void checkBounds(byte[] octets, int offset, int length) {
+        if ( offset + length > octets.length ) {
+            throw new ArrayIndexOutOfBoundsException(offset + length - 1);
         }
-        --this.accumulatedOffset;
-        return new Subscriber(id, new String(bytes, "UTF-8"));
     }
 
     /**
@@ -646,6 +1208,7 @@ public class ChatMessage {
      */
     private ChatMessage(ChatMessageType type) {
         this.type = type;
+        this.sequenceNumber = -1;
     }
 
     @Override
@@ -655,6 +1218,7 @@ public class ChatMessage {
         case JOIN_TOPIC:
             return " (" + this.type + " | " + this.topic.getName() + " | " + this.senderUserName + " )";
         case GET_TOPICS:
+        case HEARTBEAT:
             return "(" + this.type + " )";
         case NEW_TOPIC:
         case DELETE_TOPIC_SUCCESS:
@@ -704,6 +1268,114 @@ public class ChatMessage {
         return new ChatMessage(ChatMessageType.GET_TOPICS);
     }
 
+    /**
+     * Creates a FILE_OFFER message
+     * 
+     * @param senderId
+     *            our node ID
+     * @param transferId
+     *            of the transfer
+     * @param topic
+     *            the file is sent to
+     * @param fileName
+     *            name of file, without any path, at most 255 bytes in UTF-8
+     * @param fileSize
+     *            size of file in bytes
+     * @param chunkSize
+     *            size of every chunk but the last, at most 65535
+     */
+    static public ChatMessage createFileOfferMessage(long senderId, int transferId, Topic topic, String fileName,
+            long fileSize, int chunkSize) {
+        ChatMessage msg = new ChatMessage(ChatMessageType.FILE_OFFER);
+        msg.senderId = senderId;
+        msg.transferId = transferId;
+        msg.topic = topic;
+        msg.fileName = fileName;
+        msg.fileSize = fileSize;
+        msg.chunkSize = chunkSize;
+        return msg;
+    }
+
+    /**
+     * Creates a FILE_CHUNK message, reading the chunk from the given channel
+     * straight into the packed message.
+     * 
+     * @param senderId
+     *            our node ID
+     * @param transferId
+     *            of the transfer
+     * @param chunkIndex
+     *            index of the chunk
+     * @param channel
+     *            to read the chunk from
+     * @param position
+     *            of the chunk in the file
+     * @param length
+     *            of the chunk
+     * @throws IOException
+     *             If the chunk could not be read in full.
+     */
+    static ChatMessage createFileChunkMessage(long senderId, int transferId, long chunkIndex, FileChannel channel,
+            long position, int length) throws IOException {
+        ChatMessage msg = new ChatMessage(ChatMessageType.FILE_CHUNK);
+        msg.senderId = senderId;
+        msg.transferId = transferId;
+        msg.chunkIndex = chunkIndex;
+        msg.chunkOctets = new byte[FILE_CHUNK_HEADER_LENGTH + length];
+        ByteBuffer buffer = ByteBuffer.wrap(msg.chunkOctets);
+        buffer.put((byte) ChatMessageType.FILE_CHUNK.ordinal());
+        buffer.putInt((int) senderId);
+        buffer.putInt(transferId);
+        buffer.putInt((int) chunkIndex);
+        while (buffer.hasRemaining()) {
+            if ( channel.read(buffer, position + buffer.position() - FILE_CHUNK_HEADER_LENGTH) < 0 ) {
+                throw new IOException("File ended before chunk " + chunkIndex + ".");
+            }
+        }
+        return msg;
+    }
+
+    /**
+     * Creates a FILE_CHUNK_REQUEST message
+     * 
+     * @param senderId
+     *            ID of the node sending the file
+     * @param transferId
+     *            of the transfer
+     * @param ranges
+     *            of missing chunks, at most MAXIMUM_BATCH_COUNT of them
+     */
+    static public ChatMessage createFileChunkRequestMessage(long senderId, int transferId,
+            ArrayList<SequenceRange> ranges) {
+        ChatMessage msg = new ChatMessage(ChatMessageType.FILE_CHUNK_REQUEST);
+        msg.senderId = senderId;
+        msg.transferId = transferId;
+        msg.ranges = ranges;
+        return msg;
+    }
+
+    /**
+     * Creates a HEARTBEAT message, advertising what we can decode.
+     */
+    static public ChatMessage createHeartbeatMessage() {
+        ChatMessage msg = new ChatMessage(ChatMessageType.HEARTBEAT);
+        msg.capabilities = PayloadCodec.CAPABILITY_COMPRESSION;
+        return msg;
+    }
+
+    /**
+     * Creates a TOPIC_DIGEST message
+     * 
+     * @param digest
+     *            of our topic catalog
+     */
+    static public ChatMessage createTopicDigestMessage(TopicDigest digest) {
+        ChatMessage message = new ChatMessage(ChatMessageType.TOPIC_DIGEST);
+        message.digestRoot = digest.getRoot();
+        message.digestBuckets = digest.getBucketHashes();
+        return message;
+    }
+
     /**
      * Creates a JOIN_TOPIC message
      * 
@@ -786,15 +1458,81 @@ public class ChatMessage {
      *            to send
      * @param topic
      *            to send to
+     * @param sequenceNumber
+     *            of the message from this sender, as an unsigned int
      */
-    static public ChatMessage createSendMessageMessage(Message message, Topic topic) {
+    static public ChatMessage createSendMessageMessage(Message message, Topic topic, long sequenceNumber) {
         ChatMessage msg = new ChatMessage(ChatMessageType.SEND_MESSAGE);
+        msg.sequenceNumber = sequenceNumber & 0xffffffffL;
         msg.senderId = message.getSender().getNodeId();
         msg.message = message.getContent();
         msg.topic = topic;
         return msg;
     }
 
+    /**
+     * Creates a SEND_MESSAGE_BATCH message
+     * 
+     * @param senderId
+     *            ID of the node that wrote the messages
+     * @param topic
+     *            to send to
+     * @param contents
+     *            of the messages, at most MAXIMUM_BATCH_COUNT of them, each
+     *            at most 65535 bytes when encoded
+     * @param firstSequenceNumber
+     *            sequence number of the first message, the others follow
+     *            consecutively
+     */
+    static public ChatMessage createSendMessageBatchMessage(long senderId, Topic topic, ArrayList<String> contents,
+            long firstSequenceNumber) {
+        ChatMessage msg = new ChatMessage(ChatMessageType.SEND_MESSAGE_BATCH);
+        msg.sequenceNumber = firstSequenceNumber & 0xffffffffL;
+        msg.senderId = senderId;
+        msg.messages = contents;
+        msg.topic = topic;
+        return msg;
+    }
+
+    /**
+     * Creates a HISTORY_REQUEST message
+     * 
+     * @param senderId
+     *            ID of the node whose messages are missing
+     * @param topic
+     *            the messages were sent to
+     * @param ranges
+     *            of missing sequence numbers, at most MAXIMUM_BATCH_COUNT of
+     *            them
+     */
+    static public ChatMessage createHistoryRequestMessage(long senderId, Topic topic, ArrayList<SequenceRange> ranges) {
+        ChatMessage msg = new ChatMessage(ChatMessageType.HISTORY_REQUEST);
+        msg.senderId = senderId;
+        msg.topic = topic;
+        msg.ranges = ranges;
+        return msg;
+    }
+
+    /**
+     * Creates a HISTORY_RESPONSE message
+     * 
+     * @param senderId
+     *            ID of the node that wrote the messages
+     * @param topic
+     *            the messages were sent to
+     * @param contents
+     *            of a run of consecutive messages, at most MAXIMUM_BATCH_COUNT
+     *            of them
+     * @param firstSequenceNumber
+     *            sequence number of the first message in the run
+     */
+    static public ChatMessage createHistoryResponseMessage(long senderId, Topic topic, ArrayList<String> contents,
+            long firstSequenceNumber) {
+        ChatMessage msg = createSendMessageBatchMessage(senderId, topic, contents, firstSequenceNumber);
+        msg.type = ChatMessageType.HISTORY_RESPONSE;
+        return msg;
+    }
+
     /**
      * Creates a SUBSCRIBER_LIST message
      * 
@@ -830,8 +1568,9 @@ public class ChatMessage {
      */
     static public ChatMessage createNodeIdListMessage(ArrayList<Integer> nodeIds) {
         if ( nodeIds.size() > 65535 ) {
-            System.out.println("ChatMessage.createNodeIDList(): Too many node IDs "
-                    + "(> 65535), split up the array into multiple messages!");
+            ChatLog.warning("ChatMessage.createNodeIDList()",
+                    "Too many node IDs (> 65535), split up the array into multiple messages!", "count",
+                    nodeIds.size());
         }
         ChatMessage message = new ChatMessage(ChatMessageType.NODE_LIST);
         message.nodeIds = nodeIds;
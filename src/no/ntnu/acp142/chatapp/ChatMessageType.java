@@ -52,8 +52,8 @@ public enum ChatMessageType {
     LEAVE_TOPIC,           // Used to leave a topic.
 
     // Message types handling responses
-    TOPIC_LIST,            // Response to GET_TOPICS, contains a list of available
-                           // topics.
+    TOPIC_LIST,            // Response to GET_TOPICS or TOPIC_DIGEST, contains a
+                           // list of available topics.
     TOPIC_IN_USE,          // Response to NEW_TOPIC if the topic already exists
                            // with the multicast address to use.
                            // Response to DELETE_TOPIC if topic is still in use.
@@ -70,6 +70,33 @@ public enum ChatMessageType {
     NODE_LEAVE,            // Sent on client shutdown to notify other nodes to
                            // remove the ID from their destination array.
     
+    // Message types pertaining to batched message sending
+    SEND_MESSAGE_BATCH,    // Used to send several messages from the same sender
+                           // to the same topic in one transmission.
+                           // Placed before INVALID so nodes that do not know
+                           // it see an INVALID message and drop it.
+
+    // Message types pertaining to recovering lost messages
+    HISTORY_REQUEST,       // Used to ask for messages missing from the
+                           // sequence of a sender in a topic.
+    HISTORY_RESPONSE,      // Response to HISTORY_REQUEST, contains a run of
+                           // the messages asked for.
+
+    // Message types pertaining to topic catalog sync
+    TOPIC_DIGEST,          // Used upon startup instead of GET_TOPICS, contains
+                           // hashes of our topics. Answered with a TOPIC_LIST
+                           // of the topics in differing buckets.
+
+    // Message types pertaining to failure detection
+    HEARTBEAT,             // Sent regularly to all nodes to show we are alive.
+                           // Carries the capabilities of the sender.
+
+    // Message types pertaining to file transfer
+    FILE_OFFER,            // Announces a file about to be streamed to a topic.
+    FILE_CHUNK,            // Carries one chunk of a file.
+    FILE_CHUNK_REQUEST,    // Asks the sender of a file for the chunks we miss,
+                           // also used to resume a transfer.
+
     // Used to identify invalid messages
     INVALID    
 }
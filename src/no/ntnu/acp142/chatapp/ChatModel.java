@@ -5,6 +5,7 @@ import java.beans.PropertyChangeSupport;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 
 import no.ntnu.acp142.Configuration;
 
@@ -48,10 +49,20 @@ import no.ntnu.acp142.Configuration;
  */
 public class ChatModel {
 
-    private static PropertyChangeSupport propertyChangeSupport;
+    private final PropertyChangeSupport  propertyChangeSupport;
 
     public static final String           ADD_MESSAGE_PROPERTY  = "AddMessage";
     public static final String           CURRENT_CHAT_PROPERTY = "CurrentChat";
+    public static final String           SEND_STATE_PROPERTY   = "SendState";
+
+    /**
+     * State of our own outgoing messages to a topic.
+     */
+    public enum SendState {
+        IDLE,       // Nothing waiting to be sent.
+        SENDING,    // Messages are waiting to be sent.
+        QUEUE_FULL  // A message was refused, as too much is waiting.
+    }
 
     /**
      * currentChat keeps track of which chat is used.
@@ -61,16 +72,21 @@ public class ChatModel {
      * List of all messages in this chat.
      */
     private ArrayList<Chat>              chatList;
+    /**
+     * Send state of each topic that is not IDLE, keyed on lower case topic
+     * name.
+     */
+    private final HashMap<String, SendState> sendStates = new HashMap<String, SendState>();
+    /**
+     * Holds the settings in use.
+     */
+    private final ChatConfigurationModel chatConfigModel;
 
     /**
      * Initializes the chat list.
      */
     public ChatModel() {
-        propertyChangeSupport = new PropertyChangeSupport(this);
-        this.chatList = new ArrayList<Chat>();
-        this.currentChat = new Chat(null,
-                new Subscriber(Configuration.getNodeId(), "User_" + Configuration.getNodeId()));
-        addMessage(new Message(new Subscriber(0, "Admin"), "Choose a topic from the list."));
+        this(Configuration.getNodeId());
     }
 
     /**
@@ -81,7 +97,21 @@ public class ChatModel {
      *            to use
      */
     public ChatModel(int nodeId) {
-        propertyChangeSupport = new PropertyChangeSupport(this);
+        this(nodeId, ChatConfigurationModel.getDefault());
+    }
+
+    /**
+     * Initializes the chat list taking the nodeID and the settings to use as
+     * parameters, for one of several nodes in a process, see VirtualNodes.
+     * 
+     * @param nodeId
+     *            to use
+     * @param chatConfigModel
+     *            holding the settings to use
+     */
+    public ChatModel(int nodeId, ChatConfigurationModel chatConfigModel) {
+        this.propertyChangeSupport = new PropertyChangeSupport(this);
+        this.chatConfigModel = chatConfigModel;
         this.chatList = new ArrayList<Chat>();
         this.currentChat = new Chat(null, new Subscriber(nodeId, "User_" + nodeId));
         addMessage(new Message(new Subscriber(0, "Admin"), "Choose a topic from the list."));
@@ -134,7 +164,8 @@ public class ChatModel {
         if ( this.currentChat.getTopic() != null ) {
             this.currentChat.getTopic().removeSubscriber(this.currentChat.getSelf().getNodeId());
             this.currentChat.addMessage(new Message(new Subscriber(0, ChatModel.getTimeAsString()), "You left."));
-            this.currentChat.setCapacity(ChatConfigurationModel.getMaximumMessagesToKeepForInactiveChat());
+            this.currentChat.setCapacity(this.chatConfigModel.getConfiguration()
+                    .getMaximumMessagesToKeepForInactiveChat());
         }
 
         Chat newChat = null;
@@ -149,7 +180,7 @@ public class ChatModel {
             this.chatList.add(newChat);
         }
         this.currentChat = newChat;
-        this.currentChat.setCapacity(ChatConfigurationModel.getMaximumMessagesToKeepForActiveChat());
+        this.currentChat.setCapacity(this.chatConfigModel.getConfiguration().getMaximumMessagesToKeepForActiveChat());
 
         this.currentChat.getTopic().addSubscriber(this.currentChat.getSelf());
         this.currentChat.addMessage(new Message(new Subscriber(0, ChatModel.getTimeAsString()), "You joined."));
@@ -157,6 +188,40 @@ public class ChatModel {
         propertyChangeSupport.firePropertyChange(CURRENT_CHAT_PROPERTY, oldValue, topic);
     }
 
+    /**
+     * Gets the state of our own outgoing messages to a topic.
+     * 
+     * @param topic
+     *            to get state of
+     * @return The send state.
+     */
+    public synchronized SendState getSendState(Topic topic) {
+        SendState state = this.sendStates.get(topic.getName().toLowerCase());
+        return state == null ? SendState.IDLE : state;
+    }
+
+    /**
+     * Sets the state of our own outgoing messages to a topic, and notifies the
+     * view if it changed. Called by Networking.
+     * 
+     * @param topic
+     *            to set state of
+     * @param state
+     *            new send state
+     */
+    public void setSendState(Topic topic, SendState state) {
+        SendState oldState;
+        synchronized (this) {
+            oldState = this.sendStates.put(topic.getName().toLowerCase(), state);
+            if ( state == SendState.IDLE ) {
+                this.sendStates.remove(topic.getName().toLowerCase());
+            }
+        }
+        if ( (oldState == null ? SendState.IDLE : oldState) != state ) {
+            propertyChangeSupport.firePropertyChange(SEND_STATE_PROPERTY, null, topic);
+        }
+    }
+
     /**
      * Adds the propertyChangeListener to our propertyChangeSupport object
      * 
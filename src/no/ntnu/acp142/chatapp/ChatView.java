@@ -7,6 +7,8 @@ import java.awt.Font;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.Insets;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
@@ -16,13 +18,13 @@ import javax.swing.JButton;
 import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JPanel;
+import javax.swing.JScrollBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
-import javax.swing.JTextPane;
 import javax.swing.JToggleButton;
-import javax.swing.ListCellRenderer;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 
@@ -172,25 +174,28 @@ public class ChatView extends JPanel implements ListSelectionListener, PropertyC
         textAreaChat.setModel(chatModel.getCurrentChat());
 
         // SET RENDERER
-        textAreaChat.setCellRenderer(new ListCellRenderer<Message>() {
+        textAreaChat.setCellRenderer(new MessageRenderer(textFont) {
 
             @Override
-            public Component getListCellRendererComponent(JList list, Message value, int index, boolean isSelected,
-                    boolean hasFocus) {
-                JTextPane component = new JTextPane();
-                component.setContentType("text/html");
-                component.setFont(textFont); // Use consistent font
-                component.setText(value.toString());
-                component.setEditable(false);
-
+            public Component getListCellRendererComponent(JList<? extends Message> list, Message value, int index,
+                    boolean isSelected, boolean hasFocus) {
                 JScrollBar bar = scrollPaneChat.getVerticalScrollBar();
                 bar.setValue(bar.getMaximum());
 
-                return component;
+                return super.getListCellRendererComponent(list, value, index, isSelected, hasFocus);
             }
 
         });
         textAreaChat.setFocusable(false);
+        // Messages are wrapped to the width of the chat area, so sizes must be
+        // measured again when it changes.
+        scrollPaneChat.getViewport().addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                textAreaChat.setFixedCellHeight(0);
+                textAreaChat.setFixedCellHeight(-1);
+            }
+        });
 
         // SET FORMAT FOR JTEXTAREAS
         textAreaCommentField.setWrapStyleWord(true);
@@ -366,8 +371,17 @@ public class ChatView extends JPanel implements ListSelectionListener, PropertyC
      * Updates the chat text area. Replaces the model if it has changed.
      */
     public void updateChatArea() {
+        ChatEvents.ChatAreaUpdate event = new ChatEvents.ChatAreaUpdate();
+        event.begin();
         textAreaChat.setModel(chatModel.getCurrentChat());
         textAreaChat.updateUI();
+        event.end();
+        if ( event.shouldCommit() ) {
+            event.topic = chatModel.getCurrentChat().toString();
+            event.messages = chatModel.getCurrentChat().getSize();
+            event.onEventDispatchThread = SwingUtilities.isEventDispatchThread();
+            event.commit();
+        }
     }
 
     /**
@@ -413,11 +427,37 @@ public class ChatView extends JPanel implements ListSelectionListener, PropertyC
         if ( name.equals(TopicModel.TOPIC_LIST_FILTER_UPDATE) ) {
             listTopics.updateUI();
         }
+        if ( name.equals(TopicModel.TOPICS_LOADED_PROPERTY) ) {
+            listTopics.updateUI();
+        }
         if ( name.equals(ChatModel.ADD_MESSAGE_PROPERTY) ) {
             updateChatArea();
         }
         if ( name.equals(ChatModel.CURRENT_CHAT_PROPERTY) ) {
             updateChatArea();
+            updateSendState();
+        }
+        if ( name.equals(ChatModel.SEND_STATE_PROPERTY) ) {
+            updateSendState();
+        }
+    }
+
+    /**
+     * Shows the send state of the current chat in the chat label.
+     */
+    public void updateSendState() {
+        Topic topic = chatModel.getCurrentChat().getTopic();
+        ChatModel.SendState state = topic == null ? ChatModel.SendState.IDLE : chatModel.getSendState(topic);
+        switch ( state ) {
+        case SENDING:
+            labelChat.setText("Chat - sending...");
+            break;
+        case QUEUE_FULL:
+            labelChat.setText("Chat - queue full");
+            break;
+        default:
+            labelChat.setText("Chat");
+            break;
         }
     }
 
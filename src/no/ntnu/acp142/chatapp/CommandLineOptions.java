@@ -0,0 +1,426 @@
+package no.ntnu.acp142.chatapp;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import no.ntnu.acp142.Configuration;
+import no.ntnu.acp142.Log;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Parses the command line arguments of pmulchat. Arguments that set ACP142 or
+ * chat configuration parameters are applied to Configuration and
+ * ChatConfigurationModel as they are parsed, the rest are kept in this object
+ * for the entry point to act on. Contains no user interface code, so it can be
+ * used by both MainView and HeadlessChat.
+ * 
+ * @author Thomas Martin Schmid
+ */
+public class CommandLineOptions {
+
+    /**
+     * Whether to start in EMCON.
+     */
+    private boolean inEmcon;
+    /**
+     * Whether to use static topics and multicast groups.
+     */
+    private boolean useStaticTopics;
+    /**
+     * Path to the topic list file, or null if none was given.
+     */
+    private String  topicList;
+    /**
+     * Whether the node ID was set on the command line or in a configuration
+     * file.
+     */
+    private boolean customNodeId;
+    /**
+     * Whether to run without the user interface.
+     */
+    private boolean headless;
+
+    /**
+     * Options are only created through parse.
+     */
+    private CommandLineOptions() {
+        this.inEmcon = false;
+        this.useStaticTopics = false;
+        this.topicList = null;
+        this.customNodeId = false;
+        this.headless = false;
+    }
+
+    /**
+     * Parses the given command line arguments.
+     * 
+     * @param args
+     *            as given to main
+     * @return The parsed options, or null if the application should not start
+     *         (help was printed or the options are inconsistent).
+     */
+    public static CommandLineOptions parse(String[] args) {
+        CommandLineOptions options = new CommandLineOptions();
+
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+            case "-c":
+                // ACP142 Configuration file supplied.
+                try {
+                    int pre = Configuration.getNodeId();
+                    Configuration.load(args[++i]);
+                    if (pre != Configuration.getNodeId()) {
+                        options.customNodeId = true;
+                    }
+                } catch (FileNotFoundException e) {
+                    ChatLog.warning("CommandLineOptions.parse()",
+                            "The supplied configuration file was not found.",
+                            "file", args[i]);
+                } catch (IOException | IndexOutOfBoundsException
+                        | NumberFormatException e) {
+                    ChatLog.error("CommandLineOptions.parse()",
+                            "Could not load supplied configuration file.", e);
+                }
+                break;
+            case "-t":
+                // Topic list file supplied.
+                options.topicList = args[++i];
+                break;
+            case "-s":
+                // Use static topics (complain if no topic list is given!).
+                options.useStaticTopics = true;
+                ChatConfigurationModel.setUseDynamicMulticast(false);
+                break;
+            case "-p":
+                // Parameter list supplied.
+                while (i < args.length - 1) {
+                    String param = args[++i];
+                    boolean breakMe = false;
+                    switch (param) {
+                    // ACP142 parameters
+                    case "WAIT_FOR_REJECT_TIME":
+                        Configuration.setWaitForRejectTime(Integer
+                                .valueOf(args[++i]));
+                        break;
+                    case "ANNOUNCE_DELAY":
+                        Configuration.setAnnounceDelay(Integer
+                                .valueOf(args[++i]));
+                        break;
+                    case "ANNOUNCE_CT":
+                        Configuration.setAnnounceCt(Integer.valueOf(args[++i]));
+                        break;
+                    case "ACK_RE-TRANSMISSION_TIME":
+                        Configuration.setAckRetransmissionTime(Integer
+                                .valueOf(args[++i]));
+                        break;
+                    case "BACK-OFF_FACTOR":
+                        Configuration.setBackoffFactor(Double
+                                .valueOf(args[++i]));
+                        break;
+                    case "EMCON_RTC":
+                        Configuration.setEmconRtc(Integer.valueOf(args[++i]));
+                        break;
+                    case "EMCON_RTI":
+                        Configuration.setEmconRti(Integer.valueOf(args[++i]));
+                        break;
+                    case "MM":
+                        Configuration.setMm(Integer.valueOf(args[++i]));
+                        break;
+                    case "ACK_PDU_TIME":
+                        Configuration.setAckPduTime(Integer.valueOf(args[++i]));
+                        break;
+                    case "GG":
+                        Configuration.setGg(args[++i]);
+                        break;
+                    case "TPORT":
+                        Configuration.setTPort(Integer.valueOf(args[++i]));
+                        break;
+                    case "RPORT":
+                        Configuration.setRPort(Integer.valueOf(args[++i]));
+                        break;
+                    case "DPORT":
+                        Configuration.setDPort(Integer.valueOf(args[++i]));
+                        break;
+                    case "APORT":
+                        Configuration.setAPort(Integer.valueOf(args[++i]));
+                        break;
+                    case "MULTICAST_START_RANGE":
+                        Configuration.setMulticastStartRange(args[++i]);
+                        break;
+                    case "MULTICAST_END_RANGE":
+                        Configuration.setMulticastEndRange(args[++i]);
+                        break;
+                    case "PDU_MAX_SIZE":
+                        Configuration.setPduMaxSize(Integer.valueOf(args[++i]));
+                        break;
+                    case "PDU_EXPIRY_TIME":
+                        Configuration.setUndefinedPduExpiryTime(Integer
+                                .valueOf(args[++i]));
+                        break;
+                    case "NODE_ID":
+                        Configuration.setNodeId((int) Long.valueOf(args[++i])
+                                .longValue());
+                        options.customNodeId = true;
+                        break;
+                    case "ACK_DELAY_UPPER_BOUND":
+                        Configuration.setAckDelayUpperBound(Long
+                                .valueOf(args[++i]));
+                        break;
+                    case "BIND_INTERFACE_ADDRESS":
+                        try {
+                            Configuration.setBindInterfaceAddress(InetAddress
+                                    .getByName(args[++i]));
+                        } catch (UnknownHostException e) {
+                            ChatLog.warning("CommandLineOptions.parse()",
+                                    "Bind interface address could not be resolved.",
+                                    "address", args[i]);
+                        }
+                        break;
+                    // ChatApp settings
+                    case "BROADCAST_GROUP":
+                        ChatConfigurationModel.setBroadcastGroup(args[++i]);
+                        break;
+                    case "BROADCAST_PORT":
+                        ChatConfigurationModel.setBroadcastPort(Short
+                                .valueOf(args[++i]));
+                        break;
+                    case "MAXIMUM_WAIT_FOR_RESPONSE_ON_DELAYED_SEND":
+                        ChatConfigurationModel
+                                .setMaximumWaitForResponseOnDelayedSend(Long
+                                        .valueOf(args[++i]));
+                        break;
+                    case "DEFAULT_TIME_TO_LIVE":
+                        ChatConfigurationModel.setDefaultTimeToLive(Long
+                                .valueOf(args[++i]));
+                        break;
+                    case "WAIT_FOR_IN_USE_RESPONSE":
+                        ChatConfigurationModel.setWaitForInUseResponse(Long
+                                .valueOf(args[++i]));
+                        break;
+                    case "STATS_DUMP_INTERVAL":
+                        ChatConfigurationModel.setStatsDumpInterval(Long
+                                .valueOf(args[++i]));
+                        break;
+                    case "USE_MESSAGE_BATCHING":
+                        ChatConfigurationModel.setUseMessageBatching(Boolean
+                                .valueOf(args[++i]));
+                        break;
+                    case "MESSAGE_BATCH_MAX_SIZE":
+                        ChatConfigurationModel.setMessageBatchMaxSize(Integer
+                                .valueOf(args[++i]));
+                        break;
+                    case "MESSAGE_BATCH_LINGER":
+                        ChatConfigurationModel.setMessageBatchLinger(Long
+                                .valueOf(args[++i]));
+                        break;
+                    case "HEARTBEAT_INTERVAL":
+                        ChatConfigurationModel.setHeartbeatInterval(Long
+                                .valueOf(args[++i]));
+                        break;
+                    case "FAILURE_DETECTOR_THRESHOLD":
+                        ChatConfigurationModel.setFailureDetectorThreshold(Double
+                                .valueOf(args[++i]));
+                        break;
+                    case "SEND_QUEUE_BYTE_BUDGET":
+                        ChatConfigurationModel.setSendQueueByteBudget(Integer
+                                .valueOf(args[++i]));
+                        break;
+                    case "STATE_SNAPSHOT_FILE":
+                        ChatConfigurationModel.setStateSnapshotFile(args[++i]);
+                        break;
+                    case "STATE_SNAPSHOT_INTERVAL":
+                        ChatConfigurationModel.setStateSnapshotInterval(Long
+                                .valueOf(args[++i]));
+                        break;
+                    case "USE_PAYLOAD_COMPRESSION":
+                        ChatConfigurationModel.setUsePayloadCompression(Boolean
+                                .valueOf(args[++i]));
+                        break;
+                    case "FILE_TRANSFER_DIRECTORY":
+                        ChatConfigurationModel.setFileTransferDirectory(args[++i]);
+                        break;
+                    case "MAXIMUM_FILE_TRANSFER_SIZE":
+                        ChatConfigurationModel.setMaximumFileTransferSize(Long
+                                .valueOf(args[++i]));
+                        break;
+                    case "TRAFFIC_CAPTURE_FILE":
+                        ChatConfigurationModel.setTrafficCaptureFile(args[++i]);
+                        break;
+                    default:
+                        // Unknown parameter, we are done with the list. Step i
+                        // back once, then break.
+                        --i;
+                        breakMe = true;
+                        break;
+                    }
+
+                    if (breakMe) {
+                        break;
+                    }
+                }
+                break;
+            case "-e":
+                // Start in EMCON mode.
+                options.inEmcon = true;
+                break;
+            case "-v":
+                // Verbose mode wanted
+                Log.setLogLevel(Log.LOG_LEVEL_VERBOSE);
+                break;
+            case "-d":
+                // Debug mode wanted
+                Log.setLogLevel(Log.LOG_LEVEL_DEBUG);
+                ChatLog.setLevel(ChatLog.Level.DEBUG);
+                break;
+            case "-q":
+                // Quiet mode wanted
+                Log.setLogLevel(Log.LOG_LEVEL_QUIET);
+                ChatLog.setLevel(ChatLog.Level.ERROR);
+                break;
+            case "-g":
+                // Persistant dynamic multicast groups
+                // We can set this blindly since we check for both the use of
+                // this and dynamic multicast in Networking
+                ChatConfigurationModel.setUsePersistantGroups(true);
+                break;
+            case "-n":
+            case "--headless":
+                // No user interface, commands are read from standard input.
+                options.headless = true;
+                break;
+            case "-h":
+            case "--help":
+                // Help wanted
+                printHelp();
+                return null;
+            default:
+                ChatLog.warning("CommandLineOptions.parse()",
+                        "Unknown argument ignored. Try -h for help.",
+                        "argument", args[i]);
+            }
+        }
+
+        if (options.useStaticTopics) {
+            if (options.topicList == null) {
+                ChatLog.warning("CommandLineOptions.parse()",
+                        "Static topics will only work with a topic list file. Supply one with -t.");
+                return null;
+            }
+            ChatConfigurationModel.setUseDynamicTopics(false);
+        }
+        return options;
+    }
+
+    /**
+     * Prints the usage text to standard output.
+     */
+    private static void printHelp() {
+        System.out.println("\nChatApp for ACP142 - v0.1a");
+        System.out
+                .println("Usage: java -jar chatapp.jar [option <arguments>]");
+        System.out.println("\nOptions:");
+        System.out
+                .println("-c [file path] \tLoad ACP142 configuration from the given file on startup.");
+        System.out
+                .println("-t [file path] \tLoad a list of topics from the given file on startup.");
+        System.out
+                .println("-s \t\tUse static multicast & topics. Only sensible used together with -t");
+        System.out.println("\t\tand multicast groups supplied in -c");
+        System.out.println("\t\tfile on startup.");
+        System.out
+                .println("-e \t\tStart the application in EMCON mode.");
+        System.out
+                .println("-g \t\tUse persistant dynamic multicast groups. Only makes sense without -s\n");
+        System.out.println("-p [<parameter_name> <value>...]");
+        System.out
+                .println("\t\tSet any number of parameters with name-value pairs separated by");
+        System.out
+                .println("\t\tspace. See configuration file for parameter names.\n");
+        System.out
+                .println("-n, --headless \tRun without user interface, reading commands from standard");
+        System.out
+                .println("\t\tinput. To avoid loading Swing at all, start the class");
+        System.out
+                .println("\t\tno.ntnu.acp142.chatapp.HeadlessChat instead of the jar's main.\n");
+        System.out.println("-v \t\tSet the log to verbose.");
+        System.out
+                .println("-d \t\tSet the log to print debug messages. Also prints every");
+        System.out.println("\t\tlog message to standard output, and the chat's own");
+        System.out.println("\t\tdebug diagnostics to standard error.");
+        System.out
+                .println("-q \t\tSet the log to quiet mode. Only unrecoverable errors are logged.");
+        System.out
+                .println("\t\tChat diagnostics are limited to errors as well.");
+    }
+
+    /**
+     * Gets whether to start in EMCON.
+     * 
+     * @return true if we start in EMCON.
+     */
+    public boolean isInEmcon() {
+        return this.inEmcon;
+    }
+
+    /**
+     * Gets the path of the topic list file.
+     * 
+     * @return path to the topic list file, or null if none was given.
+     */
+    public String getTopicList() {
+        return this.topicList;
+    }
+
+    /**
+     * Gets whether the node ID was set explicitly, either with -p NODE_ID or
+     * through the configuration file given with -c.
+     * 
+     * @return true if the node ID was set explicitly.
+     */
+    public boolean hasCustomNodeId() {
+        return this.customNodeId;
+    }
+
+    /**
+     * Gets whether to run without the user interface.
+     * 
+     * @return true if no user interface should be created.
+     */
+    public boolean isHeadless() {
+        return this.headless;
+    }
+}
@@ -0,0 +1,260 @@
+package no.ntnu.acp142.chatapp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Remembers which sequence numbers have been seen from each sender, so
+ * retransmitted messages and messages arriving through more than one multicast
+ * group are only delivered once, and so messages that never arrived can be
+ * asked for again.<br>
+ * Each sender numbers its messages to each topic separately, so for each
+ * sender node ID and topic the filter keeps the highest sequence number seen
+ * and a bitmap of the WINDOW sequence numbers below it. Sequence numbers are 32
+ * bit and wrap around, and are compared using serial number arithmetic. A
+ * sequence number further than WINDOW away from the highest seen, in either
+ * direction, is taken to mean the sender has restarted with a new sequence,
+ * and the window is reset. Senders pick a random starting point on startup, so
+ * this is what a restart looks like.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class DuplicateFilter {
+
+    /**
+     * Number of sequence numbers remembered per sender. Must be a multiple of
+     * 64.
+     */
+    static final int                                     WINDOW = 1024;
+
+    /**
+     * Windows of each sender, keyed on node ID and then lower case topic name.
+     */
+    private final HashMap<Long, HashMap<String, Window>> windows;
+
+    /**
+     * Creates a new, empty filter.
+     */
+    DuplicateFilter() {
+        this.windows = new HashMap<Long, HashMap<String, Window>>();
+    }
+
+    /**
+     * Checks whether the given sequence number has been seen from the given
+     * sender before, and marks it as seen.
+     * 
+     * @param senderId
+     *            node ID of the sender
+     * @param topic
+     *            the message was sent to
+     * @param sequenceNumber
+     *            of the message, as an unsigned int
+     * @return true if the message is a duplicate and should be dropped.
+     */
+    synchronized boolean isDuplicate(long senderId, Topic topic, long sequenceNumber) {
+        HashMap<String, Window> senderWindows = this.windows.get(senderId);
+        if ( senderWindows == null ) {
+            senderWindows = new HashMap<String, Window>();
+            this.windows.put(senderId, senderWindows);
+        }
+        String key = topic.getName().toLowerCase();
+        Window window = senderWindows.get(key);
+        if ( window == null ) {
+            window = new Window();
+            senderWindows.put(key, window);
+            window.reset((int) sequenceNumber);
+            return false;
+        }
+        return window.markSeen((int) sequenceNumber);
+    }
+
+    /**
+     * Checks whether the given sequence number has been seen from the given
+     * sender before, without marking it as seen.
+     * 
+     * @param senderId
+     *            node ID of the sender
+     * @param topic
+     *            the message was sent to
+     * @param sequenceNumber
+     *            of the message, as an unsigned int
+     * @return true if isDuplicate would find the message a duplicate.
+     */
+    synchronized boolean isSeen(long senderId, Topic topic, long sequenceNumber) {
+        HashMap<String, Window> senderWindows = this.windows.get(senderId);
+        Window window = senderWindows == null ? null : senderWindows.get(topic.getName().toLowerCase());
+        return window != null && window.isSeen((int) sequenceNumber);
+    }
+
+    /**
+     * Gets the sequence numbers within the window of the given sender and
+     * topic that have not been seen. Numbers from before the first message
+     * seen in the current sequence are never counted as missing, and neither
+     * are numbers already marked as requested.
+     * 
+     * @param senderId
+     *            node ID of the sender
+     * @param topic
+     *            the messages were sent to
+     * @param markAsRequested
+     *            true to mark the numbers returned as requested, so they are
+     *            not returned again
+     * @return The missing ranges in ascending order, empty if none are
+     *         missing.
+     */
+    synchronized ArrayList<SequenceRange> getMissing(long senderId, Topic topic, boolean markAsRequested) {
+        ArrayList<SequenceRange> missing = new ArrayList<SequenceRange>();
+        HashMap<String, Window> senderWindows = this.windows.get(senderId);
+        Window window = senderWindows == null ? null : senderWindows.get(topic.getName().toLowerCase());
+        if ( window == null ) {
+            return missing;
+        }
+        int span = window.highest - window.requested - 1; // Wraps correctly
+        if ( span < 0 ) {
+            span = 0;
+        } else if ( span >= WINDOW ) {
+            span = WINDOW - 1;
+        }
+        int first = 0;
+        int count = 0;
+        for (int sequenceNumber = window.highest - span; sequenceNumber != window.highest; ++sequenceNumber) {
+            if ( window.isSet(sequenceNumber) ) {
+                if ( count > 0 ) {
+                    missing.add(new SequenceRange(first & 0xffffffffL, count));
+                    count = 0;
+                }
+            } else if ( count++ == 0 ) {
+                first = sequenceNumber;
+            }
+        }
+        if ( count > 0 ) {
+            missing.add(new SequenceRange(first & 0xffffffffL, count));
+        }
+        if ( markAsRequested ) {
+            window.requested = window.highest;
+        }
+        return missing;
+    }
+
+    /**
+     * Forgets everything seen from the given sender, e.g. because it has left.
+     * 
+     * @param senderId
+     *            node ID of the sender
+     */
+    synchronized void forget(long senderId) {
+        this.windows.remove(senderId);
+    }
+
+    /**
+     * Sliding window of a single sender.
+     */
+    private static final class Window {
+        private final long[] bits = new long[WINDOW / 64];
+        private int          highest;
+        /**
+         * Highest sequence number that has been asked for, or the one before
+         * the first seen, if none has.
+         */
+        private int          requested;
+
+        /**
+         * Starts the window over with only the given sequence number seen.
+         */
+        private void reset(int sequenceNumber) {
+            for (int i = 0; i < this.bits.length; ++i) {
+                this.bits[i] = 0;
+            }
+            this.highest = sequenceNumber;
+            this.requested = sequenceNumber - 1;
+            set(sequenceNumber);
+        }
+
+        /**
+         * Marks the sequence number as seen.
+         * 
+         * @return true if it was already seen.
+         */
+        private boolean markSeen(int sequenceNumber) {
+            int distance = sequenceNumber - this.highest; // Wraps correctly
+            if ( distance >= WINDOW || distance <= -WINDOW ) {
+                // Too far off to be a late copy, the sender has restarted.
+                reset(sequenceNumber);
+                return false;
+            }
+            if ( distance > 0 ) {
+                // Slide forward, forgetting what falls out of the window.
+                for (int i = 1; i <= distance; ++i) {
+                    clear(this.highest + i);
+                }
+                this.highest = sequenceNumber;
+                set(sequenceNumber);
+                return false;
+            }
+            if ( isSet(sequenceNumber) ) {
+                return true;
+            }
+            set(sequenceNumber);
+            return false;
+        }
+
+        /**
+         * Checks whether markSeen would find the sequence number seen.
+         */
+        private boolean isSeen(int sequenceNumber) {
+            int distance = sequenceNumber - this.highest; // Wraps correctly
+            if ( distance > 0 || distance <= -WINDOW ) {
+                return false;
+            }
+            return isSet(sequenceNumber);
+        }
+
+        private boolean isSet(int sequenceNumber) {
+            int bit = sequenceNumber & (WINDOW - 1);
+            return (this.bits[bit >>> 6] & (1L << (bit & 63))) != 0;
+        }
+
+        private void set(int sequenceNumber) {
+            int bit = sequenceNumber & (WINDOW - 1);
+            this.bits[bit >>> 6] |= 1L << (bit & 63);
+        }
+
+        private void clear(int sequenceNumber) {
+            int bit = sequenceNumber & (WINDOW - 1);
+            this.bits[bit >>> 6] &= ~(1L << (bit & 63));
+        }
+    }
+}
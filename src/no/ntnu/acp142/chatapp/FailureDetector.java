@@ -0,0 +1,198 @@
+package no.ntnu.acp142.chatapp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Phi accrual failure detector. For every node that has sent us a heartbeat,
+ * the intervals between its last SAMPLES heartbeats are kept, and phi is
+ * computed from how unlikely the time since its last heartbeat is, given the
+ * mean and standard deviation of those intervals. phi = 1 means about a 10%
+ * chance the node is still alive and merely late, phi = 2 about 1%, and so on.
+ * Nodes are only monitored once they have sent a heartbeat, so nodes that do
+ * not send heartbeats at all are never suspected.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class FailureDetector {
+
+    /**
+     * Number of heartbeat intervals kept per node.
+     */
+    static final int                         SAMPLES = 100;
+
+    /**
+     * Heartbeat history of each monitored node.
+     */
+    private final HashMap<Integer, Arrivals> nodes;
+
+    /**
+     * Creates a new detector, monitoring no nodes.
+     */
+    FailureDetector() {
+        this.nodes = new HashMap<Integer, Arrivals>();
+    }
+
+    /**
+     * Records a heartbeat from the given node, starting to monitor it if it was
+     * not already.
+     * 
+     * @param nodeId
+     *            of the node the heartbeat came from
+     * @param now
+     *            time of arrival in milliseconds
+     * @param heartbeatInterval
+     *            configured seconds between heartbeats, taken as the first
+     *            interval of a node not monitored before
+     * @return true if the node was not monitored before.
+     */
+    synchronized boolean heartbeat(int nodeId, long now, long heartbeatInterval) {
+        Arrivals arrivals = this.nodes.get(nodeId);
+        if ( arrivals == null ) {
+            arrivals = new Arrivals(now, heartbeatInterval);
+            this.nodes.put(nodeId, arrivals);
+            return true;
+        }
+        arrivals.add(now);
+        return false;
+    }
+
+    /**
+     * Gets the suspicion level of a node.
+     * 
+     * @param nodeId
+     *            of the node
+     * @param now
+     *            current time in milliseconds
+     * @return phi of the node, 0 if it is not monitored.
+     */
+    synchronized double phi(int nodeId, long now) {
+        Arrivals arrivals = this.nodes.get(nodeId);
+        return arrivals == null ? 0 : arrivals.phi(now);
+    }
+
+    /**
+     * Gets all monitored nodes whose phi is above the given threshold.
+     * 
+     * @param threshold
+     *            phi above which a node is suspected
+     * @param now
+     *            current time in milliseconds
+     * @return The suspected node IDs.
+     */
+    synchronized ArrayList<Integer> getSuspects(double threshold, long now) {
+        ArrayList<Integer> suspects = new ArrayList<Integer>();
+        for (Map.Entry<Integer, Arrivals> entry : this.nodes.entrySet()) {
+            if ( entry.getValue().phi(now) > threshold ) {
+                suspects.add(entry.getKey());
+            }
+        }
+        return suspects;
+    }
+
+    /**
+     * Stops monitoring a node, e.g. because it left or was found dead. It is
+     * monitored again from its next heartbeat.
+     * 
+     * @param nodeId
+     *            of the node
+     */
+    synchronized void forget(int nodeId) {
+        this.nodes.remove(nodeId);
+    }
+
+    /**
+     * Heartbeat arrivals of a single node.
+     */
+    private static final class Arrivals {
+        private final long[] intervals = new long[SAMPLES];
+        private int          count;
+        private int          next;
+        private long         sum;
+        private long         sumOfSquares;
+        private long         last;
+
+        /**
+         * The interval to the first heartbeat is unknown, so the configured
+         * heartbeat interval is taken as the first sample.
+         */
+        private Arrivals(long now, long heartbeatInterval) {
+            this.last = now;
+            long expected = Math.max(1, heartbeatInterval) * 1000L;
+            this.intervals[0] = expected;
+            this.count = 1;
+            this.next = 1;
+            this.sum = expected;
+            this.sumOfSquares = expected * expected;
+        }
+
+        private void add(long now) {
+            long interval = now - this.last;
+            this.last = now;
+            if ( this.count == SAMPLES ) {
+                long old = this.intervals[this.next];
+                this.sum -= old;
+                this.sumOfSquares -= old * old;
+            } else {
+                ++this.count;
+            }
+            this.intervals[this.next] = interval;
+            this.sum += interval;
+            this.sumOfSquares += interval * interval;
+            this.next = (this.next + 1) % SAMPLES;
+        }
+
+        /**
+         * Computes phi assuming normally distributed intervals, using the
+         * logistic approximation of the normal cumulative distribution. The
+         * standard deviation is kept at half the mean or more, since
+         * heartbeats are often very regular, and a little delay in libjpmul
+         * must not make a node suspect right away.
+         */
+        private double phi(long now) {
+            double mean = (double) this.sum / this.count;
+            double variance = (double) this.sumOfSquares / this.count - mean * mean;
+            double deviation = Math.max(Math.sqrt(Math.max(variance, 0)), mean / 2);
+            double y = ((now - this.last) - mean) / deviation;
+            double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+            if ( now - this.last > mean ) {
+                return -Math.log10(e / (1.0 + e));
+            }
+            return -Math.log10(1.0 - 1.0 / (1.0 + e));
+        }
+    }
+}
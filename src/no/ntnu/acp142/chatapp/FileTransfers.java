@@ -0,0 +1,612 @@
+package no.ntnu.acp142.chatapp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+
+import no.ntnu.acp142.Configuration;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * State of the file transfers of a node. A file is sent as a FILE_OFFER to the
+ * topic, followed by its chunks in FILE_CHUNK messages. The chunks are read
+ * from the file one at a time as they are sent, and at most WINDOW of them
+ * wait in the send queue per transfer, so files of any size are sent without
+ * being held in memory.<br>
+ * A receiver writes each chunk straight to its place in a pre-allocated
+ * partial file through a FileChannel, and keeps track of the chunks received.
+ * When no chunk has arrived for STALL_TIMEOUT, it asks the sender for the
+ * missing ones with a FILE_CHUNK_REQUEST. After MAXIMUM_REQUESTS such requests
+ * go unanswered, the transfer is suspended: the partial file is kept, along
+ * with a map of the chunks received. The transfer ID is derived from the path,
+ * size and modification time of the file, so when the same file is offered
+ * again, the receiver resumes from the map and only asks for what it misses.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class FileTransfers {
+
+    /**
+     * Chunk size used if libjpmul's maximum PDU size is not known.
+     */
+    static final int                     DEFAULT_CHUNK_SIZE = 1024;
+    /**
+     * Bytes left in each PDU for the ACP142 data PDU header and the FILE_CHUNK
+     * header.
+     */
+    static final int                     PDU_OVERHEAD       = 64;
+    /**
+     * Maximum number of chunks of a transfer waiting in the send queue.
+     */
+    static final int                     WINDOW             = 8;
+    /**
+     * Milliseconds without progress before missing chunks are asked for.
+     */
+    static final long                    STALL_TIMEOUT      = 5000;
+    /**
+     * Number of unanswered FILE_CHUNK_REQUESTs before a transfer is suspended.
+     */
+    static final int                     MAXIMUM_REQUESTS   = 10;
+    /**
+     * Suffix of partial files. The map of received chunks has MAP_SUFFIX
+     * added to this.
+     */
+    static final String                  PARTIAL_SUFFIX     = ".part";
+    static final String                  MAP_SUFFIX         = ".map";
+
+    /**
+     * Files we offer, keyed on transfer ID.
+     */
+    private final HashMap<Integer, Outgoing> outgoing;
+    /**
+     * Files we receive, keyed on sender ID and transfer ID.
+     */
+    private final HashMap<Long, Incoming>    incoming;
+
+    /**
+     * Creates an instance with no transfers.
+     */
+    FileTransfers() {
+        this.outgoing = new HashMap<Integer, Outgoing>();
+        this.incoming = new HashMap<Long, Incoming>();
+    }
+
+    /**
+     * Gets the size of chunks to send, so that each fits in one PDU.
+     * 
+     * @return Chunk size in bytes.
+     */
+    static int getChunkSize() {
+        int pduSize = Configuration.getPduMaxSize();
+        if ( pduSize <= 2 * PDU_OVERHEAD ) {
+            return DEFAULT_CHUNK_SIZE;
+        }
+        return Math.min(pduSize - PDU_OVERHEAD, 0xffff);
+    }
+
+    /**
+     * Opens a file to offer.
+     * 
+     * @param file
+     *            to send
+     * @param topic
+     *            to send it to
+     * @return The transfer.
+     * @throws IOException
+     *             If the file can not be opened, or is too large.
+     */
+    synchronized Outgoing offer(File file, Topic topic) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        long size = channel.size();
+        int chunkSize = getChunkSize();
+        if ( (size + chunkSize - 1) / chunkSize > Integer.MAX_VALUE ) {
+            channel.close();
+            throw new IOException("File too large to send.");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(file.getCanonicalPath().getBytes(StandardCharsets.UTF_8));
+        crc.update(ByteBuffer.allocate(16).putLong(size).putLong(file.lastModified()).array());
+        int id = (int) crc.getValue();
+        Outgoing old = this.outgoing.remove(id);
+        if ( old != null ) {
+            old.close();
+        }
+        Outgoing transfer = new Outgoing(id, file.getName(), topic, channel, size, chunkSize);
+        this.outgoing.put(id, transfer);
+        return transfer;
+    }
+
+    /**
+     * Gets a file we offer.
+     * 
+     * @param transferId
+     *            of the transfer
+     * @return The transfer, or null if none.
+     */
+    synchronized Outgoing getOutgoing(int transferId) {
+        return this.outgoing.get(transferId);
+    }
+
+    /**
+     * Starts receiving an offered file, resuming it if it was suspended. An
+     * offer of a transfer already in progress gives that transfer.
+     * 
+     * @param offer
+     *            the FILE_OFFER
+     * @param directory
+     *            to receive the file into
+     * @param maximumSize
+     *            of files accepted, in bytes
+     * @return The transfer.
+     * @throws IOException
+     *             If the offer is invalid, the file is larger than
+     *             maximumSize or than the free space in directory, or the
+     *             partial file can not be created.
+     */
+    synchronized Incoming accept(ChatMessage offer, File directory, long maximumSize) throws IOException {
+        long key = key(offer.getSenderId(), offer.getTransferId());
+        Incoming transfer = this.incoming.get(key);
+        if ( transfer == null ) {
+            transfer = new Incoming(offer, directory, maximumSize);
+            this.incoming.put(key, transfer);
+        }
+        return transfer;
+    }
+
+    /**
+     * Gets a file we receive.
+     * 
+     * @param senderId
+     *            ID of the node sending it
+     * @param transferId
+     *            of the transfer
+     * @return The transfer, or null if none.
+     */
+    synchronized Incoming getIncoming(long senderId, int transferId) {
+        return this.incoming.get(key(senderId, transferId));
+    }
+
+    /**
+     * Forgets a file we received, or gave up on.
+     * 
+     * @param transfer
+     *            to forget
+     */
+    synchronized void remove(Incoming transfer) {
+        this.incoming.remove(key(transfer.senderId, transfer.transferId));
+    }
+
+    /**
+     * Gets the transfers that have seen no progress and no request for
+     * STALL_TIMEOUT.
+     * 
+     * @param now
+     *            current time in milliseconds
+     * @return The stalled transfers.
+     */
+    synchronized ArrayList<Incoming> getStalled(long now) {
+        ArrayList<Incoming> stalled = new ArrayList<Incoming>();
+        for (Incoming transfer : this.incoming.values()) {
+            if ( transfer.isStalled(now) ) {
+                stalled.add(transfer);
+            }
+        }
+        return stalled;
+    }
+
+    /**
+     * Closes all files. Transfers being received are suspended, so they can be
+     * resumed.
+     */
+    synchronized void close() {
+        for (Outgoing transfer : this.outgoing.values()) {
+            transfer.close();
+        }
+        this.outgoing.clear();
+        for (Incoming transfer : this.incoming.values()) {
+            transfer.suspend();
+        }
+        this.incoming.clear();
+    }
+
+    private static long key(long senderId, int transferId) {
+        return (senderId << 32) | (transferId & 0xffffffffL);
+    }
+
+    /**
+     * Removes any path from a received file name, so files are only ever
+     * written to the download directory.
+     */
+    private static String sanitize(String name) {
+        name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1);
+        while (name.startsWith(".")) {
+            name = name.substring(1);
+        }
+        return name.length() == 0 ? "file" : name;
+    }
+
+    /**
+     * Gets a file of the given name in the directory that does not exist yet,
+     * numbering it if needed.
+     */
+    private static File unusedFile(File directory, String name) {
+        File file = new File(directory, name);
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; file.exists(); ++i) {
+            file = new File(directory, base + " (" + i + ")" + extension);
+        }
+        return file;
+    }
+
+    /**
+     * A file we send.
+     */
+    static final class Outgoing {
+        private final int         transferId;
+        private final String      name;
+        private final Topic       topic;
+        private final FileChannel channel;
+        private final long        size;
+        private final int         chunkSize;
+        /**
+         * Permits for chunks in the send queue.
+         */
+        private final Semaphore   window;
+
+        private Outgoing(int transferId, String name, Topic topic, FileChannel channel, long size, int chunkSize) {
+            this.transferId = transferId;
+            this.name = name;
+            this.topic = topic;
+            this.channel = channel;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.window = new Semaphore(WINDOW);
+        }
+
+        int getTransferId() {
+            return this.transferId;
+        }
+
+        String getName() {
+            return this.name;
+        }
+
+        Topic getTopic() {
+            return this.topic;
+        }
+
+        long getSize() {
+            return this.size;
+        }
+
+        int getChunkSize() {
+            return this.chunkSize;
+        }
+
+        long getChunkCount() {
+            return (this.size + this.chunkSize - 1) / this.chunkSize;
+        }
+
+        Semaphore getWindow() {
+            return this.window;
+        }
+
+        /**
+         * Reads a chunk into a new FILE_CHUNK message.
+         * 
+         * @param senderId
+         *            our node ID
+         * @param index
+         *            of chunk
+         * @return The message.
+         * @throws IOException
+         *             If the chunk could not be read.
+         */
+        ChatMessage readChunk(long senderId, long index) throws IOException {
+            long position = index * this.chunkSize;
+            int length = (int) Math.min(this.chunkSize, this.size - position);
+            return ChatMessage.createFileChunkMessage(senderId, this.transferId, index, this.channel, position, length);
+        }
+
+        private void close() {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                ChatLog.warning("FileTransfers.Outgoing.close()", "Could not close file.", "file", this.name);
+            }
+        }
+    }
+
+    /**
+     * A file we receive.
+     */
+    static final class Incoming {
+        private final long        senderId;
+        private final int         transferId;
+        private final String      name;
+        private final Topic       topic;
+        private final long        size;
+        private final int         chunkSize;
+        private final int         chunkCount;
+        private final File        directory;
+        private final File        partial;
+        private final File        map;
+        /**
+         * Chunks written to the partial file.
+         */
+        private final BitSet      received;
+        private int               receivedCount;
+        private FileChannel       channel;
+        /**
+         * Time of the last chunk or request, in milliseconds.
+         */
+        private long              lastActivity;
+        /**
+         * Requests sent since the last chunk arrived.
+         */
+        private int               requests;
+
+        private Incoming(ChatMessage offer, File directory, long maximumSize) throws IOException {
+            this.senderId = offer.getSenderId();
+            this.transferId = offer.getTransferId();
+            this.name = sanitize(offer.getFileName());
+            this.topic = offer.getTopic();
+            this.size = offer.getFileSize();
+            this.chunkSize = offer.getChunkSize();
+            if ( this.size < 0 || this.chunkSize <= 0
+                    || (this.size + this.chunkSize - 1) / this.chunkSize > Integer.MAX_VALUE ) {
+                throw new IOException("Invalid file offer.");
+            }
+            if ( this.size > maximumSize ) {
+                throw new IOException("File of " + this.size + " bytes is larger than the maximum of " + maximumSize
+                        + ".");
+            }
+            this.chunkCount = (int) ((this.size + this.chunkSize - 1) / this.chunkSize);
+            this.directory = directory;
+            String base = this.name + "." + Long.toHexString(this.senderId) + "-"
+                    + Integer.toHexString(this.transferId) + PARTIAL_SUFFIX;
+            this.partial = new File(directory, base);
+            this.map = new File(directory, base + MAP_SUFFIX);
+            if ( !directory.isDirectory() && !directory.mkdirs() ) {
+                throw new IOException("Could not create directory " + directory + ".");
+            }
+            // A resumed file has already been given its space.
+            long needed = this.size - (this.partial.isFile() ? this.partial.length() : 0);
+            if ( needed > directory.getUsableSpace() ) {
+                throw new IOException("Not enough free space in " + directory + " for a file of " + this.size
+                        + " bytes.");
+            }
+            this.received = loadMap();
+            this.receivedCount = this.received.cardinality();
+            RandomAccessFile file = new RandomAccessFile(this.partial, "rw");
+            try {
+                file.setLength(this.size);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+            this.channel = file.getChannel();
+            this.lastActivity = System.currentTimeMillis();
+            this.requests = 0;
+        }
+
+        long getSenderId() {
+            return this.senderId;
+        }
+
+        int getTransferId() {
+            return this.transferId;
+        }
+
+        String getName() {
+            return this.name;
+        }
+
+        Topic getTopic() {
+            return this.topic;
+        }
+
+        long getSize() {
+            return this.size;
+        }
+
+        synchronized int getRequests() {
+            return this.requests;
+        }
+
+        /**
+         * @return true if part of the file was received before the offer.
+         */
+        synchronized boolean isResumed() {
+            return this.receivedCount > 0;
+        }
+
+        synchronized boolean isComplete() {
+            return this.receivedCount == this.chunkCount;
+        }
+
+        private synchronized boolean isStalled(long now) {
+            return this.channel != null && !isComplete() && now - this.lastActivity >= STALL_TIMEOUT;
+        }
+
+        /**
+         * Writes a received chunk to its place in the partial file.
+         * 
+         * @param chunk
+         *            the FILE_CHUNK
+         * @return true if the file is now complete.
+         * @throws IOException
+         *             If the chunk does not fit the offer, or could not be
+         *             written.
+         */
+        synchronized boolean write(ChatMessage chunk) throws IOException {
+            long index = chunk.getChunkIndex();
+            if ( this.channel == null || index >= this.chunkCount ) {
+                throw new IOException("Chunk " + index + " out of range.");
+            }
+            this.lastActivity = System.currentTimeMillis();
+            this.requests = 0;
+            if ( this.received.get((int) index) ) {
+                return isComplete();
+            }
+            long position = index * this.chunkSize;
+            byte[] octets = chunk.getChunkOctets();
+            int length = octets.length - ChatMessage.FILE_CHUNK_HEADER_LENGTH;
+            if ( length != Math.min(this.chunkSize, this.size - position) ) {
+                throw new IOException("Chunk " + index + " has wrong length " + length + ".");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(octets, ChatMessage.FILE_CHUNK_HEADER_LENGTH, length);
+            while (buffer.hasRemaining()) {
+                position += this.channel.write(buffer, position);
+            }
+            this.received.set((int) index);
+            ++this.receivedCount;
+            return isComplete();
+        }
+
+        /**
+         * Gets the ranges of chunks not yet received, and counts a request for
+         * them as sent.
+         * 
+         * @param maximumRanges
+         *            to give
+         * @return The first missing ranges, each of at most 65535 chunks.
+         */
+        synchronized ArrayList<SequenceRange> request(int maximumRanges) {
+            ArrayList<SequenceRange> ranges = new ArrayList<SequenceRange>();
+            int first = this.received.nextClearBit(0);
+            while (first < this.chunkCount && ranges.size() < maximumRanges) {
+                int end = Math.min(this.received.nextSetBit(first) < 0 ? this.chunkCount : this.received
+                        .nextSetBit(first), first + 0xffff);
+                ranges.add(new SequenceRange(first, end - first));
+                first = this.received.nextClearBit(end);
+            }
+            this.lastActivity = System.currentTimeMillis();
+            ++this.requests;
+            return ranges;
+        }
+
+        /**
+         * Moves the completed file into place under its own name, numbered if
+         * a file of that name exists.
+         * 
+         * @return The file.
+         * @throws IOException
+         *             If the file could not be moved.
+         */
+        synchronized File complete() throws IOException {
+            this.channel.force(false);
+            this.channel.close();
+            this.channel = null;
+            this.map.delete();
+            File target = unusedFile(this.directory, this.name);
+            Files.move(this.partial.toPath(), target.toPath());
+            return target;
+        }
+
+        /**
+         * Closes the partial file, keeping it and a map of the chunks
+         * received so the transfer can be resumed.
+         */
+        synchronized void suspend() {
+            if ( this.channel == null ) {
+                return;
+            }
+            try {
+                this.channel.force(false);
+                this.channel.close();
+                DataOutputStream out = new DataOutputStream(new FileOutputStream(this.map));
+                try {
+                    out.writeLong(this.size);
+                    out.writeInt(this.chunkSize);
+                    out.write(this.received.toByteArray());
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                ChatLog.error("FileTransfers.Incoming.suspend()", "Could not save partial file.", e, "file",
+                        this.partial);
+            }
+            this.channel = null;
+        }
+
+        /**
+         * Loads the map of a suspended transfer of this file, if there is
+         * one that matches the partial file.
+         */
+        private BitSet loadMap() {
+            if ( !this.partial.isFile() || !this.map.isFile() || this.partial.length() != this.size ) {
+                return new BitSet(this.chunkCount);
+            }
+            try {
+                DataInputStream in = new DataInputStream(new FileInputStream(this.map));
+                try {
+                    if ( in.readLong() != this.size || in.readInt() != this.chunkSize ) {
+                        return new BitSet(this.chunkCount);
+                    }
+                    byte[] bits = new byte[(int) this.map.length() - 12];
+                    in.readFully(bits);
+                    BitSet set = BitSet.valueOf(bits);
+                    if ( set.length() > this.chunkCount ) {
+                        return new BitSet(this.chunkCount);
+                    }
+                    return set;
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                ChatLog.warning("FileTransfers.Incoming.loadMap()", "Could not read map of partial file.", "file",
+                        this.map, "reason", e.getMessage());
+                return new BitSet(this.chunkCount);
+            }
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package no.ntnu.acp142.chatapp;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+
+import javax.naming.NameAlreadyBoundException;
+
+import no.ntnu.acp142.Configuration;
+import no.ntnu.acp142.Log;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Entry point for running pmulchat without a user interface, e.g. as a relay
+ * or logger on a server. Wires up Networking, TopicModel and ChatModel exactly
+ * like MainView does, but never touches Swing or AWT, and takes its commands
+ * from standard input instead.<br>
+ * Input is read one line at a time. Lines starting with '/' are commands, any
+ * other line is sent as a message to the current topic. Output is written one
+ * event per line, as tab separated fields with the event kind first:
+ * <table border=1>
+ * <tr>
+ * <td>Command</td>
+ * <td>Action taken</td>
+ * </tr>
+ * <tr>
+ * <td>/join [topic]</td>
+ * <td>Switches to the topic, creating it if dynamic topics are in use.</td>
+ * </tr>
+ * <tr>
+ * <td>/topics</td>
+ * <td>Lists all known topics.</td>
+ * </tr>
+ * <tr>
+ * <td>/users</td>
+ * <td>Lists the subscribers of the current topic.</td>
+ * </tr>
+ * <tr>
+ * <td>/nick [username]</td>
+ * <td>Changes username.</td>
+ * </tr>
+ * <tr>
+ * <td>/search [words]</td>
+ * <td>Lists the messages in the current chat holding any of the words, best
+ * match first.</td>
+ * </tr>
+ * <tr>
+ * <td>/sendfile [path]</td>
+ * <td>Sends the file to the subscribers of the current topic. Files offered
+ * to topics we are in are saved to
+ * ChatConfigurationModel.fileTransferDirectory, if no larger than
+ * ChatConfigurationModel.maximumFileTransferSize.</td>
+ * </tr>
+ * <tr>
+ * <td>/emcon on|off</td>
+ * <td>Enters or leaves EMCON.</td>
+ * </tr>
+ * <tr>
+ * <td>/nodes</td>
+ * <td>Prints the number of nodes known to be online.</td>
+ * </tr>
+ * <tr>
+ * <td>/quit</td>
+ * <td>Shuts down networking and exits.</td>
+ * </tr>
+ * </table>
+ * 
+ * @author Thomas Martin Schmid
+ */
+public class HeadlessChat implements PropertyChangeListener {
+
+    /**
+     * Maximum number of hits listed by /search.
+     */
+    private static final int  MAX_SEARCH_HITS = 10;
+
+    /**
+     * Output of the line protocol.
+     */
+    private final PrintStream out;
+    /**
+     * Networking instance in use
+     */
+    private final Networking  networking;
+    /**
+     * TopicModel in use
+     */
+    private final TopicModel  topicModel;
+    /**
+     * ChatModel in use
+     */
+    private final ChatModel   chatModel;
+
+    /**
+     * Creates the headless front end and starts listening on the models.
+     * 
+     * @param networking
+     *            instance to use for network transmission
+     * @param topicModel
+     *            that handles topics
+     * @param chatModel
+     *            that handles chats
+     * @param out
+     *            stream to write events to
+     */
+    public HeadlessChat(Networking networking, TopicModel topicModel, ChatModel chatModel, PrintStream out) {
+        this.networking = networking;
+        this.topicModel = topicModel;
+        this.chatModel = chatModel;
+        this.out = out;
+        chatModel.addPropertyChangeListener(this);
+        topicModel.addPropertyChangeListener(this);
+    }
+
+    /**
+     * Starts pmulchat without user interface. Takes the same arguments as
+     * MainView.main.
+     * 
+     * @param args
+     *            command line arguments
+     */
+    public static void main(String[] args) {
+        // Make sure nothing tries to open a display behind our back.
+        System.setProperty("java.awt.headless", "true");
+
+        Log.setLogLevel(Log.LOG_LEVEL_NORMAL);
+
+        // Get the model of the chat settings
+        ChatConfigurationModel chatConfigModel = ChatConfigurationModel.getDefault();
+
+        CommandLineOptions options = CommandLineOptions.parse(args);
+        if ( options == null ) {
+            return;
+        }
+        run(options, chatConfigModel);
+    }
+
+    /**
+     * Starts networking and processes commands from standard input until it
+     * is closed or /quit is given. Networking keeps running after standard
+     * input is closed, so a daemon may be started with no input at all.
+     * 
+     * @param options
+     *            parsed command line options
+     * @param chatConfigModel
+     *            configuration model already in use
+     */
+    static void run(CommandLineOptions options, ChatConfigurationModel chatConfigModel) {
+        // Create the chat model
+        ChatModel chatModel = new ChatModel();
+        // Create the networking instance
+        Networking networking = new Networking(chatModel);
+        networking.setEmcon(options.isInEmcon());
+        // Create the topic model
+        TopicModel topicModel = new TopicModel(networking, options.getTopicList());
+        // Start listening
+        int preId = Configuration.getNodeId();
+        try {
+            networking.initialize(topicModel, chatConfigModel);
+        } catch (IOException e) {
+            ChatLog.error("HeadlessChat.run()", "Could not start networking.", e);
+            return;
+        }
+        if ( options.hasCustomNodeId() ) {
+            Configuration.setNodeId(preId);
+        }
+        // Reset the Admin chat now that Node ID is correct
+        chatModel.getCurrentChat().resetSelf(null);
+
+        HeadlessChat chat = new HeadlessChat(networking, topicModel, chatModel, System.out);
+        chat.event("READY", Long.toString(chatModel.getCurrentChat().getSelf().getNodeId()));
+        // Rejoin the topic we were in before restarting, if any.
+        if ( networking.getRestoredTopic() != null ) {
+            chat.joinTopic(networking.getRestoredTopic());
+        }
+        try {
+            if ( chat.processCommands(new BufferedReader(new InputStreamReader(System.in, "UTF-8"))) ) {
+                System.exit(0);
+            }
+        } catch (IOException e) {
+            ChatLog.error("HeadlessChat.run()", "Could not read standard input.", e);
+        }
+    }
+
+    /**
+     * Reads and handles lines from the given reader until end of stream or
+     * /quit.
+     * 
+     * @param in
+     *            reader to take lines from
+     * @return true if /quit was given, false at end of stream.
+     * @throws IOException
+     *             if reading fails
+     */
+    public boolean processCommands(BufferedReader in) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if ( !handleLine(line.trim()) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Handles a single line of input.
+     * 
+     * @param line
+     *            to handle
+     * @return false if the application should stop reading input.
+     */
+    public boolean handleLine(String line) {
+        if ( line.length() == 0 ) {
+            return true;
+        }
+        if ( line.charAt(0) != '/' ) {
+            sendMessage(line);
+            return true;
+        }
+        String[] parts = line.split(" ", 2);
+        String argument = parts.length > 1 ? parts[1].trim() : "";
+        switch ( parts[0] ) {
+        case "/join":
+            joinTopic(argument);
+            break;
+        case "/topics":
+            for (Topic t : this.topicModel.getTopicList()) {
+                event("TOPIC", t.getName());
+            }
+            break;
+        case "/users":
+            Topic current = this.chatModel.getCurrentChat().getTopic();
+            if ( current == null ) {
+                event("ERROR", "Join a topic first");
+                break;
+            }
+            for (Subscriber s : current.getSubscriberList()) {
+                event("USER", Long.toString(s.getNodeId()), s.getUserName());
+            }
+            break;
+        case "/nick":
+        case "/name":
+            if ( argument.length() == 0 ) {
+                event("ERROR", "Usage: /nick [username]");
+                break;
+            }
+            this.chatModel.getCurrentChat().resetSelf(argument);
+            event("INFO", "Username changed to " + argument);
+            break;
+        case "/search":
+            if ( argument.length() == 0 ) {
+                event("ERROR", "Usage: /search [words]");
+                break;
+            }
+            for (Message hit : this.chatModel.getCurrentChat().search(argument, MAX_SEARCH_HITS)) {
+                event("HIT", hit.getSender().getUserName(), hit.getContent());
+            }
+            break;
+        case "/sendfile":
+            File file = new File(argument);
+            if ( argument.length() == 0 || !file.isFile() ) {
+                event("ERROR", "Usage: /sendfile [path]");
+                break;
+            }
+            if ( this.networking.sendFile(file) ) {
+                event("INFO", "Sending file " + file.getName());
+            } else {
+                event("ERROR", "Could not send file " + file.getName());
+            }
+            break;
+        case "/emcon":
+            this.networking.setEmcon(argument.equals("on"));
+            event("INFO", "EMCON " + (argument.equals("on") ? "on" : "off"));
+            break;
+        case "/nodes":
+            event("NODES", Integer.toString(this.networking.getNumberOfNodes()));
+            break;
+        case "/quit":
+            this.networking.shutdown();
+            event("BYE");
+            return false;
+        default:
+            event("ERROR", "Unknown command " + parts[0]);
+            break;
+        }
+        return true;
+    }
+
+    /**
+     * Switches to the topic with the given name, creating it if it does not
+     * exist and dynamic topics are in use. Mirrors the topic selection done by
+     * ChatView and MainView.
+     * 
+     * @param name
+     *            of topic to join
+     */
+    private void joinTopic(String name) {
+        if ( name.length() == 0 ) {
+            event("ERROR", "Usage: /join [topic]");
+            return;
+        }
+        Topic topic = null;
+        synchronized (this.topicModel) {
+            for (int i = 0; i < this.topicModel.getSize(); ++i) {
+                if ( this.topicModel.getElementAt(i).getName().toLowerCase().equals(name.toLowerCase()) ) {
+                    topic = this.topicModel.selectTopic(i);
+                    if ( topic == null ) {
+                        // Already selected.
+                        return;
+                    }
+                    break;
+                }
+            }
+        }
+        if ( topic == null ) {
+            if ( !this.networking.getConfiguration().useDynamicTopics() ) {
+                event("ERROR", "No such topic " + name);
+                return;
+            }
+            try {
+                topic = this.topicModel.createNewTopic(name);
+            } catch (NameAlreadyBoundException e) {
+                event("ERROR", "Topic " + name + " could not be created");
+                return;
+            }
+            if ( topic == null ) {
+                return;
+            }
+        }
+        this.chatModel.setCurrentChat(topic);
+    }
+
+    /**
+     * Sends a message to the current topic.
+     * 
+     * @param text
+     *            to send
+     */
+    private void sendMessage(String text) {
+        if ( this.chatModel.getCurrentChat().getTopic() == null ) {
+            event("ERROR", "Join a topic to send messages");
+            return;
+        }
+        Message message = new Message(this.chatModel.getCurrentChat().getSelf(), text);
+        if ( !this.networking.trySend(message) ) {
+            event("ERROR", "Send queue full, message not sent");
+            return;
+        }
+        this.chatModel.addMessage(message);
+    }
+
+    /**
+     * Writes one event line. Fields are separated by tabs, and any tabs or line
+     * breaks within the fields are replaced by spaces.
+     * 
+     * @param kind
+     *            of event
+     * @param fields
+     *            of the event
+     */
+    private void event(String kind, String... fields) {
+        StringBuilder line = new StringBuilder(kind);
+        for (String field : fields) {
+            line.append('\t');
+            line.append(field == null ? "" : field.replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+        }
+        this.out.println(line.toString());
+    }
+
+    @Override
+    public void propertyChange(PropertyChangeEvent evt) {
+        String name = evt.getPropertyName();
+        if ( name.equals(ChatModel.ADD_MESSAGE_PROPERTY) ) {
+            Message message = (Message) evt.getNewValue();
+            if ( message.getSender() == this.chatModel.getCurrentChat().getSelf() ) {
+                return; // Don't echo our own input.
+            }
+            event("MSG", this.chatModel.getCurrentChat().toString(), message.getSender().getUserName(),
+                    message.getContent());
+        } else if ( name.equals(ChatModel.CURRENT_CHAT_PROPERTY) ) {
+            event("JOINED", evt.getNewValue().toString());
+        } else if ( name.equals(ChatModel.SEND_STATE_PROPERTY) ) {
+            Topic topic = (Topic) evt.getNewValue();
+            event("SEND_STATE", topic.getName(), this.chatModel.getSendState(topic).toString());
+        } else if ( name.equals(TopicModel.ADD_EXISTING_TOPIC_PROPERTY)
+                || name.equals(TopicModel.CREATE_NEW_TOPIC_PROPERTY) ) {
+            event("NEW_TOPIC", evt.getNewValue().toString());
+        } else if ( name.equals(TopicModel.REMOVE_TOPIC_FROM_NETWORK_PROPERTY) ) {
+            event("REMOVED_TOPIC", evt.getNewValue().toString());
+        } else if ( name.equals(TopicModel.TOPICS_LOADED_PROPERTY) ) {
+            event("TOPICS_LOADED", evt.getNewValue().toString());
+        }
+    }
+}
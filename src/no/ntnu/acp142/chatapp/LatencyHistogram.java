@@ -0,0 +1,195 @@
+package no.ntnu.acp142.chatapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Lock free histogram of non-negative values, in the style of HdrHistogram.
+ * Values are counted in log-linear buckets: each power of two is split into
+ * SUB_BUCKETS equally wide buckets, which keeps the relative error of any
+ * reported percentile below 1 / SUB_BUCKETS while covering the whole range of
+ * a long in a few hundred counters. Recording is a single atomic increment and
+ * never allocates, so it is cheap enough to leave on permanently.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class LatencyHistogram {
+
+    /**
+     * Number of bits used to split each power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 3;
+    /**
+     * Number of buckets per power of two.
+     */
+    private static final int SUB_BUCKETS     = 1 << SUB_BUCKET_BITS;
+    /**
+     * Total number of buckets needed to cover all positive longs.
+     */
+    private static final int BUCKETS         = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    /**
+     * Count per bucket.
+     */
+    private final AtomicLongArray counts;
+    /**
+     * Total number of recorded values.
+     */
+    private final LongAdder       count;
+    /**
+     * Sum of all recorded values.
+     */
+    private final LongAdder       sum;
+    /**
+     * Largest recorded value.
+     */
+    private final AtomicLong      max;
+
+    /**
+     * Creates an empty histogram.
+     */
+    LatencyHistogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.count = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Records a value. Negative values are counted as 0.
+     * 
+     * @param value
+     *            to record
+     */
+    void record(long value) {
+        if ( value < 0 ) {
+            value = 0;
+        }
+        this.counts.incrementAndGet(bucketOf(value));
+        this.count.increment();
+        this.sum.add(value);
+        long currentMax = this.max.get();
+        while (value > currentMax && !this.max.compareAndSet(currentMax, value)) {
+            currentMax = this.max.get();
+        }
+    }
+
+    /**
+     * Gets the number of recorded values.
+     * 
+     * @return number of values recorded.
+     */
+    long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * Gets the mean of all recorded values.
+     * 
+     * @return the mean, or 0 if nothing was recorded.
+     */
+    double getMean() {
+        long n = this.count.sum();
+        return n == 0 ? 0 : (double) this.sum.sum() / (double) n;
+    }
+
+    /**
+     * Gets the largest recorded value.
+     * 
+     * @return the maximum value.
+     */
+    long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Gets the value at the given percentile. The result is the upper bound of
+     * the bucket the percentile falls into, capped at the maximum recorded
+     * value.
+     * 
+     * @param percentile
+     *            in the range [0, 100]
+     * @return value at percentile, or 0 if nothing was recorded.
+     */
+    long getValueAtPercentile(double percentile) {
+        long total = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; ++i) {
+            snapshot[i] = this.counts.get(i);
+            total += snapshot[i];
+        }
+        if ( total == 0 ) {
+            return 0;
+        }
+        long rank = (long) Math.ceil((percentile / 100.0) * total);
+        if ( rank < 1 ) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += snapshot[i];
+            if ( seen >= rank ) {
+                return Math.min(upperBoundOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Gets the bucket a value is counted in.
+     */
+    private static int bucketOf(long value) {
+        if ( value < SUB_BUCKETS ) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Gets the largest value counted in the given bucket.
+     */
+    private static long upperBoundOf(int bucket) {
+        if ( bucket < SUB_BUCKETS ) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
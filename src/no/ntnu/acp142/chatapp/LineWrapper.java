@@ -0,0 +1,134 @@
+package no.ntnu.acp142.chatapp;
+
+import java.awt.FontMetrics;
+import java.util.ArrayList;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Wraps message text into lines that fit a given width when drawn in a given
+ * font. Messages are sent and stored as the text the user wrote, and only
+ * wrapped when shown, so the wrapping follows the width of the chat area. See
+ * Message.getLines, which caches the result.<br>
+ * Lines are broken at newlines, and at the last space that fits. Words wider
+ * than a line are split. "&lt;br&gt;" is taken as a newline as well, since
+ * older versions sent their messages wrapped with it.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class LineWrapper {
+
+    /**
+     * Line break inserted by older versions when sending.
+     */
+    static final String LEGACY_BREAK = "<br>";
+
+    private LineWrapper() {
+    }
+
+    /**
+     * Wraps the given text. Runs in time linear in the length of the text.
+     * 
+     * @param text
+     *            to wrap
+     * @param metrics
+     *            of the font the text is drawn in
+     * @param firstWidth
+     *            width available to the first line, in pixels
+     * @param width
+     *            width available to all other lines, in pixels
+     * @return The lines, without the spaces and newlines they were broken at.
+     */
+    static ArrayList<String> wrap(String text, FontMetrics metrics, int firstWidth, int width) {
+        ArrayList<String> lines = new ArrayList<String>();
+        int start = 0;
+        int limit = firstWidth;
+        int lineWidth = 0;
+        // Last space on the line, and the width of what follows it.
+        int lastSpace = -1;
+        int widthAfterSpace = 0;
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if ( c == '\n' || text.startsWith(LEGACY_BREAK, i) ) {
+                lines.add(trimEnd(text.substring(start, i)));
+                i += c == '\n' ? 1 : LEGACY_BREAK.length();
+                start = i;
+                limit = width;
+                lineWidth = 0;
+                lastSpace = -1;
+                continue;
+            }
+            int codePoint = text.codePointAt(i);
+            int charWidth = c == '\r' ? 0 : metrics.charWidth(codePoint);
+            if ( lineWidth + charWidth > limit && i > start ) {
+                limit = width;
+                if ( c == ' ' ) {
+                    // Break at this very space.
+                    lines.add(text.substring(start, i));
+                    start = ++i;
+                    lineWidth = 0;
+                    lastSpace = -1;
+                    continue;
+                } else if ( lastSpace > start ) {
+                    lines.add(text.substring(start, lastSpace));
+                    start = lastSpace + 1;
+                    lineWidth = widthAfterSpace;
+                } else {
+                    lines.add(text.substring(start, i));
+                    start = i;
+                    lineWidth = 0;
+                }
+                lastSpace = -1;
+            }
+            lineWidth += charWidth;
+            if ( c == ' ' ) {
+                lastSpace = i;
+                widthAfterSpace = 0;
+            } else {
+                widthAfterSpace += charWidth;
+            }
+            i += Character.charCount(codePoint);
+        }
+        lines.add(trimEnd(text.substring(start)));
+        return lines;
+    }
+
+    /**
+     * Removes a carriage return ending the line, if any.
+     */
+    private static String trimEnd(String line) {
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+}
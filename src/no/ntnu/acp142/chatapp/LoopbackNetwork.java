@@ -0,0 +1,287 @@
+package no.ntnu.acp142.chatapp;
+
+import no.ntnu.acp142.Acp142Message;
+import no.ntnu.acp142.ILibjpmul;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Carries messages between nodes in one process, in place of libjpmul. Each
+ * node connects an endpoint, an ILibjpmul whose send puts the message in the
+ * inbox of every connected node among its destinations, and whose receive
+ * takes the next message from its own inbox. Messages that expire while
+ * waiting there are dropped. An endpoint in EMCON holds back what it is given
+ * to send until it leaves EMCON.<br>
+ * The network also carries the broadcasts of the nodes, see
+ * getBroadcastChannels, so that nodes find each other without any traffic
+ * leaving the process. Used by VirtualNodes.
+ * 
+ * @author Thomas Martin Schmid
+ */
+public final class LoopbackNetwork {
+
+    /**
+     * Longest time receive waits before returning null, as libjpmul does when
+     * nothing arrives, so Networking keeps up its periodic work.
+     */
+    private static final long                           RECEIVE_TIMEOUT = 1000;
+
+    /**
+     * Put in the inbox of a broadcast channel to wake up its receiver when it
+     * is closed.
+     */
+    private static final byte[]                         CLOSED          = new byte[0];
+
+    private final ConcurrentHashMap<Integer, Endpoint> endpoints;
+    private final AtomicLong                           delivered;
+    private final AtomicLong                           expired;
+    private final CopyOnWriteArraySet<Channel>         channels;
+    private final BroadcastChannel.Factory             channelFactory;
+
+    /**
+     * Creates a network with no nodes connected.
+     */
+    public LoopbackNetwork() {
+        this.endpoints = new ConcurrentHashMap<Integer, Endpoint>();
+        this.delivered = new AtomicLong();
+        this.expired = new AtomicLong();
+        this.channels = new CopyOnWriteArraySet<Channel>();
+        this.channelFactory = new BroadcastChannel.Factory() {
+            public BroadcastChannel open(ChatConfiguration config) {
+                Channel channel = new Channel();
+                channels.add(channel);
+                return channel;
+            }
+        };
+    }
+
+    /**
+     * Connects a node to the network.
+     * 
+     * @param nodeId
+     *            of the node. Messages to this ID are put in its inbox.
+     * @return The endpoint for the node to use in place of libjpmul.
+     */
+    public ILibjpmul connect(int nodeId) {
+        Endpoint endpoint = new Endpoint(nodeId);
+        this.endpoints.put(nodeId, endpoint);
+        return endpoint;
+    }
+
+    /**
+     * Disconnects a node. Messages to it are dropped from now on.
+     * 
+     * @param nodeId
+     *            of the node
+     */
+    public void disconnect(int nodeId) {
+        this.endpoints.remove(nodeId);
+    }
+
+    /**
+     * Gets what opens broadcast channels on this network, for Networking to
+     * use in place of the broadcast group. A broadcast is received on every
+     * other open channel. The broadcast group and port are not used, as the
+     * network is a single broadcast domain.
+     * 
+     * @return The factory, shared by all nodes.
+     */
+    public BroadcastChannel.Factory getBroadcastChannels() {
+        return this.channelFactory;
+    }
+
+    /**
+     * @return Number of messages put in inboxes, counting each destination.
+     */
+    public long getDelivered() {
+        return this.delivered.get();
+    }
+
+    /**
+     * @return Number of messages dropped as they expired in an inbox.
+     */
+    public long getExpired() {
+        return this.expired.get();
+    }
+
+    /**
+     * Puts the message in the inbox of each of its destinations that is
+     * connected, except the sender's own.
+     */
+    private void deliver(int sourceId, Acp142Message message) {
+        List<Integer> destinations = message.getDestinations();
+        if ( destinations == null ) {
+            return;
+        }
+        for (int id : destinations) {
+            Endpoint endpoint = this.endpoints.get(id);
+            if ( endpoint != null && id != sourceId ) {
+                endpoint.inbox.add(message);
+                this.delivered.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The broadcast channel of one node.
+     */
+    private final class Channel implements BroadcastChannel {
+        private final LinkedBlockingQueue<byte[]> inbox;
+
+        private Channel() {
+            this.inbox = new LinkedBlockingQueue<byte[]>();
+        }
+
+        @Override
+        public void send(byte[] data) throws IOException {
+            if ( !channels.contains(this) ) {
+                throw new IOException("Broadcast channel is closed.");
+            }
+            for (Channel channel : channels) {
+                if ( channel != this ) {
+                    channel.inbox.add(data.clone());
+                }
+            }
+        }
+
+        @Override
+        public int receive(byte[] buffer) throws IOException {
+            byte[] data;
+            try {
+                data = this.inbox.take();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for broadcasts.");
+            }
+            if ( data == CLOSED ) {
+                // Leave it for any other thread waiting.
+                this.inbox.add(CLOSED);
+                throw new IOException("Broadcast channel is closed.");
+            }
+            int length = Math.min(data.length, buffer.length);
+            System.arraycopy(data, 0, buffer, 0, length);
+            return length;
+        }
+
+        @Override
+        public void close() {
+            if ( channels.remove(this) ) {
+                this.inbox.add(CLOSED);
+            }
+        }
+    }
+
+    /**
+     * The libjpmul of one node.
+     */
+    private final class Endpoint implements ILibjpmul {
+        private final int                                 nodeId;
+        private final LinkedBlockingQueue<Acp142Message> inbox;
+        /**
+         * Messages given to send while in EMCON, null when not in EMCON.
+         */
+        private ArrayList<Acp142Message>                  held;
+
+        private Endpoint(int nodeId) {
+            this.nodeId = nodeId;
+            this.inbox = new LinkedBlockingQueue<Acp142Message>();
+            this.held = null;
+        }
+
+        @Override
+        public Acp142Message receive() {
+            long deadline = System.currentTimeMillis() + RECEIVE_TIMEOUT;
+            try {
+                long wait;
+                while ((wait = deadline - System.currentTimeMillis()) > 0) {
+                    Acp142Message message = this.inbox.poll(wait, TimeUnit.MILLISECONDS);
+                    if ( message == null ) {
+                        break;
+                    }
+                    long expiry = message.getExpiryTime();
+                    if ( expiry > 0 && expiry * 1000 < System.currentTimeMillis() ) {
+                        expired.incrementAndGet();
+                        continue;
+                    }
+                    return message;
+                }
+            } catch (InterruptedException e) {
+                ChatLog.error("LoopbackNetwork.receive()", "Interrupted waiting for messages.", e, "node",
+                        this.nodeId);
+            }
+            return null;
+        }
+
+        @Override
+        public void send(Acp142Message message) {
+            synchronized (this) {
+                if ( this.held != null ) {
+                    this.held.add(message);
+                    return;
+                }
+            }
+            deliver(this.nodeId, message);
+        }
+
+        @Override
+        public synchronized void enterEmcon() {
+            if ( this.held == null ) {
+                this.held = new ArrayList<Acp142Message>();
+            }
+        }
+
+        @Override
+        public void leaveEmcon() {
+            ArrayList<Acp142Message> messages;
+            synchronized (this) {
+                messages = this.held;
+                this.held = null;
+            }
+            if ( messages != null ) {
+                for (Acp142Message message : messages) {
+                    deliver(this.nodeId, message);
+                }
+            }
+        }
+    }
+}
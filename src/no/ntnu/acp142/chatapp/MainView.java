@@ -9,10 +9,9 @@ import java.awt.event.KeyListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 
 import javax.naming.NameAlreadyBoundException;
 import javax.swing.JFileChooser;
@@ -96,6 +95,9 @@ public class MainView extends JFrame implements ActionListener, KeyListener {
     // MAX CHARACTERS PARAMETER
     private static final int MAX_CHARACTERS = 65535;
 
+    // Maximum number of hits shown by /search
+    private static final int MAX_SEARCH_HITS = 10;
+
     // Boolean that checks if configuration windows is open.
     private boolean isOpen;
 
@@ -243,7 +245,7 @@ public class MainView extends JFrame implements ActionListener, KeyListener {
             // chatConfigPanel and configPanel
             configView = new JFrame("Configuration");
             configPanel = new ConfigPanel();
-            chatConfigPanel = new ChatConfigPanel(this);
+            chatConfigPanel = new ChatConfigPanel(this, chatConfigurationModel);
             tabbedPane = new JTabbedPane();
 
             // Sets scrollPane to the configPanel
@@ -356,7 +358,8 @@ public class MainView extends JFrame implements ActionListener, KeyListener {
             try {
                 configPanel.applyChangesConfiguration();
             } catch (UnknownHostException e1) {
-                e1.printStackTrace();
+                ChatLog.error("MainView.actionPerformed()",
+                        "Could not apply configuration, unknown host.", e1);
             }
         }
 
@@ -401,14 +404,16 @@ public class MainView extends JFrame implements ActionListener, KeyListener {
                             Configuration.save(fileChooser.getSelectedFile()
                                     .getAbsolutePath() + ".conf");
                         } catch (IOException e1) {
-                            e1.printStackTrace();
+                            ChatLog.error("MainView.actionPerformed()",
+                                    "Could not write configuration file.", e1);
                         }
                     } else {
                         try {
                             Configuration.save(fileChooser.getSelectedFile()
                                     .getAbsolutePath() + ".conf");
                         } catch (IOException e1) {
-                            e1.printStackTrace();
+                            ChatLog.error("MainView.actionPerformed()",
+                                    "Could not write configuration file.", e1);
                         }
                     }
                 }
@@ -424,7 +429,8 @@ public class MainView extends JFrame implements ActionListener, KeyListener {
                             .getAbsolutePath());
                 } catch (NumberFormatException | IndexOutOfBoundsException
                         | IOException e1) {
-                    e1.printStackTrace();
+                    ChatLog.error("MainView.actionPerformed()",
+                            "Could not load configuration file.", e1);
                 }
                 configPanel.setModelConfiguration();
             }
@@ -453,230 +459,19 @@ public class MainView extends JFrame implements ActionListener, KeyListener {
         // Create the configuration model
         ConfigurationModel configModel = new ConfigurationModel();
 
-        // Create the chat configuration model
-        ChatConfigurationModel chatConfigModel = new ChatConfigurationModel();
+        // Get the model of the chat settings
+        ChatConfigurationModel chatConfigModel = ChatConfigurationModel.getDefault();
 
         // Handle command line arguments
-        boolean inEmcon = false;
-        boolean useStaticTopics = false;
-        String topicList = null;
-        boolean customNodeId = false;
-
-        for (int i = 0; i < args.length; ++i) {
-            switch (args[i]) {
-            case "-c":
-                // ACP142 Configuration file supplied.
-                try {
-                    int pre = Configuration.getNodeId();
-                    Configuration.load(args[++i]);
-                    if (pre != Configuration.getNodeId()) {
-                        customNodeId = true;
-                    }
-                } catch (FileNotFoundException e) {
-                    System.out
-                            .println("The supplied configuration file was not found.");
-                } catch (IOException | IndexOutOfBoundsException
-                        | NumberFormatException e) {
-                    System.out
-                            .println("Could not load supplied configuration file. Exception caught: ");
-                    e.printStackTrace();
-                }
-                break;
-            case "-t":
-                // Topic list file supplied.
-                topicList = args[++i];
-                break;
-            case "-s":
-                // Use static topics (complain if no topic list is given!).
-                useStaticTopics = true;
-                ChatConfigurationModel.setUseDynamicMulticast(false);
-                break;
-            case "-p":
-                // Parameter list supplied.
-                while (i < args.length - 1) {
-                    String param = args[++i];
-                    boolean breakMe = false;
-                    switch (param) {
-                    // ACP142 parameters
-                    case "WAIT_FOR_REJECT_TIME":
-                        Configuration.setWaitForRejectTime(Integer
-                                .valueOf(args[++i]));
-                        break;
-                    case "ANNOUNCE_DELAY":
-                        Configuration.setAnnounceDelay(Integer
-                                .valueOf(args[++i]));
-                        break;
-                    case "ANNOUNCE_CT":
-                        Configuration.setAnnounceCt(Integer.valueOf(args[++i]));
-                        break;
-                    case "ACK_RE-TRANSMISSION_TIME":
-                        Configuration.setAckRetransmissionTime(Integer
-                                .valueOf(args[++i]));
-                        break;
-                    case "BACK-OFF_FACTOR":
-                        Configuration.setBackoffFactor(Double
-                                .valueOf(args[++i]));
-                        break;
-                    case "EMCON_RTC":
-                        Configuration.setEmconRtc(Integer.valueOf(args[++i]));
-                        break;
-                    case "EMCON_RTI":
-                        Configuration.setEmconRti(Integer.valueOf(args[++i]));
-                        break;
-                    case "MM":
-                        Configuration.setMm(Integer.valueOf(args[++i]));
-                        break;
-                    case "ACK_PDU_TIME":
-                        Configuration.setAckPduTime(Integer.valueOf(args[++i]));
-                        break;
-                    case "GG":
-                        Configuration.setGg(args[++i]);
-                        break;
-                    case "TPORT":
-                        Configuration.setTPort(Integer.valueOf(args[++i]));
-                        break;
-                    case "RPORT":
-                        Configuration.setRPort(Integer.valueOf(args[++i]));
-                        break;
-                    case "DPORT":
-                        Configuration.setDPort(Integer.valueOf(args[++i]));
-                        break;
-                    case "APORT":
-                        Configuration.setAPort(Integer.valueOf(args[++i]));
-                        break;
-                    case "MULTICAST_START_RANGE":
-                        Configuration.setMulticastStartRange(args[++i]);
-                        break;
-                    case "MULTICAST_END_RANGE":
-                        Configuration.setMulticastEndRange(args[++i]);
-                        break;
-                    case "PDU_MAX_SIZE":
-                        Configuration.setPduMaxSize(Integer.valueOf(args[++i]));
-                        break;
-                    case "PDU_EXPIRY_TIME":
-                        Configuration.setUndefinedPduExpiryTime(Integer
-                                .valueOf(args[++i]));
-                        break;
-                    case "NODE_ID":
-                        Configuration.setNodeId((int) Long.valueOf(args[++i])
-                                .longValue());
-                        customNodeId = true;
-                        break;
-                    case "ACK_DELAY_UPPER_BOUND":
-                        Configuration.setAckDelayUpperBound(Long
-                                .valueOf(args[++i]));
-                        break;
-                    case "BIND_INTERFACE_ADDRESS":
-                        try {
-                            Configuration.setBindInterfaceAddress(InetAddress
-                                    .getByName(args[++i]));
-                        } catch (UnknownHostException e) {
-                            System.out
-                                    .println("Bind interface address could not be resolved: "
-                                            + args[i]);
-                        }
-                        break;
-                    // ChatApp settings
-                    case "BROADCAST_GROUP":
-                        ChatConfigurationModel.setBroadcastGroup(args[++i]);
-                        break;
-                    case "BROADCAST_PORT":
-                        ChatConfigurationModel.setBroadcastPort(Short
-                                .valueOf(args[++i]));
-                        break;
-                    case "MAXIMUM_WAIT_FOR_RESPONSE_ON_DELAYED_SEND":
-                        ChatConfigurationModel
-                                .setMaximumWaitForResponseOnDelayedSend(Long
-                                        .valueOf(args[++i]));
-                        break;
-                    case "DEFAULT_TIME_TO_LIVE":
-                        ChatConfigurationModel.setDefaultTimeToLive(Long
-                                .valueOf(args[++i]));
-                        break;
-                    case "WAIT_FOR_IN_USE_RESPONSE":
-                        ChatConfigurationModel.setWaitForInUseResponse(Long
-                                .valueOf(args[++i]));
-                        break;
-                    default:
-                        // Unknown parameter, we are done with the list. Step i
-                        // back once, then break.
-                        --i;
-                        breakMe = true;
-                        break;
-                    }
-
-                    if (breakMe) {
-                        break;
-                    }
-                }
-                break;
-            case "-e":
-                // Start in EMCON mode.
-                inEmcon = true;
-                break;
-            case "-v":
-                // Verbose mode wanted
-                Log.setLogLevel(Log.LOG_LEVEL_VERBOSE);
-                break;
-            case "-d":
-                // Debug mode wanted
-                Log.setLogLevel(Log.LOG_LEVEL_DEBUG);
-                break;
-            case "-q":
-                // Quiet mode wanted
-                Log.setLogLevel(Log.LOG_LEVEL_QUIET);
-                break;
-            case "-g":
-                // Persistant dynamic multicast groups
-                // We can set this blindly since we check for both the use of
-                // this and dynamic multicast in Networking
-                ChatConfigurationModel.setUsePersistantGroups(true);
-                break;
-            case "-h":
-            case "--help":
-                // Help wanted
-                System.out.println("\nChatApp for ACP142 - v0.1a");
-                System.out
-                        .println("Usage: java -jar chatapp.jar [option <arguments>]");
-                System.out.println("\nOptions:");
-                System.out
-                        .println("-c [file path] \tLoad ACP142 configuration from the given file on startup.");
-                System.out
-                        .println("-t [file path] \tLoad a list of topics from the given file on startup.");
-                System.out
-                        .println("-s \t\tUse static multicast & topics. Only sensible used together with -t");
-                System.out.println("\t\tand multicast groups supplied in -c");
-                System.out.println("\t\tfile on startup.");
-                System.out
-                        .println("-e \t\tStart the application in EMCON mode.");
-                System.out
-                        .println("-g \t\tUse persistant dynamic multicast groups. Only makes sense without -s\n");
-                System.out.println("-p [<parameter_name> <value>...]");
-                System.out
-                        .println("\t\tSet any number of parameters with name-value pairs separated by");
-                System.out
-                        .println("\t\tspace. See configuration file for parameter names.\n");
-                System.out.println("-v \t\tSet the log to verbose.");
-                System.out
-                        .println("-d \t\tSet the log to print debug messages. Also prints every");
-                System.out.println("\t\tlog message to standard output.");
-                System.out
-                        .println("-q \t\tSet the log to quiet mode. Only unrecoverable errors are logged.");
-                return;
-            default:
-                System.out.println("Unknown argument '" + args[i]
-                        + "' ignored. Try -h for help.");
-            }
+        CommandLineOptions options = CommandLineOptions.parse(args);
+        if (options == null) {
+            return;
         }
-
-        if (useStaticTopics) {
-            if (topicList == null) {
-                System.out
-                        .println("Static topics will only work with a topic list file. Supply one with -t.");
-                return;
-            }
-            ChatConfigurationModel.setUseDynamicTopics(false);
+        if (options.isHeadless()) {
+            HeadlessChat.run(options, chatConfigModel);
+            return;
         }
+        boolean inEmcon = options.isInEmcon();
 
         // Create the chat model
         ChatModel chatModel = new ChatModel();
@@ -684,17 +479,17 @@ public class MainView extends JFrame implements ActionListener, KeyListener {
         Networking networking = new Networking(chatModel);
         networking.setEmcon(inEmcon);
         // Create the topic model
-        TopicModel topicModel = new TopicModel(networking, topicList);
+        TopicModel topicModel = new TopicModel(networking,
+                options.getTopicList());
         // Start listening
         int preId = Configuration.getNodeId();
         try {
             networking.initialize(topicModel, chatConfigModel);
         } catch (IOException e) {
-            System.out.println("main(): Could not start networking. Error:");
-            e.printStackTrace();
+            ChatLog.error("MainView.main()", "Could not start networking.", e);
             return;
         }
-        if (customNodeId) {
+        if (options.hasCustomNodeId()) {
             Configuration.setNodeId(preId);
         }
         // Reset the Admin chat now that Node ID is correct
@@ -704,8 +499,15 @@ public class MainView extends JFrame implements ActionListener, KeyListener {
         // System.setErr(null);
 
         // Create the view.
-        new MainView(networking, topicModel, chatModel, configModel,
-                chatConfigModel, inEmcon);
+        MainView view = new MainView(networking, topicModel, chatModel,
+                configModel, chatConfigModel, inEmcon);
+        // Rejoin the topic we were in before restarting, if any.
+        if (networking.getRestoredTopic() != null) {
+            int index = topicModel.indexOf(networking.getRestoredTopic());
+            if (index >= 0) {
+                view.chatPanel.selectTopic(index);
+            }
+        }
     }
 
     /**
@@ -751,6 +553,17 @@ public class MainView extends JFrame implements ActionListener, KeyListener {
                     success = true;
                 }
             }
+            if (command.equals("/search")) {
+                String query = msg.substring(command.length()).trim();
+                if (query.length() > 0) {
+                    search(query);
+                    success = true;
+                }
+            }
+            if (command.equals("/sendfile")) {
+                sendFile(msg.substring(command.length()).trim());
+                success = true;
+            }
             if (command.equals("/help")) {
                 String[] parts = msg.split(" ");
                 if (parts.length > 1) {
@@ -761,25 +574,38 @@ public class MainView extends JFrame implements ActionListener, KeyListener {
                                         sub,
                                         "'/"
                                             + command2 + " [username]' is used to change to " +
-                                            "the<br>supplied username.<br>/nick and /name are " +
-                                            "equivalent and do not work with<br>static multicast groups."));
+                                            "the supplied username.\n/nick and /name are " +
+                                            "equivalent and do not work with static multicast groups."));
+                    } else if (command2.equals("search")) {
+                        chatPanel
+                                .addMessage(new Message(
+                                        sub,
+                                        "'/search [words]' lists the messages in this chat " +
+                                        "holding any of the words, best match first."));
+                    } else if (command2.equals("sendfile")) {
+                        chatPanel
+                                .addMessage(new Message(
+                                        sub,
+                                        "'/sendfile [path]' sends the file to everyone in " +
+                                        "this topic. Without a path, a file is chosen " +
+                                        "in a dialog."));
                     } else if (command2.equals("help")) {
                         chatPanel
                                 .addMessage(new Message(
                                         sub,
-                                        "'/help [command]' displays help for the given<br>command." +
-                                        " If no command is given, it displays available<br>commands."));
+                                        "'/help [command]' displays help for the given command." +
+                                        " If no command is given, it displays available commands."));
                     }
                 } else {
                     chatPanel.addMessage(new Message(sub,
-                            "Available commands:<br>/nick /name /help"));
+                            "Available commands:\n/nick /name /search /sendfile /help"));
                 }
                 success = true;
             }
             if (!success) {
                 chatPanel
                         .addMessage(new Message(sub,
-                                "Unknown command. Use /help to see available<br>commands"));
+                                "Unknown command. Use /help to see available commands"));
             }
             return true;
         }
@@ -787,6 +613,52 @@ public class MainView extends JFrame implements ActionListener, KeyListener {
                         // File Templates.
     }
 
+    /**
+     * Searches the current chat and shows the best hits in it.
+     * 
+     * @param query
+     *            words to search for
+     */
+    private void search(String query) {
+        Subscriber sub = new Subscriber(0, "Search");
+        long start = System.nanoTime();
+        ArrayList<Message> hits = chatPanel.getChatModel().getCurrentChat()
+                .search(query, MAX_SEARCH_HITS);
+        long millis = (System.nanoTime() - start) / 1000000;
+        chatPanel.addMessage(new Message(sub, hits.size() + " hits for '"
+                + query + "' (" + millis + " ms)"));
+        for (Message hit : hits) {
+            chatPanel.addMessage(new Message(sub, hit.toString()));
+        }
+    }
+
+    /**
+     * Sends a file to the current topic, see Networking.sendFile.
+     * 
+     * @param path
+     *            of file to send, or empty to choose one in a dialog
+     */
+    private void sendFile(String path) {
+        Subscriber sub = new Subscriber(0, "File");
+        File file;
+        if (path.length() > 0) {
+            file = new File(path);
+        } else if (fileChooser.showOpenDialog(chatView) == JFileChooser.APPROVE_OPTION) {
+            file = fileChooser.getSelectedFile();
+        } else {
+            return;
+        }
+        if (!file.isFile()) {
+            chatPanel.addMessage(new Message(sub, "No such file " + file.getPath()));
+        } else if (networking.sendFile(file)) {
+            chatPanel.addMessage(new Message(sub, "Sending file '" + file.getName()
+                    + "' (" + file.length() + " bytes)."));
+        } else {
+            chatPanel.addMessage(new Message(sub, "Could not send file '"
+                    + file.getName() + "', is anyone else in this topic?"));
+        }
+    }
+
     /**
      * keyPressed listens to how many keys are pressed in the comment field.
      * keyPressed listens to what keys are pressed in the search topic text
@@ -848,7 +720,7 @@ public class MainView extends JFrame implements ActionListener, KeyListener {
                         || topicModel.getTopicList().size() == 0) {
                     try {
                         // If dynamic topics, create a new one & switch to it.
-                        if (ChatConfigurationModel.useDynamicTopics()) {
+                        if (chatConfigurationModel.getConfiguration().useDynamicTopics()) {
                             if (chatPanel.getSearchField().getText().length() > 0) {
                                 Topic topic = topicModel
                                         .createNewTopic(chatPanel
@@ -903,27 +775,13 @@ public class MainView extends JFrame implements ActionListener, KeyListener {
 
     /**
      * Sends the given message, unless said message is of 0 length or no topic
-     * is selected. Inserts newlines at suitable places for easier reading.
+     * is selected. The message is sent as written, it is wrapped to the width
+     * of the chat area when shown.
      * 
      * @param msg
      *            The message to send
      */
     private void sendMessage(String msg) {
-        // Insert line breaks
-        for (int j = 34; j < msg.length(); j += 54) {
-            int i = j - 15; // Don't backtrack more than 15 characters.
-            while ( msg.charAt(j) != ' ' && j > i ) {
-                --j; // Backtrack to the next space to insert newline.
-            }
-            if ( j == i ) {
-                // If no space was found at a resounable place, insert '-' and split a word
-                j += 14;
-                msg = msg.substring(0, j) + "-<br>" + msg.substring(j, msg.length());
-            } else {
-                msg = msg.substring(0, j) + "<br>" + msg.substring(j, msg.length());
-            }
-        }
-
         // Checks comment fields current text length
         int currentTextLength = msg.length();
 
@@ -935,8 +793,12 @@ public class MainView extends JFrame implements ActionListener, KeyListener {
         } else if (currentTextLength > 0) { // Ignore 0-length strings
             Message message = new Message(chatPanel.chatModel.getCurrentChat()
                     .getSelf(), msg);
-            chatPanel.addMessage(message);
-            networking.sendMessage(message);
+            if (networking.trySend(message)) {
+                chatPanel.addMessage(message);
+            } else {
+                chatPanel.addMessage(new Message(new Subscriber(0, "Error"),
+                        "Send queue full, message not sent: " + msg));
+            }
         }
     }
 }
\ No newline at end of file
@@ -1,5 +1,8 @@
 package no.ntnu.acp142.chatapp;
 
+import java.awt.FontMetrics;
+import java.util.ArrayList;
+
 /*
  * Copyright (c) 2013, Thomas Martin Schmid
  * All rights reserved.
@@ -44,11 +47,22 @@ public class Message {
     /**
      * Reference to the sender
      */
-    private Subscriber sender;
+    private Subscriber        sender;
     /**
      * Message content
      */
-    private String     content;
+    private String            content;
+    /**
+     * Content as last wrapped by getLines, and the width and font it was
+     * wrapped for.
+     */
+    private ArrayList<String> lines;
+    private int               linesWidth;
+    private FontMetrics       linesMetrics;
+    /**
+     * Message as last laid out by getLayout.
+     */
+    private MessageLayout     layout;
 
     /**
      * Creates a new Message object with the given content and sender reference.
@@ -81,8 +95,54 @@ public class Message {
         return this.content;
     }
 
+    /**
+     * Gets the content wrapped to fit the given width, after the sender's
+     * name. The lines are cached, and only wrapped again when the width or
+     * font changes. See LineWrapper.
+     * 
+     * @param metrics
+     *            of the font the message is drawn in
+     * @param width
+     *            available, in pixels
+     * @return The lines of content. The first line goes after getPrefix().
+     */
+    synchronized ArrayList<String> getLines(FontMetrics metrics, int width) {
+        if ( this.lines == null || this.linesWidth != width || this.linesMetrics != metrics ) {
+            this.lines = LineWrapper.wrap(this.content, metrics, width - metrics.stringWidth(getPrefix()), width);
+            this.linesWidth = width;
+            this.linesMetrics = metrics;
+        }
+        return this.lines;
+    }
+
+    /**
+     * Gets the message laid out for drawing at the given width. The layout is
+     * cached, and only made again when the width or font changes.
+     * 
+     * @param metrics
+     *            of the font the message is drawn in
+     * @param width
+     *            available, in pixels
+     * @return The layout.
+     */
+    synchronized MessageLayout getLayout(FontMetrics metrics, int width) {
+        if ( this.layout == null || !this.layout.isFor(metrics, width) ) {
+            this.layout = new MessageLayout(this, metrics, width);
+        }
+        return this.layout;
+    }
+
+    /**
+     * Gets the text shown in front of the content.
+     * 
+     * @return Sender's name and a colon.
+     */
+    String getPrefix() {
+        return getSender().getUserName() + ": ";
+    }
+
     @Override
     public String toString() {
-        return "<font color=\"#990000\">" + getSender().getUserName() + ":</font> " + getContent();
+        return getPrefix() + getContent();
     }
 }
@@ -0,0 +1,208 @@
+package no.ntnu.acp142.chatapp;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Packs chat messages written in quick succession into SEND_MESSAGE_BATCH
+ * messages, so a pasted block of lines or a burst from a bot costs libjpmul one
+ * announce/ack cycle instead of one per line.<br>
+ * Only one batch is open at a time. It is sent when the next message is for
+ * another topic, sender or destination set, when the next message would make
+ * it exceed ChatConfigurationModel.messageBatchMaxSize bytes or
+ * ChatMessage.MAXIMUM_BATCH_COUNT messages, or when
+ * ChatConfigurationModel.messageBatchLinger milliseconds have passed since its
+ * first message, whichever comes first. A batch holding a single message is
+ * sent as a plain SEND_MESSAGE.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class MessageBatcher {
+
+    /**
+     * Networking instance the batches are sent through.
+     */
+    private final Networking    networking;
+
+    /**
+     * Messages in the open batch, null if no batch is open.
+     */
+    private ArrayList<Message>  messages;
+    /**
+     * Contents of the messages in the open batch.
+     */
+    private ArrayList<String>   contents;
+    /**
+     * Topic of the open batch.
+     */
+    private Topic               topic;
+    /**
+     * Destinations of the open batch.
+     */
+    private ArrayList<Integer>  destinations;
+    /**
+     * Sequence number of the first message in the open batch.
+     */
+    private long                firstSequenceNumber;
+    /**
+     * Encoded size of the contents in the open batch.
+     */
+    private int                 size;
+    /**
+     * Incremented each time a batch is sent, so linger tasks can tell if
+     * the batch they were started for is gone.
+     */
+    private int                 generation;
+
+    /**
+     * Creates a new batcher, with no open batch.
+     * 
+     * @param networking
+     *            to send batches through
+     */
+    MessageBatcher(Networking networking) {
+        this.networking = networking;
+        this.messages = null;
+        this.generation = 0;
+    }
+
+    /**
+     * Adds a message to the open batch, opening a new one (and sending the old
+     * one) if needed.
+     * 
+     * @param message
+     *            to send
+     * @param topic
+     *            to send to
+     * @param destinations
+     *            to send to
+     * @param sequenceNumber
+     *            of the message
+     */
+    synchronized void add(Message message, Topic topic, ArrayList<Integer> destinations, long sequenceNumber) {
+        int length;
+        try {
+            length = message.getContent().getBytes("UTF-8").length;
+        } catch (UnsupportedEncodingException e) {
+            ChatLog.error("MessageBatcher.add()", "UTF-8 not supported.", e);
+            return;
+        }
+        if ( this.messages != null && !fits(message, topic, destinations, length, sequenceNumber) ) {
+            flush();
+        }
+        if ( this.messages == null ) {
+            open(topic, destinations, sequenceNumber);
+        }
+        this.messages.add(message);
+        this.contents.add(message.getContent());
+        this.size += length;
+        if ( this.size >= this.networking.getConfiguration().getMessageBatchMaxSize() ) {
+            flush();
+        }
+    }
+
+    /**
+     * Sends the open batch, if any.
+     */
+    synchronized void flush() {
+        if ( this.messages == null ) {
+            return;
+        }
+        ChatMessage message;
+        if ( this.messages.size() == 1 ) {
+            message = ChatMessage.createSendMessageMessage(this.messages.get(0), this.topic, this.firstSequenceNumber);
+        } else {
+            message = ChatMessage.createSendMessageBatchMessage(this.messages.get(0).getSender().getNodeId(),
+                    this.topic, this.contents, this.firstSequenceNumber);
+        }
+        this.networking.sendChatMessage(message, this.destinations);
+        this.messages = null;
+        this.contents = null;
+        this.topic = null;
+        this.destinations = null;
+        this.size = 0;
+        ++this.generation;
+    }
+
+    /**
+     * Checks whether the given message may be added to the open batch. The
+     * receiver numbers the messages in a batch consecutively, so the sequence
+     * number must follow on from the batch as well.
+     */
+    private boolean fits(Message message, Topic topic, ArrayList<Integer> destinations, int length,
+            long sequenceNumber) {
+        if ( topic != this.topic || !destinations.equals(this.destinations) ) {
+            return false;
+        }
+        if ( ((this.firstSequenceNumber + this.messages.size()) & 0xffffffffL) != sequenceNumber ) {
+            return false;
+        }
+        if ( message.getSender().getNodeId() != this.messages.get(0).getSender().getNodeId() ) {
+            return false;
+        }
+        return this.size + length <= this.networking.getConfiguration().getMessageBatchMaxSize()
+                && this.messages.size() < ChatMessage.MAXIMUM_BATCH_COUNT;
+    }
+
+    /**
+     * Opens a new batch and starts the task that sends it when it has
+     * lingered long enough.
+     */
+    private void open(Topic topic, ArrayList<Integer> destinations, long sequenceNumber) {
+        this.messages = new ArrayList<Message>();
+        this.contents = new ArrayList<String>();
+        this.topic = topic;
+        this.destinations = destinations;
+        this.firstSequenceNumber = sequenceNumber;
+        this.size = 0;
+        final int batch = this.generation;
+        final long linger = this.networking.getConfiguration().getMessageBatchLinger();
+        this.networking.getExecutor().execute(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(linger);
+                } catch (InterruptedException e) {
+                    ChatLog.error("MessageBatcher.open()", "Sleep interrupted.", e);
+                }
+                synchronized (MessageBatcher.this) {
+                    if ( generation == batch ) {
+                        flush();
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,133 @@
+package no.ntnu.acp142.chatapp;
+
+import java.util.HashMap;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Keeps the most recent chat messages of each sender and topic by sequence
+ * number, both those we sent and those delivered to our chats, so we can
+ * answer HISTORY_REQUEST messages from nodes that missed some of them.<br>
+ * Each sender and topic gets a ring of CAPACITY messages, created when its
+ * first message is recorded. A message is overwritten when a message with a
+ * sequence number CAPACITY higher is recorded.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class MessageHistory {
+
+    /**
+     * Number of messages kept per sender and topic. Must be a power of two.
+     * Nothing beyond the duplicate filter's window is ever asked for, so
+     * keeping more would be of no use.
+     */
+    static final int                                   CAPACITY = DuplicateFilter.WINDOW;
+
+    /**
+     * Rings of each sender, keyed on node ID and then lower case topic name.
+     */
+    private final HashMap<Long, HashMap<String, Ring>> rings;
+
+    /**
+     * Creates a new, empty history.
+     */
+    MessageHistory() {
+        this.rings = new HashMap<Long, HashMap<String, Ring>>();
+    }
+
+    /**
+     * Records a message.
+     * 
+     * @param senderId
+     *            node ID of the sender
+     * @param topic
+     *            the message was sent to
+     * @param sequenceNumber
+     *            of the message, as an unsigned int
+     * @param content
+     *            of the message
+     */
+    synchronized void record(long senderId, Topic topic, long sequenceNumber, String content) {
+        HashMap<String, Ring> senderRings = this.rings.get(senderId);
+        if ( senderRings == null ) {
+            senderRings = new HashMap<String, Ring>();
+            this.rings.put(senderId, senderRings);
+        }
+        String key = topic.getName().toLowerCase();
+        Ring ring = senderRings.get(key);
+        if ( ring == null ) {
+            ring = new Ring();
+            senderRings.put(key, ring);
+        }
+        int index = (int) sequenceNumber & (CAPACITY - 1);
+        ring.sequenceNumbers[index] = sequenceNumber;
+        ring.contents[index] = content;
+    }
+
+    /**
+     * Gets a message, if it is still held.
+     * 
+     * @param senderId
+     *            node ID of the sender
+     * @param topic
+     *            the message was sent to
+     * @param sequenceNumber
+     *            of the message, as an unsigned int
+     * @return The content of the message, or null if not held.
+     */
+    synchronized String get(long senderId, Topic topic, long sequenceNumber) {
+        HashMap<String, Ring> senderRings = this.rings.get(senderId);
+        Ring ring = senderRings == null ? null : senderRings.get(topic.getName().toLowerCase());
+        if ( ring == null ) {
+            return null;
+        }
+        int index = (int) sequenceNumber & (CAPACITY - 1);
+        return ring.sequenceNumbers[index] == sequenceNumber ? ring.contents[index] : null;
+    }
+
+    /**
+     * Messages of a single sender and topic.
+     */
+    private static final class Ring {
+        private final long[]   sequenceNumbers = new long[CAPACITY];
+        private final String[] contents        = new String[CAPACITY];
+
+        private Ring() {
+            // Sequence numbers are unsigned ints, so -1 never matches.
+            for (int i = 0; i < CAPACITY; ++i) {
+                this.sequenceNumbers[i] = -1;
+            }
+        }
+    }
+}
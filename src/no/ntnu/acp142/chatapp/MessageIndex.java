@@ -0,0 +1,357 @@
+package no.ntnu.acp142.chatapp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Inverted full text index over the messages of a chat. Every message added
+ * is given the next offset, counting from zero, and each distinct term of its
+ * content is mapped to a posting list of the offsets of the messages holding
+ * it. Messages are removed oldest first, as Chat drops them, so removing a
+ * message only moves the start of its terms' posting lists forward.<br>
+ * Terms are the lower case runs of letters and digits in the content. HTML
+ * tags and character references are skipped. The class is not thread safe,
+ * Chat synchronizes on itself around all calls.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class MessageIndex {
+
+    /**
+     * Posting lists, keyed on term.
+     */
+    private final HashMap<String, Postings> terms;
+    /**
+     * Offset of the oldest message in the index.
+     */
+    private int                             firstOffset;
+    /**
+     * Offset given to the next message added.
+     */
+    private int                             nextOffset;
+
+    /**
+     * Creates a new, empty index.
+     */
+    MessageIndex() {
+        this.terms = new HashMap<String, Postings>();
+        this.firstOffset = 0;
+        this.nextOffset = 0;
+    }
+
+    /**
+     * Adds a message as the newest in the index.
+     * 
+     * @param content
+     *            of message, or null if the message should take an offset but
+     *            not be searchable.
+     * @return The offset of the message.
+     */
+    int add(String content) {
+        int offset = this.nextOffset++;
+        if ( content != null ) {
+            for (String term : tokenize(content)) {
+                Postings postings = this.terms.get(term);
+                if ( postings == null ) {
+                    postings = new Postings();
+                    this.terms.put(term, postings);
+                }
+                postings.add(offset);
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Removes the oldest message in the index.
+     * 
+     * @param content
+     *            of the message, exactly as it was given to add.
+     */
+    void removeOldest(String content) {
+        int offset = this.firstOffset++;
+        if ( content == null ) {
+            return;
+        }
+        for (String term : tokenize(content)) {
+            Postings postings = this.terms.get(term);
+            if ( postings != null && postings.removeFirst(offset) && postings.isEmpty() ) {
+                this.terms.remove(term);
+            }
+        }
+    }
+
+    /**
+     * Gets the offset of the oldest message in the index.
+     * 
+     * @return Offset of the oldest message.
+     */
+    int getFirstOffset() {
+        return this.firstOffset;
+    }
+
+    /**
+     * Searches for messages holding any of the terms of the query. Each
+     * message is scored by the sum of the inverse document frequency of the
+     * query terms it holds, so messages with more and rarer terms rank higher.
+     * Equal scores are ranked newest first. The posting lists are merged from
+     * their newest end, keeping only the best hits seen so far.
+     * 
+     * @param query
+     *            to search for
+     * @param limit
+     *            maximum number of hits
+     * @return Offsets of the hits, best first.
+     */
+    int[] search(String query, int limit) {
+        ArrayList<Postings> lists = new ArrayList<Postings>();
+        for (String term : tokenize(query)) {
+            Postings postings = this.terms.get(term);
+            if ( postings != null ) {
+                lists.add(postings);
+            }
+        }
+        if ( lists.isEmpty() || limit <= 0 ) {
+            return new int[0];
+        }
+        int n = lists.size();
+        double messages = this.nextOffset - this.firstOffset;
+        double[] weights = new double[n];
+        int[] cursors = new int[n];
+        for (int i = 0; i < n; ++i) {
+            Postings postings = lists.get(i);
+            weights[i] = Math.log(1.0 + messages / postings.size());
+            cursors[i] = postings.end - 1;
+        }
+
+        // Best hits so far, as a min heap on (score, offset)
+        double[] heapScores = new double[limit];
+        int[] heapOffsets = new int[limit];
+        int heapSize = 0;
+        while (true) {
+            // Newest offset left in any list
+            int offset = -1;
+            for (int i = 0; i < n; ++i) {
+                if ( cursors[i] >= lists.get(i).start ) {
+                    offset = Math.max(offset, lists.get(i).offsets[cursors[i]]);
+                }
+            }
+            if ( offset < 0 ) {
+                break;
+            }
+            double score = 0;
+            for (int i = 0; i < n; ++i) {
+                if ( cursors[i] >= lists.get(i).start && lists.get(i).offsets[cursors[i]] == offset ) {
+                    score += weights[i];
+                    --cursors[i];
+                }
+            }
+            // Offsets come newest first, so an equal score never displaces a
+            // hit already in the heap.
+            if ( heapSize < limit ) {
+                heapScores[heapSize] = score;
+                heapOffsets[heapSize] = offset;
+                siftUp(heapScores, heapOffsets, heapSize++);
+            } else if ( score > heapScores[0] ) {
+                heapScores[0] = score;
+                heapOffsets[0] = offset;
+                siftDown(heapScores, heapOffsets, heapSize);
+            }
+        }
+
+        // Pop the heap, worst first
+        int[] hits = new int[heapSize];
+        for (int i = heapSize - 1; i >= 0; --i) {
+            hits[i] = heapOffsets[0];
+            --heapSize;
+            heapScores[0] = heapScores[heapSize];
+            heapOffsets[0] = heapOffsets[heapSize];
+            siftDown(heapScores, heapOffsets, heapSize);
+        }
+        return hits;
+    }
+
+    /**
+     * Splits text into distinct terms.
+     * 
+     * @param text
+     *            to split
+     * @return The terms, in order of first appearance.
+     */
+    static LinkedHashSet<String> tokenize(String text) {
+        LinkedHashSet<String> terms = new LinkedHashSet<String>();
+        StringBuilder term = new StringBuilder();
+        int length = text.length();
+        for (int i = 0; i < length; ++i) {
+            char c = text.charAt(i);
+            if ( Character.isLetterOrDigit(c) ) {
+                term.append(Character.toLowerCase(c));
+                continue;
+            }
+            if ( term.length() > 0 ) {
+                terms.add(term.toString());
+                term.setLength(0);
+            }
+            if ( c == '<' ) {
+                // Skip tag
+                int end = text.indexOf('>', i);
+                if ( end > 0 ) {
+                    i = end;
+                }
+            } else if ( c == '&' ) {
+                // Skip character reference, such as &amp; or &#39;
+                int end = text.indexOf(';', i);
+                if ( end > 0 && end - i <= 8 ) {
+                    i = end;
+                }
+            }
+        }
+        if ( term.length() > 0 ) {
+            terms.add(term.toString());
+        }
+        return terms;
+    }
+
+    /**
+     * Tells if the hit at a ranks below the hit at b.
+     */
+    private static boolean isWorse(double[] scores, int[] offsets, int a, int b) {
+        return scores[a] < scores[b] || (scores[a] == scores[b] && offsets[a] < offsets[b]);
+    }
+
+    private static void siftUp(double[] scores, int[] offsets, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if ( !isWorse(scores, offsets, i, parent) ) {
+                return;
+            }
+            swap(scores, offsets, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(double[] scores, int[] offsets, int size) {
+        int i = 0;
+        while (true) {
+            int worst = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if ( left < size && isWorse(scores, offsets, left, worst) ) {
+                worst = left;
+            }
+            if ( right < size && isWorse(scores, offsets, right, worst) ) {
+                worst = right;
+            }
+            if ( worst == i ) {
+                return;
+            }
+            swap(scores, offsets, i, worst);
+            i = worst;
+        }
+    }
+
+    private static void swap(double[] scores, int[] offsets, int a, int b) {
+        double score = scores[a];
+        scores[a] = scores[b];
+        scores[b] = score;
+        int offset = offsets[a];
+        offsets[a] = offsets[b];
+        offsets[b] = offset;
+    }
+
+    /**
+     * Ascending offsets of the messages holding a term. Offsets before start
+     * have been removed, and are dropped when the array is grown or more than
+     * half of it is unused.
+     */
+    private static final class Postings {
+
+        private int[] offsets;
+        private int   start;
+        private int   end;
+
+        private Postings() {
+            this.offsets = new int[2];
+            this.start = 0;
+            this.end = 0;
+        }
+
+        private void add(int offset) {
+            if ( this.end == this.offsets.length ) {
+                int size = size();
+                int[] grown = this.offsets;
+                if ( size * 2 > this.offsets.length ) {
+                    grown = new int[this.offsets.length * 2];
+                }
+                System.arraycopy(this.offsets, this.start, grown, 0, size);
+                this.offsets = grown;
+                this.start = 0;
+                this.end = size;
+            }
+            this.offsets[this.end++] = offset;
+        }
+
+        /**
+         * Removes the first offset if it is the one given.
+         * 
+         * @return true if it was removed.
+         */
+        private boolean removeFirst(int offset) {
+            if ( isEmpty() || this.offsets[this.start] != offset ) {
+                return false;
+            }
+            ++this.start;
+            if ( this.start > this.offsets.length / 2 && this.offsets.length > 2 ) {
+                int size = size();
+                int[] shrunk = new int[Math.max(2, size * 2)];
+                System.arraycopy(this.offsets, this.start, shrunk, 0, size);
+                this.offsets = shrunk;
+                this.start = 0;
+                this.end = size;
+            }
+            return true;
+        }
+
+        private int size() {
+            return this.end - this.start;
+        }
+
+        private boolean isEmpty() {
+            return this.start == this.end;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package no.ntnu.acp142.chatapp;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.font.FontRenderContext;
+import java.awt.font.TextLayout;
+import java.util.ArrayList;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * A message laid out for drawing: the sender's name and the wrapped lines of
+ * content, each measured and shaped once as a TextLayout. Drawing it is then
+ * only a matter of handing the glyphs of the visible lines to the graphics
+ * context. Layouts are cached on the Message they are of, see
+ * Message.getLayout, and made again only when the width or font changes.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class MessageLayout {
+
+    private final Font                  font;
+    private final FontRenderContext     fontRenderContext;
+    private final int                   width;
+    /**
+     * Sender's name and colon, null if empty.
+     */
+    private final TextLayout            prefix;
+    /**
+     * Offset of the first line of content, after the prefix.
+     */
+    private final int                   indent;
+    /**
+     * Lines of content, null for empty lines.
+     */
+    private final ArrayList<TextLayout> lines;
+    private final int                   ascent;
+    private final int                   lineHeight;
+
+    /**
+     * Lays out a message.
+     * 
+     * @param message
+     *            to lay out
+     * @param metrics
+     *            of the font to draw the message in
+     * @param width
+     *            available to the message, in pixels
+     */
+    MessageLayout(Message message, FontMetrics metrics, int width) {
+        this.font = metrics.getFont();
+        this.fontRenderContext = metrics.getFontRenderContext();
+        this.width = width;
+        this.prefix = layout(message.getPrefix().trim());
+        this.indent = metrics.stringWidth(message.getPrefix());
+        ArrayList<String> text = message.getLines(metrics, width);
+        this.lines = new ArrayList<TextLayout>(text.size());
+        for (String line : text) {
+            this.lines.add(layout(line));
+        }
+        this.ascent = metrics.getAscent();
+        this.lineHeight = metrics.getHeight();
+    }
+
+    /**
+     * Checks whether this layout is for the given font and width.
+     * 
+     * @param metrics
+     *            of the font to draw in
+     * @param width
+     *            available, in pixels
+     * @return true if this layout can be drawn as is.
+     */
+    boolean isFor(FontMetrics metrics, int width) {
+        return this.width == width && this.font.equals(metrics.getFont())
+                && this.fontRenderContext.equals(metrics.getFontRenderContext());
+    }
+
+    /**
+     * @return Height of the laid out message, in pixels.
+     */
+    int getHeight() {
+        return this.lines.size() * this.lineHeight;
+    }
+
+    /**
+     * Draws the message, skipping lines outside the clip of the graphics
+     * context.
+     * 
+     * @param g
+     *            to draw with
+     * @param x
+     *            left edge of the message
+     * @param y
+     *            top edge of the message
+     * @param prefixColor
+     *            color of the sender's name
+     * @param textColor
+     *            color of the content
+     */
+    void draw(Graphics2D g, int x, int y, Color prefixColor, Color textColor) {
+        Rectangle clip = g.getClipBounds();
+        int first = 0;
+        int last = this.lines.size() - 1;
+        if ( clip != null ) {
+            first = Math.max(0, (clip.y - y) / this.lineHeight);
+            last = Math.min(last, (clip.y + clip.height - y) / this.lineHeight);
+        }
+        if ( first == 0 && this.prefix != null ) {
+            g.setColor(prefixColor);
+            this.prefix.draw(g, x, y + this.ascent);
+        }
+        g.setColor(textColor);
+        for (int i = first; i <= last; ++i) {
+            TextLayout line = this.lines.get(i);
+            if ( line != null ) {
+                line.draw(g, x + (i == 0 ? this.indent : 0), y + i * this.lineHeight + this.ascent);
+            }
+        }
+    }
+
+    /**
+     * Lays out a line of text, giving null for empty lines, which TextLayout
+     * does not take.
+     */
+    private TextLayout layout(String text) {
+        if ( text.length() == 0 ) {
+            return null;
+        }
+        return new TextLayout(text, this.font, this.fontRenderContext);
+    }
+}
@@ -0,0 +1,170 @@
+package no.ntnu.acp142.chatapp;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Insets;
+import java.awt.RenderingHints;
+import java.awt.Toolkit;
+import java.util.Map;
+
+import javax.swing.JComponent;
+import javax.swing.JList;
+import javax.swing.JViewport;
+import javax.swing.ListCellRenderer;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Renders messages in the chat area: the sender's name in red, followed by
+ * the content wrapped to the width of the chat area. Messages are drawn from
+ * the MessageLayout cached on each Message, so rendering a message that was
+ * shown before does no measuring, parsing or allocation.<br>
+ * As usual for Swing renderers, the one instance is set up for and painted
+ * with each message in turn.
+ * 
+ * @author Thomas Martin Schmid
+ */
+public class MessageRenderer extends JComponent implements ListCellRenderer<Message> {
+
+    /**
+     * Color of the sender's name.
+     */
+    static final Color         PREFIX_COLOR     = new Color(0x990000);
+    /**
+     * Pixels around each message.
+     */
+    static final int           INSET            = 3;
+    /**
+     * Pixels left free to the right of wrapped messages.
+     */
+    static final int           WRAP_MARGIN      = 4;
+
+    /**
+     * Text antialiasing settings of the desktop, null if none.
+     */
+    private final Map<?, ?>    desktopHints;
+    /**
+     * Layout of the message being rendered.
+     */
+    private MessageLayout      layout;
+
+    /**
+     * Creates a renderer drawing in the given font.
+     * 
+     * @param font
+     *            to draw messages in
+     */
+    public MessageRenderer(Font font) {
+        setFont(font);
+        setOpaque(true);
+        setBackground(Color.WHITE);
+        setForeground(Color.BLACK);
+        this.desktopHints = (Map<?, ?>) Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+    }
+
+    @Override
+    public Component getListCellRendererComponent(JList<? extends Message> list, Message value, int index,
+            boolean isSelected, boolean cellHasFocus) {
+        FontMetrics metrics = getFontMetrics(getFont());
+        this.layout = value.getLayout(metrics, getAvailableWidth(list));
+        return this;
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        if ( this.layout == null ) {
+            return new Dimension(0, 0);
+        }
+        return new Dimension(0, this.layout.getHeight() + 2 * INSET);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        g.setColor(getBackground());
+        g.fillRect(0, 0, getWidth(), getHeight());
+        if ( this.layout == null ) {
+            return;
+        }
+        Graphics2D g2 = (Graphics2D) g;
+        if ( this.desktopHints != null ) {
+            g2.addRenderingHints(this.desktopHints);
+        } else {
+            g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        }
+        this.layout.draw(g2, INSET, INSET, PREFIX_COLOR, getForeground());
+    }
+
+    /**
+     * Gets the width available to the text of messages in the given list.
+     * 
+     * @param list
+     *            the messages are shown in
+     * @return Width in pixels.
+     */
+    private static int getAvailableWidth(JList<?> list) {
+        Container parent = list.getParent();
+        int width = parent instanceof JViewport ? parent.getWidth() : list.getWidth();
+        if ( width <= 0 && parent != null && parent.getParent() != null ) {
+            // Not shown yet, go by the size the scroll pane asks for.
+            width = parent.getParent().getPreferredSize().width;
+        }
+        Insets insets = list.getInsets();
+        return Math.max(width - insets.left - insets.right - 2 * INSET - WRAP_MARGIN, 1);
+    }
+
+    // The renderer is only ever painted through the list, so validation and
+    // repaints are skipped, as DefaultListCellRenderer does.
+
+    @Override
+    public void validate() {
+    }
+
+    @Override
+    public void invalidate() {
+    }
+
+    @Override
+    public void revalidate() {
+    }
+
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {
+    }
+}
@@ -0,0 +1,187 @@
+package no.ntnu.acp142.chatapp;
+
+import java.io.UnsupportedEncodingException;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Bounded intern table for the topic names and usernames found in received
+ * messages. Lookups are done straight on the UTF-8 bytes of the message, so a
+ * name that has been seen before is returned as the canonical String without
+ * decoding or allocating anything. Only names are interned, never the Topics
+ * or Subscribers built around them, as those are mutable.<br>
+ * The table is set associative: each name hashes to a set of WAYS slots, and
+ * when a set is full the entry not referenced since the last sweep is evicted
+ * (clock replacement). Entries are immutable apart from the reference bit, so
+ * concurrent readers at worst see a miss.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class NameInternTable {
+
+    /**
+     * Number of slots probed per name.
+     */
+    private static final int WAYS = 4;
+
+    /**
+     * Slots, grouped into sets of WAYS consecutive entries.
+     */
+    private final Entry[]    slots;
+    /**
+     * Mask selecting the set from a hash.
+     */
+    private final int        setMask;
+
+    /**
+     * Creates a new intern table.
+     * 
+     * @param capacity
+     *            maximum number of names kept. Rounded up to a power of two,
+     *            and at least WAYS.
+     */
+    NameInternTable(int capacity) {
+        int size = WAYS;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new Entry[size];
+        this.setMask = (size / WAYS) - 1;
+    }
+
+    /**
+     * Gets the canonical String for the UTF-8 bytes in the given range.
+     * 
+     * @param octets
+     *            array to read from
+     * @param offset
+     *            of the first byte of the name
+     * @param length
+     *            of the name in bytes
+     * @return The canonical String for the name.
+     * @throws UnsupportedEncodingException
+     *             if UTF-8 is not supported
+     */
+    String internString(byte[] octets, int offset, int length) throws UnsupportedEncodingException {
+        return lookup(octets, offset, length).string;
+    }
+
+    /**
+     * Finds the entry for the given bytes, inserting it (and evicting another
+     * entry in the same set if needed) when it is not present.
+     */
+    private Entry lookup(byte[] octets, int offset, int length) throws UnsupportedEncodingException {
+        int hash = hash(octets, offset, length);
+        int base = (hash & this.setMask) * WAYS;
+        Entry[] table = this.slots;
+        for (int i = 0; i < WAYS; ++i) {
+            Entry e = table[base + i];
+            if ( e != null && e.hash == hash && e.matches(octets, offset, length) ) {
+                if ( !e.referenced ) {
+                    e.referenced = true;
+                }
+                return e;
+            }
+        }
+        // Miss. Decode once and store the copy of the key.
+        byte[] key = new byte[length];
+        System.arraycopy(octets, offset, key, 0, length);
+        Entry entry = new Entry(key, hash, new String(key, "UTF-8"));
+        table[base + victim(table, base)] = entry;
+        return entry;
+    }
+
+    /**
+     * Picks the slot to replace within the set starting at base. Empty slots
+     * are used first, then the first slot without its reference bit set. Bits
+     * are cleared as the sweep passes over them.
+     */
+    private static int victim(Entry[] table, int base) {
+        for (int i = 0; i < WAYS; ++i) {
+            if ( table[base + i] == null ) {
+                return i;
+            }
+        }
+        for (int pass = 0; pass < 2; ++pass) {
+            for (int i = 0; i < WAYS; ++i) {
+                Entry e = table[base + i];
+                if ( !e.referenced ) {
+                    return i;
+                }
+                e.referenced = false;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * FNV-1a hash of the given byte range.
+     */
+    private static int hash(byte[] octets, int offset, int length) {
+        int h = 0x811c9dc5;
+        for (int i = offset; i < offset + length; ++i) {
+            h ^= (octets[i] & 0xff);
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * A single interned name.
+     */
+    private static final class Entry {
+        private final byte[]     key;
+        private final int        hash;
+        private final String     string;
+        private volatile boolean referenced;
+
+        private Entry(byte[] key, int hash, String string) {
+            this.key = key;
+            this.hash = hash;
+            this.string = string;
+        }
+
+        private boolean matches(byte[] octets, int offset, int length) {
+            if ( this.key.length != length ) {
+                return false;
+            }
+            for (int i = 0; i < length; ++i) {
+                if ( this.key[i] != octets[offset + i] ) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -8,15 +8,30 @@ import no.ntnu.acp142.configui.ConfigurationModel;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
+import java.io.File;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.SocketTimeoutException;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /*
  * Copyright (c) 2013, Thomas Martin Schmid, Luka Cetusic
@@ -58,14 +73,25 @@ import java.util.concurrent.ConcurrentLinkedDeque;
  */
 public class Networking implements PropertyChangeListener {
 
+    /**
+     * Seconds between the discovery queries sent until a NODE_LIST is
+     * received.
+     */
+    static final long                          DISCOVERY_INTERVAL = 2;
+
     /**
      * Instance of the libjpmul library interface used for communication
      */
     private ILibjpmul                            libjpmul;
     /**
-     * Normal multicast socket used to coordinate node IDs.
+     * Carries the broadcasts used to coordinate node IDs. Null with static
+     * multicast.
+     */
+    private BroadcastChannel                   broadcastChannel;
+    /**
+     * Opens broadcastChannel, on initialize and on every restart.
      */
-    private MulticastSocket                    broadcastSocket;
+    private BroadcastChannel.Factory           broadcastChannels;
     /**
      * TopicModel reference
      */
@@ -77,12 +103,45 @@ public class Networking implements PropertyChangeListener {
     /**
      * Boolean used to stop the listening thread
      */
-    private boolean                            isRunning;
+    private volatile boolean                   isRunning;
     /**
      * As long as this is true, we attempt to send the initial messages in
      * listenBroadcast.
      */
-    private boolean                            hasReceivedNodeList;
+    private volatile boolean                   hasReceivedNodeList;
+    /**
+     * As long as this is true, a TOPIC_DIGEST is sent on the next NODE_LIST
+     * received. Set again when restart reruns discovery.
+     */
+    private volatile boolean                   notSentInitialGetTopic;
+    /**
+     * Number of times the broadcast threads have been stopped. Each of them
+     * runs until this is no longer the value it was started with.
+     */
+    private volatile int                       broadcastEpoch;
+    /**
+     * The tasks sending heartbeats and discovery queries. Also used to lock
+     * restarts.
+     */
+    private final List<PeriodicTask>           broadcastTasks;
+    /**
+     * Runs listenBroadcast, null if not running.
+     */
+    private FutureTask<Void>                   broadcastListener;
+    /**
+     * Set while a restart is waiting to run, so that one update of the
+     * settings restarts the broadcast threads only once.
+     */
+    private final AtomicBoolean                restartPending;
+    /**
+     * Set by the first call to shutdown, so later calls, such as the one of
+     * the shutdown hook, do nothing.
+     */
+    private final AtomicBoolean                isShutDown;
+    /**
+     * The settings the broadcast socket was last bound with.
+     */
+    private ChatConfiguration                  broadcastConfiguration;
 
     /**
      * Queue of all the topics currently awaiting their timeout to expire so
@@ -101,6 +160,28 @@ public class Networking implements PropertyChangeListener {
      */
     private List<Integer>                      destinations;
 
+    /**
+     * Holds the settings in use. The default model until initialize is
+     * called.
+     */
+    private ChatConfigurationModel             chatConfigModel;
+    /**
+     * Runs the short lived tasks of this instance, see setExecutor.
+     */
+    private Executor                           executor;
+    /**
+     * Runs the periodic tasks of this instance, see setScheduler.
+     */
+    private ScheduledExecutorService           scheduler;
+    /**
+     * Whether scheduler was made by this instance, and is shut down with it.
+     */
+    private boolean                            isOwnScheduler;
+    /**
+     * Writes state snapshots, null if none are written.
+     */
+    private PeriodicTask                       snapshotTask;
+
     /**
      * Node ID of this node. We store this in the initialize method since it
      * <b>should</b> be static and storing it will enable us to debug this class
@@ -112,6 +193,79 @@ public class Networking implements PropertyChangeListener {
      * silence our initial non-libjpmul transmission.
      */
     private boolean                            isInEmcon;
+    /**
+     * Counters and timings of the messages handled by this instance.
+     */
+    private final NetworkingMetrics            metrics;
+    /**
+     * Flight recorder event timing the discovery of other nodes, from the
+     * first broadcast sent until a NODE_LIST is received.
+     */
+    private volatile ChatEvents.Discovery      discoveryEvent;
+    /**
+     * Packs outgoing chat messages together when message batching is on.
+     */
+    private final MessageBatcher               batcher;
+    /**
+     * Sequence number of the next chat message we send to each topic, keyed on
+     * lower case topic name. Each starts at a random point, so receivers can
+     * tell a restart from a retransmission.
+     */
+    private final HashMap<String, Integer>     nextSequenceNumbers;
+    /**
+     * Used to pick the starting point of new sequences.
+     */
+    private final Random                       random;
+    /**
+     * Chat messages seen from each sender, to drop duplicates and find gaps.
+     */
+    private final DuplicateFilter              duplicateFilter;
+    /**
+     * Recent chat messages sent and received, to answer HISTORY_REQUEST with.
+     */
+    private final MessageHistory               history;
+    /**
+     * Senders and topics with a gap check already pending, as "senderId/topic".
+     */
+    private final Set<String>                  pendingGapChecks;
+    /**
+     * Heartbeats seen from each node, to find nodes that have died without
+     * sending NODE_LEAVE.
+     */
+    private final FailureDetector              failureDetector;
+    /**
+     * Transmissions waiting for libjpmul, control traffic first.
+     */
+    private final SendQueue                    sendQueue;
+    /**
+     * Bytes of our own chat messages waiting to be sent, per topic.
+     */
+    private final SendBudget                   sendBudget;
+    /**
+     * Destinations of chat messages to each topic, keyed on lower case topic
+     * name. Kept as long as the topic's membership is unchanged, so repeated
+     * sends hand libjpmul the very same destination list.
+     */
+    private final HashMap<String, TopicDestinations> topicDestinations;
+    /**
+     * Name of the topic we were in according to the state snapshot loaded on
+     * startup, null if none.
+     */
+    private String                             restoredTopic;
+    /**
+     * Nodes that have advertised in their HEARTBEAT that they decode
+     * compressed messages.
+     */
+    private final Set<Integer>                 compressionPeers;
+    /**
+     * Files we send and receive.
+     */
+    private final FileTransfers                fileTransfers;
+    /**
+     * Records the traffic to and from libjpmul, null unless
+     * ChatConfigurationModel.trafficCaptureFile is set.
+     */
+    private TrafficCapture                     trafficCapture;
 
     /**
      * Creates the class. Does nothing but store references and setup.
@@ -125,30 +279,89 @@ public class Networking implements PropertyChangeListener {
         destinations = Collections.synchronizedList(new ArrayList<Integer>());
         this.isRunning = true;
         this.hasReceivedNodeList = false;
+        this.notSentInitialGetTopic = true;
+        this.broadcastEpoch = 0;
+        this.broadcastTasks = new ArrayList<PeriodicTask>();
+        this.restartPending = new AtomicBoolean(false);
+        this.isShutDown = new AtomicBoolean(false);
         this.chatModel = chatModel;
+        this.chatConfigModel = ChatConfigurationModel.getDefault();
+        this.executor = new Executor() {
+            public void execute(Runnable task) {
+                new Thread(task).start();
+            }
+        };
+        // Only starts its thread once something is scheduled.
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "Networking scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.isOwnScheduler = true;
         this.isInEmcon = false;
+        this.metrics = new NetworkingMetrics();
+        this.batcher = new MessageBatcher(this);
+        this.nextSequenceNumbers = new HashMap<String, Integer>();
+        this.random = new Random();
+        this.duplicateFilter = new DuplicateFilter();
+        this.history = new MessageHistory();
+        this.pendingGapChecks = Collections.synchronizedSet(new HashSet<String>());
+        this.failureDetector = new FailureDetector();
+        this.sendQueue = new SendQueue();
+        this.sendBudget = new SendBudget();
+        this.topicDestinations = new HashMap<String, TopicDestinations>();
+        this.compressionPeers = Collections.synchronizedSet(new HashSet<Integer>());
+        this.fileTransfers = new FileTransfers();
     }
 
     /**
-     * Starts the libjpmul interface, then starts the listening thread.
+     * Starts the libjpmul interface, then starts the listening thread. If
+     * ChatConfigurationModel.trafficCaptureFile is set, the traffic to and
+     * from libjpmul is recorded there, see TrafficCapture. Nodes find each
+     * other through the broadcast group, see UdpBroadcastChannel. A shutdown
+     * hook is added, so others are told we left when the process ends.
      * 
      * @param topicModel
      *            reference to use.
+     * @param chatConfigModel
+     *            holding the settings to use
      * @throws IOException
      *             If the Broadcast socket cannot be bound.
      */
     public void initialize(TopicModel topicModel, ChatConfigurationModel chatConfigModel) throws IOException {
         int id = Configuration.getNodeId(); // Grab this before we start
                                             // libjpmul
-        initialize(topicModel, new Libjpmul(), new MulticastSocket(ChatConfigurationModel.getBroadcastPort()), id,
-                chatConfigModel);
+        ILibjpmul acpInterface = new Libjpmul();
+        String captureFile = chatConfigModel.getConfiguration().getTrafficCaptureFile();
+        if ( captureFile.length() > 0 ) {
+            try {
+                this.trafficCapture = new TrafficCapture(acpInterface, new File(captureFile), id != 0 ? id
+                        : Configuration.getNodeId());
+                acpInterface = this.trafficCapture;
+            } catch (IOException e) {
+                ChatLog.error("Networking.initialize()", "Could not open capture file, traffic is not captured.", e,
+                        "file", captureFile);
+            }
+        }
+        initialize(topicModel, acpInterface, UdpBroadcastChannel.FACTORY, id, chatConfigModel);
+
+        // And finally add the shutdown hook to stop the threads in case of
+        // crashes/interrupts.
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                shutdown();
+            }
+        });
     }
 
     /**
      * Starts the listening thread. This version takes in the ILibjpmul interface
      * and broadcast socket to use, which makes it usable for testing and
-     * debugging, or if other implementations are wanted. It is used by the
-     * default initialize, after creating the interface in that method.
+     * debugging, or if other implementations are wanted. The broadcast socket
+     * is bound to the broadcast port, and joins the broadcast group if dynamic
+     * multicast is used. It is closed otherwise.
      * 
      * @param topicModel
      *            reference to use.
@@ -159,13 +372,46 @@ public class Networking implements PropertyChangeListener {
      * @param nodeId
      *            of this node
      * @param chatConfigModel
-     *            reference to listen on for changes to Node ID
+     *            holding the settings to use, listened on for changes to Node
+     *            ID and to the broadcast settings
      * @throws IOException
      *             If the Broadcast socket cannot be bound.
      */
     public void initialize(TopicModel topicModel, ILibjpmul acpInterface, MulticastSocket broadcastSocket, int nodeId,
             ChatConfigurationModel chatConfigModel) throws IOException {
+        if ( !chatConfigModel.getConfiguration().useDynamicMulticast() ) {
+            broadcastSocket.close();
+        }
+        initialize(topicModel, acpInterface, UdpBroadcastChannel.startingWith(broadcastSocket), nodeId,
+                chatConfigModel);
+    }
+
+    /**
+     * Starts the listening thread. This version takes in the ILibjpmul interface
+     * to use, and what to open broadcast channels with, so that nodes in one
+     * process can be connected without any traffic leaving it, see
+     * VirtualNodes. It is used by the default initialize, after creating the
+     * interface in that method. No shutdown hook is added.
+     * 
+     * @param topicModel
+     *            reference to use.
+     * @param acpInterface
+     *            to use
+     * @param broadcastChannels
+     *            to open the broadcast channel with, on this call and on
+     *            every restart
+     * @param nodeId
+     *            of this node
+     * @param chatConfigModel
+     *            holding the settings to use, listened on for changes to Node
+     *            ID and to the broadcast settings
+     * @throws IOException
+     *             If the broadcast channel cannot be opened.
+     */
+    public void initialize(TopicModel topicModel, ILibjpmul acpInterface, BroadcastChannel.Factory broadcastChannels,
+            int nodeId, ChatConfigurationModel chatConfigModel) throws IOException {
         // Listen on configModel for changes to Node ID
+        this.chatConfigModel = chatConfigModel;
         chatConfigModel.addPropertyChangeListener(this);
 
         if ( nodeId == 0 ) { // If it was not set manually, grab it after
@@ -175,49 +421,64 @@ public class Networking implements PropertyChangeListener {
         }
         this.nodeId = nodeId;
         this.topicModel = topicModel;
-        // Start the sockets
-        this.broadcastSocket = broadcastSocket;
-        this.broadcastSocket.setInterface(Configuration.getBindInterfaceAddress());
-        this.broadcastSocket.joinGroup(ChatConfigurationModel.getBroadcastGroup());
+        // Pick up where we left off, if we have a snapshot.
+        restoreSnapshot();
+        // Open the broadcast channel, only used with dynamic MC groups.
+        this.broadcastChannels = broadcastChannels;
+        this.broadcastConfiguration = getConfiguration();
+        if ( this.broadcastConfiguration.useDynamicMulticast() ) {
+            this.broadcastChannel = broadcastChannels.open(this.broadcastConfiguration);
+        }
         this.libjpmul = acpInterface;
 
-        // Now start the two listening threads. (the first of which is only
-        // started with dynamic MC groups)
-        if ( ChatConfigurationModel.useDynamicMulticast() ) {
-            new Thread() {
-                public void run() {
-                    listenBroadcast();
-                }
-            }.start();
+        // Start sending whatever is queued.
+        this.sendQueue.start(this.executor);
+
+        // Expose the metrics, and dump them regularly if wanted.
+        this.metrics.register(this.nodeId);
+        this.metrics.startPeriodicDump(getConfiguration().getStatsDumpInterval(), this.scheduler);
+
+        // Now start listening. (the broadcast tasks are only started with
+        // dynamic MC groups)
+        synchronized (this.broadcastTasks) {
+            startBroadcastTasks(getConfiguration().useDynamicMulticast());
         }
-        new Thread() {
+        this.executor.execute(new Runnable() {
             public void run() {
                 listenLibjpmul();
             }
-        }.start();
-
-        // And finally add the shutdown hook to stop the threads in case of
-        // crashes/interrupts.
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            public void run() {
-                shutdown();
-            }
         });
+        if ( getConfiguration().getStateSnapshotFile().length() > 0 ) {
+            this.snapshotTask = new PeriodicTask() {
+                long getInterval() {
+                    return getConfiguration().getStateSnapshotInterval();
+                }
+
+                void runOnce(long interval) {
+                    saveSnapshot();
+                }
+            };
+            this.snapshotTask.start();
+        }
     }
 
     /**
-     * Stops the listening threads.
+     * Stops the listening threads. Only the first call does anything, so it
+     * is safe to call before exiting even though the shutdown hook calls it
+     * again.
      */
     public void shutdown() {
-        if ( ChatConfigurationModel.useDynamicMulticast() ) {
+        if ( !this.isShutDown.compareAndSet(false, true) ) {
+            return;
+        }
+        // Get any batched messages out before we leave.
+        this.batcher.flush();
+        saveSnapshot();
+        if ( getConfiguration().useDynamicMulticast() ) {
             // Tell others to stop sending to us if dynamic multicast is in use
-            Acp142Message message = new Acp142Message();
             ChatMessage msg = ChatMessage.createNodeLeaveMessage(this.nodeId);
-            message.setData(msg.getRawMessage());
             ArrayList<Integer> dests = new ArrayList<Integer>(this.destinations);
-            message.setDestinations(dests);
-            message.setDynamic(ChatConfigurationModel.useDynamicMulticast());
-            message.setSourceID(this.nodeId);
+            Acp142Message message = createAcp142Message(msg, dests, false);
             /*
              * When this is called the user wants to shut down the app. This
              * means, that even though we would like to tell everyone that we
@@ -227,11 +488,217 @@ public class Networking implements PropertyChangeListener {
              * although undesired.
              */
             message.setExpiryTime((System.currentTimeMillis() / 1000) + 3);
-            message.setPersistent(false);
-            libjpmul.send(message);
+            send(message, msg, dests.size());
         }
-        // Then stop the threads.
+        // Then stop the threads and tasks. The send queue is emptied first.
         this.isRunning = false;
+        synchronized (this.broadcastTasks) {
+            stopBroadcastTasks();
+        }
+        if ( this.snapshotTask != null ) {
+            this.snapshotTask.cancel();
+        }
+        this.sendQueue.stop();
+        if ( this.trafficCapture != null ) {
+            this.trafficCapture.close();
+        }
+        // Keep partial files, so the transfers can be resumed.
+        this.fileTransfers.close();
+        this.metrics.stopPeriodicDump();
+        this.metrics.unregister();
+        if ( this.isOwnScheduler ) {
+            this.scheduler.shutdown();
+        }
+    }
+
+    /**
+     * Applies the current broadcast group, broadcast port and dynamic
+     * multicast settings to the running instance. The broadcast tasks are
+     * stopped and the broadcast channel closed. With dynamic multicast, a new
+     * channel is opened on the group, and discovery is rerun. When switching
+     * to static multicast, no channel is opened, and what libjpmul holds for
+     * us in dynamic mode is let go, see leaveDynamicMulticast.
+     * Topics, chats, known nodes and the libjpmul listening thread are kept as
+     * they are. Messages are packed with the current settings as they are
+     * sent, so libjpmul follows the change from the next message on.
+     * 
+     * @throws IOException
+     *             If the broadcast channel cannot be opened.
+     */
+    public void restart() throws IOException {
+        synchronized (this.broadcastTasks) {
+            if ( !this.isRunning ) {
+                return;
+            }
+            long start = System.nanoTime();
+            ChatConfiguration config = getConfiguration();
+            boolean wasDynamic = this.broadcastConfiguration.useDynamicMulticast();
+            stopBroadcastTasks();
+            if ( config.useDynamicMulticast() ) {
+                this.broadcastChannel = this.broadcastChannels.open(config);
+            } else if ( wasDynamic ) {
+                leaveDynamicMulticast();
+            }
+            this.broadcastConfiguration = config;
+            this.hasReceivedNodeList = false;
+            this.notSentInitialGetTopic = true;
+            startBroadcastTasks(config.useDynamicMulticast());
+            ChatLog.info("Networking.restart()", "Restarted broadcast tasks.", "group", config.getBroadcastGroup()
+                    .getHostAddress(), "port", config.getBroadcastPort(), "dynamic", config.useDynamicMulticast(),
+                    "ms", (System.nanoTime() - start) / 1000000);
+        }
+    }
+
+    /**
+     * Runs restart on the executor, unless one is already waiting to run.
+     * Called on changes to the broadcast settings, which come in a burst when
+     * several are applied at once. Nothing is done if the settings are back to
+     * those in use by the time it runs.
+     */
+    private void scheduleRestart() {
+        if ( !this.restartPending.compareAndSet(false, true) ) {
+            return;
+        }
+        this.executor.execute(new Runnable() {
+            public void run() {
+                // Cleared before the settings are read, so later changes
+                // cause another restart.
+                restartPending.set(false);
+                try {
+                    synchronized (broadcastTasks) {
+                        ChatConfiguration config = getConfiguration();
+                        // The group and port are only used with dynamic
+                        // multicast.
+                        if ( broadcastConfiguration.useDynamicMulticast() == config.useDynamicMulticast()
+                                && (!config.useDynamicMulticast() || broadcastConfiguration.getBroadcastGroup()
+                                        .equals(config.getBroadcastGroup())
+                                        && broadcastConfiguration.getBroadcastPort() == config.getBroadcastPort()) ) {
+                            return;
+                        }
+                        restart();
+                    }
+                } catch (IOException e) {
+                    ChatLog.error("Networking.scheduleRestart()", "Could not open broadcast channel.", e, "port",
+                            getConfiguration().getBroadcastPort());
+                }
+            }
+        });
+    }
+
+    /**
+     * Lets go of what libjpmul holds for us in dynamic multicast mode, when
+     * switching to static multicast. The nodes we know are sent a NODE_LEAVE,
+     * so they stop sending to us, and the persistent groups of our topics are
+     * released. Both are sent as dynamic, whatever the settings now say.
+     */
+    private void leaveDynamicMulticast() {
+        ArrayList<Integer> dests = new ArrayList<Integer>(this.destinations);
+        if ( !dests.isEmpty() ) {
+            ChatMessage msg = ChatMessage.createNodeLeaveMessage(this.nodeId);
+            Acp142Message message = createAcp142Message(msg, dests, false);
+            message.setDynamic(true);
+            queue(message, msg, dests.size());
+        }
+        releaseGroups();
+    }
+
+    /**
+     * Starts listenBroadcast on the executor, and the tasks sending discovery
+     * queries and heartbeats on the scheduler, if dynamic multicast is used.
+     * Must be called holding the lock on broadcastTasks.
+     * 
+     * @param useDynamicMulticast
+     *            whether dynamic multicast is used.
+     */
+    private void startBroadcastTasks(boolean useDynamicMulticast) {
+        if ( !useDynamicMulticast ) {
+            return;
+        }
+        final int epoch = this.broadcastEpoch;
+        final BroadcastChannel channel = this.broadcastChannel;
+        final ChatEvents.Discovery discovery = new ChatEvents.Discovery();
+        discovery.nodeId = this.nodeId & 0xffffffffL;
+        discovery.begin();
+        this.discoveryEvent = discovery;
+        PeriodicTask queries = new PeriodicTask() {
+            long getInterval() {
+                return DISCOVERY_INTERVAL;
+            }
+
+            void runOnce(long interval) {
+                if ( hasReceivedNodeList ) {
+                    cancel();
+                } else if ( !isInEmcon ) {
+                    sendDiscoveryQuery(channel, discovery);
+                }
+            }
+        };
+        PeriodicTask heartbeats = new PeriodicTask() {
+            long getInterval() {
+                return getConfiguration().getHeartbeatInterval();
+            }
+
+            void runOnce(long interval) {
+                sendHeartbeat(interval);
+            }
+        };
+        this.broadcastTasks.add(queries);
+        this.broadcastTasks.add(heartbeats);
+        queries.startNow();
+        heartbeats.start();
+        this.broadcastListener = new FutureTask<Void>(new Runnable() {
+            public void run() {
+                listenBroadcast(epoch);
+            }
+        }, null);
+        try {
+            this.executor.execute(this.broadcastListener);
+        } catch (RejectedExecutionException e) {
+            ChatLog.error("Networking.startBroadcastTasks()", "Could not start listenBroadcast.", e);
+            this.broadcastListener = null;
+        }
+    }
+
+    /**
+     * Stops the broadcast tasks and closes the broadcast channel, then waits
+     * for listenBroadcast to end. Must be called holding the lock on
+     * broadcastTasks.
+     */
+    private void stopBroadcastTasks() {
+        ++this.broadcastEpoch;
+        for (PeriodicTask task : this.broadcastTasks) {
+            task.cancel();
+        }
+        this.broadcastTasks.clear();
+        if ( this.broadcastChannel != null ) {
+            // Wakes up listenBroadcast if blocked receiving on it.
+            this.broadcastChannel.close();
+            this.broadcastChannel = null;
+        }
+        if ( this.broadcastListener == null ) {
+            return;
+        }
+        try {
+            this.broadcastListener.get();
+        } catch (InterruptedException e) {
+            ChatLog.error("Networking.stopBroadcastTasks()", "Interrupted waiting for listenBroadcast.", e);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            ChatLog.error("Networking.stopBroadcastTasks()", "listenBroadcast failed.", e.getCause());
+        }
+        this.broadcastListener = null;
+    }
+
+    /**
+     * Checks whether a broadcast thread started at the given epoch should keep
+     * running.
+     * 
+     * @param epoch
+     *            the thread was started at.
+     * @return True if neither shutdown nor restart has been called since.
+     */
+    private boolean isCurrent(int epoch) {
+        return this.isRunning && epoch == this.broadcastEpoch;
     }
 
     /**
@@ -255,7 +722,12 @@ public class Networking implements PropertyChangeListener {
      * <tr>
      * <td>SEND_MESSAGE</td>
      * <td>If the topic affected is chatModel.currentChat, the message is
-     * inserted into the chat.</td>
+     * inserted into the chat. Messages already delivered, as told by their
+     * sequence numbers, are dropped first.</td>
+     * </tr>
+     * <tr>
+     * <td>SEND_MESSAGE_BATCH</td>
+     * <td>As SEND_MESSAGE, each message in the batch is inserted in order.</td>
      * </tr>
      * <tr>
      * <td>DELETE_TOPIC_QUERY</td>
@@ -286,6 +758,11 @@ public class Networking implements PropertyChangeListener {
      * <td>A delayed response with all topics we are aware of is sent.</td>
      * </tr>
      * <tr>
+     * <td>TOPIC_DIGEST</td>
+     * <td>If the digest differs from that of our topics, a delayed response
+     * with the topics in the differing buckets is sent.</td>
+     * </tr>
+     * <tr>
      * <td>NEW_TOPIC</td>
      * <td>If the topic does not already exist, we add it to our list. Otherwise
      * we delayed respond with a SUBSCRIBER_LIST message for that topic.</td>
@@ -295,21 +772,81 @@ public class Networking implements PropertyChangeListener {
      * <td>Adds the received node IDs to the list of destinations. Used to
      * populate our destination list on startup.</td>
      * </tr>
+     * <tr>
+     * <td>HEARTBEAT</td>
+     * <td>Recorded in failureDetector. The sender is added to the list of
+     * destinations if it was not there. Nodes whose heartbeats stop are removed
+     * from the list of destinations and from all subscriber lists. Whether
+     * the sender decodes compressed messages is noted.</td>
+     * </tr>
+     * <tr>
+     * <td>HISTORY_REQUEST</td>
+     * <td>Delayed respond with the asked for messages we still hold, in runs
+     * of consecutive messages.</td>
+     * </tr>
+     * <tr>
+     * <td>HISTORY_RESPONSE</td>
+     * <td>Handled like SEND_MESSAGE_BATCH, except that the messages are
+     * delivered even if their sender is no longer a subscriber of the
+     * topic.</td>
+     * </tr>
+     * <tr>
+     * <td>FILE_OFFER</td>
+     * <td>The file is received into ChatConfigurationModel.fileTransferDirectory,
+     * resuming an earlier, suspended transfer of it if there is one. A notice
+     * is added to the chat of the topic.</td>
+     * </tr>
+     * <tr>
+     * <td>FILE_CHUNK</td>
+     * <td>Written to its place in the file being received. Once all chunks are
+     * in, the file is moved into place and a notice is added to the chat.</td>
+     * </tr>
+     * <tr>
+     * <td>FILE_CHUNK_REQUEST</td>
+     * <td>If it is for a file we offered, the asked for chunks are sent again
+     * to the node asking.</td>
+     * </tr>
      * </table>
+     * Transfers that receive no chunks for a while ask for the missing ones,
+     * see Networking.requestMissingChunks.
      * For the workings of delayed responses, see
      * Networking.delayedConditionalSend
      */
     public void listenLibjpmul() {
-        System.out.println("Started listenLibjpmul thread");
-        boolean notSentInitialGetTopic = true;
+        ChatLog.info("Networking.listenLibjpmul()", "Started listenLibjpmul thread.");
+        long nextFailureCheck = 0;
 
         while (this.isRunning) {
+            // Read the settings once per message, so they are consistent
+            // while it is handled.
+            ChatConfiguration config = getConfiguration();
+            // Look for dead nodes about once a second. It is done here so that
+            // subscriber lists are only changed by this thread.
+            if ( System.currentTimeMillis() >= nextFailureCheck ) {
+                nextFailureCheck = System.currentTimeMillis() + 1000;
+                if ( config.useDynamicMulticast() && config.getHeartbeatInterval() > 0 ) {
+                    pruneDeadNodes();
+                }
+                requestMissingChunks();
+            }
             Acp142Message message = this.libjpmul.receive();
             if ( message == null ) {
-                System.out.println("Networking.listenLibjpmul(): libjpmul message reception timed out.");
+                ChatLog.debug("Networking.listenLibjpmul()", "libjpmul message reception timed out.");
                 continue;
             }
+            ChatEvents.Decode decodeEvent = new ChatEvents.Decode();
+            decodeEvent.begin();
+            long decodeStart = System.nanoTime();
             ChatMessage chatMessage = new ChatMessage(message.getData());
+            long dispatchStart = System.nanoTime();
+            this.metrics.messageDecoded(chatMessage.getType(), dispatchStart - decodeStart);
+            decodeEvent.end();
+            if ( decodeEvent.shouldCommit() ) {
+                decodeEvent.describe(chatMessage, message.getData().length, message.getSourceID());
+                decodeEvent.commit();
+            }
+            ChatEvents.Dispatch dispatchEvent = new ChatEvents.Dispatch();
+            dispatchEvent.begin();
 
             // If we are the sender, skip it.
             if ( message.getSourceID() == this.chatModel.getCurrentChat().getSelf().getNodeId() ) {
@@ -320,7 +857,7 @@ public class Networking implements PropertyChangeListener {
             // Handle incoming messages
             switch ( chatMessage.getType() ) {
             case LEAVE_TOPIC:
-                if ( !ChatConfigurationModel.useDynamicMulticast() ) {
+                if ( !config.useDynamicMulticast() ) {
                     break; // Does not concern us if static MC groups are used.
                 }
                 if ( this.chatModel.getCurrentChat().getTopic().getName().equals(chatMessage.getTopic().getName()) ) {
@@ -362,58 +899,22 @@ public class Networking implements PropertyChangeListener {
                     }
                 }
                 break;
-            case SEND_MESSAGE:
-                // If we have received it it is meant for us
-                // This means, if we are in static multicast mode, it may be to
-                // any topic
-                // but in dynamic mode it must be the active one (or one we just
-                // left).
-                topic = null;
-                for (Topic t : this.topicModel.getTopicList()) {
-                    if ( t.getName().toLowerCase().equals(chatMessage.getTopic().getName().toLowerCase()) ) {
-                        topic = t;
-                        break;
-                    }
-                }
-                if ( topic != null ) {
-                    // Check if it is sent to the active chat
-                    if ( topic == this.chatModel.getCurrentChat().getTopic() ) {
-                        ArrayList<Subscriber> list = topic.getSubscriberList();
-                        for (Subscriber s : list) {
-                            if ( s.getNodeId() == chatMessage.getSenderId() ) {
-                                Message messageToSend = new Message(s, chatMessage.getMessage());
-                                this.chatModel.addMessage(messageToSend);
-                                break;
-                            }
-                        }
-                    } else {
-                        // Message meant for an inactive chat, find it
-                        Chat chat = null;
-                        for (Chat c : this.chatModel.getChatList()) {
-                            if ( c.getTopic() == topic ) {
-                                chat = c;
-                                break;
-                            }
-                        }
-                        if ( chat == null ) {
-                            // The chat has not yet been created in chatmodel.
-                            // Create it here.
-                            chat = new Chat(topic, this.chatModel.getCurrentChat().getSelf());
-                            this.chatModel.getChatList().add(chat);
-                        }
-                        ArrayList<Subscriber> list = topic.getSubscriberList();
-                        for (Subscriber s : list) {
-                            if ( s.getNodeId() == chatMessage.getSenderId() ) {
-                                Message messageToSend = new Message(s, chatMessage.getMessage());
-                                chat.addMessage(messageToSend);
-                                break;
-                            }
-                        }
-                    }
+            case HISTORY_RESPONSE:
+                this.notYetExpiredResponsesSeenFromOthers.add(chatMessage);
+                if ( chatMessage.getSenderId() == (this.nodeId & 0xffffffffL) ) {
+                    break; // Our own messages, we never missed them.
                 }
+                deliverMessages(chatMessage);
+                break;
+            case SEND_MESSAGE:
+            case SEND_MESSAGE_BATCH:
+                deliverMessages(chatMessage);
+                break;
+            case HISTORY_REQUEST:
+                sendHistory(chatMessage);
                 break;
             case SUBSCRIBER_LIST:
-                if ( !ChatConfigurationModel.useDynamicMulticast() ) {
+                if ( !config.useDynamicMulticast() ) {
                     break; // Does not concern us if static MC groups are used.
                 }
                 if ( this.chatModel.getCurrentChat().getTopic().getName().toLowerCase()
@@ -429,11 +930,11 @@ public class Networking implements PropertyChangeListener {
                 this.notYetExpiredResponsesSeenFromOthers.add(chatMessage);
                 break;
             case DELETE_TOPIC_QUERY:
-                if ( !ChatConfigurationModel.useDynamicMulticast() ) {
+                if ( !config.useDynamicMulticast() ) {
                     break; // Does not concern us if static MC groups are used.
                 }
                 // Early break if we don't support dynamic topics
-                if ( !ChatConfigurationModel.useDynamicTopics() ) {
+                if ( !config.useDynamicTopics() ) {
                     break;
                 }
                 Topic dtopic = this.chatModel.getCurrentChat().getTopic();
@@ -441,46 +942,50 @@ public class Networking implements PropertyChangeListener {
                         && dtopic.getName().toLowerCase().equals(chatMessage.getTopic().getName().toLowerCase()) ) {
                     // We are in the chat being deleted, respond!
                     ChatMessage response = ChatMessage.createTopicInUseMessage(chatMessage.getTopic());
-                    final Acp142Message aResp = new Acp142Message();
-                    aResp.setData(response.getRawMessage());
                     ArrayList<Integer> dests = new ArrayList<Integer>(this.destinations);
-                    aResp.setDestinations(dests);
-                    aResp.setDynamic(ChatConfigurationModel.useDynamicMulticast());
-                    aResp.setExpiryTime((System.currentTimeMillis() / 1000)
-                            + ChatConfigurationModel.getDefaultTimeToLive());
-                    aResp.setSourceID(this.nodeId);
-                    aResp.setPersistent(ChatConfigurationModel.useDynamicMulticast()
-                            && ChatConfigurationModel.usePersistantGroups());
-                    new Thread() {
-                        public void run() {
-                            libjpmul.send(aResp);
-                        }
-                    }.start();
+                    sendQueued(response, dests, config.useDynamicMulticast()
+                            && config.usePersistantGroups());
                 }
                 break;
             case DELETE_TOPIC_SUCCESS:
-                if ( !ChatConfigurationModel.useDynamicMulticast() ) {
+                if ( !config.useDynamicMulticast() ) {
                     break; // Does not concern us if static MC groups are used.
                 }
                 // Early break if we don't support dynamic topics
-                if ( !ChatConfigurationModel.useDynamicTopics() ) {
+                if ( !config.useDynamicTopics() ) {
                     break;
                 }
                 this.topicModel.removeTopic(chatMessage.getTopic());
                 break;
             case GET_TOPICS:
-                if ( !ChatConfigurationModel.useDynamicMulticast() ) {
+                if ( !config.useDynamicMulticast() ) {
                     break; // Does not concern us if static MC groups are used.
                 }
                 // Early break if we don't support dynamic topics
-                if ( !ChatConfigurationModel.useDynamicTopics() ) {
+                if ( !config.useDynamicTopics() ) {
                     break;
                 }
                 ArrayList<Topic> listCopy = new ArrayList<Topic>(this.topicModel.getTopicList());
                 delayedConditionalSend(ChatMessage.createTopicListMessage(listCopy));
                 break;
+            case TOPIC_DIGEST:
+                if ( !config.useDynamicMulticast() ) {
+                    break; // Does not concern us if static MC groups are used.
+                }
+                // Early break if we don't support dynamic topics
+                if ( !config.useDynamicTopics() ) {
+                    break;
+                }
+                // Only send what differs, and nothing if the catalogs match
+                TopicDigest digest = new TopicDigest(new ArrayList<Topic>(this.topicModel.getTopicList()));
+                ArrayList<Topic> differing = digest.getTopicsDifferingFrom(chatMessage.getDigestRoot(),
+                        chatMessage.getDigestBuckets());
+                if ( !differing.isEmpty() ) {
+                    delayedConditionalSend(ChatMessage.createTopicListMessage(differing));
+                }
+                break;
             case JOIN_TOPIC:
-                if ( !ChatConfigurationModel.useDynamicMulticast() ) {
+                if ( !config.useDynamicMulticast() ) {
                     break; // Does not concern us if static MC groups are used.
                 }
                 topic = null;
@@ -526,11 +1031,11 @@ public class Networking implements PropertyChangeListener {
                 }
                 break;
             case NEW_TOPIC:
-                if ( !ChatConfigurationModel.useDynamicMulticast() ) {
+                if ( !config.useDynamicMulticast() ) {
                     break; // Does not concern us if static MC groups are used.
                 }
                 // Early break if we don't support dynamic topics
-                if ( !ChatConfigurationModel.useDynamicTopics() ) {
+                if ( !config.useDynamicTopics() ) {
                     break;
                 }
                 // Check to see if the topic already exists
@@ -545,11 +1050,11 @@ public class Networking implements PropertyChangeListener {
                 this.topicModel.addExistingTopic(chatMessage.getTopic());
                 break;
             case TOPIC_IN_USE:
-                if ( !ChatConfigurationModel.useDynamicMulticast() ) {
+                if ( !config.useDynamicMulticast() ) {
                     break; // Does not concern us if static MC groups are used.
                 }
                 // Early break if we don't support dynamic topics
-                if ( !ChatConfigurationModel.useDynamicTopics() ) {
+                if ( !config.useDynamicTopics() ) {
                     break;
                 }
                 for (Topic t : this.attemptedDeletedTopicsAwaitingTimeout) {
@@ -560,11 +1065,11 @@ public class Networking implements PropertyChangeListener {
                 }
                 break;
             case TOPIC_LIST:
-                if ( !ChatConfigurationModel.useDynamicMulticast() ) {
+                if ( !config.useDynamicMulticast() ) {
                     break; // Does not concern us if static MC groups are used.
                 }
                 // Early break if we don't support dynamic topics
-                if ( !ChatConfigurationModel.useDynamicTopics() ) {
+                if ( !config.useDynamicTopics() ) {
                     break;
                 }
                 for (Topic t : chatMessage.getTopics()) {
@@ -576,9 +1081,19 @@ public class Networking implements PropertyChangeListener {
                 this.notYetExpiredResponsesSeenFromOthers.add(chatMessage);
                 break;
             case NODE_LIST:
-                if ( !ChatConfigurationModel.useDynamicMulticast() ) {
+                if ( !config.useDynamicMulticast() ) {
                     break; // Does not concern us if static MC groups are used.
                 }
+                if ( !this.hasReceivedNodeList ) {
+                    ChatEvents.Discovery discovery = this.discoveryEvent;
+                    if ( discovery != null ) {
+                        discovery.end();
+                    }
+                    if ( discovery != null && discovery.shouldCommit() ) {
+                        discovery.nodes = chatMessage.getNodeList().size();
+                        discovery.commit();
+                    }
+                }
                 this.hasReceivedNodeList = true; // Note that we have received
                                                  // it
                 for (int id : chatMessage.getNodeList()) {
@@ -586,125 +1101,521 @@ public class Networking implements PropertyChangeListener {
                 }
                 // We only get NODE_LIST as a response to the broadcast packet
                 // we send on startup, so after receiving this, we send a
-                // GET_TOPICS once!
-                if ( notSentInitialGetTopic ) {
-                    final Acp142Message msg = new Acp142Message();
+                // TOPIC_DIGEST once! Nodes whose catalog differs from ours
+                // answer with the topics in the differing buckets only.
+                if ( this.notSentInitialGetTopic ) {
                     ArrayList<Integer> dests = new ArrayList<Integer>(this.destinations);
-                    msg.setDestinations(dests);
-                    msg.setDynamic(ChatConfigurationModel.useDynamicMulticast());
-                    msg.setExpiryTime((System.currentTimeMillis() / 1000L)
-                            + ChatConfigurationModel.getDefaultTimeToLive());
-                    msg.setSourceID(this.nodeId);
-                    ChatMessage cmsg = ChatMessage.createGetTopicsMessage();
-                    msg.setData(cmsg.getRawMessage());
-                    msg.setPersistent(false);
-                    new Thread() {
-                        public void run() {
-                            libjpmul.send(msg);
-                        }
-                    }.start();
-                    notSentInitialGetTopic = false;
+                    ChatMessage cmsg = ChatMessage.createTopicDigestMessage(new TopicDigest(new ArrayList<Topic>(
+                            this.topicModel.getTopicList())));
+                    sendQueued(cmsg, dests, false);
+                    this.notSentInitialGetTopic = false;
                 }
                 break;
             case NODE_LEAVE:
-                if ( !ChatConfigurationModel.useDynamicMulticast() ) {
+                // Whatever it sends next is a new sequence.
+                this.duplicateFilter.forget(chatMessage.getSenderId());
+                if ( !config.useDynamicMulticast() ) {
                     break; // Does not concern us if static MC groups are used.
                 }
+                this.failureDetector.forget((int) chatMessage.getSenderId());
+                this.compressionPeers.remove((int) chatMessage.getSenderId());
                 removeId((int) chatMessage.getSenderId());
                 break;
+            case HEARTBEAT:
+                if ( !config.useDynamicMulticast() ) {
+                    break; // Does not concern us if static MC groups are used.
+                }
+                if ( this.failureDetector.heartbeat(message.getSourceID(), System.currentTimeMillis(),
+                        config.getHeartbeatInterval()) ) {
+                    // New to us, or back after being taken for dead.
+                    addId(message.getSourceID());
+                }
+                if ( (chatMessage.getCapabilities() & PayloadCodec.CAPABILITY_COMPRESSION) != 0 ) {
+                    this.compressionPeers.add(message.getSourceID());
+                } else {
+                    this.compressionPeers.remove(message.getSourceID());
+                }
+                break;
+            case FILE_OFFER:
+                if ( chatMessage.getSenderId() == (this.nodeId & 0xffffffffL) ) {
+                    break;
+                }
+                acceptFile(chatMessage);
+                break;
+            case FILE_CHUNK:
+                receiveChunk(chatMessage);
+                break;
+            case FILE_CHUNK_REQUEST:
+                if ( chatMessage.getSenderId() != (this.nodeId & 0xffffffffL) ) {
+                    break; // Asked of whoever offered the file.
+                }
+                resendChunks(chatMessage, message.getSourceID());
+                break;
             default:
-                System.out.println("Networking.listenLibjpmul(): Unknown message type '" + chatMessage.getType() + "'.");
+                ChatLog.warning("Networking.listenLibjpmul()", "Unknown message type.", "type", chatMessage.getType(),
+                        "source", message.getSourceID());
                 break;
 
             }
+            this.metrics.messageDispatched(System.nanoTime() - dispatchStart);
+            dispatchEvent.end();
+            if ( dispatchEvent.shouldCommit() ) {
+                dispatchEvent.describe(chatMessage, message.getData().length, message.getSourceID());
+                dispatchEvent.commit();
+            }
         }
-        System.out.println("Stopped listenLibjpmul thread");
+        ChatLog.info("Networking.listenLibjpmul()", "Stopped listenLibjpmul thread.");
     }
 
     /**
-     * Listens for incoming messages on our broadcastSocket, then handles them.
+     * Sends a HEARTBEAT to all nodes in our destinations list. Run every
+     * ChatConfigurationModel.heartbeatInterval seconds on the scheduler, until
+     * shut down or restarted. Nothing is sent while in EMCON.
      * 
-     * For the workings of delayed responses, see
-     * Networking.delayedConditionalSend
+     * @param interval
+     *            seconds until the next heartbeat
+     */
+    private void sendHeartbeat(long interval) {
+        if ( this.isInEmcon ) {
+            return;
+        }
+        ArrayList<Integer> dests = new ArrayList<Integer>(this.destinations);
+        if ( dests.isEmpty() ) {
+            return;
+        }
+        ChatMessage msg = ChatMessage.createHeartbeatMessage();
+        Acp142Message message = createAcp142Message(msg, dests, false);
+        // A heartbeat is of no use once the next one is due.
+        message.setExpiryTime((System.currentTimeMillis() / 1000) + interval);
+        queue(message, msg, dests.size());
+    }
+
+    /**
+     * Writes our destinations, topics and current topic to the state snapshot
+     * file, if one is configured. See StateSnapshot.
+     */
+    private void saveSnapshot() {
+        String path = getConfiguration().getStateSnapshotFile();
+        if ( path.length() == 0 || this.topicModel == null ) {
+            return;
+        }
+        StateSnapshot snapshot = new StateSnapshot(this.nodeId, new ArrayList<Integer>(this.destinations),
+                this.topicModel.getTopicList(), this.chatModel.getCurrentChat().getTopic());
+        try {
+            snapshot.write(new File(path));
+        } catch (IOException e) {
+            ChatLog.error("Networking.saveSnapshot()", "Could not write state snapshot.", e, "file", path);
+        }
+    }
+
+    /**
+     * Loads the state snapshot file, if one is configured and exists, so we
+     * can send to the nodes and topics we knew of right away instead of
+     * waiting for NODE_LIST and TOPIC_LIST. Discovery still runs as normal and
+     * adds whatever changed while we were gone. Restored nodes are monitored by
+     * failureDetector as if they had just sent a heartbeat, so those that are
+     * gone are pruned, along with their subscriptions, once they miss their
+     * heartbeats.<br>
+     * Snapshots of another node ID are ignored. Topics not already in
+     * topicModel are only restored if they are mutable and dynamic topics are
+     * in use, and subscribers only with dynamic multicast.
+     */
+    private void restoreSnapshot() {
+        ChatConfiguration config = getConfiguration();
+        String path = config.getStateSnapshotFile();
+        if ( path.length() == 0 || !new File(path).exists() ) {
+            return;
+        }
+        StateSnapshot snapshot;
+        try {
+            snapshot = StateSnapshot.read(new File(path));
+        } catch (IOException e) {
+            ChatLog.warning("Networking.restoreSnapshot()", "Could not read state snapshot, starting cold.", "file",
+                    path, "reason", e.getMessage());
+            return;
+        }
+        if ( snapshot.getNodeId() != this.nodeId ) {
+            ChatLog.info("Networking.restoreSnapshot()", "State snapshot is of another node, ignoring it.", "file",
+                    path, "node", snapshot.getNodeId() & 0xffffffffL);
+            return;
+        }
+        boolean dynamic = config.useDynamicMulticast();
+        if ( dynamic ) {
+            long now = System.currentTimeMillis();
+            for (int id : snapshot.getDestinations()) {
+                if ( id != this.nodeId ) {
+                    addId(id);
+                    this.failureDetector.heartbeat(id, now, config.getHeartbeatInterval());
+                }
+            }
+        }
+
+        HashMap<String, Topic> known = new HashMap<String, Topic>();
+        for (Topic t : this.topicModel.getTopicList()) {
+            known.put(t.getName().toLowerCase(), t);
+        }
+        ArrayList<Topic> restored = new ArrayList<Topic>();
+        for (Topic t : snapshot.getTopics()) {
+            Topic topic = known.get(t.getName().toLowerCase());
+            if ( topic == null ) {
+                if ( !t.isMutable() || !config.useDynamicTopics() ) {
+                    continue;
+                }
+                topic = new Topic(t.getName());
+                restored.add(topic);
+            }
+            if ( dynamic ) {
+                for (Subscriber s : t.getSubscriberList()) {
+                    if ( s.getNodeId() != this.nodeId ) {
+                        topic.addSubscriber(s);
+                    }
+                }
+            }
+        }
+        this.topicModel.addTopics(restored);
+        this.restoredTopic = snapshot.getCurrentTopic();
+        ChatLog.info("Networking.restoreSnapshot()", "Restored state snapshot.", "file", path, "age",
+                (System.currentTimeMillis() - snapshot.getTimeWritten()) / 1000, "nodes",
+                snapshot.getDestinations().size(), "topics", snapshot.getTopics().size());
+    }
+
+    /**
+     * Gets the topic we were in according to the state snapshot loaded on
+     * startup, so the front end can rejoin it.
      * 
-     * Is not started if static multicast groups are used.
+     * @return Name of the topic, or null if none was restored.
      */
-    public void listenBroadcast() {
-        // First make sure that we wait until we are out of EMCON to do
-        // anything.
-        while (this.isInEmcon) {
-            // Sleep half a second
+    public String getRestoredTopic() {
+        return this.restoredTopic;
+    }
+
+    /**
+     * Removes all nodes failureDetector suspects from our destinations list
+     * and from the subscriber lists of all topics, as if they had sent
+     * NODE_LEAVE. A notice is added to the chats of the topics they were in.
+     */
+    private void pruneDeadNodes() {
+        ArrayList<Integer> suspects = this.failureDetector.getSuspects(
+                getConfiguration().getFailureDetectorThreshold(), System.currentTimeMillis());
+        for (int id : suspects) {
+            ChatLog.info("Networking.pruneDeadNodes()", "Node stopped sending heartbeats, removing it.", "node",
+                    id & 0xffffffffL);
+            this.failureDetector.forget(id);
+            this.compressionPeers.remove(id);
+            this.duplicateFilter.forget(id & 0xffffffffL);
+            removeId(id);
+            for (Topic t : new ArrayList<Topic>(this.topicModel.getTopicList())) {
+                Subscriber sub = t.removeSubscriber(id);
+                if ( sub != null ) {
+                    addNotice(t, "User '" + sub.getUserName() + "' timed out.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a notice from the system user to the chat of the given topic, if
+     * that chat exists.
+     * 
+     * @param topic
+     *            our instance of the topic
+     * @param text
+     *            of the notice
+     */
+    private void addNotice(Topic topic, String text) {
+        Message notice = new Message(new Subscriber(0, ChatModel.getTimeAsString()), text);
+        if ( topic == this.chatModel.getCurrentChat().getTopic() ) {
+            this.chatModel.addMessage(notice);
+            return;
+        }
+        for (Chat c : this.chatModel.getChatList()) {
+            if ( c.getTopic() == topic ) {
+                c.addMessage(notice);
+                return;
+            }
+        }
+    }
+
+    // ------------------------- FILE TRANSFER --------------------------------
+
+    /**
+     * Offers a file to the subscribers of the current topic, then streams its
+     * chunks to them on a thread of its own. Chunks are read from the file as
+     * they are sent, at most FileTransfers.WINDOW at a time waiting in the
+     * send queue, so sending a large file neither fills memory nor holds up
+     * control traffic. Offering the same, unchanged file again lets receivers
+     * that did not get all of it resume where they stopped.
+     * 
+     * @param file
+     *            to send
+     * @return true if the file is being sent, false if it could not be opened
+     *         or there is no one to send it to.
+     */
+    public boolean sendFile(File file) {
+        Topic topic = this.chatModel.getCurrentChat().getTopic();
+        final ArrayList<Integer> dests = getTopicDestinations(topic);
+        if ( dests.isEmpty() ) {
+            return false;
+        }
+        final FileTransfers.Outgoing transfer;
+        try {
+            transfer = this.fileTransfers.offer(file, topic);
+        } catch (IOException e) {
+            ChatLog.error("Networking.sendFile()", "Could not open file to send.", e, "file", file);
+            return false;
+        }
+        ChatLog.info("Networking.sendFile()", "Offering file.", "file", file, "size", transfer.getSize(), "chunks",
+                transfer.getChunkCount(), "transfer", Integer.toHexString(transfer.getTransferId()));
+        sendQueued(ChatMessage.createFileOfferMessage(this.nodeId, transfer.getTransferId(), topic,
+                transfer.getName(), transfer.getSize(), transfer.getChunkSize()), dests, false);
+        this.executor.execute(new Runnable() {
+            public void run() {
+                streamChunks(transfer, 0, transfer.getChunkCount(), dests);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Reads and queues a range of chunks of a file we offer, blocking while
+     * FileTransfers.WINDOW of its chunks wait in the send queue.
+     * 
+     * @param transfer
+     *            the chunks are of
+     * @param first
+     *            index of first chunk
+     * @param count
+     *            number of chunks
+     * @param dests
+     *            to send the chunks to
+     */
+    private void streamChunks(FileTransfers.Outgoing transfer, long first, long count, ArrayList<Integer> dests) {
+        Semaphore window = transfer.getWindow();
+        boolean persistent = getConfiguration().useDynamicMulticast()
+                && keepsGroup(transfer.getTopic(), dests);
+        long end = Math.min(first + count, transfer.getChunkCount());
+        for (long i = first; i < end && this.isRunning; ++i) {
+            window.acquireUninterruptibly();
+            ChatMessage chunk;
             try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                System.out.println("Networking.listenLibjpmul(): Could not sleep while in EMCON");
-                e.printStackTrace();
+                chunk = transfer.readChunk(this.nodeId, i);
+            } catch (IOException e) {
+                window.release();
+                ChatLog.error("Networking.streamChunks()", "Could not read chunk of file.", e, "file",
+                        transfer.getName(), "chunk", i);
+                return;
             }
+            queue(createAcp142Message(chunk, dests, persistent), chunk, dests.size(), window);
         }
+    }
+
+    /**
+     * Starts receiving an offered file, if it is offered to a topic we
+     * subscribe to and is no larger than
+     * ChatConfigurationModel.maximumFileTransferSize.
+     * 
+     * @param offer
+     *            the FILE_OFFER received
+     */
+    private void acceptFile(ChatMessage offer) {
+        Topic topic = findTopic(offer.getTopic());
+        if ( topic == null || !isSubscribed(topic) ) {
+            ChatLog.debug("Networking.acceptFile()", "Ignored file offered to a topic we are not in.", "file",
+                    offer.getFileName(), "topic", offer.getTopic().getName(), "sender", offer.getSenderId());
+            return;
+        }
+        ChatConfiguration config = getConfiguration();
+        FileTransfers.Incoming transfer;
+        try {
+            transfer = this.fileTransfers.accept(offer, new File(config.getFileTransferDirectory()),
+                    config.getMaximumFileTransferSize());
+        } catch (IOException e) {
+            ChatLog.warning("Networking.acceptFile()", "Could not receive offered file.", "file",
+                    offer.getFileName(), "sender", offer.getSenderId(), "reason", e.getMessage());
+            return;
+        }
+        addNotice(topic, (transfer.isResumed() ? "Resuming file '" : "Receiving file '") + transfer.getName() + "' ("
+                + transfer.getSize() + " bytes).");
+        if ( transfer.isComplete() ) {
+            // Everything was received before we were suspended.
+            completeFile(transfer);
+        }
+    }
+
+    /**
+     * Writes a received chunk to the file it belongs to, if we receive that
+     * file.
+     * 
+     * @param chunk
+     *            the FILE_CHUNK received
+     */
+    private void receiveChunk(ChatMessage chunk) {
+        FileTransfers.Incoming transfer = this.fileTransfers.getIncoming(chunk.getSenderId(), chunk.getTransferId());
+        if ( transfer == null ) {
+            return; // Not offered to us, or already complete.
+        }
+        try {
+            if ( transfer.write(chunk) ) {
+                completeFile(transfer);
+            }
+        } catch (IOException e) {
+            ChatLog.warning("Networking.receiveChunk()", "Dropped file chunk.", "file", transfer.getName(), "chunk",
+                    chunk.getChunkIndex(), "reason", e.getMessage());
+        }
+    }
 
-        System.out.println("Started listenBroadcast thread");
+    /**
+     * Moves a completely received file into place and tells the user.
+     * 
+     * @param transfer
+     *            that is complete
+     */
+    private void completeFile(FileTransfers.Incoming transfer) {
+        this.fileTransfers.remove(transfer);
+        Topic topic = findTopic(transfer.getTopic());
+        try {
+            File file = transfer.complete();
+            ChatLog.info("Networking.completeFile()", "Received file.", "file", file);
+            if ( topic != null ) {
+                addNotice(topic, "Received file '" + transfer.getName() + "', saved as " + file.getPath() + ".");
+            }
+        } catch (IOException e) {
+            ChatLog.error("Networking.completeFile()", "Could not save received file.", e, "file",
+                    transfer.getName());
+        }
+    }
 
-        new Thread() {
+    /**
+     * Sends the chunks asked for in a FILE_CHUNK_REQUEST for a file we offer
+     * again, to the node asking only, on a thread of its own.
+     * 
+     * @param request
+     *            the FILE_CHUNK_REQUEST received
+     * @param requester
+     *            node ID of the node asking
+     */
+    private void resendChunks(ChatMessage request, int requester) {
+        final FileTransfers.Outgoing transfer = this.fileTransfers.getOutgoing(request.getTransferId());
+        if ( transfer == null ) {
+            return; // Not offered since we started.
+        }
+        final ArrayList<SequenceRange> ranges = request.getRanges();
+        final ArrayList<Integer> dests = new ArrayList<Integer>();
+        dests.add(requester);
+        this.executor.execute(new Runnable() {
             public void run() {
-                InetSocketAddress addr;
-                MulticastSocket sendSocket;
-                try {
-                    addr = new InetSocketAddress(Configuration.getBindInterfaceAddress(),
-                            ConfigurationModel.getBroadcastPort());
-                    sendSocket = new MulticastSocket(addr);
-                } catch (IOException e1) {
-                    System.out.println("Could not bind to broadcast send socket in Networking.");
-                    return;
+                for (SequenceRange range : ranges) {
+                    streamChunks(transfer, range.getFirst(), range.getCount(), dests);
                 }
-                while (!hasReceivedNodeList) {
-                    // Start by sending out our node id to get the destination
-                    // list!
-                    DatagramPacket outMessage = new DatagramPacket(new byte[4], 4);
-                    outMessage.getData()[0] = (byte) ((nodeId >> 24) & 0xff);
-                    outMessage.getData()[1] = (byte) ((nodeId >> 16) & 0xff);
-                    outMessage.getData()[2] = (byte) ((nodeId >> 8) & 0xff);
-                    outMessage.getData()[3] = (byte) (nodeId & 0xff);
-                    outMessage.setAddress(ChatConfigurationModel.getBroadcastGroup());
-                    outMessage.setPort(ChatConfigurationModel.getBroadcastPort());
-                    try {
-                        sendSocket.send(outMessage);
-                    } catch (IOException e) {
-                        System.out.println("Networking.listenBroadcast(): Could not ask for destinations, exception:");
-                        e.printStackTrace();
-                    }
-                    try {
-                        Thread.sleep(2000);
-                    } catch (InterruptedException e) {
-                        System.out.println("Networking.listenLibjpmul(): Could not sleep");
-                        e.printStackTrace();
-                    }
+            }
+        });
+    }
+
+    /**
+     * Asks the senders of files we receive that have stalled for the chunks
+     * still missing, see FileTransfers. Transfers whose requests have gone
+     * unanswered FileTransfers.MAXIMUM_REQUESTS times are suspended, to be
+     * resumed if the file is offered again.
+     */
+    private void requestMissingChunks() {
+        for (FileTransfers.Incoming transfer : this.fileTransfers.getStalled(System.currentTimeMillis())) {
+            Topic topic = findTopic(transfer.getTopic());
+            if ( transfer.getRequests() >= FileTransfers.MAXIMUM_REQUESTS ) {
+                this.fileTransfers.remove(transfer);
+                transfer.suspend();
+                ChatLog.info("Networking.requestMissingChunks()", "File transfer stalled, suspending it.", "file",
+                        transfer.getName(), "sender", transfer.getSenderId());
+                if ( topic != null ) {
+                    addNotice(topic, "Gave up on file '" + transfer.getName()
+                            + "', it is resumed if it is sent again.");
+                }
+                continue;
+            }
+            ArrayList<Integer> dests = new ArrayList<Integer>();
+            dests.add((int) transfer.getSenderId());
+            sendQueued(ChatMessage.createFileChunkRequestMessage(transfer.getSenderId(), transfer.getTransferId(),
+                    transfer.request(ChatMessage.MAXIMUM_BATCH_COUNT)), dests, false);
+        }
+    }
+
+    /**
+     * Sends our node ID on the broadcast channel, asking the nodes listening
+     * there to answer with a NODE_LIST. Run every DISCOVERY_INTERVAL seconds
+     * on the scheduler, until a NODE_LIST is received, or shut down or
+     * restarted.
+     * 
+     * @param channel
+     *            to send on
+     * @param discovery
+     *            event timing this discovery
+     */
+    private void sendDiscoveryQuery(BroadcastChannel channel, ChatEvents.Discovery discovery) {
+        ++discovery.queries;
+        byte[] data = new byte[4];
+        data[0] = (byte) ((this.nodeId >> 24) & 0xff);
+        data[1] = (byte) ((this.nodeId >> 16) & 0xff);
+        data[2] = (byte) ((this.nodeId >> 8) & 0xff);
+        data[3] = (byte) (this.nodeId & 0xff);
+        try {
+            channel.send(data);
+        } catch (IOException e) {
+            ChatLog.error("Networking.sendDiscoveryQuery()", "Could not ask for destinations.", e);
+        }
+    }
+
+    /**
+     * Listens for incoming messages on our broadcastChannel, then handles
+     * them. Our own queries are sent by sendDiscoveryQuery.
+     * 
+     * For the workings of delayed responses, see
+     * Networking.delayedConditionalSend
+     * 
+     * Is not started if static multicast groups are used. Runs until shut
+     * down or restarted.
+     * 
+     * @param epoch
+     *            of broadcastEpoch this thread was started at.
+     */
+    public void listenBroadcast(final int epoch) {
+        final BroadcastChannel channel = this.broadcastChannel;
+        // First make sure that we wait until we are out of EMCON to do
+        // anything.
+        while (this.isInEmcon && isCurrent(epoch)) {
+            // Sleep half a second
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException e) {
+                if ( isCurrent(epoch) ) {
+                    ChatLog.error("Networking.listenBroadcast()", "Could not sleep while in EMCON.", e);
                 }
-                sendSocket.close();
             }
-        }.start();
+        }
+
+        ChatLog.info("Networking.listenBroadcast()", "Started listenBroadcast thread.");
 
         // Now listen for incoming messages
         byte[] data = new byte[1024];
-        while (this.isRunning) {
-            DatagramPacket message = new DatagramPacket(data, data.length);
+        while (isCurrent(epoch)) {
+            int length;
             try {
-                this.broadcastSocket.receive(message);
+                length = channel.receive(data);
             } catch (IOException e) {
-                if ( e instanceof SocketTimeoutException ) {
-                    System.out.println("Networking.listenBroadcast(): Message receive timed out.");
+                if ( !isCurrent(epoch) ) {
+                    break; // The channel was closed to stop us.
+                } else if ( e instanceof SocketTimeoutException ) {
+                    ChatLog.debug("Networking.listenBroadcast()", "Message receive timed out.");
                 } else {
-                    System.out.println("Networking.listenBroadcast(): Error receiving message:");
-                    e.printStackTrace();
+                    ChatLog.error("Networking.listenBroadcast()", "Error receiving message.", e);
                 }
                 continue;
             }
             // Check for edge cases.
-            if ( message.getData() == null || message.getData().length < 4 ) {
+            if ( length < 4 ) {
                 continue;
             }
             // Handle incoming messages
-            int id = ((message.getData()[0] & 0xff) << 24) + ((message.getData()[1] & 0xff) << 16)
-                    + ((message.getData()[2] & 0xff) << 8) + (message.getData()[3] & 0xff);
+            int id = ((data[0] & 0xff) << 24) + ((data[1] & 0xff) << 16) + ((data[2] & 0xff) << 8)
+                    + (data[3] & 0xff);
             // Check if it is from ourselves, if so, skip it
             if ( id == this.nodeId || id == 0 ) {
                 continue;
@@ -716,20 +1627,9 @@ public class Networking implements PropertyChangeListener {
             addId(id);
             // Answer
             ChatMessage msg = ChatMessage.createNodeIdListMessage(dests);
-            final Acp142Message aResp = new Acp142Message();
-            aResp.setData(msg.getRawMessage());
             ArrayList<Integer> dest = new ArrayList<Integer>();
             dest.add(id);
-            aResp.setDestinations(dest);
-            aResp.setDynamic(ChatConfigurationModel.useDynamicMulticast());
-            aResp.setExpiryTime((System.currentTimeMillis() / 1000) + ChatConfigurationModel.getDefaultTimeToLive());
-            aResp.setSourceID(this.nodeId);
-            aResp.setPersistent(false);
-            new Thread() {
-                public void start() {
-                    libjpmul.send(aResp);
-                }
-            }.start();
+            sendQueued(msg, dest, false);
         }
     }
 
@@ -741,7 +1641,7 @@ public class Networking implements PropertyChangeListener {
      *            Topic to join
      */
     public void changeTopic(Topic newTopic) {
-        if ( !ChatConfigurationModel.useDynamicMulticast() ) {
+        if ( !getConfiguration().useDynamicMulticast() ) {
             return; // If static multicast is used, we don't actually transmit
                     // anything here.
         }
@@ -750,7 +1650,6 @@ public class Networking implements PropertyChangeListener {
         if ( oldTopic != null ) {
             // Is null in the initial non-topic topic.
             ChatMessage message = ChatMessage.createLeaveTopicMessage(oldTopic);
-            final Acp142Message amsg = new Acp142Message();
             ArrayList<Integer> destinations = new ArrayList<Integer>();
             for (Subscriber s : oldTopic.getSubscriberList()) {
                 if ( s.getNodeId() == this.nodeId ) {
@@ -758,38 +1657,17 @@ public class Networking implements PropertyChangeListener {
                 }
                 destinations.add((int) s.getNodeId());
             }
-            amsg.setDestinations(destinations);
-            amsg.setData(message.getRawMessage());
-            amsg.setDynamic(ChatConfigurationModel.useDynamicMulticast());
-            amsg.setExpiryTime((System.currentTimeMillis() / 1000) + ChatConfigurationModel.getDefaultTimeToLive());
-            amsg.setSourceID(this.nodeId);
-            amsg.setPersistent(false); // Destroy the multicast groups if there
-                                       // is one.
-            new Thread() {
-                public void run() {
-                    libjpmul.send(amsg);
-                }
-            }.start();
+            // Not persistent: Destroy the multicast groups if there is one.
+            sendQueued(message, destinations, false);
         }
 
         // Notify new topic (this should trigger someone to respond with
         // subscribers)
         ChatMessage message = ChatMessage.createJoinTopicMessage(newTopic, this.chatModel.getCurrentChat().getSelf()
                 .getUserName());
-        final Acp142Message amsg = new Acp142Message();
         ArrayList<Integer> dests = new ArrayList<Integer>(this.destinations);
-        amsg.setDestinations(dests);
-        amsg.setData(message.getRawMessage());
-        amsg.setDynamic(ChatConfigurationModel.useDynamicMulticast());
-        amsg.setExpiryTime((System.currentTimeMillis() / 1000) + ChatConfigurationModel.getDefaultTimeToLive());
-        amsg.setSourceID(this.nodeId);
-        amsg.setPersistent(false); // Destroy the multicast groups if there is
-                                   // one.
-        new Thread() {
-            public void run() {
-                libjpmul.send(amsg);
-            }
-        }.start();
+        // Not persistent: Destroy the multicast groups if there is one.
+        sendQueued(message, dests, false);
     }
 
     /**
@@ -801,27 +1679,18 @@ public class Networking implements PropertyChangeListener {
      *            The newly created topic.
      */
     public void createTopic(Topic topic) {
-        if ( !ChatConfigurationModel.useDynamicMulticast() ) {
+        ChatConfiguration config = getConfiguration();
+        if ( !config.useDynamicMulticast() ) {
             return; // If static multicast is used, we can't create topics
         }
         // Early break if we don't support dynamic topics
-        if ( !ChatConfigurationModel.useDynamicTopics() ) {
+        if ( !config.useDynamicTopics() ) {
             return;
         }
         ChatMessage message = ChatMessage.createNewTopicMessage(topic);
-        final Acp142Message amsg = new Acp142Message();
         ArrayList<Integer> dests = new ArrayList<Integer>(this.destinations);
-        amsg.setDestinations(dests);
-        amsg.setData(message.getRawMessage());
-        amsg.setDynamic(ChatConfigurationModel.useDynamicMulticast());
-        amsg.setExpiryTime((System.currentTimeMillis() / 1000) + ChatConfigurationModel.getDefaultTimeToLive());
-        amsg.setSourceID(this.nodeId);
-        amsg.setPersistent(ChatConfigurationModel.useDynamicMulticast() && ChatConfigurationModel.usePersistantGroups());
-        new Thread() {
-            public void run() {
-                libjpmul.send(amsg);
-            }
-        }.start();
+        sendQueued(message, dests,
+                config.useDynamicMulticast() && config.usePersistantGroups());
     }
 
     /**
@@ -834,60 +1703,38 @@ public class Networking implements PropertyChangeListener {
      *            to delete
      */
     public void deleteTopic(final Topic topic) {
-        if ( !ChatConfigurationModel.useDynamicMulticast() ) {
+        final ChatConfiguration config = getConfiguration();
+        if ( !config.useDynamicMulticast() ) {
             return; // If static multicast is used, we can't delete topics.
         }
         // Early break if we don't support dynamic topics
-        if ( !ChatConfigurationModel.useDynamicTopics() ) {
+        if ( !config.useDynamicTopics() ) {
             return;
         }
         // Store the topic in our list
         this.attemptedDeletedTopicsAwaitingTimeout.add(topic);
         // Announce the delete
         ChatMessage message = ChatMessage.createDeleteTopicQueryMessage(topic);
-        final Acp142Message amsg = new Acp142Message();
         ArrayList<Integer> dests = new ArrayList<Integer>(this.destinations);
-        amsg.setDestinations(dests);
-        amsg.setData(message.getRawMessage());
-        amsg.setDynamic(ChatConfigurationModel.useDynamicMulticast());
-        amsg.setExpiryTime((System.currentTimeMillis() / 1000) + ChatConfigurationModel.getDefaultTimeToLive());
-        amsg.setSourceID(this.nodeId);
-        amsg.setPersistent(ChatConfigurationModel.useDynamicMulticast() && ChatConfigurationModel.usePersistantGroups());
-        new Thread() {
-            public void run() {
-                libjpmul.send(amsg);
-            }
-        }.start();
+        sendQueued(message, dests,
+                config.useDynamicMulticast() && config.usePersistantGroups());
 
         // Sleep in a new thread
-        new Thread() {
+        this.executor.execute(new Runnable() {
             public void run() {
                 // Sleep
                 try {
-                    sleep((long) (ChatConfigurationModel.getWaitForInUseResponse() * 1000.0));
+                    Thread.sleep((long) (config.getWaitForInUseResponse() * 1000.0));
                 } catch (InterruptedException e) {
-                    System.out.println("Networking.deleteTopic(): Sleep interrupted:");
-                    e.printStackTrace();
+                    ChatLog.error("Networking.deleteTopic()", "Sleep interrupted.", e);
                 }
                 // Check if it is still wanted deleted
                 if ( attemptedDeletedTopicsAwaitingTimeout.contains(topic) ) {
                     // Announce the successful delete
                     ChatMessage message = ChatMessage.createDeleteTopicSuccessMessage(topic);
-                    final Acp142Message amsg = new Acp142Message();
                     ArrayList<Integer> dests = new ArrayList<Integer>(destinations);
-                    amsg.setDestinations(dests);
-                    amsg.setData(message.getRawMessage());
-                    amsg.setDynamic(ChatConfigurationModel.useDynamicMulticast());
-                    amsg.setExpiryTime((System.currentTimeMillis() / 1000)
-                            + ChatConfigurationModel.getDefaultTimeToLive());
-                    amsg.setSourceID(nodeId);
-                    amsg.setPersistent(ChatConfigurationModel.useDynamicMulticast()
-                            && ChatConfigurationModel.usePersistantGroups());
-                    new Thread() {
-                        public void run() {
-                            libjpmul.send(amsg);
-                        }
-                    }.start();
+                    sendQueued(message, dests, config.useDynamicMulticast()
+                            && config.usePersistantGroups());
                     // In case we have gotten a TOPIC_LIST with this topic in is
                     // since we started the deletion, delete the topic again.
                     topicModel.removeTopic(topic);
@@ -897,37 +1744,415 @@ public class Networking implements PropertyChangeListener {
                 }
                 // Return
             }
-        }.start();
+        });
     }
 
     /**
-     * Sends the message given to all subscribers in the current chat.
+     * Sends the message given to all subscribers in the current chat, unless
+     * ChatConfigurationModel.sendQueueByteBudget bytes are already waiting to
+     * be sent to that topic. Never blocks. The send state of the topic in
+     * chatModel is updated either way.
      * 
      * @param message
      *            to send
+     * @return true if the message was accepted for sending, false if it was
+     *         refused because too much is waiting.
+     */
+    public boolean trySend(Message message) {
+        ChatConfiguration config = getConfiguration();
+        Topic topic = this.chatModel.getCurrentChat().getTopic();
+        if ( !this.sendBudget.reserve(topic, SendBudget.sizeOf(message.getContent()),
+                config.getSendQueueByteBudget()) ) {
+            this.chatModel.setSendState(topic, ChatModel.SendState.QUEUE_FULL);
+            return false;
+        }
+        this.chatModel.setSendState(topic, ChatModel.SendState.SENDING);
+        ArrayList<Integer> destinations = getTopicDestinations(topic);
+        long sequenceNumber = nextSequenceNumber(topic);
+        this.history.record(this.nodeId & 0xffffffffL, topic, sequenceNumber, message.getContent());
+        // Then send it, or leave it to the batcher
+        if ( config.useMessageBatching() ) {
+            this.batcher.add(message, topic, destinations, sequenceNumber);
+        } else {
+            sendChatMessage(ChatMessage.createSendMessageMessage(message, topic, sequenceNumber), destinations);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the sequence number of the next chat message we send to the given
+     * topic.
+     * 
+     * @param topic
+     *            the message is sent to
+     * @return The sequence number, as an unsigned int.
+     */
+    private synchronized long nextSequenceNumber(Topic topic) {
+        String key = topic.getName().toLowerCase();
+        Integer next = this.nextSequenceNumbers.get(key);
+        if ( next == null ) {
+            next = this.random.nextInt();
+        }
+        this.nextSequenceNumbers.put(key, next + 1);
+        return next & 0xffffffffL;
+    }
+
+    /**
+     * Delivers the contents of a received SEND_MESSAGE, SEND_MESSAGE_BATCH or
+     * HISTORY_RESPONSE to the chat of its topic. Contents already delivered
+     * are dropped before anything else, so retransmitted copies and copies
+     * arriving through more than one group cost no topic or subscriber
+     * lookups. If we have received it, it is meant for us: in static multicast
+     * mode it may be to any topic, in dynamic mode it must be the active one
+     * (or one we just left).<br>
+     * Chat messages are only delivered from known subscribers of the topic. A
+     * HISTORY_RESPONSE is delivered whoever sent the messages in it, as the
+     * sender having crashed or left is the usual reason they were missed.
+     * Contents are only marked as seen once delivered, so a retransmit or a
+     * backfill can still deliver contents that were not.
+     * 
+     * @param chatMessage
+     *            received
+     */
+    private void deliverMessages(ChatMessage chatMessage) {
+        ArrayList<Long> sequenceNumbers = new ArrayList<Long>();
+        ArrayList<String> contents = dropDuplicates(chatMessage, sequenceNumbers);
+        if ( contents.isEmpty() ) {
+            return;
+        }
+        Topic topic = findTopic(chatMessage.getTopic());
+        if ( topic == null ) {
+            return;
+        }
+        Subscriber sender = null;
+        for (Subscriber s : topic.getSubscriberList()) {
+            if ( s.getNodeId() == chatMessage.getSenderId() ) {
+                sender = s;
+                break;
+            }
+        }
+        if ( sender == null ) {
+            if ( chatMessage.getType() != ChatMessageType.HISTORY_RESPONSE ) {
+                // Not yet known as a subscriber, e.g. its JOIN_TOPIC is still
+                // under way.
+                return;
+            }
+            // The response only carries the node ID of the sender.
+            sender = new Subscriber(chatMessage.getSenderId(), "Node " + chatMessage.getSenderId());
+        }
+        // Check if it is sent to the active chat
+        if ( topic == this.chatModel.getCurrentChat().getTopic() ) {
+            for (String content : contents) {
+                this.chatModel.addMessage(new Message(sender, content));
+            }
+        } else {
+            // Message meant for an inactive chat, find it
+            Chat chat = null;
+            for (Chat c : this.chatModel.getChatList()) {
+                if ( c.getTopic() == topic ) {
+                    chat = c;
+                    break;
+                }
+            }
+            if ( chat == null ) {
+                // The chat has not yet been created in chatmodel.
+                // Create it here.
+                chat = new Chat(topic, this.chatModel.getCurrentChat().getSelf());
+                this.chatModel.getChatList().add(chat);
+            }
+            for (String content : contents) {
+                chat.addMessage(new Message(sender, content));
+            }
+        }
+        // Only what reached a chat of ours is marked as seen and offered to
+        // others.
+        for (int i = 0; i < sequenceNumbers.size(); ++i) {
+            this.duplicateFilter.isDuplicate(chatMessage.getSenderId(), topic, sequenceNumbers.get(i));
+            this.history.record(chatMessage.getSenderId(), topic, sequenceNumbers.get(i), contents.get(i));
+        }
+        checkForGaps(chatMessage.getSenderId(), topic);
+    }
+
+    /**
+     * Filters the contents of a received SEND_MESSAGE, SEND_MESSAGE_BATCH or
+     * HISTORY_RESPONSE through duplicateFilter, without marking them as seen.
+     * Messages from senders that do not include sequence numbers are all let
+     * through.
+     * 
+     * @param message
+     *            received
+     * @param sequenceNumbers
+     *            list the sequence number of each content let through is
+     *            added to. Left empty if the sender does not number messages.
+     * @return The contents not seen before, in order.
      */
-    public void sendMessage(Message message) {
-        // Then send it
-        ChatMessage msg = ChatMessage.createSendMessageMessage(message, this.chatModel.getCurrentChat().getTopic());
-        final Acp142Message amsg = new Acp142Message();
+    private ArrayList<String> dropDuplicates(ChatMessage message, ArrayList<Long> sequenceNumbers) {
+        ArrayList<String> contents = message.getMessages();
+        long first = message.getSequenceNumber();
+        if ( first < 0 ) {
+            return contents;
+        }
+        ArrayList<String> fresh = new ArrayList<String>(contents.size());
+        for (int i = 0; i < contents.size(); ++i) {
+            long sequenceNumber = (first + i) & 0xffffffffL;
+            if ( this.duplicateFilter.isSeen(message.getSenderId(), message.getTopic(), sequenceNumber) ) {
+                this.metrics.duplicateDropped();
+            } else {
+                sequenceNumbers.add(sequenceNumber);
+                fresh.add(contents.get(i));
+            }
+        }
+        return fresh;
+    }
+
+    /**
+     * Checks whether messages from the given sender to the given topic are
+     * missing. If so, a thread is started that waits
+     * ChatConfigurationModel.maxWaitForRespond for them to arrive late (or be
+     * delivered by someone else), then sends a HISTORY_REQUEST for the ones
+     * still missing to the other subscribers of the topic. Every missing
+     * sequence number is only asked for once.
+     * 
+     * @param senderId
+     *            node ID of the sender
+     * @param topic
+     *            the messages were sent to
+     */
+    private void checkForGaps(final long senderId, final Topic topic) {
+        if ( this.duplicateFilter.getMissing(senderId, topic, false).isEmpty() ) {
+            return;
+        }
+        final String key = senderId + "/" + topic.getName().toLowerCase();
+        if ( !this.pendingGapChecks.add(key) ) {
+            return;
+        }
+        this.executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(getConfiguration().getMaximumWaitForResponseOnDelayedSend());
+                } catch (InterruptedException e) {
+                    ChatLog.error("Networking.checkForGaps()", "Sleep interrupted.", e);
+                }
+                pendingGapChecks.remove(key);
+                ArrayList<SequenceRange> missing = duplicateFilter.getMissing(senderId, topic, true);
+                if ( missing.isEmpty() ) {
+                    return;
+                }
+                if ( missing.size() > ChatMessage.MAXIMUM_BATCH_COUNT ) {
+                    missing = new ArrayList<SequenceRange>(missing.subList(0, ChatMessage.MAXIMUM_BATCH_COUNT));
+                }
+                ArrayList<Integer> dests = getTopicDestinations(topic);
+                if ( dests.isEmpty() ) {
+                    return;
+                }
+                ChatLog.debug("Networking.checkForGaps()", "Requesting missing messages.", "sender", senderId,
+                        "topic", topic.getName(), "ranges", missing.size());
+                sendQueued(ChatMessage.createHistoryRequestMessage(senderId, topic, missing), dests, false);
+            }
+        });
+    }
+
+    /**
+     * Answers a HISTORY_REQUEST with the messages asked for that are still in
+     * history. Consecutive messages are sent together in one HISTORY_RESPONSE,
+     * bounded like batches by ChatMessage.MAXIMUM_BATCH_COUNT and
+     * ChatConfigurationModel.messageBatchMaxSize. Each response is a delayed
+     * response, so only one of the nodes holding the messages sends it.
+     * 
+     * @param request
+     *            received
+     */
+    private void sendHistory(ChatMessage request) {
+        long senderId = request.getSenderId();
+        // Our own instance, as the responses go to its destination list.
+        Topic topic = findTopic(request.getTopic());
+        if ( topic == null ) {
+            return; // Nothing is recorded for topics we do not know.
+        }
+        for (SequenceRange range : request.getRanges()) {
+            ArrayList<String> run = new ArrayList<String>();
+            long runStart = 0;
+            int runSize = 0;
+            for (int i = 0; i < range.getCount(); ++i) {
+                long sequenceNumber = (range.getFirst() + i) & 0xffffffffL;
+                String content = this.history.get(senderId, topic, sequenceNumber);
+                int length = 0;
+                if ( content != null ) {
+                    try {
+                        length = content.getBytes("UTF-8").length;
+                    } catch (UnsupportedEncodingException e) {
+                        ChatLog.error("Networking.sendHistory()", "UTF-8 not supported.", e);
+                        return;
+                    }
+                }
+                // Send the run so far if this message does not belong in it
+                boolean fits = content != null && run.size() < ChatMessage.MAXIMUM_BATCH_COUNT
+                        && runSize + length <= getConfiguration().getMessageBatchMaxSize();
+                if ( !run.isEmpty() && !fits ) {
+                    delayedConditionalSend(ChatMessage.createHistoryResponseMessage(senderId, topic, run, runStart));
+                    run = new ArrayList<String>();
+                    runSize = 0;
+                }
+                if ( content != null ) {
+                    if ( run.isEmpty() ) {
+                        runStart = sequenceNumber;
+                    }
+                    run.add(content);
+                    runSize += length;
+                }
+            }
+            if ( !run.isEmpty() ) {
+                delayedConditionalSend(ChatMessage.createHistoryResponseMessage(senderId, topic, run, runStart));
+            }
+        }
+    }
+
+    /**
+     * Finds our own instance of a topic received in a message.
+     * 
+     * @param topic
+     *            as received
+     * @return The topic in topicModel with the same name, or null if none.
+     */
+    private Topic findTopic(Topic topic) {
+        for (Topic t : this.topicModel.getTopicList()) {
+            if ( t.getName().toLowerCase().equals(topic.getName().toLowerCase()) ) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether we subscribe to the given topic.
+     * 
+     * @param topic
+     *            our own instance of the topic
+     * @return true if we are among its subscribers.
+     */
+    private boolean isSubscribed(Topic topic) {
+        for (Subscriber s : topic.getSubscriberList()) {
+            if ( s.getNodeId() == (this.nodeId & 0xffffffffL) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends a SEND_MESSAGE, SEND_MESSAGE_BATCH or HISTORY_RESPONSE message to
+     * the given destinations. With dynamic multicast, the message is marked
+     * persistent if the destinations are still those getTopicDestinations
+     * gives for its topic, so libjpmul keeps the group for the next message.
+     * If membership has changed since, the group is of no further use and is
+     * let go. Groups kept this way are released once membership changes, see
+     * getTopicDestinations.
+     * 
+     * @param message
+     *            to send
+     * @param destinations
+     *            to send to
+     */
+    void sendChatMessage(ChatMessage message, ArrayList<Integer> destinations) {
+        ChatConfiguration config = getConfiguration();
+        boolean persistent = false;
+        if ( config.useDynamicMulticast() ) {
+            persistent = keepsGroup(message.getTopic(), destinations) || config.usePersistantGroups();
+        }
+        sendQueued(message, destinations, persistent);
+    }
+
+    /**
+     * Checks whether the given destinations are those getTopicDestinations
+     * gives for the topic. If so, they are noted as having a persistent group
+     * in libjpmul, to be released when membership changes.
+     * 
+     * @param topic
+     *            the destinations are of
+     * @param destinations
+     *            to check
+     * @return true if messages to the destinations may be marked persistent.
+     */
+    private synchronized boolean keepsGroup(Topic topic, ArrayList<Integer> destinations) {
+        if ( destinations != getTopicDestinations(topic) ) {
+            return false;
+        }
+        this.topicDestinations.get(topic.getName().toLowerCase()).isPersistent = true;
+        return true;
+    }
+
+    /**
+     * Gets the destinations of chat messages to the given topic, that is, all
+     * its subscribers but ourselves, sorted. The same list is returned for as
+     * long as the membership of the topic is unchanged, so it must not be
+     * changed by the caller. When membership has changed, the persistent group
+     * of the old list, if any, is released.
+     * 
+     * @param topic
+     *            to get destinations of
+     * @return The destination list.
+     */
+    private synchronized ArrayList<Integer> getTopicDestinations(Topic topic) {
+        String key = topic.getName().toLowerCase();
+        TopicDestinations cached = this.topicDestinations.get(key);
+        int version = topic.getMembershipVersion();
+        if ( cached != null && cached.topic == topic && cached.membershipVersion == version ) {
+            return cached.destinations;
+        }
         ArrayList<Integer> destinations = new ArrayList<Integer>();
-        for (Subscriber s : this.chatModel.getCurrentChat().getTopic().getSubscriberList()) {
+        for (Subscriber s : topic.getSubscriberList()) {
             if ( s.getNodeId() == this.nodeId ) {
                 continue;
             }
             destinations.add((int) s.getNodeId());
         }
-        amsg.setDestinations(destinations);
-        amsg.setData(msg.getRawMessage());
-        amsg.setDynamic(ChatConfigurationModel.useDynamicMulticast());
-        amsg.setSourceID(this.nodeId);
-        amsg.setExpiryTime((System.currentTimeMillis() / 1000) + ChatConfigurationModel.getDefaultTimeToLive());
-        amsg.setPersistent(ChatConfigurationModel.useDynamicMulticast() && ChatConfigurationModel.usePersistantGroups());
-        new Thread() {
-            public void run() {
-                libjpmul.send(amsg);
+        Collections.sort(destinations);
+        if ( cached != null && cached.destinations.equals(destinations) ) {
+            // Same nodes after all, e.g. one left and came back. Keep the list,
+            // and with it the group libjpmul may have for it.
+            TopicDestinations same = new TopicDestinations(topic, version, cached.destinations);
+            same.isPersistent = cached.isPersistent;
+            this.topicDestinations.put(key, same);
+            return cached.destinations;
+        }
+        this.topicDestinations.put(key, new TopicDestinations(topic, version, destinations));
+        if ( cached != null && cached.isPersistent ) {
+            releaseGroup(cached.destinations);
+        }
+        return destinations;
+    }
+
+    /**
+     * Has libjpmul let go of the persistent group of a destination list no
+     * longer in use. libjpmul drops a group once a message that is not
+     * persistent has been sent to it, so a HEARTBEAT is sent to the list. It
+     * goes in the chat lane, behind chat messages still queued for the group.
+     * 
+     * @param destinations
+     *            the group was made for
+     */
+    private void releaseGroup(ArrayList<Integer> destinations) {
+        if ( destinations.isEmpty() ) {
+            return;
+        }
+        ChatMessage msg = ChatMessage.createHeartbeatMessage();
+        Acp142Message amsg = createAcp142Message(msg, destinations, false);
+        // Persistent groups are always dynamic.
+        amsg.setDynamic(true);
+        queue(SendQueue.Lane.CHAT, amsg, msg, destinations.size(), null);
+    }
+
+    /**
+     * Releases the persistent groups of all destination lists, and forgets the
+     * lists.
+     */
+    private synchronized void releaseGroups() {
+        for (TopicDestinations cached : this.topicDestinations.values()) {
+            if ( cached.isPersistent ) {
+                releaseGroup(cached.destinations);
             }
-        }.start();
+        }
+        this.topicDestinations.clear();
     }
 
     /**
@@ -940,17 +2165,16 @@ public class Networking implements PropertyChangeListener {
      *            to send.
      */
     private void delayedConditionalSend(final ChatMessage message) {
-        new Thread() {
+        this.executor.execute(new Runnable() {
             public void run() {
                 // Sleep
                 double oldTime = ((double) System.currentTimeMillis() / (double) 1000);
-                long wait = (long) (Math.random() * (double) ChatConfigurationModel
+                long wait = (long) (Math.random() * (double) getConfiguration()
                         .getMaximumWaitForResponseOnDelayedSend());
                 try {
                     Thread.sleep(wait);
                 } catch (InterruptedException e) {
-                    System.out.println("Networking.delayedConditionalSend(): Sleep interrupted:");
-                    e.printStackTrace();
+                    ChatLog.error("Networking.delayedConditionalSend()", "Sleep interrupted.", e);
                 }
 
                 // Check for answers
@@ -960,7 +2184,7 @@ public class Networking implements PropertyChangeListener {
                 for (ChatMessage msg : notYetExpiredResponsesSeenFromOthers) {
                     // Prune messages that are too old anyway
                     if ( msg.getTimeReceived() < currentTime
-                            - (double) (ChatConfigurationModel.getMaximumWaitForResponseOnDelayedSend() / 1000L) ) {
+                            - (double) (getConfiguration().getMaximumWaitForResponseOnDelayedSend() / 1000L) ) {
                         notYetExpiredResponsesSeenFromOthers.remove(msg);
                         continue;
                     }
@@ -975,6 +2199,14 @@ public class Networking implements PropertyChangeListener {
                                         .equals(message.getTopic().getName().toLowerCase()) ) {
                                     noAnswerSeen = false;
                                 }
+                            } else if ( msg.getType() == ChatMessageType.HISTORY_RESPONSE ) {
+                                // Only the ones with the same run
+                                if ( msg.getSenderId() == message.getSenderId()
+                                        && msg.getSequenceNumber() == message.getSequenceNumber()
+                                        && msg.getTopic().getName().toLowerCase()
+                                                .equals(message.getTopic().getName().toLowerCase()) ) {
+                                    noAnswerSeen = false;
+                                }
                             } else {
                                 noAnswerSeen = false;
                             }
@@ -985,38 +2217,262 @@ public class Networking implements PropertyChangeListener {
                 // If no answer was seen in the time period of sleep, send an
                 // answer
                 if ( noAnswerSeen ) {
+                    ArrayList<Integer> dests;
                     if ( message.getType() == ChatMessageType.SUBSCRIBER_LIST ) {
-                        Acp142Message amsg = new Acp142Message();
-                        ArrayList<Integer> ldestinations = new ArrayList<Integer>();
+                        dests = new ArrayList<Integer>();
                         for (Subscriber s : message.getSubscribers()) {
                             if ( s.getNodeId() == chatModel.getCurrentChat().getSelf().getNodeId() ) {
                                 continue;
                             }
-                            ldestinations.add((int) s.getNodeId());
+                            dests.add((int) s.getNodeId());
                         }
-                        amsg.setDestinations(ldestinations);
-                        amsg.setData(message.getRawMessage());
-                        amsg.setDynamic(ChatConfigurationModel.useDynamicMulticast());
-                        amsg.setSourceID(nodeId);
-                        amsg.setExpiryTime((System.currentTimeMillis() / 1000)
-                                + ChatConfigurationModel.getDefaultTimeToLive());
-                        amsg.setPersistent(false); // Delete the old group
-                        libjpmul.send(amsg);
+                    } else if ( message.getType() == ChatMessageType.HISTORY_RESPONSE ) {
+                        // Everyone in the topic may have missed it
+                        Topic topic = findTopic(message.getTopic());
+                        dests = topic == null ? new ArrayList<Integer>() : getTopicDestinations(topic);
+                        if ( dests.isEmpty() ) {
+                            return;
+                        }
+                    } else {
+                        dests = new ArrayList<Integer>(destinations);
+                    }
+                    metrics.delayedSendSent();
+                    if ( message.getType() == ChatMessageType.HISTORY_RESPONSE ) {
+                        // Goes to the destination list of the topic, so it must
+                        // keep the group chat messages to the topic keep.
+                        sendChatMessage(message, dests);
                     } else {
-                        Acp142Message amsg = new Acp142Message();
-                        ArrayList<Integer> dests = new ArrayList<Integer>(destinations);
-                        amsg.setDestinations(dests);
-                        amsg.setData(message.getRawMessage());
-                        amsg.setDynamic(ChatConfigurationModel.useDynamicMulticast());
-                        amsg.setSourceID(nodeId);
-                        amsg.setExpiryTime((System.currentTimeMillis() / 1000)
-                                + ChatConfigurationModel.getDefaultTimeToLive());
-                        amsg.setPersistent(false); // Delete the old group
-                        libjpmul.send(amsg);
+                        // Not persistent: Delete the old group
+                        queue(createAcp142Message(message, dests, false), message, dests.size());
+                    }
+                } else {
+                    metrics.delayedSendSuppressed();
+                }
+            }
+        });
+    }
+
+    /**
+     * Packs the given chat message into a new Acp142Message, with the settings
+     * shared by all our transmissions. The expiry time is set to
+     * ChatConfigurationModel.defaultTimeToLive from now. If libjpmul maps
+     * priorities (ENABLE_PRIORITY_MAPPING), the priority is that of the
+     * message's SendQueue lane.
+     * 
+     * @param message
+     *            to pack
+     * @param destinations
+     *            to send to
+     * @param persistent
+     *            whether the multicast group should be kept after sending
+     * @return The message, ready to be sent.
+     */
+    private Acp142Message createAcp142Message(ChatMessage message, ArrayList<Integer> destinations,
+            boolean persistent) {
+        ChatConfiguration config = getConfiguration();
+        long start = System.nanoTime();
+        // Only compress if every destination is known to decode it.
+        boolean mayCompress = config.usePayloadCompression() && !destinations.isEmpty()
+                && this.compressionPeers.containsAll(destinations);
+        byte[] data = message.getRawMessage(mayCompress);
+        this.metrics.messageEncoded(System.nanoTime() - start);
+
+        Acp142Message amsg = new Acp142Message();
+        amsg.setData(data);
+        amsg.setDestinations(destinations);
+        amsg.setDynamic(config.useDynamicMulticast());
+        amsg.setExpiryTime((System.currentTimeMillis() / 1000) + config.getDefaultTimeToLive());
+        amsg.setSourceID(this.nodeId);
+        amsg.setPersistent(persistent);
+        if ( Configuration.isPriorityMappingEnabled() ) {
+            amsg.setPriority(SendQueue.Lane.of(message.getType()).getPriority());
+        }
+        return amsg;
+    }
+
+    /**
+     * Packs the given chat message and queues it in sendQueue, so the caller
+     * never waits on the library.
+     * 
+     * @param message
+     *            to send
+     * @param destinations
+     *            to send to
+     * @param persistent
+     *            whether the multicast group should be kept after sending
+     */
+    private void sendQueued(ChatMessage message, ArrayList<Integer> destinations, boolean persistent) {
+        queue(createAcp142Message(message, destinations, persistent), message, destinations.size());
+    }
+
+    /**
+     * Queues a packed message in sendQueue, in the lane of its type.
+     * 
+     * @param amsg
+     *            to send
+     * @param message
+     *            the chat message packed in amsg
+     * @param destinationCount
+     *            number of destinations of amsg
+     */
+    private void queue(Acp142Message amsg, ChatMessage message, int destinationCount) {
+        queue(amsg, message, destinationCount, null);
+    }
+
+    /**
+     * Queues a packed message in sendQueue, in the lane of its type, and
+     * releases a permit of the given semaphore once it has been sent.
+     * 
+     * @param amsg
+     *            to send
+     * @param message
+     *            the chat message packed in amsg
+     * @param destinationCount
+     *            number of destinations of amsg
+     * @param sent
+     *            semaphore to release once sent, or null
+     */
+    private void queue(Acp142Message amsg, ChatMessage message, int destinationCount, Semaphore sent) {
+        queue(SendQueue.Lane.of(message.getType()), amsg, message, destinationCount, sent);
+    }
+
+    /**
+     * Queues a packed message in the given lane of sendQueue, and releases a
+     * permit of the given semaphore once it has been sent.
+     * 
+     * @param lane
+     *            to queue the message in
+     * @param amsg
+     *            to send
+     * @param message
+     *            the chat message packed in amsg
+     * @param destinationCount
+     *            number of destinations of amsg
+     * @param sent
+     *            semaphore to release once sent, or null
+     */
+    private void queue(SendQueue.Lane lane, final Acp142Message amsg, final ChatMessage message,
+            final int destinationCount, final Semaphore sent) {
+        ChatEvents.SendEnqueue event = new ChatEvents.SendEnqueue();
+        event.begin();
+        this.sendQueue.add(lane, new Runnable() {
+            public void run() {
+                try {
+                    send(amsg, message, destinationCount);
+                } finally {
+                    if ( sent != null ) {
+                        sent.release();
                     }
                 }
             }
-        }.start();
+        });
+        event.end();
+        if ( event.shouldCommit() ) {
+            event.describe(message, amsg.getData().length, this.nodeId);
+            event.destinations = destinationCount;
+            event.commit();
+        }
+    }
+
+    /**
+     * Hands the message to libjpmul on the calling thread, and records it in
+     * the metrics. Our own chat messages are released from sendBudget once
+     * sent, or once libjpmul has failed to send them.
+     * 
+     * @param amsg
+     *            to send
+     * @param message
+     *            the chat message packed in amsg
+     * @param destinationCount
+     *            number of destinations of amsg
+     */
+    private void send(Acp142Message amsg, ChatMessage message, int destinationCount) {
+        ChatEvents.SendComplete event = new ChatEvents.SendComplete();
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            this.libjpmul.send(amsg);
+            this.metrics.messageSent(message.getType(), destinationCount, System.nanoTime() - start);
+        } finally {
+            // Released even if libjpmul failed, or the topic would stay full.
+            if ( message.getType() == ChatMessageType.SEND_MESSAGE
+                    || message.getType() == ChatMessageType.SEND_MESSAGE_BATCH ) {
+                int bytes = 0;
+                for (String content : message.getMessages()) {
+                    bytes += SendBudget.sizeOf(content);
+                }
+                boolean isDone = this.sendBudget.release(message.getTopic(), bytes) == 0;
+                this.chatModel.setSendState(message.getTopic(), isDone ? ChatModel.SendState.IDLE
+                        : ChatModel.SendState.SENDING);
+            }
+        }
+        event.end();
+        if ( event.shouldCommit() ) {
+            event.describe(message, amsg.getData().length, this.nodeId);
+            event.destinations = destinationCount;
+            event.commit();
+        }
+    }
+
+    /**
+     * Gets the metrics of this instance.
+     * 
+     * @return Metrics recorded by this instance.
+     */
+    public NetworkingMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Gets the current settings of this instance, see
+     * ChatConfigurationModel.getConfiguration.
+     * 
+     * @return The current, immutable settings.
+     */
+    ChatConfiguration getConfiguration() {
+        return this.chatConfigModel.getConfiguration();
+    }
+
+    /**
+     * Sets what runs the tasks of this instance that are not periodic: delayed
+     * responses, gap checks, file streaming, restarts and the senders of the
+     * send queue, as well as listenLibjpmul and listenBroadcast, which run
+     * until shut down. By default each runs on a thread of its own. Nodes in
+     * one process may share a thread pool, see VirtualNodes. Must be called
+     * before initialize.
+     * 
+     * @param executor
+     *            to run tasks on
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Gets what runs the short lived tasks of this instance.
+     * 
+     * @return The executor in use.
+     */
+    Executor getExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * Sets what runs the periodic tasks of this instance: discovery queries,
+     * heartbeats, state snapshots and metrics dumps. By default this instance
+     * has a scheduler thread of its own, which is shut down with it. Nodes in
+     * one process may share a scheduler, see VirtualNodes. It is not shut
+     * down with this instance. Must be called before initialize.
+     * 
+     * @param scheduler
+     *            to run periodic tasks on
+     */
+    public void setScheduler(ScheduledExecutorService scheduler) {
+        if ( this.isOwnScheduler ) {
+            this.scheduler.shutdown();
+        }
+        this.scheduler = scheduler;
+        this.isOwnScheduler = false;
     }
 
     /**
@@ -1074,12 +2530,19 @@ public class Networking implements PropertyChangeListener {
      */
     public void setNodeId(int nodeId) {
         this.nodeId = nodeId;
+        // Destination lists leave out our own ID, so they must be rebuilt.
+        releaseGroups();
     }
 
     @Override
     public void propertyChange(PropertyChangeEvent arg0) {
-        if ( arg0.getPropertyName().equals(ConfigurationModel.NODE_ID_PROPERTY) ) {
+        String name = arg0.getPropertyName();
+        if ( name.equals(ConfigurationModel.NODE_ID_PROPERTY) ) {
             setNodeId((int) arg0.getNewValue());
+        } else if ( name.equals(ChatConfigurationModel.BROADCAST_GROUP_PROPERTY)
+                || name.equals(ChatConfigurationModel.BROADCAST_PORT_PROPERTY)
+                || name.equals(ChatConfigurationModel.USE_DYNAMIC_MULTICAST_PROPERTY) ) {
+            scheduleRestart();
         }
     }
 
@@ -1099,4 +2562,116 @@ public class Networking implements PropertyChangeListener {
         }
         this.isInEmcon = b;
     }
+
+    /**
+     * A task run on the scheduler every so many seconds, as given by
+     * getInterval after each run, until cancelled. While the interval is not
+     * positive, the task is not run, and the interval is checked again every
+     * second.
+     */
+    private abstract class PeriodicTask implements Runnable {
+        private ScheduledFuture<?> future;
+        private boolean            isCancelled;
+
+        /**
+         * @return Seconds until the next run.
+         */
+        abstract long getInterval();
+
+        /**
+         * Does the work of one run.
+         * 
+         * @param interval
+         *            seconds until the next run
+         */
+        abstract void runOnce(long interval);
+
+        /**
+         * Schedules the first run one interval from now.
+         */
+        synchronized void start() {
+            schedule(getInterval());
+        }
+
+        /**
+         * Schedules the first run right away.
+         */
+        synchronized void startNow() {
+            schedule(-1);
+        }
+
+        /**
+         * Stops the task. A run in progress is finished, but is not followed
+         * by another.
+         */
+        synchronized void cancel() {
+            this.isCancelled = true;
+            if ( this.future != null ) {
+                this.future.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            long interval;
+            synchronized (this) {
+                if ( this.isCancelled ) {
+                    return;
+                }
+                interval = getInterval();
+            }
+            if ( interval > 0 ) {
+                try {
+                    runOnce(interval);
+                } catch (RuntimeException e) {
+                    // One failed run must not stop the task.
+                    ChatLog.error("Networking.PeriodicTask.run()", "Periodic task failed.", e);
+                }
+            }
+            synchronized (this) {
+                schedule(interval);
+            }
+        }
+
+        /**
+         * Schedules the next run. Must be called holding the lock.
+         * 
+         * @param interval
+         *            seconds until the run, right away if negative, and a
+         *            second if zero
+         */
+        private void schedule(long interval) {
+            if ( this.isCancelled ) {
+                return;
+            }
+            long delay = interval < 0 ? 0 : interval > 0 ? interval * 1000L : 1000L;
+            try {
+                this.future = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // The scheduler is shut down.
+                this.isCancelled = true;
+            }
+        }
+    }
+
+    /**
+     * Destination list of a topic, and the membership version it was made
+     * from.
+     */
+    private static final class TopicDestinations {
+        private final Topic              topic;
+        private final int                membershipVersion;
+        private final ArrayList<Integer> destinations;
+        /**
+         * Whether a persistent message has been sent to destinations, so
+         * libjpmul keeps a group for them.
+         */
+        private boolean                  isPersistent;
+
+        private TopicDestinations(Topic topic, int membershipVersion, ArrayList<Integer> destinations) {
+            this.topic = topic;
+            this.membershipVersion = membershipVersion;
+            this.destinations = destinations;
+        }
+    }
 }
@@ -0,0 +1,369 @@
+package no.ntnu.acp142.chatapp;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Counters and latency histograms for the hot paths in Networking. All
+ * recording methods are lock free and allocation free (striped counters and
+ * LatencyHistogram), so the metrics are always on. They can be read over JMX
+ * through NetworkingMetricsMXBean, or logged through ChatLog at a fixed
+ * interval (see ChatConfiguration.getStatsDumpInterval).
+ * 
+ * @author Thomas Martin Schmid
+ */
+public class NetworkingMetrics implements NetworkingMetricsMXBean {
+
+    /**
+     * Domain and type used when registering with the platform MBean server.
+     */
+    public static final String     OBJECT_NAME_PREFIX = "no.ntnu.acp142.chatapp:type=NetworkingMetrics,node=";
+
+    /**
+     * Messages received, indexed by ChatMessageType ordinal.
+     */
+    private final LongAdder[]      received;
+    /**
+     * Messages sent, indexed by ChatMessageType ordinal.
+     */
+    private final LongAdder[]      sent;
+
+    private final LatencyHistogram decodeTime;
+    private final LatencyHistogram encodeTime;
+    private final LatencyHistogram dispatchTime;
+    private final LatencyHistogram sendTime;
+    private final LatencyHistogram destinationListSize;
+
+    private final LongAdder        delayedSendsSent;
+    private final LongAdder        delayedSendsSuppressed;
+    private final LongAdder        duplicatesDropped;
+
+    /**
+     * Name this instance is registered under, null if not registered.
+     */
+    private ObjectName             objectName;
+    /**
+     * The periodic dump, null if not running.
+     */
+    private ScheduledFuture<?>     dumpTask;
+
+    /**
+     * Creates a new set of metrics, all zero.
+     */
+    public NetworkingMetrics() {
+        int types = ChatMessageType.values().length;
+        this.received = new LongAdder[types];
+        this.sent = new LongAdder[types];
+        for (int i = 0; i < types; ++i) {
+            this.received[i] = new LongAdder();
+            this.sent[i] = new LongAdder();
+        }
+        this.decodeTime = new LatencyHistogram();
+        this.encodeTime = new LatencyHistogram();
+        this.dispatchTime = new LatencyHistogram();
+        this.sendTime = new LatencyHistogram();
+        this.destinationListSize = new LatencyHistogram();
+        this.delayedSendsSent = new LongAdder();
+        this.delayedSendsSuppressed = new LongAdder();
+        this.duplicatesDropped = new LongAdder();
+        this.dumpTask = null;
+    }
+
+    // ------------------------- RECORDING ------------------------------------
+
+    /**
+     * Records a received message and the time it took to unpack it.
+     * 
+     * @param type
+     *            of the message
+     * @param nanos
+     *            spent unpacking
+     */
+    void messageDecoded(ChatMessageType type, long nanos) {
+        this.received[type.ordinal()].increment();
+        this.decodeTime.record(nanos);
+    }
+
+    /**
+     * Records the time spent handling a received message after it was
+     * unpacked.
+     * 
+     * @param nanos
+     *            spent handling the message
+     */
+    void messageDispatched(long nanos) {
+        this.dispatchTime.record(nanos);
+    }
+
+    /**
+     * Records the time spent packing a message.
+     * 
+     * @param nanos
+     *            spent packing
+     */
+    void messageEncoded(long nanos) {
+        this.encodeTime.record(nanos);
+    }
+
+    /**
+     * Records a message handed to libjpmul.
+     * 
+     * @param type
+     *            of the message
+     * @param destinations
+     *            number of destinations of the message
+     * @param nanos
+     *            spent in libjpmul's send
+     */
+    void messageSent(ChatMessageType type, int destinations, long nanos) {
+        this.sent[type.ordinal()].increment();
+        this.destinationListSize.record(destinations);
+        this.sendTime.record(nanos);
+    }
+
+    /**
+     * Records a delayed response that was sent.
+     */
+    void delayedSendSent() {
+        this.delayedSendsSent.increment();
+    }
+
+    /**
+     * Records a delayed response that was suppressed.
+     */
+    void delayedSendSuppressed() {
+        this.delayedSendsSuppressed.increment();
+    }
+
+    /**
+     * Records a received chat message dropped as a duplicate.
+     */
+    void duplicateDropped() {
+        this.duplicatesDropped.increment();
+    }
+
+    // ------------------------- JMX ------------------------------------------
+
+    @Override
+    public Map<String, Long> getMessagesReceived() {
+        return countsByType(this.received);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesSent() {
+        return countsByType(this.sent);
+    }
+
+    @Override
+    public Map<String, Long> getDecodeTime() {
+        return summary(this.decodeTime, 1000);
+    }
+
+    @Override
+    public Map<String, Long> getEncodeTime() {
+        return summary(this.encodeTime, 1000);
+    }
+
+    @Override
+    public Map<String, Long> getDispatchTime() {
+        return summary(this.dispatchTime, 1000);
+    }
+
+    @Override
+    public Map<String, Long> getLibjpmulSendTime() {
+        return summary(this.sendTime, 1000);
+    }
+
+    @Override
+    public Map<String, Long> getDestinationListSize() {
+        return summary(this.destinationListSize, 1);
+    }
+
+    @Override
+    public long getDelayedSendsSent() {
+        return this.delayedSendsSent.sum();
+    }
+
+    @Override
+    public long getDelayedSendsSuppressed() {
+        return this.delayedSendsSuppressed.sum();
+    }
+
+    @Override
+    public double getDelayedSendSuppressionRate() {
+        long suppressed = getDelayedSendsSuppressed();
+        long total = suppressed + getDelayedSendsSent();
+        return total == 0 ? 0 : (double) suppressed / (double) total;
+    }
+
+    @Override
+    public long getDuplicatesDropped() {
+        return this.duplicatesDropped.sum();
+    }
+
+    @Override
+    public String dump() {
+        StringBuilder sb = new StringBuilder("Networking metrics:\n");
+        sb.append("  received:        ").append(getMessagesReceived()).append('\n');
+        sb.append("  sent:            ").append(getMessagesSent()).append('\n');
+        sb.append("  decode time:     ").append(getDecodeTime()).append('\n');
+        sb.append("  encode time:     ").append(getEncodeTime()).append('\n');
+        sb.append("  dispatch time:   ").append(getDispatchTime()).append('\n');
+        sb.append("  libjpmul.send:   ").append(getLibjpmulSendTime()).append('\n');
+        sb.append("  destinations:    ").append(getDestinationListSize()).append('\n');
+        sb.append("  delayed sends:   ").append(getDelayedSendsSent()).append(" sent, ")
+                .append(getDelayedSendsSuppressed()).append(" suppressed (")
+                .append(Math.round(getDelayedSendSuppressionRate() * 100.0)).append("%)\n");
+        sb.append("  duplicates:      ").append(getDuplicatesDropped()).append(" dropped");
+        return sb.toString();
+    }
+
+    // ------------------------- LIFECYCLE ------------------------------------
+
+    /**
+     * Registers these metrics with the platform MBean server under the given
+     * node ID. Failure to register is reported but otherwise ignored, the
+     * metrics are still recorded.
+     * 
+     * @param nodeId
+     *            of the node these metrics belong to
+     */
+    public synchronized void register(int nodeId) {
+        if ( this.objectName != null ) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME_PREFIX + (nodeId & 0xffffffffL));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if ( !server.isRegistered(name) ) {
+                server.registerMBean(this, name);
+                this.objectName = name;
+            }
+        } catch (JMException e) {
+            ChatLog.warning("NetworkingMetrics.register()", "Could not register with JMX.", "reason", e.getMessage());
+        }
+    }
+
+    /**
+     * Unregisters these metrics from the platform MBean server, if registered.
+     */
+    public synchronized void unregister() {
+        if ( this.objectName == null ) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+        } catch (JMException e) {
+            // Already gone, nothing to do.
+        }
+        this.objectName = null;
+    }
+
+    /**
+     * Logs dump() at level INFO every intervalSeconds on the given scheduler,
+     * until stopPeriodicDump is called. The dump goes through ChatLog rather
+     * than standard output, so it does not mix with the output of
+     * HeadlessChat.
+     * 
+     * @param intervalSeconds
+     *            time between dumps. Nothing is started if not positive.
+     * @param scheduler
+     *            to run the dumps on
+     */
+    public synchronized void startPeriodicDump(long intervalSeconds, ScheduledExecutorService scheduler) {
+        if ( intervalSeconds <= 0 || this.dumpTask != null ) {
+            return;
+        }
+        this.dumpTask = scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                ChatLog.info("NetworkingMetrics.startPeriodicDump()", "Periodic metrics dump.", "metrics",
+                        "\n" + dump());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the periodic dump, if running.
+     */
+    public synchronized void stopPeriodicDump() {
+        if ( this.dumpTask != null ) {
+            this.dumpTask.cancel(false);
+            this.dumpTask = null;
+        }
+    }
+
+    // ------------------------- HELPERS --------------------------------------
+
+    /**
+     * Converts an array of counters indexed by ChatMessageType ordinal to a map
+     * keyed on type name, leaving out types never seen.
+     */
+    private static Map<String, Long> countsByType(LongAdder[] counters) {
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        ChatMessageType[] types = ChatMessageType.values();
+        for (int i = 0; i < counters.length; ++i) {
+            long value = counters[i].sum();
+            if ( value > 0 ) {
+                map.put(types[i].name(), value);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Summarizes a histogram, dividing all values by divisor.
+     */
+    private static Map<String, Long> summary(LatencyHistogram histogram, long divisor) {
+        String unit = divisor == 1 ? "" : "Micros";
+        Map<String, Long> map = new LinkedHashMap<String, Long>();
+        map.put("count", histogram.getCount());
+        map.put("mean" + unit, Math.round(histogram.getMean() / divisor));
+        map.put("p50" + unit, histogram.getValueAtPercentile(50) / divisor);
+        map.put("p90" + unit, histogram.getValueAtPercentile(90) / divisor);
+        map.put("p99" + unit, histogram.getValueAtPercentile(99) / divisor);
+        map.put("max" + unit, histogram.getMax() / divisor);
+        return map;
+    }
+}
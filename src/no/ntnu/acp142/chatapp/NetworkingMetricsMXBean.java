@@ -0,0 +1,109 @@
+package no.ntnu.acp142.chatapp;
+
+import java.util.Map;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Management interface of NetworkingMetrics, as it is seen over JMX. Counters
+ * are given per ChatMessageType name, and latency summaries as maps with the
+ * keys count, meanMicros, p50Micros, p90Micros, p99Micros and maxMicros.
+ * 
+ * @author Thomas Martin Schmid
+ */
+public interface NetworkingMetricsMXBean {
+
+    /**
+     * @return number of messages received, per message type.
+     */
+    Map<String, Long> getMessagesReceived();
+
+    /**
+     * @return number of messages sent, per message type.
+     */
+    Map<String, Long> getMessagesSent();
+
+    /**
+     * @return summary of the time spent unpacking received messages.
+     */
+    Map<String, Long> getDecodeTime();
+
+    /**
+     * @return summary of the time spent packing messages to send.
+     */
+    Map<String, Long> getEncodeTime();
+
+    /**
+     * @return summary of the time from a message is unpacked until it has been
+     *         handled by the receiving thread.
+     */
+    Map<String, Long> getDispatchTime();
+
+    /**
+     * @return summary of the time spent in libjpmul's send.
+     */
+    Map<String, Long> getLibjpmulSendTime();
+
+    /**
+     * @return summary of the number of destinations per sent message. Values
+     *         are counts, so the keys have no Micros suffix.
+     */
+    Map<String, Long> getDestinationListSize();
+
+    /**
+     * @return number of delayed responses that were sent.
+     */
+    long getDelayedSendsSent();
+
+    /**
+     * @return number of delayed responses that were suppressed because another
+     *         node answered first.
+     */
+    long getDelayedSendsSuppressed();
+
+    /**
+     * @return fraction of delayed responses that were suppressed, in [0, 1].
+     */
+    double getDelayedSendSuppressionRate();
+
+    /**
+     * @return number of received chat messages dropped as duplicates.
+     */
+    long getDuplicatesDropped();
+
+    /**
+     * @return all metrics as human readable text.
+     */
+    String dump();
+}
@@ -0,0 +1,383 @@
+package no.ntnu.acp142.chatapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Optional compression of packed ChatMessages. A compressed message has
+ * COMPRESSED set in its type byte, followed by a flags byte telling how the
+ * rest of the message, everything that followed the type byte, was encoded:
+ * <table border=1>
+ * <tr>
+ * <td>size(B):</td>
+ * <td>1</td>
+ * <td>1</td>
+ * <td>2</td>
+ * <td>rest</td>
+ * </tr>
+ * <tr>
+ * <td>content:</td>
+ * <td>type | COMPRESSED</td>
+ * <td>flags</td>
+ * <td>length before deflate, only if DEFLATED</td>
+ * <td>body</td>
+ * </tr>
+ * </table>
+ * DEFLATED bodies are raw deflate streams using DICTIONARY as preset
+ * dictionary. FRONT_CODED is only used for TOPIC_LIST, where the names are
+ * sorted and each is sent as the number of leading bytes it shares with the
+ * name before it, followed by the rest of it:
+ * 
+ * <pre>
+ * count(1) | [shared(1) | rest length(1) | rest]*
+ * </pre>
+ * 
+ * A message is only sent compressed if that makes it smaller, and only to
+ * nodes that have advertised CAPABILITY_COMPRESSION in their HEARTBEAT, as
+ * older nodes drop such messages as INVALID.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class PayloadCodec {
+
+    /**
+     * Set in the type byte of compressed messages.
+     */
+    static final int                           COMPRESSED              = 0x80;
+    /**
+     * Flag: the body is deflated with DICTIONARY.
+     */
+    static final int                           DEFLATED                = 0x01;
+    /**
+     * Flag: the body is a front coded TOPIC_LIST.
+     */
+    static final int                           FRONT_CODED             = 0x02;
+    /**
+     * Bit of the HEARTBEAT capabilities byte telling that the sender decodes
+     * compressed messages.
+     */
+    static final int                           CAPABILITY_COMPRESSION  = 0x01;
+    /**
+     * Messages shorter than this are never worth compressing.
+     */
+    static final int                           MINIMUM_COMPRESSED_SIZE = 24;
+
+    /**
+     * Preset dictionary for deflate. Deflate finds matches in it from the very
+     * first byte of a message, which is what makes short chat lines
+     * compressible at all. It holds words and phrases common in chat traffic,
+     * the most common last, since closer matches take fewer bits. Changing it
+     * makes messages undecodable by nodes with the old one, so a new
+     * dictionary needs a new flag.
+     */
+    static final byte[]                        DICTIONARY              = toUtf8("User_ timed out. joined left "
+            + "topic message messages channel group node nodes network link status report update position "
+            + "request received receive sending send copy roger over out wilco affirmative negative "
+            + "please confirm check again later now today tomorrow tonight morning evening minutes hours "
+            + "north south east west grid location area team unit base command control <br>"
+            + "what when where which there their about would could should think know need have been "
+            + "with this that from will your just like time good okay thanks thank you yes no "
+            + "the and for are not but you can all was it is in to of a ");
+
+    private static final ThreadLocal<Deflater> DEFLATER                = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_COMPRESSION, true);
+        }
+    };
+    private static final ThreadLocal<Inflater> INFLATER                = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private PayloadCodec() {
+    }
+
+    /**
+     * Tells if messages of the given type are worth compressing.
+     * 
+     * @param type
+     *            of message
+     * @return true for chat text and topic lists.
+     */
+    static boolean isCompressible(ChatMessageType type) {
+        switch ( type ) {
+        case SEND_MESSAGE:
+        case SEND_MESSAGE_BATCH:
+        case HISTORY_RESPONSE:
+        case TOPIC_LIST:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Compresses a packed message, choosing the smallest encoding.
+     * 
+     * @param octets
+     *            packed message
+     * @return The compressed message, or octets itself if compressing does not
+     *         make it smaller.
+     */
+    static byte[] compress(byte[] octets) {
+        if ( octets.length < MINIMUM_COMPRESSED_SIZE || octets.length - 1 > 0xffff ) {
+            return octets;
+        }
+        byte[] best = octets;
+        byte[] body = Arrays.copyOfRange(octets, 1, octets.length);
+        int flags = 0;
+        if ( octets[0] == (byte) ChatMessageType.TOPIC_LIST.ordinal() ) {
+            byte[] frontCoded = frontCode(body);
+            if ( frontCoded != null ) {
+                body = frontCoded;
+                flags = FRONT_CODED;
+                best = frame(octets[0], flags, body);
+            }
+        }
+        byte[] deflated = deflate(body);
+        if ( deflated != null ) {
+            byte[] candidate = frame(octets[0], flags | DEFLATED, deflated, body.length);
+            if ( candidate.length < best.length ) {
+                best = candidate;
+            }
+        }
+        return best.length < octets.length ? best : octets;
+    }
+
+    /**
+     * Undoes compress.
+     * 
+     * @param octets
+     *            compressed message
+     * @return The packed message as it was before it was compressed.
+     * @throws DataFormatException
+     *             If the message is not validly compressed.
+     */
+    static byte[] decompress(byte[] octets) throws DataFormatException {
+        if ( octets.length < 2 ) {
+            throw new DataFormatException("Compressed message too short.");
+        }
+        int flags = octets[1] & 0xff;
+        if ( (flags & ~(DEFLATED | FRONT_CODED)) != 0 ) {
+            throw new DataFormatException("Unknown compression flags " + flags + ".");
+        }
+        byte[] body;
+        if ( (flags & DEFLATED) != 0 ) {
+            if ( octets.length < 4 ) {
+                throw new DataFormatException("Compressed message too short.");
+            }
+            int length = (octets[2] & 0xff) << 8 | (octets[3] & 0xff);
+            body = inflate(octets, 4, length);
+        } else {
+            body = Arrays.copyOfRange(octets, 2, octets.length);
+        }
+        if ( (flags & FRONT_CODED) != 0 ) {
+            body = frontDecode(body);
+        }
+        byte[] plain = new byte[body.length + 1];
+        plain[0] = (byte) (octets[0] & ~COMPRESSED);
+        System.arraycopy(body, 0, plain, 1, body.length);
+        return plain;
+    }
+
+    /**
+     * Converts a TOPIC_LIST body, count(1) | [length(1) | name]*, to its front
+     * coded form.
+     * 
+     * @return The front coded body, or null if the body is malformed.
+     */
+    private static byte[] frontCode(byte[] body) {
+        int count = body[0] & 0xff;
+        ArrayList<byte[]> names = new ArrayList<byte[]>(count);
+        int offset = 1;
+        for (int i = 0; i < count; ++i) {
+            if ( offset >= body.length ) {
+                return null;
+            }
+            int length = body[offset++] & 0xff;
+            if ( offset + length > body.length ) {
+                return null;
+            }
+            names.add(Arrays.copyOfRange(body, offset, offset + length));
+            offset += length;
+        }
+        Collections.sort(names, new Comparator<byte[]>() {
+            @Override
+            public int compare(byte[] a, byte[] b) {
+                int n = Math.min(a.length, b.length);
+                for (int i = 0; i < n; ++i) {
+                    if ( a[i] != b[i] ) {
+                        return (a[i] & 0xff) - (b[i] & 0xff);
+                    }
+                }
+                return a.length - b.length;
+            }
+        });
+
+        byte[] coded = new byte[body.length + count];
+        coded[0] = (byte) count;
+        offset = 1;
+        byte[] previous = new byte[0];
+        for (byte[] name : names) {
+            int shared = 0;
+            int n = Math.min(name.length, previous.length);
+            while (shared < n && name[shared] == previous[shared]) {
+                ++shared;
+            }
+            coded[offset++] = (byte) shared;
+            coded[offset++] = (byte) (name.length - shared);
+            System.arraycopy(name, shared, coded, offset, name.length - shared);
+            offset += name.length - shared;
+            previous = name;
+        }
+        return Arrays.copyOf(coded, offset);
+    }
+
+    /**
+     * Converts a front coded TOPIC_LIST body back to count(1) | [length(1) |
+     * name]*.
+     */
+    private static byte[] frontDecode(byte[] coded) throws DataFormatException {
+        try {
+            int count = coded[0] & 0xff;
+            byte[][] names = new byte[count][];
+            int size = 1;
+            int offset = 1;
+            byte[] previous = new byte[0];
+            for (int i = 0; i < count; ++i) {
+                int shared = coded[offset++] & 0xff;
+                int rest = coded[offset++] & 0xff;
+                if ( shared > previous.length || shared + rest > 255 || offset + rest > coded.length ) {
+                    throw new DataFormatException("Malformed front coded topic list.");
+                }
+                byte[] name = new byte[shared + rest];
+                System.arraycopy(previous, 0, name, 0, shared);
+                System.arraycopy(coded, offset, name, shared, rest);
+                offset += rest;
+                names[i] = name;
+                size += 1 + name.length;
+                previous = name;
+            }
+            byte[] body = new byte[size];
+            body[0] = (byte) count;
+            offset = 1;
+            for (byte[] name : names) {
+                body[offset++] = (byte) name.length;
+                System.arraycopy(name, 0, body, offset, name.length);
+                offset += name.length;
+            }
+            return body;
+        } catch (IndexOutOfBoundsException e) {
+            throw new DataFormatException("Truncated front coded topic list.");
+        }
+    }
+
+    /**
+     * Deflates with the preset dictionary.
+     * 
+     * @return The deflated bytes, or null if they would not be smaller.
+     */
+    private static byte[] deflate(byte[] body) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(body);
+        deflater.finish();
+        byte[] out = new byte[body.length];
+        int length = 0;
+        while (!deflater.finished()) {
+            if ( length == out.length ) {
+                return null; // Does not pay off.
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    /**
+     * Inflates with the preset dictionary.
+     */
+    private static byte[] inflate(byte[] octets, int offset, int length) throws DataFormatException {
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(octets, offset, octets.length - offset);
+        byte[] body = new byte[length];
+        int inflated = 0;
+        while (inflated < length && !inflater.finished()) {
+            int n = inflater.inflate(body, inflated, length - inflated);
+            if ( n == 0 && (inflater.needsInput() || inflater.needsDictionary()) ) {
+                break;
+            }
+            inflated += n;
+        }
+        if ( inflated != length ) {
+            throw new DataFormatException("Inflated length " + inflated + " does not match " + length + ".");
+        }
+        return body;
+    }
+
+    private static byte[] frame(byte type, int flags, byte[] body) {
+        byte[] octets = new byte[2 + body.length];
+        octets[0] = (byte) (type | COMPRESSED);
+        octets[1] = (byte) flags;
+        System.arraycopy(body, 0, octets, 2, body.length);
+        return octets;
+    }
+
+    private static byte[] frame(byte type, int flags, byte[] deflated, int length) {
+        byte[] octets = new byte[4 + deflated.length];
+        octets[0] = (byte) (type | COMPRESSED);
+        octets[1] = (byte) flags;
+        octets[2] = (byte) ((length >> 8) & 0xff);
+        octets[3] = (byte) (length & 0xff);
+        System.arraycopy(deflated, 0, octets, 4, deflated.length);
+        return octets;
+    }
+
+    private static byte[] toUtf8(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
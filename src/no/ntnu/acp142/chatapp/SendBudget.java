@@ -0,0 +1,123 @@
+package no.ntnu.acp142.chatapp;
+
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Keeps count of the bytes of our own chat messages that have been accepted
+ * for sending but not yet handed to libjpmul, per topic. New messages are
+ * refused once a topic has ChatConfigurationModel.sendQueueByteBudget bytes
+ * waiting, so a slow or broken link can not make the queues grow without
+ * bound.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class SendBudget {
+
+    private static final Charset           UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Bytes waiting, keyed on lower case topic name. Topics with nothing
+     * waiting are left out.
+     */
+    private final HashMap<String, Integer> queued;
+
+    /**
+     * Creates a new budget with nothing waiting.
+     */
+    SendBudget() {
+        this.queued = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Reserves room for a message, if there is room. A message is always
+     * accepted when nothing is waiting, so a message larger than the whole
+     * budget can still be sent.
+     * 
+     * @param topic
+     *            the message is sent to
+     * @param bytes
+     *            size of the message, see sizeOf
+     * @param budget
+     *            maximum number of bytes waiting for the topic
+     * @return true if the room was reserved, false if the message must be
+     *         refused.
+     */
+    synchronized boolean reserve(Topic topic, int bytes, int budget) {
+        String key = topic.getName().toLowerCase();
+        Integer waiting = this.queued.get(key);
+        if ( waiting != null && waiting + bytes > budget ) {
+            return false;
+        }
+        this.queued.put(key, (waiting == null ? 0 : waiting) + bytes);
+        return true;
+    }
+
+    /**
+     * Releases the room of messages handed to libjpmul.
+     * 
+     * @param topic
+     *            the messages were sent to
+     * @param bytes
+     *            total size of the messages, see sizeOf
+     * @return The number of bytes still waiting for the topic.
+     */
+    synchronized int release(Topic topic, int bytes) {
+        String key = topic.getName().toLowerCase();
+        Integer waiting = this.queued.get(key);
+        if ( waiting == null ) {
+            return 0;
+        }
+        int left = waiting - bytes;
+        if ( left <= 0 ) {
+            this.queued.remove(key);
+            return 0;
+        }
+        this.queued.put(key, left);
+        return left;
+    }
+
+    /**
+     * Gets the size a message counts as.
+     * 
+     * @param content
+     *            of the message
+     * @return Length of the content in UTF-8.
+     */
+    static int sizeOf(String content) {
+        return content.getBytes(UTF8).length;
+    }
+}
@@ -0,0 +1,230 @@
+package no.ntnu.acp142.chatapp;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Outgoing transmissions waiting for libjpmul, in two lanes. Membership and
+ * other control traffic goes in the CONTROL lane and is handed to libjpmul
+ * before chat traffic in the CHAT lane, so a backlog of chat messages does not
+ * hold back the JOIN_TOPIC or SUBSCRIBER_LIST that decides where later chat
+ * messages go. To keep chat from starving under a flood of control traffic, a
+ * waiting chat transmission is let through after every CONTROL_BURST control
+ * transmissions.<br>
+ * libjpmul's send may block for a while, so up to SENDER_THREADS senders take
+ * transmissions from the queue and send them. They run on the executor given
+ * to start, and only while there is something to send, so nodes sharing a
+ * thread pool do not each hold threads waiting. A transmission that throws is
+ * logged and the sender goes on with the next one.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class SendQueue {
+
+    /**
+     * The lanes of the queue, most important first.
+     */
+    enum Lane {
+        CONTROL(1), CHAT(0);
+
+        /**
+         * Priority given to libjpmul when priority mapping is enabled. Higher
+         * is more important.
+         */
+        private final int priority;
+
+        private Lane(int priority) {
+            this.priority = priority;
+        }
+
+        /**
+         * @return The libjpmul priority of this lane.
+         */
+        int getPriority() {
+            return this.priority;
+        }
+
+        /**
+         * Gets the lane messages of the given type are sent in.
+         * 
+         * @param type
+         *            of message
+         * @return CHAT for chat messages and file chunks, CONTROL for
+         *         everything else.
+         */
+        static Lane of(ChatMessageType type) {
+            switch ( type ) {
+            case SEND_MESSAGE:
+            case SEND_MESSAGE_BATCH:
+            case HISTORY_RESPONSE:
+            case FILE_CHUNK:
+                return CHAT;
+            default:
+                return CONTROL;
+            }
+        }
+    }
+
+    /**
+     * Number of control transmissions in a row before a waiting chat
+     * transmission is let through.
+     */
+    static final int                   CONTROL_BURST  = 8;
+    /**
+     * Largest number of senders at a time.
+     */
+    static final int                   SENDER_THREADS = 4;
+
+    private final ArrayDeque<Runnable> control;
+    private final ArrayDeque<Runnable> chat;
+    /**
+     * Sends transmissions until the queue is empty.
+     */
+    private final Runnable             sender;
+    /**
+     * Control transmissions taken since the last chat transmission.
+     */
+    private int                        controlInARow;
+    /**
+     * Number of senders started and not yet done.
+     */
+    private int                        senders;
+    private boolean                    isRunning;
+    private Executor                   executor;
+
+    /**
+     * Creates an empty queue. No transmissions are sent until start is called.
+     */
+    SendQueue() {
+        this.control = new ArrayDeque<Runnable>();
+        this.chat = new ArrayDeque<Runnable>();
+        this.sender = new Runnable() {
+            public void run() {
+                Runnable transmission;
+                while ((transmission = take()) != null) {
+                    try {
+                        transmission.run();
+                    } catch (RuntimeException e) {
+                        // One failed send must not stop the sender.
+                        ChatLog.error("SendQueue.run()", "Transmission failed.", e);
+                    }
+                }
+            }
+        };
+        this.controlInARow = 0;
+        this.senders = 0;
+        this.isRunning = false;
+    }
+
+    /**
+     * Starts sending, beginning with what is already queued.
+     * 
+     * @param executor
+     *            to run the senders on
+     */
+    synchronized void start(Executor executor) {
+        if ( this.isRunning ) {
+            return;
+        }
+        this.isRunning = true;
+        this.executor = executor;
+        int waiting = this.control.size() + this.chat.size();
+        while (this.senders < Math.min(waiting, SENDER_THREADS)) {
+            startSender();
+        }
+    }
+
+    /**
+     * Stops sending once the queue is empty. Transmissions queued from now on
+     * are not sent.
+     */
+    synchronized void stop() {
+        this.isRunning = false;
+    }
+
+    /**
+     * Queues a transmission.
+     * 
+     * @param lane
+     *            to queue it in
+     * @param transmission
+     *            that hands a message to libjpmul when run
+     */
+    synchronized void add(Lane lane, Runnable transmission) {
+        if ( lane == Lane.CONTROL ) {
+            this.control.add(transmission);
+        } else {
+            this.chat.add(transmission);
+        }
+        // Each sender takes one transmission at a time, so one more is only
+        // of use once more are waiting than there are senders.
+        if ( this.isRunning && this.senders < Math.min(this.control.size() + this.chat.size(), SENDER_THREADS) ) {
+            startSender();
+        }
+    }
+
+    /**
+     * Starts one more sender. Must be called holding the lock.
+     */
+    private void startSender() {
+        ++this.senders;
+        try {
+            this.executor.execute(this.sender);
+        } catch (RuntimeException e) {
+            // Rejected, the executor is shut down.
+            --this.senders;
+            ChatLog.error("SendQueue.startSender()", "Could not start sender.", e);
+        }
+    }
+
+    /**
+     * Takes the next transmission to send. A sender that gets null is done.
+     * 
+     * @return The transmission, or null if the queue is empty.
+     */
+    private synchronized Runnable take() {
+        if ( this.control.isEmpty() && this.chat.isEmpty() ) {
+            --this.senders;
+            return null;
+        }
+        if ( !this.control.isEmpty() && (this.chat.isEmpty() || this.controlInARow < CONTROL_BURST) ) {
+            ++this.controlInARow;
+            return this.control.poll();
+        }
+        this.controlInARow = 0;
+        return this.chat.poll();
+    }
+}
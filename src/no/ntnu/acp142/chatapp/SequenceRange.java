@@ -0,0 +1,89 @@
+package no.ntnu.acp142.chatapp;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * A range of consecutive message sequence numbers, as asked for in
+ * HISTORY_REQUEST messages. Sequence numbers are unsigned 32 bit and wrap
+ * around, so a range may span the wrap.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class SequenceRange {
+
+    /**
+     * First sequence number in the range, as an unsigned int.
+     */
+    private final long first;
+    /**
+     * Number of sequence numbers in the range.
+     */
+    private final int  count;
+
+    /**
+     * Creates a new range.
+     * 
+     * @param first
+     *            sequence number in the range
+     * @param count
+     *            of sequence numbers in the range, at most 65535
+     */
+    SequenceRange(long first, int count) {
+        this.first = first & 0xffffffffL;
+        this.count = count;
+    }
+
+    /**
+     * Gets the first sequence number in the range.
+     * 
+     * @return First sequence number, as an unsigned int.
+     */
+    long getFirst() {
+        return this.first;
+    }
+
+    /**
+     * Gets the number of sequence numbers in the range.
+     * 
+     * @return Number of sequence numbers.
+     */
+    int getCount() {
+        return this.count;
+    }
+
+    @Override
+    public String toString() {
+        return this.first + "+" + this.count;
+    }
+}
@@ -0,0 +1,293 @@
+package no.ntnu.acp142.chatapp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Warm restart snapshot of what a node has learned from the network: its
+ * destinations list, the topic catalog with the known subscribers of each
+ * topic, and the topic it was in. It is written on shutdown and at a fixed
+ * interval (see ChatConfiguration.getStateSnapshotInterval), and loaded
+ * by Networking on startup so the node can chat right away, while discovery
+ * and heartbeats correct the state in the background.<br>
+ * The file is binary, all integers big endian and strings as in
+ * DataOutput.writeUTF:
+ * 
+ * <pre>
+ * MAGIC(4) | VERSION(1) | node ID(4) | time written(8)
+ * destination count(4) | [node ID(4)]*
+ * subscriber count(4) | [node ID(8) | user name]*
+ * topic count(4) | [name | mutable(1) | subscriber count(4) | [subscriber index(4)]*]*
+ * current topic(1) | [name]
+ * </pre>
+ * 
+ * Subscribers are written once and referred to by index, as the same users
+ * are usually in many topics.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class StateSnapshot {
+
+    /**
+     * First bytes of every snapshot file, "PMCS".
+     */
+    static final int                 MAGIC   = 0x504d4353;
+    /**
+     * Format version written. Files of other versions are rejected.
+     */
+    static final int                 VERSION = 1;
+
+    private final int                nodeId;
+    private final long               timeWritten;
+    private final ArrayList<Integer> destinations;
+    private final ArrayList<Topic>   topics;
+    private final String             currentTopic;
+
+    /**
+     * Creates a snapshot of the given state.
+     * 
+     * @param nodeId
+     *            of this node
+     * @param destinations
+     *            list of node IDs
+     * @param topics
+     *            catalog of topics, with their subscribers
+     * @param currentTopic
+     *            topic we are in, null if none
+     */
+    StateSnapshot(int nodeId, List<Integer> destinations, List<Topic> topics, Topic currentTopic) {
+        this(nodeId, System.currentTimeMillis(), new ArrayList<Integer>(destinations), new ArrayList<Topic>(topics),
+                currentTopic == null ? null : currentTopic.getName());
+    }
+
+    private StateSnapshot(int nodeId, long timeWritten, ArrayList<Integer> destinations, ArrayList<Topic> topics,
+            String currentTopic) {
+        this.nodeId = nodeId;
+        this.timeWritten = timeWritten;
+        this.destinations = destinations;
+        this.topics = topics;
+        this.currentTopic = currentTopic;
+    }
+
+    /**
+     * @return Node ID of the node the snapshot was taken of.
+     */
+    int getNodeId() {
+        return this.nodeId;
+    }
+
+    /**
+     * @return Time the snapshot was taken, in milliseconds.
+     */
+    long getTimeWritten() {
+        return this.timeWritten;
+    }
+
+    /**
+     * @return Node IDs of the destinations list.
+     */
+    ArrayList<Integer> getDestinations() {
+        return this.destinations;
+    }
+
+    /**
+     * @return The topics, with their subscribers. When read from file these
+     *         are new Topic objects, not part of any TopicModel.
+     */
+    ArrayList<Topic> getTopics() {
+        return this.topics;
+    }
+
+    /**
+     * @return Name of the topic we were in, null if none.
+     */
+    String getCurrentTopic() {
+        return this.currentTopic;
+    }
+
+    /**
+     * Writes the snapshot to the given file. It is written to a temporary file
+     * first, which then replaces the given one, so a crash while writing never
+     * leaves a broken snapshot behind.
+     * 
+     * @param file
+     *            to write to
+     * @throws IOException
+     *             If the file could not be written.
+     */
+    void write(File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(this.nodeId);
+            out.writeLong(this.timeWritten);
+
+            out.writeInt(this.destinations.size());
+            for (int id : this.destinations) {
+                out.writeInt(id);
+            }
+
+            // Number the distinct subscribers
+            ArrayList<Subscriber> subscribers = new ArrayList<Subscriber>();
+            HashMap<String, Integer> indices = new HashMap<String, Integer>();
+            ArrayList<int[]> topicSubscribers = new ArrayList<int[]>(this.topics.size());
+            for (Topic t : this.topics) {
+                ArrayList<Subscriber> list = t.getSubscriberList();
+                int[] references = new int[list.size()];
+                for (int i = 0; i < references.length; ++i) {
+                    Subscriber s = list.get(i);
+                    String key = s.getNodeId() + ":" + s.getUserName();
+                    Integer index = indices.get(key);
+                    if ( index == null ) {
+                        index = subscribers.size();
+                        indices.put(key, index);
+                        subscribers.add(s);
+                    }
+                    references[i] = index;
+                }
+                topicSubscribers.add(references);
+            }
+            out.writeInt(subscribers.size());
+            for (Subscriber s : subscribers) {
+                out.writeLong(s.getNodeId());
+                out.writeUTF(s.getUserName());
+            }
+
+            out.writeInt(this.topics.size());
+            for (int i = 0; i < this.topics.size(); ++i) {
+                out.writeUTF(this.topics.get(i).getName());
+                out.writeBoolean(this.topics.get(i).isMutable());
+                int[] references = topicSubscribers.get(i);
+                out.writeInt(references.length);
+                for (int index : references) {
+                    out.writeInt(index);
+                }
+            }
+
+            out.writeBoolean(this.currentTopic != null);
+            if ( this.currentTopic != null ) {
+                out.writeUTF(this.currentTopic);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a snapshot from the given file.
+     * 
+     * @param file
+     *            to read from
+     * @return The snapshot.
+     * @throws IOException
+     *             If the file could not be read, or is not a snapshot of the
+     *             version written by this class.
+     */
+    static StateSnapshot read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if ( in.readInt() != MAGIC ) {
+                throw new IOException("Not a state snapshot.");
+            }
+            int version = in.readUnsignedByte();
+            if ( version != VERSION ) {
+                throw new IOException("Unsupported state snapshot version " + version + ".");
+            }
+            int nodeId = in.readInt();
+            long timeWritten = in.readLong();
+
+            int count = readCount(in);
+            ArrayList<Integer> destinations = new ArrayList<Integer>(count);
+            for (int i = 0; i < count; ++i) {
+                destinations.add(in.readInt());
+            }
+
+            count = readCount(in);
+            ArrayList<Subscriber> subscribers = new ArrayList<Subscriber>(count);
+            for (int i = 0; i < count; ++i) {
+                long id = in.readLong();
+                subscribers.add(new Subscriber(id, in.readUTF()));
+            }
+
+            count = readCount(in);
+            ArrayList<Topic> topics = new ArrayList<Topic>(count);
+            for (int i = 0; i < count; ++i) {
+                String name = in.readUTF();
+                Topic topic = new Topic(name, in.readBoolean());
+                int references = readCount(in);
+                for (int j = 0; j < references; ++j) {
+                    int index = in.readInt();
+                    if ( index < 0 || index >= subscribers.size() ) {
+                        throw new IOException("Subscriber index out of range in state snapshot.");
+                    }
+                    topic.addSubscriber(subscribers.get(index));
+                }
+                topics.add(topic);
+            }
+
+            String currentTopic = in.readBoolean() ? in.readUTF() : null;
+            return new StateSnapshot(nodeId, timeWritten, destinations, topics, currentTopic);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a count, making sure it is not negative.
+     */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if ( count < 0 ) {
+            throw new IOException("Negative count in state snapshot.");
+        }
+        return count;
+    }
+}
@@ -61,6 +61,11 @@ public class Topic {
      * true
      */
     private boolean                     isVisibleThroughFilter;
+    /**
+     * Incremented every time a subscriber is added or removed, so users of the
+     * subscriber list can tell whether it has changed.
+     */
+    private volatile int                membershipVersion;
 
     /**
      * Creates a new Topic container.
@@ -106,6 +111,7 @@ public class Topic {
         }
         if ( notFound ) {
             this.subscriberList.add(subscriber);
+            ++this.membershipVersion;
         }
     }
 
@@ -123,6 +129,7 @@ public class Topic {
             if ( sub.getNodeId() == subscriberNodeId ) {
                 ret = sub;
                 this.subscriberList.remove(sub);
+                ++this.membershipVersion;
                 break;
             }
         }
@@ -163,6 +170,16 @@ public class Topic {
         return subscribers;
     }
 
+    /**
+     * Gets the membership version of this topic. It changes whenever a
+     * subscriber is added or removed.
+     * 
+     * @return The membership version
+     */
+    public int getMembershipVersion() {
+        return this.membershipVersion;
+    }
+
     /**
      * Sets whether this is visible through the current filter.
      * 
@@ -0,0 +1,166 @@
+package no.ntnu.acp142.chatapp;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Summary of a topic catalog, used to find out which topics two nodes
+ * disagree on without sending the catalogs themselves. Topic names are
+ * normalized to lower case and spread over BUCKETS buckets by their CRC-32.
+ * Each bucket is hashed over its sorted names, and the root hash is taken over
+ * the bucket hashes. Two catalogs with the same root are taken to be equal,
+ * and otherwise only the topics in buckets with differing hashes need to be
+ * sent.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class TopicDigest {
+
+    /**
+     * Number of buckets. Must fit in one byte.
+     */
+    static final int                     BUCKETS = 64;
+
+    private static final Charset         UTF8    = Charset.forName("UTF-8");
+
+    /**
+     * Topics in each bucket.
+     */
+    private final List<ArrayList<Topic>> buckets;
+    /**
+     * Hash of each bucket.
+     */
+    private final int[]                  bucketHashes;
+    /**
+     * Hash of bucketHashes.
+     */
+    private final int                    root;
+
+    /**
+     * Creates the digest of the given topics.
+     * 
+     * @param topics
+     *            to summarize
+     */
+    TopicDigest(Collection<Topic> topics) {
+        this.buckets = new ArrayList<ArrayList<Topic>>(BUCKETS);
+        List<ArrayList<String>> names = new ArrayList<ArrayList<String>>(BUCKETS);
+        for (int i = 0; i < BUCKETS; ++i) {
+            this.buckets.add(new ArrayList<Topic>());
+            names.add(new ArrayList<String>());
+        }
+        for (Topic t : topics) {
+            String name = t.getName().toLowerCase();
+            int bucket = bucketOf(name);
+            if ( !names.get(bucket).contains(name) ) {
+                names.get(bucket).add(name);
+                this.buckets.get(bucket).add(t);
+            }
+        }
+        this.bucketHashes = new int[BUCKETS];
+        CRC32 rootCrc = new CRC32();
+        for (int i = 0; i < BUCKETS; ++i) {
+            Collections.sort(names.get(i));
+            CRC32 crc = new CRC32();
+            for (String name : names.get(i)) {
+                crc.update(name.getBytes(UTF8));
+                crc.update(0); // Separator, so "ab","c" differs from "a","bc"
+            }
+            this.bucketHashes[i] = names.get(i).isEmpty() ? 0 : (int) crc.getValue();
+            rootCrc.update(this.bucketHashes[i] >> 24);
+            rootCrc.update(this.bucketHashes[i] >> 16);
+            rootCrc.update(this.bucketHashes[i] >> 8);
+            rootCrc.update(this.bucketHashes[i]);
+        }
+        this.root = (int) rootCrc.getValue();
+    }
+
+    /**
+     * @return The root hash of the catalog.
+     */
+    int getRoot() {
+        return this.root;
+    }
+
+    /**
+     * @return The hash of each bucket, indexed by bucket.
+     */
+    int[] getBucketHashes() {
+        return this.bucketHashes;
+    }
+
+    /**
+     * Gets the topics of ours the owner of another digest may be missing, that
+     * is, all topics in the buckets where the hashes differ.
+     * 
+     * @param root
+     *            hash of the other catalog
+     * @param bucketHashes
+     *            of the other catalog
+     * @return The topics in differing buckets. Empty if the catalogs are equal.
+     */
+    ArrayList<Topic> getTopicsDifferingFrom(int root, int[] bucketHashes) {
+        ArrayList<Topic> topics = new ArrayList<Topic>();
+        if ( root == this.root ) {
+            return topics;
+        }
+        for (int i = 0; i < BUCKETS; ++i) {
+            // A digest with another bucket count can not be compared bucket by
+            // bucket, so everything is sent.
+            if ( bucketHashes.length != BUCKETS || bucketHashes[i] != this.bucketHashes[i] ) {
+                topics.addAll(this.buckets.get(i));
+            }
+        }
+        return topics;
+    }
+
+    /**
+     * Gets the bucket a topic name belongs in.
+     * 
+     * @param name
+     *            of topic, in lower case
+     * @return The bucket index.
+     */
+    private static int bucketOf(String name) {
+        CRC32 crc = new CRC32();
+        crc.update(name.getBytes(UTF8));
+        return (int) (crc.getValue() % BUCKETS);
+    }
+}
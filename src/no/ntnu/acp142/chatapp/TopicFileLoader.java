@@ -0,0 +1,328 @@
+package no.ntnu.acp142.chatapp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import no.ntnu.acp142.Configuration;
+import no.ntnu.acp142.MulticastGroup;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Loads topic list files. The file is memory mapped and cut into chunks at
+ * line breaks, and the chunks are parsed in parallel. The lines are then
+ * merged in file order and duplicate names dropped using a hash set, so
+ * loading is linear in the size of the file. With static multicast, the
+ * topics' subscriber lists are built in parallel as well.<br>
+ * The file is read as UTF-8. Each line is on the form
+ * 
+ * <pre>
+ * [topic name]&amp;[multicast group address]
+ * </pre>
+ * 
+ * where the address is only used with static multicast. Empty lines and lines
+ * starting with '#' are skipped.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class TopicFileLoader {
+
+    /**
+     * Files are not cut into chunks smaller than this, in bytes.
+     */
+    static final int             MINIMUM_CHUNK_SIZE = 1 << 20;
+
+    private static final Charset UTF8               = Charset.forName("UTF-8");
+
+    private TopicFileLoader() {
+    }
+
+    /**
+     * Loads the topics in the given file.
+     * 
+     * @param path
+     *            to topic list file
+     * @param config
+     *            telling whether dynamic multicast is used
+     * @return The topics, in file order, without duplicates. With static
+     *         multicast only the topics whose group we are a member of.
+     * @throws IOException
+     *             If the file is missing or can not be read.
+     */
+    static ArrayList<Topic> load(String path, ChatConfiguration config) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            ArrayList<String[]> entries = parse(file.getChannel(), pool);
+            if ( config.useDynamicMulticast() ) {
+                ArrayList<Topic> topics = new ArrayList<Topic>(entries.size());
+                for (String[] entry : entries) {
+                    topics.add(new Topic(entry[0], false));
+                }
+                return topics;
+            }
+            return createStaticTopics(entries, pool);
+        } finally {
+            pool.shutdown();
+            file.close();
+        }
+    }
+
+    /**
+     * Parses the file in chunks, in parallel.
+     * 
+     * @return Name and address of each topic, in file order, without
+     *         duplicates.
+     */
+    private static ArrayList<String[]> parse(final FileChannel channel, ExecutorService pool) throws IOException {
+        long size = channel.size();
+        int chunks = (int) Math.max(1,
+                Math.min(Runtime.getRuntime().availableProcessors(), size / MINIMUM_CHUNK_SIZE));
+        // Move each cut forward to just after a line break
+        long[] cuts = new long[chunks + 1];
+        cuts[chunks] = size;
+        ByteBuffer one = ByteBuffer.allocate(1);
+        for (int i = 1; i < chunks; ++i) {
+            long position = Math.max(cuts[i - 1], size * i / chunks);
+            while (position < size) {
+                one.clear();
+                channel.read(one, position++);
+                if ( one.get(0) == '\n' ) {
+                    break;
+                }
+            }
+            cuts[i] = position;
+        }
+
+        ArrayList<Future<ArrayList<String[]>>> futures = new ArrayList<Future<ArrayList<String[]>>>(chunks);
+        for (int i = 0; i < chunks; ++i) {
+            final long start = cuts[i];
+            final long length = cuts[i + 1] - cuts[i];
+            futures.add(pool.submit(new Callable<ArrayList<String[]>>() {
+                public ArrayList<String[]> call() throws IOException {
+                    return parseChunk(channel.map(FileChannel.MapMode.READ_ONLY, start, length));
+                }
+            }));
+        }
+
+        // Merge in file order, keeping the first of each name
+        ArrayList<String[]> entries = new ArrayList<String[]>();
+        HashSet<String> names = new HashSet<String>();
+        for (Future<ArrayList<String[]>> future : futures) {
+            ArrayList<String[]> chunk = get(future);
+            if ( chunk == null ) {
+                continue;
+            }
+            for (String[] entry : chunk) {
+                if ( names.add(entry[0].toLowerCase()) ) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Parses all lines in a chunk.
+     * 
+     * @return Name and address of each topic in the chunk, in order.
+     */
+    private static ArrayList<String[]> parseChunk(MappedByteBuffer chunk) {
+        ArrayList<String[]> entries = new ArrayList<String[]>();
+        byte[] line = new byte[256];
+        int length = 0;
+        while (chunk.hasRemaining()) {
+            byte b = chunk.get();
+            if ( b != '\n' ) {
+                if ( length == line.length ) {
+                    byte[] longer = new byte[line.length * 2];
+                    System.arraycopy(line, 0, longer, 0, length);
+                    line = longer;
+                }
+                line[length++] = b;
+                if ( chunk.hasRemaining() ) {
+                    continue;
+                }
+            }
+            // End of line or chunk
+            if ( length > 0 && line[length - 1] == '\r' ) {
+                --length;
+            }
+            String[] entry = parseLine(new String(line, 0, length, UTF8));
+            if ( entry != null ) {
+                entries.add(entry);
+            }
+            length = 0;
+        }
+        return entries;
+    }
+
+    /**
+     * Parses a single line.
+     * 
+     * @return Name and address (null if none) of the topic, or null if the line
+     *         holds no topic.
+     */
+    private static String[] parseLine(String line) {
+        if ( line.length() == 0 ) {
+            return null; // Empty line
+        }
+        if ( line.charAt(0) == '#' ) {
+            return null; // Comment
+        }
+        String[] parts = line.split("&");
+        if ( parts.length == 0 ) {
+            return null; // Empty line.
+        }
+        // Make sure the name fits into 255 bytes.
+        String name = parts[0].substring(0, Math.min(parts[0].length(), 255));
+        while (name.getBytes(UTF8).length > 255) {
+            name = name.substring(0, name.length() - 1);
+        }
+        if ( name.length() == 0 ) {
+            return null; // Empty
+        }
+        return new String[] { name, parts.length > 1 ? parts[1] : null };
+    }
+
+    /**
+     * Creates the topics of the given entries for static multicast. The
+     * multicast groups are indexed on their binary address once, then each
+     * entry's address is resolved once and looked up in the index. The
+     * entries are handled in parallel, as resolving may take a while.
+     * 
+     * @param entries
+     *            topic name and group address of each entry
+     * @param pool
+     *            to run on
+     * @return The topics whose group we are a member of, in file order.
+     */
+    private static ArrayList<Topic> createStaticTopics(ArrayList<String[]> entries, ExecutorService pool) {
+        final HashMap<ByteBuffer, MulticastGroup> groups = new HashMap<ByteBuffer, MulticastGroup>();
+        for (MulticastGroup g : Configuration.getMulticastGroups()) {
+            groups.put(ByteBuffer.wrap(g.getMulticastAddress().getAddress()), g);
+        }
+        final int ownId = Configuration.getNodeId();
+
+        ArrayList<Future<Topic>> futures = new ArrayList<Future<Topic>>(entries.size());
+        for (final String[] entry : entries) {
+            futures.add(pool.submit(new Callable<Topic>() {
+                public Topic call() {
+                    return createStaticTopic(entry[0], entry[1], groups, ownId);
+                }
+            }));
+        }
+        ArrayList<Topic> topics = new ArrayList<Topic>();
+        for (Future<Topic> future : futures) {
+            Topic t = get(future);
+            if ( t != null ) {
+                topics.add(t);
+            }
+        }
+        return topics;
+    }
+
+    /**
+     * Creates a topic for static multicast, with all members of its multicast
+     * group as subscribers.
+     * 
+     * @param name
+     *            of topic
+     * @param address
+     *            of the topic's multicast group, as written in the file
+     * @param groups
+     *            multicast groups indexed on binary address
+     * @param ownId
+     *            our node ID
+     * @return The topic, or null if the group is unknown or we are not a
+     *         member of it.
+     */
+    private static Topic createStaticTopic(String name, String address, HashMap<ByteBuffer, MulticastGroup> groups,
+            int ownId) {
+        if ( address == null ) {
+            return null;
+        }
+        MulticastGroup group;
+        try {
+            group = groups.get(ByteBuffer.wrap(InetAddress.getByName(address).getAddress()));
+        } catch (UnknownHostException e) {
+            ChatLog.warning("TopicFileLoader.createStaticTopic()", "Could not resolve multicast group address.",
+                    "topic", name, "address", address);
+            return null;
+        }
+        if ( group == null ) {
+            return null;
+        }
+        Topic t = new Topic(name, false);
+        boolean areMember = false;
+        for (int id : group.getSourceIds()) {
+            // Check if we are a member of this group, if not, don't show it!
+            if ( id == ownId ) {
+                areMember = true;
+            }
+            t.addSubscriber(new Subscriber(id, "User_" + id));
+        }
+        return areMember ? t : null;
+    }
+
+    /**
+     * Waits for the result of a parallel task.
+     * 
+     * @return The result, or null if the task failed.
+     */
+    private static <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            ChatLog.error("TopicFileLoader.get()", "Interrupted while loading topics.", e);
+        } catch (ExecutionException e) {
+            ChatLog.error("TopicFileLoader.get()", "Could not load topics.", e.getCause());
+        }
+        return null;
+    }
+}
@@ -1,16 +1,14 @@
 package no.ntnu.acp142.chatapp;
 
-import no.ntnu.acp142.Configuration;
-import no.ntnu.acp142.MulticastGroup;
-
 import javax.naming.NameAlreadyBoundException;
 import javax.swing.*;
 import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.*;
-import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 /*
@@ -55,13 +53,14 @@ import java.util.List;
  */
 public class TopicModel extends AbstractListModel<Topic> {
 
-    private static PropertyChangeSupport propertyChangeSupport;
+    private final PropertyChangeSupport  propertyChangeSupport;
 
     public static final String           CREATE_NEW_TOPIC_PROPERTY          = "CreateNewTopic";
     public static final String           REMOVE_TOPIC_PROPERTY              = "RemoveTopic";
     public static final String           REMOVE_TOPIC_FROM_NETWORK_PROPERTY = "RemoveTopicFromNetwork";
     public static final String           ADD_EXISTING_TOPIC_PROPERTY        = "AddExistingTopic";
     public static final String           TOPIC_LIST_FILTER_UPDATE           = "TopicListFilterUpdate";
+    public static final String           TOPICS_LOADED_PROPERTY             = "TopicsLoaded";
 
     private final List<Topic>            topicList;
     private final List<Topic>            filteredList;
@@ -79,26 +78,60 @@ public class TopicModel extends AbstractListModel<Topic> {
      *            path to the file of static topics, or null of none exists.
      */
     public TopicModel(Networking networking, String topicListFile) {
-        propertyChangeSupport = new PropertyChangeSupport(this);
+        this.propertyChangeSupport = new PropertyChangeSupport(this);
         this.networking = networking;
         this.topicList = Collections.synchronizedList(new ArrayList<Topic>());
+        this.filteredList = Collections.synchronizedList(new ArrayList<Topic>());
+        this.selectedTopic = null;
         // Add all immutable topics
         if ( topicListFile != null ) {
-            try {
-                parseTopicsFromFile(topicListFile);
-            } catch (FileNotFoundException e) {
-                System.out.println("Topic.topic(): Could not find topic list file supplied.");
-                e.printStackTrace();
-            } catch (IOException e) {
-                System.out
-                        .println("Topic.topic(): Could not close topic list file or UTF-8 is not supported. Exception caught: ");
-                e.printStackTrace();
-            }
+            loadTopicsFromFile(topicListFile);
+        } else {
+            rebuildFilteredList();
         }
+    }
 
-        this.filteredList = Collections.synchronizedList(new ArrayList<Topic>());
-        this.selectedTopic = null;
-        updateFilteredList();
+    /**
+     * Loads the topics in the given topic list file, see TopicFileLoader, and
+     * adds those not already in the list.
+     * 
+     * @param topicListFile
+     *            path to file.
+     */
+    public void loadTopicsFromFile(String topicListFile) {
+        try {
+            addTopics(TopicFileLoader.load(topicListFile, this.networking.getConfiguration()));
+        } catch (FileNotFoundException e) {
+            ChatLog.error("TopicModel.loadTopicsFromFile()", "Could not find topic list file supplied.", e, "file",
+                    topicListFile);
+        } catch (IOException e) {
+            ChatLog.error("TopicModel.loadTopicsFromFile()", "Could not read topic list file.", e, "file",
+                    topicListFile);
+        }
+    }
+
+    /**
+     * Adds all the given topics whose names are not already in use, as one
+     * batch. The filtered list is rebuilt once, and a single
+     * TOPICS_LOADED_PROPERTY event is fired with the number of topics added.
+     * 
+     * @param topics
+     *            to add
+     */
+    public synchronized void addTopics(Collection<Topic> topics) {
+        HashSet<String> names = new HashSet<String>();
+        for (Topic t : this.topicList) {
+            names.add(t.getName().toLowerCase());
+        }
+        ArrayList<Topic> added = new ArrayList<Topic>(topics.size());
+        for (Topic t : topics) {
+            if ( names.add(t.getName().toLowerCase()) ) {
+                added.add(t);
+            }
+        }
+        this.topicList.addAll(added);
+        rebuildFilteredList();
+        propertyChangeSupport.firePropertyChange(TOPICS_LOADED_PROPERTY, null, added.size());
     }
 
     /**
@@ -127,7 +160,7 @@ public class TopicModel extends AbstractListModel<Topic> {
                 name = name.substring(0, name.length() - 1);
             }
         } catch (UnsupportedEncodingException e) {
-            System.out.println("Topic.createNewTopic(): UTF-8 not supported!");
+            ChatLog.error("TopicModel.createNewTopic()", "UTF-8 not supported.", e);
             return null;
         }
         Topic topic = new Topic(name);
@@ -243,6 +276,22 @@ public class TopicModel extends AbstractListModel<Topic> {
         return this.filteredList.size();
     }
 
+    /**
+     * Gets the index of the topic with the given name in the filtered list.
+     * 
+     * @param name
+     *            of topic
+     * @return The index, or -1 if no such topic is shown.
+     */
+    public synchronized int indexOf(String name) {
+        for (int i = 0; i < this.filteredList.size(); ++i) {
+            if ( this.filteredList.get(i).getName().toLowerCase().equals(name.toLowerCase()) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Gets the list of all topics. Used by Networking when sending a TOPIC_LIST
      * message.
@@ -257,6 +306,14 @@ public class TopicModel extends AbstractListModel<Topic> {
      * Repopulates the filtered list with the current filter status.
      */
     public synchronized void updateFilteredList() {
+        rebuildFilteredList();
+        propertyChangeSupport.firePropertyChange(TOPIC_LIST_FILTER_UPDATE, null, null);
+    }
+
+    /**
+     * Repopulates the filtered list without notifying the listeners.
+     */
+    private void rebuildFilteredList() {
         this.filteredList.clear();
         // Add the current topic
         if ( this.selectedTopic != null ) {
@@ -268,7 +325,6 @@ public class TopicModel extends AbstractListModel<Topic> {
                 this.filteredList.add(t);
             }
         }
-        propertyChangeSupport.firePropertyChange(TOPIC_LIST_FILTER_UPDATE, null, null);
     }
 
     /**
@@ -280,89 +336,4 @@ public class TopicModel extends AbstractListModel<Topic> {
     public void addPropertyChangeListener(PropertyChangeListener listener) {
         propertyChangeSupport.addPropertyChangeListener(listener);
     }
-
-    /**
-     * Parses a list of topic from the file at the given location.
-     * 
-     * @param topicListFile
-     *            path to file.
-     * @throws IOException
-     *             If UTF-8 is not supported, file is missing or cannot be
-     *             read/closed.
-     */
-    private void parseTopicsFromFile(String topicListFile) throws IOException {
-        File f = new File(topicListFile);
-        FileReader fr = new FileReader(f);
-        BufferedReader reader = new BufferedReader(fr);
-        while (true) {
-            // Line format: [topic name] <multicast group address>
-            // Where the address is only used if we use static multicast.
-            String line;
-            try {
-                line = reader.readLine();
-            } catch (IOException e) {
-                System.out.println("Topic.topic(): Could not read line from topic list file. Exception caught: ");
-                e.printStackTrace();
-                continue;
-            }
-            if ( line == null ) {
-                break; // EOF
-            }
-            if ( line.length() == 0 ) {
-                continue; // Empty line
-            }
-            if ( line.charAt(0) == '#' ) {
-                continue; // Comment
-            }
-            String[] parts = line.split("&");
-            if ( parts.length == 0 || line.split(" ").length == 0 ) {
-                continue; // Empty line.
-            }
-            // Make sure the name fits into 255 bytes.
-            String name = parts[0].substring(0, Math.min(parts[0].length(), 255));
-            while (name.getBytes("UTF-8").length > 255) {
-                name = name.substring(0, name.length() - 1);
-            }
-            if ( name.length() == 0 ) {
-                continue; // Empty
-            }
-            Topic t = new Topic(name, false);
-            boolean notDuplicate = true;
-            for (Topic to : topicList) {
-                if ( to.getName().equals(t.getName()) ) {
-                    notDuplicate = false;
-                }
-            }
-            if ( notDuplicate ) {
-                boolean areMember = false;
-                // If static multicast, add recipients to subscribers.
-                if ( !ChatConfigurationModel.useDynamicMulticast() ) {
-                    MulticastGroup group = null;
-                    for (MulticastGroup g : Configuration.getMulticastGroups()) {
-                        String addr = InetAddress.getByName(parts[1]).getHostAddress();
-                        if ( g.getMulticastAddress().getHostAddress().equals(addr) ) {
-                            group = g;
-                            break;
-                        }
-                    }
-                    if ( group != null ) {
-                        // Check if we are a member of this group, if not, don't
-                        // show it!
-                        for (int id : group.getSourceIds()) {
-                            if ( id == Configuration.getNodeId() ) {
-                                areMember = true;
-                            }
-                            t.addSubscriber(new Subscriber(id, "User_" + id));
-                        }
-                    }
-                }
-                // If we use static multicast, only add groups which we are a
-                // member of, otherwise add all
-                if ( areMember || ChatConfigurationModel.useDynamicMulticast() ) {
-                    topicList.add(t);
-                }
-            }
-        }
-        reader.close();
-    }
 }
@@ -0,0 +1,375 @@
+package no.ntnu.acp142.chatapp;
+
+import no.ntnu.acp142.Acp142Message;
+import no.ntnu.acp142.ILibjpmul;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Records every message received from and sent to libjpmul in a capture file,
+ * so the exact stream a node saw can be replayed offline with TrafficReplay.
+ * Wraps the ILibjpmul in use and passes all calls on to it. Enabled with
+ * ChatConfigurationModel.trafficCaptureFile.<br>
+ * The file is binary and only ever appended to. Integers are big endian,
+ * except those marked var, which are unsigned LEB128 variable length
+ * integers:
+ * 
+ * <pre>
+ * MAGIC(4) | VERSION(1) | node ID(4) | time started(8)
+ * [direction(1) | microseconds since previous record(var) | source ID(4)
+ *  | destination count(var) | [node ID(4)]* | expiry time(8) | flags(1)
+ *  | priority(1) | data length(var) | data]*
+ * </pre>
+ * 
+ * Direction is RECEIVED or SENT. Flags hold FLAG_DYNAMIC and FLAG_PERSISTENT.
+ * Every start appends a new header, so one file may hold several runs. A
+ * record cut short by a crash ends the capture when read.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class TrafficCapture implements ILibjpmul {
+
+    /**
+     * First bytes of every capture, "PMCT".
+     */
+    static final int               MAGIC           = 0x504d4354;
+    /**
+     * Format version written. Captures of other versions are rejected.
+     */
+    static final int               VERSION         = 1;
+    /**
+     * Direction of a message received from libjpmul.
+     */
+    static final int               RECEIVED        = 0;
+    /**
+     * Direction of a message handed to libjpmul.
+     */
+    static final int               SENT            = 1;
+    /**
+     * Flag set for messages to dynamic multicast groups.
+     */
+    static final int               FLAG_DYNAMIC    = 1;
+    /**
+     * Flag set for messages to persistent multicast groups.
+     */
+    static final int               FLAG_PERSISTENT = 2;
+
+    private final ILibjpmul        libjpmul;
+    private final File             file;
+    private final DataOutputStream out;
+    /**
+     * Time of the previous record, from System.nanoTime.
+     */
+    private long                   lastRecord;
+    /**
+     * Set once the capture is closed, or could not be written to.
+     */
+    private boolean                closed;
+
+    /**
+     * Opens the capture file for appending and writes a header to it.
+     * 
+     * @param libjpmul
+     *            interface to pass all calls on to
+     * @param file
+     *            to append to. Created if it does not exist.
+     * @param nodeId
+     *            of this node
+     * @throws IOException
+     *             If the file could not be opened.
+     */
+    TrafficCapture(ILibjpmul libjpmul, File file, int nodeId) throws IOException {
+        this.libjpmul = libjpmul;
+        this.file = file;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        this.out.writeInt(MAGIC);
+        this.out.writeByte(VERSION);
+        this.out.writeInt(nodeId);
+        this.out.writeLong(System.currentTimeMillis());
+        this.out.flush();
+        this.lastRecord = System.nanoTime();
+        this.closed = false;
+        ChatLog.info("TrafficCapture()", "Capturing traffic.", "file", file.getPath());
+    }
+
+    @Override
+    public Acp142Message receive() {
+        Acp142Message message = this.libjpmul.receive();
+        if ( message != null ) {
+            record(RECEIVED, message);
+        } else {
+            // Written out whenever libjpmul goes quiet, so little is lost on a
+            // crash without flushing for every message of a burst.
+            flush();
+        }
+        return message;
+    }
+
+    @Override
+    public void send(Acp142Message message) {
+        record(SENT, message);
+        this.libjpmul.send(message);
+    }
+
+    @Override
+    public void enterEmcon() {
+        this.libjpmul.enterEmcon();
+    }
+
+    @Override
+    public void leaveEmcon() {
+        this.libjpmul.leaveEmcon();
+    }
+
+    /**
+     * Writes out what is buffered and closes the file. Calls are still passed
+     * on to libjpmul afterwards, but no longer recorded.
+     */
+    synchronized void close() {
+        if ( this.closed ) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.out.close();
+        } catch (IOException e) {
+            ChatLog.error("TrafficCapture.close()", "Could not close capture file.", e, "file", this.file.getPath());
+        }
+    }
+
+    /**
+     * Writes out what is buffered.
+     */
+    private synchronized void flush() {
+        if ( this.closed ) {
+            return;
+        }
+        try {
+            this.out.flush();
+        } catch (IOException e) {
+            ChatLog.error("TrafficCapture.flush()", "Could not write to capture file, capturing stopped.", e,
+                    "file", this.file.getPath());
+            close();
+        }
+    }
+
+    /**
+     * Appends a record of the given message. On failure to write, capturing is
+     * stopped.
+     */
+    private synchronized void record(int direction, Acp142Message message) {
+        if ( this.closed ) {
+            return;
+        }
+        long now = System.nanoTime();
+        try {
+            this.out.writeByte(direction);
+            writeVar(this.out, Math.max(0, (now - this.lastRecord) / 1000));
+            this.out.writeInt(message.getSourceID());
+            List<Integer> destinations = message.getDestinations();
+            if ( destinations == null ) {
+                writeVar(this.out, 0);
+            } else {
+                writeVar(this.out, destinations.size());
+                for (int id : destinations) {
+                    this.out.writeInt(id);
+                }
+            }
+            this.out.writeLong(message.getExpiryTime());
+            this.out.writeByte((message.isDynamic() ? FLAG_DYNAMIC : 0)
+                    | (message.isPersistent() ? FLAG_PERSISTENT : 0));
+            this.out.writeByte(message.getPriority());
+            byte[] data = message.getData();
+            writeVar(this.out, data.length);
+            this.out.write(data);
+        } catch (IOException e) {
+            ChatLog.error("TrafficCapture.record()", "Could not write to capture file, capturing stopped.", e,
+                    "file", this.file.getPath());
+            close();
+        }
+        this.lastRecord = now;
+    }
+
+    /**
+     * Reads the header of a capture.
+     * 
+     * @param in
+     *            to read from
+     * @return The node ID the capture was made on.
+     * @throws IOException
+     *             If the stream does not start with a capture header of the
+     *             version written by this class.
+     */
+    static int readHeader(DataInputStream in) throws IOException {
+        if ( in.readInt() != MAGIC ) {
+            throw new IOException("Not a traffic capture.");
+        }
+        int version = in.readUnsignedByte();
+        if ( version != VERSION ) {
+            throw new IOException("Unsupported traffic capture version " + version + ".");
+        }
+        int nodeId = in.readInt();
+        in.readLong(); // Time started
+        return nodeId;
+    }
+
+    /**
+     * Reads the next record of a capture. A header of a later run is skipped,
+     * its records are read as if they followed on.
+     * 
+     * @param in
+     *            to read from, positioned after a header or record
+     * @return The record, or null at the end of the capture.
+     * @throws IOException
+     *             If the capture is broken.
+     */
+    static Record readRecord(DataInputStream in) throws IOException {
+        try {
+            int direction = in.read();
+            if ( direction == (MAGIC >>> 24) ) {
+                // First byte of the header of the next run.
+                if ( (in.readUnsignedByte() << 16 | in.readUnsignedShort()) != (MAGIC & 0xffffff) ) {
+                    throw new IOException("Broken record in traffic capture.");
+                }
+                int version = in.readUnsignedByte();
+                if ( version != VERSION ) {
+                    throw new IOException("Unsupported traffic capture version " + version + ".");
+                }
+                in.readInt(); // Node ID
+                in.readLong(); // Time started
+                direction = in.read();
+            }
+            if ( direction < 0 ) {
+                return null;
+            }
+            if ( direction != RECEIVED && direction != SENT ) {
+                throw new IOException("Broken record in traffic capture.");
+            }
+            long delay = readVar(in);
+            Acp142Message message = new Acp142Message();
+            message.setSourceID(in.readInt());
+            int count = (int) readVar(in);
+            ArrayList<Integer> destinations = new ArrayList<Integer>(Math.min(count, 1024));
+            for (int i = 0; i < count; ++i) {
+                destinations.add(in.readInt());
+            }
+            message.setDestinations(destinations);
+            message.setExpiryTime(in.readLong());
+            int flags = in.readUnsignedByte();
+            message.setDynamic((flags & FLAG_DYNAMIC) != 0);
+            message.setPersistent((flags & FLAG_PERSISTENT) != 0);
+            message.setPriority(in.readUnsignedByte());
+            byte[] data = new byte[(int) readVar(in)];
+            in.readFully(data);
+            message.setData(data);
+            return new Record(direction, delay, message);
+        } catch (EOFException e) {
+            // Cut short by a crash while writing.
+            return null;
+        }
+    }
+
+    /**
+     * Writes an unsigned variable length integer, seven bits at a time, least
+     * significant first.
+     */
+    private static void writeVar(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    /**
+     * Reads an unsigned variable length integer written by writeVar.
+     */
+    private static long readVar(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ( (b & 0x80) == 0 ) {
+                return value;
+            }
+        }
+        throw new IOException("Broken number in traffic capture.");
+    }
+
+    /**
+     * A message read from a capture.
+     */
+    static final class Record {
+        private final int           direction;
+        private final long          delay;
+        private final Acp142Message message;
+
+        private Record(int direction, long delay, Acp142Message message) {
+            this.direction = direction;
+            this.delay = delay;
+            this.message = message;
+        }
+
+        /**
+         * @return RECEIVED or SENT.
+         */
+        int getDirection() {
+            return this.direction;
+        }
+
+        /**
+         * @return Microseconds since the previous record.
+         */
+        long getDelay() {
+            return this.delay;
+        }
+
+        /**
+         * @return The message, as handed over to or by libjpmul.
+         */
+        Acp142Message getMessage() {
+            return this.message;
+        }
+    }
+}
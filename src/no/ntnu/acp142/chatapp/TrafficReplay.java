@@ -0,0 +1,324 @@
+package no.ntnu.acp142.chatapp;
+
+import no.ntnu.acp142.Acp142Message;
+import no.ntnu.acp142.Configuration;
+import no.ntnu.acp142.ILibjpmul;
+import no.ntnu.acp142.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.MulticastSocket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Replays a capture written by TrafficCapture into Networking, in place of
+ * libjpmul, so the traffic a node saw can be profiled and benchmarked offline.
+ * The received messages of the capture are handed out by receive at the pace
+ * they were recorded at, sped up by the given factor. What Networking sends is
+ * counted and dropped.<br>
+ * Run it as
+ * 
+ * <pre>
+ * java no.ntnu.acp142.chatapp.TrafficReplay [capture file] [speed] [options]
+ * </pre>
+ * 
+ * where speed is 1 for real time, N for N times as fast, and 0 to replay
+ * without waiting at all. The options are those of MainView.main. The replay
+ * runs as the node the capture was made on, without state snapshots, and
+ * prints the Networking metrics when the capture is done.
+ * 
+ * @author Thomas Martin Schmid
+ */
+public final class TrafficReplay implements ILibjpmul {
+
+    /**
+     * Longest time receive waits before returning null, as libjpmul does when
+     * nothing arrives, so Networking keeps up its periodic work.
+     */
+    private static final long     RECEIVE_TIMEOUT = 1000;
+
+    private final DataInputStream in;
+    private final int             nodeId;
+    private final double          speed;
+    /**
+     * Time the first record is due, from System.nanoTime. Set on the first
+     * call to receive, so startup is not part of the replay.
+     */
+    private long                  start;
+    /**
+     * Microseconds from the first record to the next one due.
+     */
+    private long                  elapsed;
+    /**
+     * Next received message to hand out, null if not read yet.
+     */
+    private Acp142Message         next;
+    private boolean               finished;
+    /**
+     * Set once receive is called after the capture is done, by when the last
+     * message has been handled.
+     */
+    private volatile boolean      drained;
+    private final AtomicLong      received;
+    private final AtomicLong      sent;
+    private final AtomicLong      capturedSent;
+
+    /**
+     * Opens the given capture for replay.
+     * 
+     * @param file
+     *            written by TrafficCapture
+     * @param speed
+     *            factor to speed the replay up by. 0 or less does not wait.
+     * @throws IOException
+     *             If the file could not be opened, or is not a capture.
+     */
+    public TrafficReplay(File file, double speed) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            this.nodeId = TrafficCapture.readHeader(this.in);
+        } catch (IOException e) {
+            this.in.close();
+            throw e;
+        }
+        this.speed = speed;
+        this.start = -1;
+        this.elapsed = 0;
+        this.next = null;
+        this.finished = false;
+        this.drained = false;
+        this.received = new AtomicLong();
+        this.sent = new AtomicLong();
+        this.capturedSent = new AtomicLong();
+    }
+
+    /**
+     * Hands out the next received message of the capture once it is due.
+     * 
+     * @return The message, or null if none is due within RECEIVE_TIMEOUT.
+     */
+    @Override
+    public Acp142Message receive() {
+        if ( this.start < 0 ) {
+            this.start = System.nanoTime();
+        }
+        if ( this.next == null && !this.finished ) {
+            readNext();
+        }
+        if ( this.next == null ) {
+            this.drained = true;
+            sleep(RECEIVE_TIMEOUT);
+            return null;
+        }
+        if ( this.speed > 0 ) {
+            long wait = this.start + (long) (this.elapsed * 1000 / this.speed) - System.nanoTime();
+            if ( wait > RECEIVE_TIMEOUT * 1000000 ) {
+                sleep(RECEIVE_TIMEOUT);
+                return null;
+            }
+            if ( wait > 0 ) {
+                sleep(wait / 1000000, (int) (wait % 1000000));
+            }
+        }
+        Acp142Message message = this.next;
+        this.next = null;
+        this.received.incrementAndGet();
+        return message;
+    }
+
+    /**
+     * Counts the message, which is not sent anywhere.
+     */
+    @Override
+    public void send(Acp142Message message) {
+        this.sent.incrementAndGet();
+    }
+
+    @Override
+    public void enterEmcon() {
+    }
+
+    @Override
+    public void leaveEmcon() {
+    }
+
+    /**
+     * @return Node ID of the node the capture was made on.
+     */
+    public int getNodeId() {
+        return this.nodeId;
+    }
+
+    /**
+     * @return true once every received message of the capture is handed out
+     *         and handled.
+     */
+    public boolean isFinished() {
+        return this.drained;
+    }
+
+    /**
+     * @return Number of received messages handed out so far.
+     */
+    public long getReceived() {
+        return this.received.get();
+    }
+
+    /**
+     * @return Number of messages Networking has sent during the replay.
+     */
+    public long getSent() {
+        return this.sent.get();
+    }
+
+    /**
+     * @return Number of sent messages in the capture read so far, to compare
+     *         getSent with.
+     */
+    public long getCapturedSent() {
+        return this.capturedSent.get();
+    }
+
+    /**
+     * Reads up to the next received message of the capture, into next. Sent
+     * messages on the way are only counted.
+     */
+    private void readNext() {
+        try {
+            TrafficCapture.Record record;
+            while ((record = TrafficCapture.readRecord(this.in)) != null) {
+                this.elapsed += record.getDelay();
+                if ( record.getDirection() == TrafficCapture.RECEIVED ) {
+                    this.next = record.getMessage();
+                    return;
+                }
+                this.capturedSent.incrementAndGet();
+            }
+        } catch (IOException e) {
+            ChatLog.error("TrafficReplay.readNext()", "Could not read capture, replay ends here.", e);
+        }
+        this.finished = true;
+        try {
+            this.in.close();
+        } catch (IOException e) {
+            ChatLog.error("TrafficReplay.readNext()", "Could not close capture.", e);
+        }
+    }
+
+    private static void sleep(long millis) {
+        sleep(millis, 0);
+    }
+
+    private static void sleep(long millis, int nanos) {
+        try {
+            Thread.sleep(millis, nanos);
+        } catch (InterruptedException e) {
+            ChatLog.error("TrafficReplay.sleep()", "Sleep interrupted.", e);
+        }
+    }
+
+    /**
+     * Replays a capture into Networking and prints the metrics when done.
+     * 
+     * @param args
+     *            capture file, optionally followed by speed, then options as
+     *            for MainView.main
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        if ( args.length < 1 ) {
+            System.out.println("Usage: java no.ntnu.acp142.chatapp.TrafficReplay [capture file] [speed] [options]");
+            return;
+        }
+        double speed = 1;
+        int first = 1;
+        if ( args.length > 1 && !args[1].startsWith("-") ) {
+            try {
+                speed = Double.parseDouble(args[1]);
+            } catch (NumberFormatException e) {
+                System.out.println("Speed '" + args[1] + "' is not a number.");
+                return;
+            }
+            first = 2;
+        }
+
+        Log.setLogLevel(Log.LOG_LEVEL_NORMAL);
+        ChatConfigurationModel chatConfigModel = ChatConfigurationModel.getDefault();
+        CommandLineOptions options = CommandLineOptions.parse(Arrays.copyOfRange(args, first, args.length));
+        if ( options == null ) {
+            return;
+        }
+        // Leave the snapshot of the node the capture was made on alone.
+        ChatConfigurationModel.setStateSnapshotFile("");
+
+        TrafficReplay replay;
+        try {
+            replay = new TrafficReplay(new File(args[0]), speed);
+        } catch (IOException e) {
+            ChatLog.error("TrafficReplay.main()", "Could not open capture.", e, "file", args[0]);
+            return;
+        }
+        // Replay as the node the capture was made on, so its own messages
+        // are told apart as they were.
+        Configuration.setNodeId(replay.getNodeId());
+        ChatModel chatModel = new ChatModel();
+        Networking networking = new Networking(chatModel);
+        TopicModel topicModel = new TopicModel(networking, options.getTopicList());
+        try {
+            networking.initialize(topicModel, replay, new MulticastSocket(chatConfigModel.getConfiguration().getBroadcastPort()),
+                    replay.getNodeId(), chatConfigModel);
+        } catch (IOException e) {
+            ChatLog.error("TrafficReplay.main()", "Could not start networking.", e);
+            return;
+        }
+        chatModel.getCurrentChat().resetSelf(null);
+
+        long begin = System.nanoTime();
+        while (!replay.isFinished()) {
+            sleep(100);
+        }
+        long millis = (System.nanoTime() - begin) / 1000000;
+        networking.shutdown();
+        System.out.println("Replayed " + replay.getReceived() + " messages in " + millis + " ms, "
+                + replay.getSent() + " sent (" + replay.getCapturedSent() + " in capture).");
+        System.out.println(networking.getMetrics().dump());
+        System.exit(0);
+    }
+}
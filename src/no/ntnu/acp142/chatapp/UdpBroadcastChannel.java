@@ -0,0 +1,157 @@
+package no.ntnu.acp142.chatapp;
+
+import no.ntnu.acp142.Configuration;
+import no.ntnu.acp142.configui.ConfigurationModel;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Sends and receives broadcasts over UDP on the broadcast group. Receiving is
+ * done on a socket bound to the broadcast port and joined to the group on the
+ * bind interface of libjpmul. Sending is done from libjpmul's broadcast port
+ * on that interface, through a socket opened on the first send.
+ * 
+ * @author Thomas Martin Schmid
+ */
+final class UdpBroadcastChannel implements BroadcastChannel {
+
+    /**
+     * Opens channels on a new socket each.
+     */
+    static final BroadcastChannel.Factory FACTORY = new BroadcastChannel.Factory() {
+        public BroadcastChannel open(ChatConfiguration config) throws IOException {
+            MulticastSocket socket = new MulticastSocket(config.getBroadcastPort());
+            try {
+                return new UdpBroadcastChannel(socket, config);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+    };
+
+    private final MulticastSocket   socket;
+    private final InetSocketAddress group;
+    private MulticastSocket         sendSocket;
+
+    /**
+     * Creates a channel receiving on the given socket, and has the socket join
+     * the broadcast group.
+     * 
+     * @param socket
+     *            bound to the broadcast port
+     * @param config
+     *            holding the broadcast group and port
+     * @throws IOException
+     *             If the group cannot be joined.
+     */
+    UdpBroadcastChannel(MulticastSocket socket, ChatConfiguration config) throws IOException {
+        this.socket = socket;
+        this.group = new InetSocketAddress(config.getBroadcastGroup(), config.getBroadcastPort() & 0xffff);
+        InetAddress bindAddress = Configuration.getBindInterfaceAddress();
+        // Null for the wildcard address, leaving the choice to the system.
+        NetworkInterface networkInterface = bindAddress == null ? null : NetworkInterface
+                .getByInetAddress(bindAddress);
+        if ( networkInterface != null ) {
+            socket.setNetworkInterface(networkInterface);
+        }
+        socket.joinGroup(this.group, networkInterface);
+    }
+
+    /**
+     * Gets a factory whose first channel receives on the given socket, if it
+     * is bound to the broadcast port then in use. Later channels, and the
+     * first if the port has changed, are opened on new sockets.
+     * 
+     * @param socket
+     *            to receive on first
+     * @return The factory.
+     */
+    static BroadcastChannel.Factory startingWith(final MulticastSocket socket) {
+        return new BroadcastChannel.Factory() {
+            private MulticastSocket unused = socket;
+
+            public synchronized BroadcastChannel open(ChatConfiguration config) throws IOException {
+                MulticastSocket first = this.unused;
+                this.unused = null;
+                if ( first != null && first.getLocalPort() == (config.getBroadcastPort() & 0xffff) ) {
+                    try {
+                        return new UdpBroadcastChannel(first, config);
+                    } catch (IOException e) {
+                        first.close();
+                        throw e;
+                    }
+                }
+                if ( first != null ) {
+                    first.close();
+                }
+                return FACTORY.open(config);
+            }
+        };
+    }
+
+    @Override
+    public synchronized void send(byte[] data) throws IOException {
+        if ( this.sendSocket == null ) {
+            this.sendSocket = new MulticastSocket(new InetSocketAddress(Configuration.getBindInterfaceAddress(),
+                    ConfigurationModel.getBroadcastPort()));
+        }
+        this.sendSocket.send(new DatagramPacket(data, data.length, this.group));
+    }
+
+    @Override
+    public int receive(byte[] buffer) throws IOException {
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        this.socket.receive(packet);
+        return packet.getLength();
+    }
+
+    @Override
+    public void close() {
+        // Wakes up the thread blocked receiving on it.
+        this.socket.close();
+        synchronized (this) {
+            if ( this.sendSocket != null ) {
+                this.sendSocket.close();
+            }
+        }
+    }
+}
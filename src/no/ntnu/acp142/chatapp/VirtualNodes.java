@@ -0,0 +1,411 @@
+package no.ntnu.acp142.chatapp;
+
+import no.ntnu.acp142.Log;
+
+import javax.naming.NameAlreadyBoundException;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Hosts many pmulchat nodes in one process, for scale testing. Each node has
+ * a ChatModel, TopicModel, Networking and ChatConfigurationModel of its own,
+ * wired up as MainView does, and runs exactly as a node in a process of its
+ * own would. The nodes share a LoopbackNetwork in place of libjpmul and of the
+ * broadcast group, so no traffic leaves the process. They also share one
+ * thread pool for the tasks of their Networking, and one scheduler for its
+ * periodic tasks, so the threads used are those listening on the network,
+ * two per node, and those doing work at the time. Payloads are compressed
+ * with PayloadCodec, which is shared by all nodes as it is.<br>
+ * Run it as
+ * 
+ * <pre>
+ * java no.ntnu.acp142.chatapp.VirtualNodes [count] [seconds] [options]
+ * </pre>
+ * 
+ * to start count nodes, have them all join one topic, and have each send a
+ * message a second for the given number of seconds. The options are those of
+ * MainView.main, and apply to all nodes. Nodes do not write state snapshots or
+ * capture traffic, and save received files to a directory of their own.
+ * 
+ * @author Thomas Martin Schmid
+ */
+public final class VirtualNodes {
+
+    /**
+     * Node ID of the first node started by main, the rest are numbered on
+     * from it.
+     */
+    public static final int                FIRST_NODE_ID     = 1000;
+    /**
+     * Topic the nodes started by main chat in.
+     */
+    public static final String             LOAD_TOPIC        = "load";
+    /**
+     * Longest time main waits for the nodes to find each other, and for them
+     * to learn of the topic.
+     */
+    private static final long              SETTLE_TIMEOUT    = 15000;
+    /**
+     * Number of threads of the scheduler shared by all nodes.
+     */
+    private static final int               SCHEDULER_THREADS = 2;
+
+    private final LoopbackNetwork          network;
+    private final ExecutorService          pool;
+    private final ScheduledExecutorService scheduler;
+    private final ArrayList<Node>          nodes;
+
+    /**
+     * Creates a harness with no nodes.
+     */
+    public VirtualNodes() {
+        this.network = new LoopbackNetwork();
+        this.pool = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "VirtualNodes worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "VirtualNodes scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.nodes = new ArrayList<Node>();
+    }
+
+    /**
+     * Starts a node.
+     * 
+     * @param nodeId
+     *            of the node, unique within the harness
+     * @param configuration
+     *            settings of the node
+     * @return The running node.
+     * @throws IOException
+     *             If the node cannot be started.
+     */
+    public synchronized Node start(int nodeId, ChatConfiguration configuration) throws IOException {
+        ChatConfigurationModel chatConfigModel = new ChatConfigurationModel(configuration);
+        ChatModel chatModel = new ChatModel(nodeId, chatConfigModel);
+        Networking networking = new Networking(chatModel);
+        networking.setExecutor(this.pool);
+        networking.setScheduler(this.scheduler);
+        TopicModel topicModel = new TopicModel(networking, null);
+        try {
+            networking.initialize(topicModel, this.network.connect(nodeId), this.network.getBroadcastChannels(),
+                    nodeId, chatConfigModel);
+        } catch (IOException e) {
+            this.network.disconnect(nodeId);
+            throw e;
+        }
+        Node node = new Node(nodeId, chatModel, topicModel, networking);
+        this.nodes.add(node);
+        return node;
+    }
+
+    /**
+     * @return The nodes started, in order.
+     */
+    public synchronized List<Node> getNodes() {
+        return new ArrayList<Node>(this.nodes);
+    }
+
+    /**
+     * @return The network the nodes are connected by.
+     */
+    public LoopbackNetwork getNetwork() {
+        return this.network;
+    }
+
+    /**
+     * Shuts all nodes down, then the thread pool and the scheduler.
+     */
+    public synchronized void shutdown() {
+        for (Node node : this.nodes) {
+            node.networking.shutdown();
+            this.network.disconnect(node.nodeId);
+        }
+        this.nodes.clear();
+        this.pool.shutdown();
+        this.scheduler.shutdown();
+    }
+
+    /**
+     * One node of the harness.
+     */
+    public static final class Node {
+        private final int        nodeId;
+        private final ChatModel  chatModel;
+        private final TopicModel topicModel;
+        private final Networking networking;
+
+        private Node(int nodeId, ChatModel chatModel, TopicModel topicModel, Networking networking) {
+            this.nodeId = nodeId;
+            this.chatModel = chatModel;
+            this.topicModel = topicModel;
+            this.networking = networking;
+        }
+
+        /**
+         * @return Node ID of the node.
+         */
+        public int getNodeId() {
+            return this.nodeId;
+        }
+
+        /**
+         * @return ChatModel of the node.
+         */
+        public ChatModel getChatModel() {
+            return this.chatModel;
+        }
+
+        /**
+         * @return TopicModel of the node.
+         */
+        public TopicModel getTopicModel() {
+            return this.topicModel;
+        }
+
+        /**
+         * @return Networking of the node.
+         */
+        public Networking getNetworking() {
+            return this.networking;
+        }
+
+        /**
+         * Switches the node to the topic, creating it if the node does not
+         * know of it and dynamic topics are in use, as /join does in
+         * HeadlessChat.
+         * 
+         * @param name
+         *            of topic
+         * @return false if the topic could not be joined.
+         */
+        public boolean joinTopic(String name) {
+            Topic topic = null;
+            synchronized (this.topicModel) {
+                int index = this.topicModel.indexOf(name);
+                if ( index >= 0 ) {
+                    topic = this.topicModel.selectTopic(index);
+                    if ( topic == null ) {
+                        // Already selected.
+                        return true;
+                    }
+                }
+            }
+            if ( topic == null ) {
+                if ( !this.networking.getConfiguration().useDynamicTopics() ) {
+                    return false;
+                }
+                try {
+                    topic = this.topicModel.createNewTopic(name);
+                } catch (NameAlreadyBoundException e) {
+                    return false;
+                }
+                if ( topic == null ) {
+                    return false;
+                }
+            }
+            this.chatModel.setCurrentChat(topic);
+            return true;
+        }
+
+        /**
+         * Sends a message to the current topic of the node.
+         * 
+         * @param text
+         *            to send
+         * @return false if the node is in no topic, or the send queue is full.
+         */
+        public boolean send(String text) {
+            if ( this.chatModel.getCurrentChat().getTopic() == null ) {
+                return false;
+            }
+            Message message = new Message(this.chatModel.getCurrentChat().getSelf(), text);
+            if ( !this.networking.trySend(message) ) {
+                return false;
+            }
+            this.chatModel.addMessage(message);
+            return true;
+        }
+    }
+
+    /**
+     * Runs a load test with the given number of nodes, then prints what was
+     * sent and received.
+     * 
+     * @param args
+     *            node count and seconds to send for, optionally, followed by
+     *            options as for MainView.main
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int count = 10;
+        long seconds = 30;
+        int first = 0;
+        try {
+            if ( args.length > first && !args[first].startsWith("-") ) {
+                count = Integer.parseInt(args[first++]);
+            }
+            if ( args.length > first && !args[first].startsWith("-") ) {
+                seconds = Long.parseLong(args[first++]);
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Usage: java no.ntnu.acp142.chatapp.VirtualNodes [count] [seconds] [options]");
+            return;
+        }
+
+        Log.setLogLevel(Log.LOG_LEVEL_NORMAL);
+        CommandLineOptions options = CommandLineOptions.parse(Arrays.copyOfRange(args, first, args.length));
+        if ( options == null ) {
+            return;
+        }
+        ChatConfiguration base = ChatConfigurationModel.getDefault().getConfiguration();
+
+        final VirtualNodes harness = new VirtualNodes();
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong received = new AtomicLong();
+        for (int i = 0; i < count; ++i) {
+            final int id = FIRST_NODE_ID + i;
+            ChatConfiguration configuration = base.edit().setStateSnapshotFile("").setTrafficCaptureFile("")
+                    .setFileTransferDirectory(new File(base.getFileTransferDirectory(), Integer.toString(id))
+                            .getPath()).build();
+            Node node;
+            try {
+                node = harness.start(id, configuration);
+            } catch (IOException e) {
+                ChatLog.error("VirtualNodes.main()", "Could not start node.", e, "node", id);
+                harness.shutdown();
+                return;
+            }
+            node.getChatModel().addPropertyChangeListener(new PropertyChangeListener() {
+                public void propertyChange(PropertyChangeEvent event) {
+                    if ( event.getPropertyName().equals(ChatModel.ADD_MESSAGE_PROPERTY) ) {
+                        long sender = ((Message) event.getNewValue()).getSender().getNodeId();
+                        if ( sender != 0 && sender != id ) {
+                            received.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        List<Node> nodes = harness.getNodes();
+
+        // Wait for the nodes to find each other, then for the topic to spread.
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < SETTLE_TIMEOUT && !allKnowEachOther(nodes)) {
+            sleep(100);
+        }
+        System.out.println("Discovery took " + (System.currentTimeMillis() - start) + " ms.");
+        nodes.get(0).joinTopic(LOAD_TOPIC);
+        start = System.currentTimeMillis();
+        ArrayList<Node> waiting = new ArrayList<Node>(nodes.subList(1, nodes.size()));
+        while (!waiting.isEmpty() && System.currentTimeMillis() - start < SETTLE_TIMEOUT) {
+            for (int i = waiting.size() - 1; i >= 0; --i) {
+                if ( waiting.get(i).getTopicModel().indexOf(LOAD_TOPIC) >= 0 ) {
+                    waiting.remove(i).joinTopic(LOAD_TOPIC);
+                }
+            }
+            sleep(100);
+        }
+        if ( !waiting.isEmpty() ) {
+            System.out.println(waiting.size() + " nodes never learned of the topic.");
+        }
+
+        // Each node sends a message a second, spread evenly over the second.
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        for (int i = 0; i < nodes.size(); ++i) {
+            final Node node = nodes.get(i);
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                private int sequence = 0;
+
+                public void run() {
+                    if ( node.send("Message " + (++this.sequence) + " from " + node.getNodeId()) ) {
+                        sent.incrementAndGet();
+                    }
+                }
+            }, i * 1000L / nodes.size(), 1000, TimeUnit.MILLISECONDS);
+        }
+        sleep(seconds * 1000);
+        scheduler.shutdownNow();
+        // Let the last messages arrive.
+        sleep(2000);
+
+        System.out.println(count + " nodes sent " + sent.get() + " messages in " + seconds + " s, received "
+                + received.get() + " of " + sent.get() * (count - 1) + ". The network delivered "
+                + harness.getNetwork().getDelivered() + " messages.");
+        System.out.println(nodes.get(0).getNetworking().getMetrics().dump());
+        harness.shutdown();
+        System.exit(0);
+    }
+
+    /**
+     * Checks whether every node has all the others in its destinations list.
+     */
+    private static boolean allKnowEachOther(List<Node> nodes) {
+        for (Node node : nodes) {
+            if ( node.getNetworking().getNumberOfNodes() < nodes.size() - 1 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            ChatLog.error("VirtualNodes.sleep()", "Sleep interrupted.", e);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package no.ntnu.acp142.chatapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Round trips of ChatMessage through its packed form.
+ * 
+ * @author Thomas Martin Schmid
+ */
+public class ChatMessageTest {
+
+    /**
+     * Packs the message and parses it back.
+     */
+    private static ChatMessage roundTrip(ChatMessage message) {
+        return new ChatMessage(message.getRawMessage());
+    }
+
+    @Test
+    public void batchRoundTrip() {
+        ArrayList<String> contents = new ArrayList<String>(Arrays.asList("first", "", "tredje linje \u00e6\u00f8\u00e5",
+                "\u65e5\u672c\u8a9e"));
+        ChatMessage parsed = roundTrip(ChatMessage.createSendMessageBatchMessage(0xfedcba98L, new Topic("general"),
+                contents, 1234));
+        assertEquals(ChatMessageType.SEND_MESSAGE_BATCH, parsed.getType());
+        assertEquals(0xfedcba98L, parsed.getSenderId());
+        assertEquals("general", parsed.getTopic().getName());
+        assertEquals(1234, parsed.getSequenceNumber());
+        assertEquals(contents, parsed.getMessages());
+    }
+
+    @Test
+    public void batchOfMostMessages() {
+        ArrayList<String> contents = new ArrayList<String>();
+        for (int i = 0; i < ChatMessage.MAXIMUM_BATCH_COUNT; ++i) {
+            contents.add("Message " + i);
+        }
+        ChatMessage parsed = roundTrip(ChatMessage.createSendMessageBatchMessage(7, new Topic("load"), contents, 0));
+        assertEquals(contents, parsed.getMessages());
+    }
+
+    @Test
+    public void batchOfLongestMessage() {
+        char[] longest = new char[0xffff];
+        Arrays.fill(longest, 'x');
+        ArrayList<String> contents = new ArrayList<String>(Arrays.asList(new String(longest), "after"));
+        ChatMessage parsed = roundTrip(ChatMessage.createSendMessageBatchMessage(7, new Topic("load"), contents, 0));
+        assertEquals(contents, parsed.getMessages());
+    }
+
+    @Test
+    public void batchSequenceNumberIsUnsigned() {
+        ArrayList<String> contents = new ArrayList<String>(Arrays.asList("a", "b"));
+        ChatMessage parsed = roundTrip(ChatMessage.createSendMessageBatchMessage(7, new Topic("load"), contents,
+                0xffffffffL));
+        assertEquals(0xffffffffL, parsed.getSequenceNumber());
+    }
+
+    @Test
+    public void truncatedBatchIsInvalid() {
+        ArrayList<String> contents = new ArrayList<String>(Arrays.asList("first", "second"));
+        byte[] octets = ChatMessage.createSendMessageBatchMessage(7, new Topic("load"), contents, 0).getRawMessage();
+        ChatMessage parsed = new ChatMessage(Arrays.copyOf(octets, octets.length - 12));
+        assertEquals(ChatMessageType.INVALID, parsed.getType());
+    }
+
+    @Test
+    public void historyRequestRoundTrip() {
+        ArrayList<SequenceRange> ranges = new ArrayList<SequenceRange>();
+        ranges.add(new SequenceRange(0xfffffffeL, 3));
+        ranges.add(new SequenceRange(17, 1));
+        ranges.add(new SequenceRange(0x12345678L, 0xffff));
+        ChatMessage parsed = roundTrip(ChatMessage.createHistoryRequestMessage(0xfedcba98L, new Topic("general"),
+                ranges));
+        assertEquals(ChatMessageType.HISTORY_REQUEST, parsed.getType());
+        assertEquals(0xfedcba98L, parsed.getSenderId());
+        assertEquals("general", parsed.getTopic().getName());
+        assertEquals(ranges.size(), parsed.getRanges().size());
+        for (int i = 0; i < ranges.size(); ++i) {
+            assertEquals(ranges.get(i).getFirst(), parsed.getRanges().get(i).getFirst());
+            assertEquals(ranges.get(i).getCount(), parsed.getRanges().get(i).getCount());
+        }
+    }
+
+    @Test
+    public void historyRequestWithoutRanges() {
+        ChatMessage parsed = roundTrip(ChatMessage.createHistoryRequestMessage(7, new Topic("general"),
+                new ArrayList<SequenceRange>()));
+        assertEquals(ChatMessageType.HISTORY_REQUEST, parsed.getType());
+        assertTrue(parsed.getRanges().isEmpty());
+    }
+
+    @Test
+    public void truncatedHistoryRequestIsInvalid() {
+        ArrayList<SequenceRange> ranges = new ArrayList<SequenceRange>();
+        ranges.add(new SequenceRange(1, 2));
+        byte[] octets = ChatMessage.createHistoryRequestMessage(7, new Topic("general"), ranges).getRawMessage();
+        assertEquals(ChatMessageType.INVALID, new ChatMessage(Arrays.copyOf(octets, octets.length - 1)).getType());
+    }
+
+    @Test
+    public void historyResponseRoundTrip() {
+        ArrayList<String> contents = new ArrayList<String>(Arrays.asList("missed", "also missed"));
+        ChatMessage parsed = roundTrip(ChatMessage.createHistoryResponseMessage(0xfedcba98L, new Topic("general"),
+                contents, 0xffffffffL));
+        assertEquals(ChatMessageType.HISTORY_RESPONSE, parsed.getType());
+        assertEquals(0xfedcba98L, parsed.getSenderId());
+        assertEquals("general", parsed.getTopic().getName());
+        assertEquals(0xffffffffL, parsed.getSequenceNumber());
+        assertEquals(contents, parsed.getMessages());
+    }
+}
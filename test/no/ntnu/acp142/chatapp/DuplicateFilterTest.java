@@ -0,0 +1,188 @@
+package no.ntnu.acp142.chatapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Tests DuplicateFilter, in particular around the wraparound of the 32 bit
+ * sequence numbers.
+ * 
+ * @author Thomas Martin Schmid
+ */
+public class DuplicateFilterTest {
+
+    private static final Topic TOPIC  = new Topic("general");
+    private static final long  SENDER = 0xfedcba98L;
+
+    @Test
+    public void repeatIsDuplicate() {
+        DuplicateFilter filter = new DuplicateFilter();
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 10));
+        assertTrue(filter.isDuplicate(SENDER, TOPIC, 10));
+    }
+
+    @Test
+    public void seenDoesNotMark() {
+        DuplicateFilter filter = new DuplicateFilter();
+        assertFalse(filter.isSeen(SENDER, TOPIC, 10));
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 10));
+        assertTrue(filter.isSeen(SENDER, TOPIC, 10));
+        assertFalse(filter.isSeen(SENDER, TOPIC, 9));
+        assertFalse(filter.isSeen(SENDER, TOPIC, 11));
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 9));
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 11));
+        assertFalse(filter.isSeen(SENDER, new Topic("other"), 10));
+    }
+
+    @Test
+    public void seenAcrossWraparound() {
+        DuplicateFilter filter = new DuplicateFilter();
+        filter.isDuplicate(SENDER, TOPIC, 0xffffffffL);
+        filter.isDuplicate(SENDER, TOPIC, 1);
+        assertTrue(filter.isSeen(SENDER, TOPIC, 0xffffffffL));
+        assertFalse(filter.isSeen(SENDER, TOPIC, 0));
+        assertFalse(filter.isSeen(SENDER, TOPIC, 1 - DuplicateFilter.WINDOW));
+    }
+
+    @Test
+    public void outOfOrderWithinWindow() {
+        DuplicateFilter filter = new DuplicateFilter();
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 10));
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 12));
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 11));
+        assertTrue(filter.isDuplicate(SENDER, TOPIC, 11));
+        assertTrue(filter.isDuplicate(SENDER, TOPIC, 10));
+    }
+
+    @Test
+    public void sequenceWrapsAround() {
+        DuplicateFilter filter = new DuplicateFilter();
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 0xfffffffeL));
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 0xffffffffL));
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 0));
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 1));
+        assertTrue(filter.isDuplicate(SENDER, TOPIC, 0xffffffffL));
+        assertTrue(filter.isDuplicate(SENDER, TOPIC, 0));
+    }
+
+    @Test
+    public void lateCopyAcrossWraparound() {
+        DuplicateFilter filter = new DuplicateFilter();
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 0xfffffff0L));
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 5));
+        assertTrue(filter.isDuplicate(SENDER, TOPIC, 0xfffffff0L));
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 0xfffffff1L));
+    }
+
+    @Test
+    public void windowForgetsOldest() {
+        DuplicateFilter filter = new DuplicateFilter();
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 5));
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 5 + DuplicateFilter.WINDOW - 1));
+        assertTrue(filter.isDuplicate(SENDER, TOPIC, 5));
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 5 + DuplicateFilter.WINDOW));
+        // Now too old to tell, taken as a restart of the sender.
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 5));
+    }
+
+    @Test
+    public void jumpIsRestart() {
+        DuplicateFilter filter = new DuplicateFilter();
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 100));
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 0x80000000L));
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 100));
+        assertTrue(filter.isDuplicate(SENDER, TOPIC, 100));
+    }
+
+    @Test
+    public void sendersAndTopicsAreSeparate() {
+        DuplicateFilter filter = new DuplicateFilter();
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 10));
+        assertFalse(filter.isDuplicate(SENDER + 1, TOPIC, 10));
+        assertFalse(filter.isDuplicate(SENDER, new Topic("other"), 10));
+        // Topic names are not case sensitive.
+        assertTrue(filter.isDuplicate(SENDER, new Topic("GENERAL"), 10));
+    }
+
+    @Test
+    public void forgetStartsOver() {
+        DuplicateFilter filter = new DuplicateFilter();
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 10));
+        filter.forget(SENDER);
+        assertFalse(filter.isDuplicate(SENDER, TOPIC, 10));
+    }
+
+    @Test
+    public void missingAcrossWraparound() {
+        DuplicateFilter filter = new DuplicateFilter();
+        filter.isDuplicate(SENDER, TOPIC, 0xfffffffeL);
+        filter.isDuplicate(SENDER, TOPIC, 1);
+        filter.isDuplicate(SENDER, TOPIC, 3);
+        ArrayList<SequenceRange> missing = filter.getMissing(SENDER, TOPIC, false);
+        assertEquals(2, missing.size());
+        assertEquals(0xffffffffL, missing.get(0).getFirst());
+        assertEquals(2, missing.get(0).getCount());
+        assertEquals(2, missing.get(1).getFirst());
+        assertEquals(1, missing.get(1).getCount());
+    }
+
+    @Test
+    public void missingAreOnlyRequestedOnce() {
+        DuplicateFilter filter = new DuplicateFilter();
+        filter.isDuplicate(SENDER, TOPIC, 10);
+        filter.isDuplicate(SENDER, TOPIC, 13);
+        assertEquals(1, filter.getMissing(SENDER, TOPIC, true).size());
+        assertTrue(filter.getMissing(SENDER, TOPIC, true).isEmpty());
+        filter.isDuplicate(SENDER, TOPIC, 15);
+        ArrayList<SequenceRange> missing = filter.getMissing(SENDER, TOPIC, true);
+        assertEquals(1, missing.size());
+        assertEquals(14, missing.get(0).getFirst());
+        assertEquals(1, missing.get(0).getCount());
+    }
+
+    @Test
+    public void nothingMissingBeforeFirstSeen() {
+        DuplicateFilter filter = new DuplicateFilter();
+        filter.isDuplicate(SENDER, TOPIC, 500);
+        assertTrue(filter.getMissing(SENDER, TOPIC, false).isEmpty());
+        assertTrue(filter.getMissing(SENDER + 1, TOPIC, false).isEmpty());
+    }
+}
@@ -0,0 +1,136 @@
+package no.ntnu.acp142.chatapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Tests how phi in FailureDetector grows with the time since the last
+ * heartbeat.
+ * 
+ * @author Thomas Martin Schmid
+ */
+public class FailureDetectorTest {
+
+    private static final int  NODE      = 42;
+    private static final long INTERVAL  = 2;
+    private static final long START     = 1000000;
+    private static final int  THRESHOLD = 8;
+
+    /**
+     * Sends the given number of heartbeats from NODE, INTERVAL seconds apart.
+     * 
+     * @return Time of the last heartbeat.
+     */
+    private static long beat(FailureDetector detector, int heartbeats) {
+        long now = START;
+        for (int i = 0; i < heartbeats; ++i) {
+            detector.heartbeat(NODE, now, INTERVAL);
+            now += INTERVAL * 1000;
+        }
+        return now - INTERVAL * 1000;
+    }
+
+    @Test
+    public void unmonitoredNodeIsNotSuspected() {
+        FailureDetector detector = new FailureDetector();
+        assertEquals(0.0, detector.phi(NODE, START), 0.0);
+        assertTrue(detector.getSuspects(0, START).isEmpty());
+    }
+
+    @Test
+    public void onlyFirstHeartbeatIsNew() {
+        FailureDetector detector = new FailureDetector();
+        assertTrue(detector.heartbeat(NODE, START, INTERVAL));
+        assertFalse(detector.heartbeat(NODE, START + 2000, INTERVAL));
+        assertTrue(detector.heartbeat(NODE + 1, START + 2000, INTERVAL));
+    }
+
+    @Test
+    public void punctualNodeIsTrusted() {
+        FailureDetector detector = new FailureDetector();
+        long last = beat(detector, 20);
+        assertTrue(detector.phi(NODE, last) < 0.1);
+        assertTrue(detector.phi(NODE, last + INTERVAL * 1000) < 1);
+        assertTrue(detector.getSuspects(1, last + INTERVAL * 1000).isEmpty());
+    }
+
+    @Test
+    public void phiGrowsWithSilence() {
+        FailureDetector detector = new FailureDetector();
+        long last = beat(detector, 20);
+        double previous = detector.phi(NODE, last);
+        for (long silence = 500; silence <= 10000; silence += 500) {
+            double phi = detector.phi(NODE, last + silence);
+            assertTrue(phi > previous);
+            previous = phi;
+        }
+    }
+
+    @Test
+    public void silentNodeIsSuspected() {
+        FailureDetector detector = new FailureDetector();
+        long last = beat(detector, 20);
+        detector.heartbeat(NODE + 1, last, INTERVAL);
+        ArrayList<Integer> suspects = detector.getSuspects(THRESHOLD, last + 10 * INTERVAL * 1000);
+        assertEquals(2, suspects.size());
+        detector.heartbeat(NODE + 1, last + 10 * INTERVAL * 1000, INTERVAL);
+        suspects = detector.getSuspects(THRESHOLD, last + 10 * INTERVAL * 1000);
+        assertEquals(1, suspects.size());
+        assertEquals(NODE, suspects.get(0).intValue());
+    }
+
+    @Test
+    public void firstIntervalIsTheConfiguredOne() {
+        FailureDetector detector = new FailureDetector();
+        detector.heartbeat(NODE, START, INTERVAL);
+        assertTrue(detector.phi(NODE, START + INTERVAL * 1000) < 1);
+        assertTrue(detector.phi(NODE, START + 10 * INTERVAL * 1000) > THRESHOLD);
+    }
+
+    @Test
+    public void forgottenNodeIsNotSuspected() {
+        FailureDetector detector = new FailureDetector();
+        long last = beat(detector, 5);
+        detector.forget(NODE);
+        assertEquals(0.0, detector.phi(NODE, last + 10 * INTERVAL * 1000), 0.0);
+        assertTrue(detector.heartbeat(NODE, last + 10 * INTERVAL * 1000, INTERVAL));
+    }
+}
@@ -0,0 +1,220 @@
+package no.ntnu.acp142.chatapp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Tests FileTransfers, in particular the chunk map of incoming transfers.
+ * 
+ * @author Thomas Martin Schmid
+ */
+public class FileTransfersTest {
+
+    private static final Topic     TOPIC   = new Topic("general");
+    private static final long      SENDER  = 7;
+    private static final long      MAXIMUM = 1L << 20;
+    private static final int       SIZE    = 100000;
+
+    private File                   directory;
+    private File                   download;
+    private byte[]                 data;
+    private FileTransfers          sender;
+    private FileTransfers.Outgoing outgoing;
+    private ChatMessage            offer;
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("pmulchat").toFile();
+        this.download = new File(this.directory, "download");
+        this.data = new byte[SIZE];
+        new Random(1).nextBytes(this.data);
+        File file = new File(this.directory, "data.bin");
+        Files.write(file.toPath(), this.data);
+        this.sender = new FileTransfers();
+        this.outgoing = this.sender.offer(file, TOPIC);
+        this.offer = new ChatMessage(ChatMessage.createFileOfferMessage(SENDER, this.outgoing.getTransferId(), TOPIC,
+                this.outgoing.getName(), this.outgoing.getSize(), this.outgoing.getChunkSize()).getRawMessage(true));
+    }
+
+    @After
+    public void tearDown() {
+        this.sender.close();
+        delete(this.directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if ( children != null ) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Passes a chunk through its packed form to the incoming transfer.
+     * 
+     * @return true if the transfer is complete.
+     */
+    private boolean write(FileTransfers.Incoming incoming, long index) throws IOException {
+        return incoming.write(new ChatMessage(this.outgoing.readChunk(SENDER, index).getRawMessage(true)));
+    }
+
+    @Test
+    public void offerRoundTrip() {
+        assertEquals(ChatMessageType.FILE_OFFER, this.offer.getType());
+        assertEquals(SENDER, this.offer.getSenderId());
+        assertEquals("data.bin", this.offer.getFileName());
+        assertEquals(SIZE, this.offer.getFileSize());
+        assertTrue(this.outgoing.getChunkCount() > 3);
+    }
+
+    @Test
+    public void missingChunksAreRequested() throws IOException {
+        FileTransfers receiver = new FileTransfers();
+        FileTransfers.Incoming incoming = receiver.accept(this.offer, this.download, MAXIMUM);
+        long count = this.outgoing.getChunkCount();
+        for (long i = 0; i < count; ++i) {
+            if ( i != 1 && i != 2 && i != count - 1 ) {
+                assertFalse(write(incoming, i));
+            }
+        }
+        ArrayList<SequenceRange> missing = incoming.request(255);
+        assertEquals(2, missing.size());
+        assertEquals(1, missing.get(0).getFirst());
+        assertEquals(2, missing.get(0).getCount());
+        assertEquals(count - 1, missing.get(1).getFirst());
+        assertEquals(1, missing.get(1).getCount());
+
+        ChatMessage request = new ChatMessage(ChatMessage.createFileChunkRequestMessage(SENDER,
+                this.outgoing.getTransferId(), missing).getRawMessage(true));
+        assertEquals(this.outgoing.getTransferId(), request.getTransferId());
+        assertEquals(2, request.getRanges().size());
+        assertEquals(count - 1, request.getRanges().get(1).getFirst());
+        receiver.close();
+    }
+
+    @Test
+    public void duplicateChunkIsHarmless() throws IOException {
+        FileTransfers receiver = new FileTransfers();
+        FileTransfers.Incoming incoming = receiver.accept(this.offer, this.download, MAXIMUM);
+        write(incoming, 0);
+        write(incoming, 0);
+        ArrayList<SequenceRange> missing = incoming.request(255);
+        assertEquals(1, missing.size());
+        assertEquals(1, missing.get(0).getFirst());
+        assertEquals(this.outgoing.getChunkCount() - 1, missing.get(0).getCount());
+        receiver.close();
+    }
+
+    @Test
+    public void resumedTransferCompletes() throws IOException {
+        FileTransfers receiver = new FileTransfers();
+        FileTransfers.Incoming incoming = receiver.accept(this.offer, this.download, MAXIMUM);
+        assertFalse(incoming.isResumed());
+        for (long i = 0; i < this.outgoing.getChunkCount(); i += 2) {
+            write(incoming, i);
+        }
+        receiver.close();
+
+        receiver = new FileTransfers();
+        incoming = receiver.accept(this.offer, this.download, MAXIMUM);
+        assertTrue(incoming.isResumed());
+        assertFalse(incoming.isComplete());
+        boolean complete = false;
+        for (SequenceRange range : incoming.request(255)) {
+            for (long i = range.getFirst(); i < range.getFirst() + range.getCount(); ++i) {
+                assertEquals(1, i % 2);
+                complete = write(incoming, i);
+            }
+        }
+        assertTrue(complete);
+        File file = incoming.complete();
+        assertEquals("data.bin", file.getName());
+        assertArrayEquals(this.data, Files.readAllBytes(file.toPath()));
+        assertEquals(1, this.download.list().length);
+        receiver.close();
+    }
+
+    @Test
+    public void existingFileIsNotOverwritten() throws IOException {
+        for (int copy = 0; copy < 2; ++copy) {
+            FileTransfers receiver = new FileTransfers();
+            FileTransfers.Incoming incoming = receiver.accept(this.offer, this.download, MAXIMUM);
+            for (long i = 0; i < this.outgoing.getChunkCount(); ++i) {
+                write(incoming, i);
+            }
+            assertEquals(copy == 0 ? "data.bin" : "data (1).bin", incoming.complete().getName());
+            receiver.close();
+        }
+    }
+
+    @Test
+    public void nameIsSanitized() throws IOException {
+        ChatMessage evil = new ChatMessage(ChatMessage.createFileOfferMessage(SENDER + 1, 1, TOPIC,
+                "../../etc/passwd", 3, 100).getRawMessage(true));
+        FileTransfers receiver = new FileTransfers();
+        assertEquals("passwd", receiver.accept(evil, this.download, MAXIMUM).getName());
+        receiver.close();
+    }
+
+    @Test
+    public void oversizedFileIsRefused() {
+        FileTransfers receiver = new FileTransfers();
+        try {
+            receiver.accept(this.offer, this.download, SIZE - 1);
+            fail("accepted a file above the maximum size");
+        } catch (IOException e) {
+            String[] left = this.download.list();
+            assertTrue(left == null || left.length == 0);
+        }
+        receiver.close();
+    }
+}
@@ -0,0 +1,161 @@
+package no.ntnu.acp142.chatapp;
+
+import static org.junit.Assert.assertEquals;
+
+import no.ntnu.acp142.Acp142Message;
+import no.ntnu.acp142.ILibjpmul;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Tests how Networking delivers received chat messages, with a single node on
+ * a LoopbackNetwork and a fake node sending it packed messages directly.
+ * 
+ * @author Thomas Martin Schmid
+ */
+public class NetworkingTest {
+
+    private static final int  NODE    = 1;
+    private static final int  PEER    = 3;
+    private static final long TIMEOUT = 5000;
+
+    private VirtualNodes      nodes;
+    private VirtualNodes.Node node;
+    private ILibjpmul         peer;
+    private Topic             topic;
+
+    @Before
+    public void setUp() throws IOException {
+        this.nodes = new VirtualNodes();
+        this.node = this.nodes.start(NODE, ChatConfigurationModel.getDefault().getConfiguration());
+        this.peer = this.nodes.getNetwork().connect(PEER);
+        this.topic = new Topic("general");
+        this.node.getTopicModel().addExistingTopic(this.topic);
+    }
+
+    @After
+    public void tearDown() {
+        this.nodes.getNetwork().disconnect(PEER);
+        this.nodes.shutdown();
+    }
+
+    /**
+     * Sends a chat message from the fake node to the node under test.
+     */
+    private void send(ChatMessage message) {
+        Acp142Message amsg = new Acp142Message();
+        amsg.setData(message.getRawMessage());
+        amsg.setDestinations(new ArrayList<Integer>(Arrays.asList(NODE)));
+        amsg.setSourceID(PEER);
+        this.peer.send(amsg);
+    }
+
+    /**
+     * Waits for the chat of the given topic to hold the given number of
+     * messages.
+     * 
+     * @return The messages of the chat.
+     */
+    private ArrayList<Message> awaitMessages(Topic topic, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            for (Chat chat : new ArrayList<Chat>(this.node.getChatModel().getChatList())) {
+                if ( chat.getTopic() == topic && chat.getMessageList().size() >= count ) {
+                    return chat.getMessageList();
+                }
+            }
+            Thread.sleep(10);
+        }
+        return new ArrayList<Message>();
+    }
+
+    @Test
+    public void backfillFromDepartedSenderIsDelivered() throws InterruptedException {
+        long departed = 9;
+        ArrayList<String> contents = new ArrayList<String>(Arrays.asList("first", "second"));
+        send(ChatMessage.createHistoryResponseMessage(departed, this.topic, contents, 100));
+        ArrayList<Message> messages = awaitMessages(this.topic, 2);
+        assertEquals(2, messages.size());
+        assertEquals("first", messages.get(0).getContent());
+        assertEquals("second", messages.get(1).getContent());
+        assertEquals(departed, messages.get(0).getSender().getNodeId());
+    }
+
+    @Test
+    public void chatMessageFromUnknownSenderIsNotDelivered() throws InterruptedException {
+        send(ChatMessage.createSendMessageBatchMessage(PEER, this.topic,
+                new ArrayList<String>(Arrays.asList("too early")), 100));
+        // Received in order, so once the backfill is in, so is the above.
+        send(ChatMessage.createHistoryResponseMessage(9, this.topic, new ArrayList<String>(Arrays.asList("marker")),
+                100));
+        assertEquals(1, awaitMessages(this.topic, 1).size());
+        this.topic.addSubscriber(new Subscriber(PEER, "peer"));
+        send(ChatMessage.createSendMessageBatchMessage(PEER, this.topic,
+                new ArrayList<String>(Arrays.asList("known")), 101));
+        ArrayList<Message> messages = awaitMessages(this.topic, 2);
+        assertEquals(2, messages.size());
+        assertEquals("marker", messages.get(0).getContent());
+        assertEquals("known", messages.get(1).getContent());
+        assertEquals("peer", messages.get(1).getSender().getUserName());
+    }
+
+    @Test
+    public void duplicateIsDroppedBeforeTopicLookup() throws InterruptedException {
+        Topic other = new Topic("other");
+        this.node.getTopicModel().addExistingTopic(other);
+        this.topic.addSubscriber(new Subscriber(PEER, "peer"));
+        ChatMessage message = ChatMessage.createSendMessageBatchMessage(PEER, this.topic,
+                new ArrayList<String>(Arrays.asList("once")), 200);
+        send(message);
+        assertEquals(1, awaitMessages(this.topic, 1).size());
+        NetworkingMetrics metrics = this.node.getNetworking().getMetrics();
+        assertEquals(0, metrics.getDuplicatesDropped());
+
+        // Without the topic, only a check done before the lookup counts the
+        // copy as a duplicate.
+        this.node.getTopicModel().removeTopic(this.topic);
+        send(message);
+        send(ChatMessage.createHistoryResponseMessage(9, other, new ArrayList<String>(Arrays.asList("marker")), 100));
+        assertEquals(1, awaitMessages(other, 1).size());
+        assertEquals(1, metrics.getDuplicatesDropped());
+    }
+}
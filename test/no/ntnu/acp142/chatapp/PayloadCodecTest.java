@@ -0,0 +1,145 @@
+package no.ntnu.acp142.chatapp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.zip.DataFormatException;
+
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Round trips of PayloadCodec, both directly and through ChatMessage.
+ * 
+ * @author Thomas Martin Schmid
+ */
+public class PayloadCodecTest {
+
+    private static final Topic TOPIC = new Topic("general");
+
+    @Test
+    public void frontCodedTopicList() {
+        ArrayList<Topic> topics = new ArrayList<Topic>();
+        TreeSet<String> names = new TreeSet<String>();
+        for (int i = 0; i < 40; ++i) {
+            String name = "operations/sector-" + (i % 4) + "/team-" + i;
+            topics.add(new Topic(name));
+            names.add(name);
+        }
+        ChatMessage message = ChatMessage.createTopicListMessage(topics);
+        byte[] plain = message.getRawMessage();
+        byte[] compressed = message.getRawMessage(true);
+        assertTrue(compressed.length < plain.length / 2);
+        assertEquals(PayloadCodec.COMPRESSED, compressed[0] & PayloadCodec.COMPRESSED);
+        assertEquals(PayloadCodec.FRONT_CODED, compressed[1] & PayloadCodec.FRONT_CODED);
+
+        ChatMessage parsed = new ChatMessage(compressed);
+        assertEquals(ChatMessageType.TOPIC_LIST, parsed.getType());
+        TreeSet<String> parsedNames = new TreeSet<String>();
+        for (Topic topic : parsed.getTopics()) {
+            parsedNames.add(topic.getName());
+        }
+        assertEquals(names, parsedNames);
+    }
+
+    @Test
+    public void deflatedBatch() throws DataFormatException {
+        ArrayList<String> contents = new ArrayList<String>();
+        for (int i = 0; i < 20; ++i) {
+            contents.add("Team " + i + " at grid location north of the base, please confirm position.");
+        }
+        ChatMessage message = ChatMessage.createSendMessageBatchMessage(0xfedcba98L, TOPIC, contents, 12345);
+        byte[] plain = message.getRawMessage();
+        byte[] compressed = PayloadCodec.compress(plain);
+        assertTrue(compressed.length < plain.length / 2);
+        assertEquals(PayloadCodec.DEFLATED, compressed[1] & PayloadCodec.DEFLATED);
+        assertArrayEquals(plain, PayloadCodec.decompress(compressed));
+
+        ChatMessage parsed = new ChatMessage(compressed);
+        assertEquals(ChatMessageType.SEND_MESSAGE_BATCH, parsed.getType());
+        assertEquals(contents, parsed.getMessages());
+        assertEquals(12345, parsed.getSequenceNumber());
+    }
+
+    @Test
+    public void smallMessageIsLeftAlone() {
+        byte[] plain = new byte[PayloadCodec.MINIMUM_COMPRESSED_SIZE - 1];
+        plain[0] = (byte) ChatMessageType.SEND_MESSAGE.ordinal();
+        assertSame(plain, PayloadCodec.compress(plain));
+    }
+
+    @Test
+    public void incompressibleMessageIsLeftAlone() {
+        byte[] plain = new byte[200];
+        new Random(1).nextBytes(plain);
+        plain[0] = (byte) ChatMessageType.SEND_MESSAGE.ordinal();
+        assertSame(plain, PayloadCodec.compress(plain));
+    }
+
+    @Test
+    public void uncompressibleTypesAreSentPlain() {
+        ChatMessage message = ChatMessage.createJoinTopicMessage(new Topic(
+                "a topic name long enough to be worth compressing, if it were allowed"), "user");
+        assertArrayEquals(message.getRawMessage(), message.getRawMessage(true));
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void unknownFlagsAreRejected() throws DataFormatException {
+        PayloadCodec.decompress(new byte[] { (byte) (PayloadCodec.COMPRESSED | 1), 0x40, 0, 0 });
+    }
+
+    @Test(expected = DataFormatException.class)
+    public void truncatedInputIsRejected() throws DataFormatException {
+        ArrayList<String> contents = new ArrayList<String>();
+        for (int i = 0; i < 20; ++i) {
+            contents.add("Roger, wilco, over and out.");
+        }
+        byte[] compressed = PayloadCodec.compress(ChatMessage.createSendMessageBatchMessage(1, TOPIC, contents, 1)
+                .getRawMessage());
+        PayloadCodec.decompress(Arrays.copyOf(compressed, compressed.length / 2));
+    }
+
+    @Test
+    public void corruptMessageIsInvalid() {
+        assertEquals(ChatMessageType.INVALID, new ChatMessage(new byte[] { (byte) PayloadCodec.COMPRESSED, 0x40 })
+                .getType());
+    }
+}
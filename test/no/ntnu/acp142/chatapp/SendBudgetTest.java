@@ -0,0 +1,98 @@
+package no.ntnu.acp142.chatapp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/*
+ * Copyright (c) 2013, Thomas Martin Schmid
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ * 
+ * (1) Redistributions of source code must retain the above copyright
+ * notice, this list of conditions and the following disclaimer.
+ * 
+ * (2) Redistributions in binary form must reproduce the above copyright
+ * notice, this list of conditions and the following disclaimer in
+ * the documentation and/or other materials provided with the
+ * distribution.
+ * 
+ * (3) The name of the author may not be used to
+ * endorse or promote products derived from this software without
+ * specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE AUTHOR ``AS IS'' AND ANY EXPRESS OR
+ * IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT,
+ * STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING
+ * IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+/**
+ * Tests the byte accounting of SendBudget.
+ * 
+ * @author Thomas Martin Schmid
+ */
+public class SendBudgetTest {
+
+    private static final Topic TOPIC  = new Topic("general");
+    private static final int   BUDGET = 100;
+
+    @Test
+    public void refusedOnceBudgetIsExceeded() {
+        SendBudget budget = new SendBudget();
+        assertTrue(budget.reserve(TOPIC, 60, BUDGET));
+        assertTrue(budget.reserve(TOPIC, 40, BUDGET));
+        assertFalse(budget.reserve(TOPIC, 1, BUDGET));
+        assertEquals(90, budget.release(TOPIC, 10));
+        assertTrue(budget.reserve(TOPIC, 10, BUDGET));
+        assertFalse(budget.reserve(TOPIC, 1, BUDGET));
+    }
+
+    @Test
+    public void oversizedMessageAcceptedWhenNothingWaits() {
+        SendBudget budget = new SendBudget();
+        assertTrue(budget.reserve(TOPIC, 3 * BUDGET, BUDGET));
+        assertFalse(budget.reserve(TOPIC, 1, BUDGET));
+        assertEquals(0, budget.release(TOPIC, 3 * BUDGET));
+        assertTrue(budget.reserve(TOPIC, 3 * BUDGET, BUDGET));
+    }
+
+    @Test
+    public void releaseNeverGoesBelowZero() {
+        SendBudget budget = new SendBudget();
+        assertEquals(0, budget.release(TOPIC, 10));
+        budget.reserve(TOPIC, 30, BUDGET);
+        assertEquals(20, budget.release(TOPIC, 10));
+        assertEquals(0, budget.release(TOPIC, 50));
+        assertTrue(budget.reserve(TOPIC, BUDGET, BUDGET));
+    }
+
+    @Test
+    public void topicsAreCountedSeparately() {
+        SendBudget budget = new SendBudget();
+        assertTrue(budget.reserve(TOPIC, BUDGET, BUDGET));
+        assertTrue(budget.reserve(new Topic("other"), BUDGET, BUDGET));
+        assertFalse(budget.reserve(new Topic("GENERAL"), 1, BUDGET));
+        assertEquals(BUDGET - 1, budget.release(new Topic("General"), 1));
+    }
+
+    @Test
+    public void sizeIsUtf8Length() {
+        assertEquals(0, SendBudget.sizeOf(""));
+        assertEquals(5, SendBudget.sizeOf("hello"));
+        assertEquals(8, SendBudget.sizeOf("bl\u00e5b\u00e6r"));
+        assertEquals(4, SendBudget.sizeOf("\ud83d\ude00"));
+    }
+}